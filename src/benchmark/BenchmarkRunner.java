@@ -0,0 +1,187 @@
+import utility.config.Config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.regex.Pattern;
+
+/**
+ * Throughput benchmark runner following the JMH workflow: warmup iterations followed by
+ * measured iterations of fixed duration, optionally on several threads sharing the
+ * benchmark state. Results are printed and written in the JMH JSON result format so they
+ * can be compared across runs with the usual JMH tooling.
+ */
+public class BenchmarkRunner {
+    private final Config config = new Config("src/config/benchmark.properties");
+    private final int WARMUP_ITERATIONS = Integer.parseInt(config.get("WARMUP_ITERATIONS", "3"));
+    private final int MEASUREMENT_ITERATIONS =
+            Integer.parseInt(config.get("MEASUREMENT_ITERATIONS", "5"));
+    // Duration of each iteration (ms)
+    private final int ITERATION_TIME = Integer.parseInt(config.get("ITERATION_TIME", "1000"));
+    // Thread counts used by contended benchmarks
+    private final String THREADS = config.get("THREADS", "1,4");
+    private final String RESULT_DIR = config.get("RESULT_DIR", "out/benchmark/results");
+
+    private final List<String> results = new ArrayList<>();
+    private final Pattern filter;
+
+    // Results of benchmarked operations are folded here so they cannot be optimised away
+    private volatile long sink;
+
+    private volatile boolean isRunning;
+
+    /**
+     * Operation measured by a benchmark
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    /**
+     * Create the operation run by one benchmark thread. Shared state is captured by the
+     * workload, per thread state is created by newOperation.
+     */
+    public interface Workload {
+        Operation newOperation() throws Exception;
+    }
+
+    /**
+     * @param filter regex selecting benchmarks to run by name, null runs every benchmark
+     */
+    public BenchmarkRunner(String filter) {
+        this.filter = filter == null ? null : Pattern.compile(filter);
+    }
+
+    /**
+     * Run a benchmark on a single thread
+     */
+    public void run(String name, Workload workload) throws Exception {
+        runWithThreads(name, workload, 1);
+    }
+
+    /**
+     * Run a benchmark once for each configured thread count, threads share the workload
+     */
+    public void runContended(String name, Workload workload) throws Exception {
+        for (String threads : THREADS.split(","))
+            runWithThreads(name, workload, Integer.parseInt(threads.trim()));
+    }
+
+    private void runWithThreads(String name, Workload workload, int threads)
+            throws Exception {
+        if (filter != null && !filter.matcher(name).find())
+            return;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            iteration(workload, threads);
+        double[] scores = new double[MEASUREMENT_ITERATIONS];
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++)
+            scores[i] = iteration(workload, threads);
+        double mean = 0;
+        for (double score : scores)
+            mean += score / scores.length;
+        double variance = 0;
+        for (double score : scores)
+            variance += (score - mean) * (score - mean) / Math.max(scores.length - 1, 1);
+        // 99.9% confidence interval with a normal approximation, as reported by JMH
+        double error = 3.29 * Math.sqrt(variance / scores.length);
+        System.out.printf("%-55s %3d %16.1f +- %12.1f ops/s%n", name, threads, mean, error);
+        results.add(toJSON(name, threads, mean, error, scores));
+    }
+
+    /**
+     * Run operations on threads for ITERATION_TIME
+     *
+     * @return operations per second over all threads
+     */
+    private double iteration(Workload workload, int threads) throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        long[] counts = new long[threads];
+        Exception[] errors = new Exception[threads];
+        List<Thread> workers = new ArrayList<>();
+        isRunning = true;
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Operation operation = workload.newOperation();
+            Thread worker = new Thread(() -> {
+                long count = 0;
+                long hash = 0;
+                try {
+                    barrier.await();
+                    while (isRunning) {
+                        for (int batch = 0; batch < 64; batch++) {
+                            Object result = operation.run();
+                            hash += result == null ? 0 : result.hashCode();
+                            count++;
+                        }
+                    }
+                } catch (Exception e) {
+                    errors[index] = e;
+                }
+                counts[index] = count;
+                sink += hash;
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        barrier.await();
+        long start = System.nanoTime();
+        Thread.sleep(ITERATION_TIME);
+        isRunning = false;
+        for (Thread worker : workers)
+            worker.join();
+        long elapsed = System.nanoTime() - start;
+        long total = 0;
+        for (int t = 0; t < threads; t++) {
+            if (errors[t] != null)
+                throw errors[t];
+            total += counts[t];
+        }
+        return total * 1e9 / elapsed;
+    }
+
+    private String toJSON(String name, int threads, double score, double error,
+                          double[] scores) {
+        StringBuilder rawData = new StringBuilder();
+        for (int i = 0; i < scores.length; i++)
+            rawData.append(i == 0 ? "" : ", ").append(scores[i]);
+        return String.format("""
+                  {
+                    "benchmark": "%s",
+                    "mode": "thrpt",
+                    "threads": %d,
+                    "forks": 1,
+                    "warmupIterations": %d,
+                    "warmupTime": "%d ms",
+                    "measurementIterations": %d,
+                    "measurementTime": "%d ms",
+                    "primaryMetric": {
+                      "score": %s,
+                      "scoreError": %s,
+                      "scoreUnit": "ops/s",
+                      "rawData": [[%s]]
+                    }
+                  }""", name, threads, WARMUP_ITERATIONS, ITERATION_TIME,
+                MEASUREMENT_ITERATIONS, ITERATION_TIME, score, error, rawData);
+    }
+
+    /**
+     * Write results of every benchmark run so far to a new timestamped file in RESULT_DIR
+     *
+     * @return path of the result file
+     * @throws IOException if the file cannot be written
+     */
+    public Path writeResults() throws IOException {
+        Files.createDirectories(Paths.get(RESULT_DIR));
+        String timestamp = LocalDateTime.now().format(
+                DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss"));
+        Path path = Paths.get(RESULT_DIR, "results_" + timestamp + ".json");
+        Files.writeString(path, "[\n" + String.join(",\n", results) + "\n]\n");
+        return path;
+    }
+}
@@ -0,0 +1,135 @@
+import handlers.RequestHandler;
+import utility.FileMetadata;
+import utility.LamportClock;
+import utility.MetricsRegistry;
+import utility.UpdateNotifier;
+import utility.http.HTTPRequest;
+import utility.http.HTTPSocketParser;
+import utility.http.RawHTTPMessage;
+import utility.pubsub.PubSubBroker;
+import utility.replication.Replication;
+import utility.weatherJson.ParallelParser;
+import utility.weatherJson.Parser;
+import utility.weatherJson.WeatherData;
+import utility.weatherJson.WeatherDataView;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks of the HTTP, JSON and request handling hot paths of the server.
+ * <p>
+ * Payloads are the Composite Adelaide file, formatted the way ContentServer sends it.
+ * Benchmarks marked contended run once per configured thread count with the state shared
+ * by every thread, like the database and clock shared by ConnectionHandlers.
+ * <p>
+ * Usage: HotPathBenchmarks [regex]
+ */
+public class HotPathBenchmarks {
+    private static final String PAYLOAD = "src/resources/WeatherData/Composite/Adelaide_2023-07" +
+                                          "-15_16-30-00.txt";
+
+    private static HTTPRequest newPUTRequest(String body) {
+        return new HTTPRequest("1.1")
+                .setMethod("PUT")
+                .setURI("/" + PAYLOAD)
+                .setHeader("Host", "127.0.0.1:4567")
+                .setHeader("Accept", "application/json")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setHeader("Lamport-Clock", "1")
+                .setBody(body);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner(argv.length > 0 ? argv[0] : null);
+        Parser fileParser = new Parser();
+        fileParser.parseFile(Paths.get(PAYLOAD));
+        String body = fileParser.toString();
+        String message = newPUTRequest(body).toString();
+        String[] lines = message.split("\n");
+        WeatherData weatherData = fileParser.getContainer().values().iterator().next();
+        String stationID = weatherData.getID();
+
+        runner.run("http.HTTPSocketParser.parseLine", () -> {
+            HTTPSocketParser socketParser = new HTTPSocketParser();
+            return () -> {
+                socketParser.reset();
+                for (String line : lines)
+                    socketParser.parseLine(line);
+                return socketParser.toString();
+            };
+        });
+        runner.run("http.HTTPRequest.fromMessage", () -> () -> HTTPRequest.fromMessage(message));
+        runner.run("http.RawHTTPMessage.read", () -> () ->
+                RawHTTPMessage.read(new BufferedReader(new StringReader(message))));
+        HTTPRequest request = HTTPRequest.fromMessage(message);
+        runner.run("http.HTTPRequest.toString", () -> request::toString);
+
+        runner.run("json.Parser.parseMessage", () -> () -> {
+            Parser parser = new Parser();
+            parser.parseMessage(body);
+            return parser.getContainer();
+        });
+        runner.run("json.Parser.index", () -> () -> Parser.index(body));
+        runner.run("json.WeatherData.toString", () -> weatherData::toString);
+        runner.run("json.WeatherDataView.toString", () -> () ->
+                Parser.index(body).get(stationID).toString());
+
+        ConcurrentMap<String, WeatherDataView> database = new ConcurrentHashMap<>(
+                Parser.index(body));
+        ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> archive =
+                new ConcurrentHashMap<>();
+        LinkedBlockingQueue<FileMetadata> updateQueue = new LinkedBlockingQueue<>();
+        ForkJoinPool parsePool = new ForkJoinPool();
+        ParallelParser parser = new ParallelParser(parsePool, 65536);
+        HTTPRequest requestGET = new HTTPRequest("1.1").setMethod("GET")
+                .setURI("/" + stationID)
+                .setHeader("Host", "127.0.0.1:4567")
+                .setHeader("Accept", "application/json");
+        MetricsRegistry metrics = new MetricsRegistry();
+        Replication replication = new Replication(1000, 1000);
+        UpdateNotifier notifier = new UpdateNotifier();
+        AtomicInteger priority = new AtomicInteger();
+        runner.runContended("handler.RequestHandler.call.GET", () -> () ->
+                new RequestHandler(requestGET, "/127.0.0.1", priority.incrementAndGet(),
+                        updateQueue, database, 20, archive, parser, metrics,
+                        replication, notifier).call());
+        runner.runContended("handler.RequestHandler.call.PUT", () -> {
+            // Each thread is a different ContentServer
+            String remoteIP = "/127.0.0." + priority.incrementAndGet();
+            return () -> new RequestHandler(request, remoteIP, priority.incrementAndGet(),
+                    updateQueue, database, 20, archive, parser, metrics, replication,
+                    notifier).call();
+        });
+
+        // Publishing from the ingest thread costs the same whatever the number of subscribers
+        PubSubBroker broker = new PubSubBroker(256);
+        for (int i = 0; i < 10000; i++)
+            broker.subscribe(PubSubBroker.ALL);
+        UpdateNotifier publisher = new UpdateNotifier(broker);
+        Map<String, WeatherDataView> stations = Parser.index(body);
+        runner.run("pubsub.UpdateNotifier.publish", () -> () -> {
+            publisher.publish(stations);
+            return null;
+        });
+        broker.close();
+
+        LamportClock clock = new LamportClock();
+        runner.runContended("clock.LamportClock.advanceAndGetTimeStamp",
+                () -> clock::advanceAndGetTimeStamp);
+        runner.runContended("clock.LamportClock.advanceAndSetTimeStamp", () -> () -> {
+            clock.advanceAndSetTimeStamp(clock.getTimeStamp());
+            return null;
+        });
+        parsePool.shutdown();
+        System.out.println("Results written to " + runner.writeResults());
+    }
+}
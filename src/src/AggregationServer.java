@@ -1,29 +1,53 @@
 import annotations.IgnoreCoverage;
+import utility.AdmissionController;
 import handlers.ConnectionHandler;
 import handlers.PriorityRunnableFuture;
 import handlers.PriorityRunnableFutureComparator;
 import handlers.RequestHandler;
+import handlers.WriteBatcher;
 import utility.FileMetadata;
+import utility.LaneQueue;
+import utility.MetricsRegistry;
 import utility.ServerSnapshot;
+import utility.SingleFlight;
 import utility.SocketServer;
+import utility.UpdateNotifier;
+import utility.http.HTTPResponse;
+import utility.http.MessageWriter;
+import utility.http.ResponseCompressor;
+import utility.pubsub.PubSubBroker;
+import utility.replication.Replication;
+import utility.replication.StateTransfer;
+import utility.weatherJson.ParallelParser;
+import utility.weatherJson.WeatherDataView;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Comparator;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AggregationServer extends SocketServer {
-    private final ConcurrentMap<String, String> database;
+    private final ConcurrentMap<String, WeatherDataView> database;
     private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String,
             String>>> archive;
     private final LinkedBlockingQueue<FileMetadata> updateQueue; // Queue referencing
     private final ExecutorService connectionHandlerPool; // Thread pool to accept
     private final ExecutorService requestHandlerPool; // Thread pool to handle request
+    private final LaneQueue<Runnable> requestQueue; // Read and write lanes of requestHandlerPool
+    private final WriteBatcher writeBatcher; // Group commit of queued PUTs
     // archive data based on order of update
     private final ScheduledExecutorService schedulePool; // Thread pool to execute
     private final ServerSnapshot serverSnapshot; // Server snapshot service
+    private final ForkJoinPool parsePool; // Thread pool to index large PUT bodies
+    private final ParallelParser parser;
+    private final MetricsRegistry metrics; // Metrics exported at GET /metrics
+    private final Replication replication; // Log shipping to follower servers
+    // Identical GETs in flight at once share one RequestHandler execution
+    private final SingleFlight<String, HTTPResponse> getFlights = new SingleFlight<>();
     // incoming requests
     private final int POOL_SIZE = Integer.parseInt(config.get("POOL_SIZE", "20"));
     // how long to wait until the cleanup task - 30 seconds
@@ -35,8 +59,87 @@ public class AggregationServer extends SocketServer {
     private int FRESH_PERIOD_COUNT = Integer.parseInt(config.get("FRESH_PERIOD_COUNT"
             , "20")); // how many updates until the current is no longer fresh
     private int WAIT_TIME = Integer.parseInt(config.get("WAIT_TIME", "30000")); //
+    // PUT bodies longer than this are indexed in parallel chunks of this size
+    private final int PARSE_CHUNK_SIZE = Integer.parseInt(config.get("PARSE_CHUNK_SIZE",
+            "65536"));
+    // Applied PUTs kept for followers that fall behind
+    private final int REPLICATION_LOG_SIZE =
+            Integer.parseInt(config.get("REPLICATION_LOG_SIZE", "1000"));
+    // Wait before reconnecting to an unreachable follower (ms)
+    private final int REPLICATION_RETRY =
+            Integer.parseInt(config.get("REPLICATION_RETRY", "1000"));
+
+    // Open connections beyond this are refused with 503
+    private int MAX_CONNECTIONS = Integer.parseInt(config.get("MAX_CONNECTIONS",
+            "1000"));
+    // Hard bound on requests queued or running, PUTs are only shed beyond it
+    private final int MAX_QUEUED_REQUESTS =
+            Integer.parseInt(config.get("MAX_QUEUED_REQUESTS", "1000"));
+    // Lowest adaptive bound on queued GETs
+    private final int MIN_QUEUED_REQUESTS =
+            Integer.parseInt(config.get("MIN_QUEUED_REQUESTS", "8"));
+    // Queue wait the adaptive bound aims for, and how long it must be exceeded (ms)
+    private final int QUEUE_TARGET = Integer.parseInt(config.get("QUEUE_TARGET", "5"));
+    private final int QUEUE_INTERVAL = Integer.parseInt(config.get("QUEUE_INTERVAL", "100"));
+    // Delay suggested to shed clients (s)
+    private final int RETRY_AFTER = Integer.parseInt(config.get("RETRY_AFTER", "1"));
+    private final AdmissionController admission = new AdmissionController(
+            MAX_QUEUED_REQUESTS, MIN_QUEUED_REQUESTS, QUEUE_TARGET, QUEUE_INTERVAL,
+            RETRY_AFTER);
+
+    // Share of requestHandlerPool given to each lane while both hold requests
+    private final int READ_WEIGHT = Integer.parseInt(config.get("READ_WEIGHT", "4"));
+    private final int WRITE_WEIGHT = Integer.parseInt(config.get("WRITE_WEIGHT", "1"));
+    // Wait after which a queued GET is answered 503 instead of handled (ms), 0 for none
+    private int READ_DEADLINE = Integer.parseInt(config.get("READ_DEADLINE", "1000"));
+
+    // Most PUTs applied as one group commit, and longest wait for another to join (ms)
+    private final int WRITE_BATCH_SIZE = Integer.parseInt(config.get("WRITE_BATCH_SIZE",
+            "64"));
+    private final int WRITE_BATCH_DELAY = Integer.parseInt(config.get("WRITE_BATCH_DELAY",
+            "0"));
+
+    // Shortest response body compressed for clients accepting it, negative for never, and
+    // number of compressed GET bodies cached
+    private int COMPRESSION_THRESHOLD =
+            Integer.parseInt(config.get("COMPRESSION_THRESHOLD", "1024"));
+    private final int COMPRESSION_CACHE_SIZE =
+            Integer.parseInt(config.get("COMPRESSION_CACHE_SIZE", "256"));
+    private volatile ResponseCompressor compressor = new ResponseCompressor(
+            COMPRESSION_THRESHOLD, COMPRESSION_CACHE_SIZE);
+
+    // Largest request body accepted once decompressed, larger ones are answered 413 (bytes)
+    private int MAX_BODY = Integer.parseInt(config.get("MAX_BODY", "16777216"));
+
+    // Longest wait of a long-poll GET for its station to change (ms)
+    private final int LONG_POLL_MAX_WAIT =
+            Integer.parseInt(config.get("LONG_POLL_MAX_WAIT", "60000"));
+    // Updates waiting to be sent to each subscription before older ones are dropped
+    private final int PUBSUB_QUEUE_SIZE =
+            Integer.parseInt(config.get("PUBSUB_QUEUE_SIZE", "256"));
+    private final PubSubBroker broker = new PubSubBroker(PUBSUB_QUEUE_SIZE);
+    private final UpdateNotifier notifier = new UpdateNotifier(broker);
+    // Connections accepted and not yet closed by their handler
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    // Connect and read timeout when fetching the snapshot of a leader (ms)
+    private final int CATCH_UP_TIMEOUT =
+            Integer.parseInt(config.get("CATCH_UP_TIMEOUT", "5000"));
 
     public AggregationServer(int port) throws IOException, ClassNotFoundException {
+        this(port, null);
+    }
+
+    /**
+     * Construct a server that copies the state of a leader before accepting connections
+     *
+     * @param port        port to bind to
+     * @param catchUpFrom hostname:port of leaders tried in order, separated by commas. Null
+     *                    uses CATCH_UP_FROM
+     * @throws IOException if port is occupied
+     */
+    public AggregationServer(int port, String catchUpFrom)
+            throws IOException, ClassNotFoundException {
         super(port);
         serverSnapshot = new ServerSnapshot(
                 config.get("databaseDir", "src/backups/database"),
@@ -46,19 +149,50 @@ public class AggregationServer extends SocketServer {
         connectionHandlerPool = Executors.newCachedThreadPool();
         schedulePool = Executors.newScheduledThreadPool(POOL_SIZE);
         updateQueue = new LinkedBlockingQueue<>();
-        requestHandlerPool = new ThreadPoolExecutor(
+        parsePool = new ForkJoinPool();
+        parser = new ParallelParser(parsePool, PARSE_CHUNK_SIZE);
+        // PUTs keep Lamport order in their lane, GETs are ordered by deadline then submission
+        // in theirs
+        requestQueue = new LaneQueue<Runnable>(
+                task -> ((PriorityRunnableFuture<?>) task).getLane())
+                .addLane(WRITE_WEIGHT, new PriorityRunnableFutureComparator())
+                .addLane(READ_WEIGHT, Comparator.comparingLong(
+                        (Runnable task) -> ((PriorityRunnableFuture<?>) task).getDeadline())
+                        .thenComparingLong(task -> ((PriorityRunnableFuture<?>) task).getSequence()));
+        metrics = new MetricsRegistry();
+        writeBatcher = new WriteBatcher(requestQueue, WRITE_BATCH_SIZE, WRITE_BATCH_DELAY,
+                metrics);
+        ThreadPoolExecutor requestExecutor = new ThreadPoolExecutor(
                 1,
                 1,
                 0,
                 TimeUnit.SECONDS,
-                new PriorityBlockingQueue<>(10, new PriorityRunnableFutureComparator())
+                requestQueue
         ) {
             protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
                 RunnableFuture<T> newTaskFor = super.newTaskFor(callable);
-                return new PriorityRunnableFuture<>(newTaskFor,
-                        ((RequestHandler) callable).getPriority());
+                RequestHandler handler = (RequestHandler) callable;
+                if (handler.getLane() == RequestHandler.READ_LANE && READ_DEADLINE > 0)
+                    handler.setDeadline(READ_DEADLINE, RETRY_AFTER);
+                return new PriorityRunnableFuture<>(newTaskFor, handler);
+            }
+
+            @Override
+            protected void beforeExecute(Thread t, Runnable r) {
+                writeBatcher.collect(r);
             }
         };
+        requestHandlerPool = requestExecutor;
+        replication = new Replication(REPLICATION_LOG_SIZE, REPLICATION_RETRY, port);
+        replication.setCatchUp(this::catchUp);
+        for (String follower : config.get("FOLLOWERS", "").split(",")) {
+            if (follower.isBlank())
+                continue;
+            String[] hostPort = follower.trim().split(":");
+            addFollower(hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+        registerMetrics(requestExecutor);
+        catchUp(catchUpFrom == null ? config.get("CATCH_UP_FROM", "") : catchUpFrom);
         run();
     }
     // backup - default 15 minutes
@@ -71,6 +205,176 @@ public class AggregationServer extends SocketServer {
         server.close();
     }
 
+    /**
+     * Register gauges and descriptions of the metrics recorded by the server
+     *
+     * @param requestExecutor executor behind requestHandlerPool
+     */
+    private void registerMetrics(ThreadPoolExecutor requestExecutor) {
+        metrics.gauge("aggregation_request_queue_depth", () -> requestExecutor.getQueue().size());
+        metrics.describe("aggregation_request_queue_depth",
+                "Requests waiting in requestHandlerPool");
+        metrics.gauge("aggregation_request_read_queue_depth",
+                () -> requestQueue.size(RequestHandler.READ_LANE));
+        metrics.describe("aggregation_request_read_queue_depth",
+                "GETs waiting in the read lane of requestHandlerPool");
+        metrics.gauge("aggregation_request_write_queue_depth",
+                () -> requestQueue.size(RequestHandler.WRITE_LANE));
+        metrics.describe("aggregation_request_write_queue_depth",
+                "PUTs and snapshots waiting in the write lane of requestHandlerPool");
+        metrics.gauge("aggregation_update_queue_size", updateQueue::size);
+        metrics.describe("aggregation_update_queue_size", "Uploads tracked in updateQueue");
+        metrics.gauge("aggregation_database_stations", database::size);
+        metrics.describe("aggregation_database_stations", "Stations in database");
+        metrics.gauge("aggregation_replication_head", () -> replication.getLog().getHead());
+        metrics.describe("aggregation_replication_head", "Sequence number of the last PUT " +
+                                                         "logged for followers");
+        metrics.gauge("aggregation_replication_applied", replication::getApplied);
+        metrics.describe("aggregation_replication_applied", "Sequence number of the last " +
+                                                            "PUT replicated from the leader");
+        metrics.gauge("aggregation_coalesced_requests", getFlights::getShared);
+        metrics.describe("aggregation_coalesced_requests", "GETs answered with the response " +
+                                                           "of an identical GET in flight");
+        metrics.gauge("aggregation_compression_cache_hits", () -> compressor.getHits());
+        metrics.describe("aggregation_compression_cache_hits",
+                "GET responses sent with a cached compressed body");
+        metrics.gauge("aggregation_compression_cache_misses",
+                () -> compressor.getMisses());
+        metrics.describe("aggregation_compression_cache_misses",
+                "GET responses whose body was compressed for them");
+        metrics.gauge("aggregation_long_polls_waiting", notifier::getWaiting);
+        metrics.describe("aggregation_long_polls_waiting",
+                "Long-poll GETs waiting for their station to change");
+        metrics.gauge("aggregation_subscribers", broker::getSubscribers);
+        metrics.describe("aggregation_subscribers", "Open subscriptions to station updates");
+        metrics.describe("aggregation_subscriptions_total", "Subscriptions opened");
+        metrics.gauge("aggregation_pubsub_delivered", broker::getDelivered);
+        metrics.describe("aggregation_pubsub_delivered",
+                "Updates queued for a subscription");
+        metrics.gauge("aggregation_pubsub_conflated", broker::getConflated);
+        metrics.describe("aggregation_pubsub_conflated",
+                "Queued updates replaced by a newer update of their station");
+        metrics.gauge("aggregation_pubsub_dropped", broker::getDropped);
+        metrics.describe("aggregation_pubsub_dropped",
+                "Updates dropped because a subscription queue was full");
+        metrics.gauge("aggregation_active_connections", activeConnections::get);
+        metrics.describe("aggregation_active_connections", "Open client connections");
+        metrics.gauge("aggregation_admission_limit", admission::getLimit);
+        metrics.describe("aggregation_admission_limit", "Adaptive bound on queued GETs");
+        metrics.describe("aggregation_shed_requests_total",
+                "Requests answered 503 by admission control by method");
+        metrics.describe("aggregation_write_batches_total",
+                "Group commits of several queued PUTs");
+        metrics.describe("aggregation_batched_puts_total", "PUTs applied in a group commit");
+        metrics.describe("aggregation_expired_requests_total",
+                "Requests answered 503 after waiting past their deadline by method");
+        metrics.describe("aggregation_shed_connections_total",
+                "Connections refused with 503 over MAX_CONNECTIONS");
+        metrics.describe("aggregation_connections_total", "Accepted client connections");
+        metrics.describe("aggregation_connections_closed_total", "Closed client connections");
+        metrics.describe("aggregation_requests_total", "Requests answered by method and code");
+        metrics.describe("aggregation_request_duration_seconds",
+                "Time from receiving a request to sending its response");
+        metrics.describe("aggregation_request_queue_wait_seconds",
+                "Time a request waits in requestHandlerPool before being handled");
+        metrics.describe("aggregation_request_handler_duration_seconds",
+                "Time spent in RequestHandler by method");
+        metrics.describe("aggregation_response_wait_seconds",
+                "Time ConnectionHandler waits for the response of a submitted request");
+        metrics.describe("aggregation_snapshot_duration_seconds",
+                "Time taken to write a snapshot of database and archive");
+    }
+
+    /**
+     * Write a snapshot, recording how long it takes
+     */
+    private void createSnapShot() {
+        long start = System.nanoTime();
+        serverSnapshot.createSnapShot();
+        metrics.summary("aggregation_snapshot_duration_seconds")
+                .record(System.nanoTime() - start);
+    }
+
+    /**
+     * Ship every PUT applied from now on to a follower server
+     *
+     * @param hostname follower hostname
+     * @param port     follower port
+     */
+    public void addFollower(String hostname, int port) {
+        logger.info("Adding follower: " + hostname + ":" + port);
+        replication.addFollower(hostname, port);
+    }
+
+    /**
+     * Copy the state of the first leader that sends a snapshot
+     *
+     * @param leaders hostname:port of leaders separated by commas
+     * @return true if a snapshot was installed
+     */
+    private boolean catchUp(String leaders) {
+        for (String leader : leaders.split(",")) {
+            if (leader.isBlank())
+                continue;
+            String[] hostPort = leader.trim().split(":");
+            if (catchUp(hostPort[0], Integer.parseInt(hostPort[1])))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Install a snapshot of a leader and become its follower. The leader ships every PUT
+     * applied after the snapshot, so the server holds the state of the leader once it
+     * applies the shipped tail. Called before accepting connections, nothing is served
+     * from the stale state restored from disk, and in the background once the server is
+     * shipped PUTs of another epoch or told to follow a newly elected leader.
+     *
+     * @param hostname leader hostname
+     * @param port     leader port
+     * @return true if a snapshot was installed
+     */
+    public boolean catchUp(String hostname, int port) {
+        logger.info("Catching up from " + hostname + ":" + port);
+        StateTransfer.Snapshot snapshot = null;
+        try {
+            snapshot = StateTransfer.fetch(hostname, port, this.port, CATCH_UP_TIMEOUT);
+            serverSnapshot.install(snapshot.file, updateQueue);
+            replication.follow(snapshot.epoch, snapshot.sequence);
+            logger.info("Caught up from " + hostname + ":" + port + " at " +
+                        snapshot.sequence);
+            return true;
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+            logger.info("Unable to catch up from " + hostname + ":" + port + ": " + e);
+            return false;
+        } finally {
+            if (snapshot != null)
+                try {
+                    Files.deleteIfExists(snapshot.file);
+                } catch (IOException e) {
+                    logger.info("Unable to delete snapshot: " + e);
+                }
+        }
+    }
+
+    /**
+     * Getter for replication
+     *
+     * @return replication state of the server
+     */
+    public Replication getReplication() {
+        return replication;
+    }
+
+    /**
+     * Getter for metrics
+     *
+     * @return metrics registry of the server
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
     /**
      * Getter for serverSnapshot
      *
@@ -89,6 +393,43 @@ public class AggregationServer extends SocketServer {
         this.FRESH_PERIOD_COUNT = FRESH_PERIOD_COUNT;
     }
 
+    /**
+     * Setter for MAX_CONNECTIONS only for testing
+     *
+     * @param MAX_CONNECTIONS int value
+     */
+    public void setMAX_CONNECTIONS(int MAX_CONNECTIONS) {
+        this.MAX_CONNECTIONS = MAX_CONNECTIONS;
+    }
+
+    /**
+     * Setter for READ_DEADLINE only for testing
+     *
+     * @param READ_DEADLINE int value
+     */
+    public void setREAD_DEADLINE(int READ_DEADLINE) {
+        this.READ_DEADLINE = READ_DEADLINE;
+    }
+
+    /**
+     * Setter for COMPRESSION_THRESHOLD only for testing, applies to new connections
+     *
+     * @param COMPRESSION_THRESHOLD int value
+     */
+    public void setCOMPRESSION_THRESHOLD(int COMPRESSION_THRESHOLD) {
+        this.COMPRESSION_THRESHOLD = COMPRESSION_THRESHOLD;
+        compressor = new ResponseCompressor(COMPRESSION_THRESHOLD, COMPRESSION_CACHE_SIZE);
+    }
+
+    /**
+     * Setter for MAX_BODY only for testing, applies to new connections
+     *
+     * @param MAX_BODY int value
+     */
+    public void setMAX_BODY(int MAX_BODY) {
+        this.MAX_BODY = MAX_BODY;
+    }
+
     /**
      * Setter for WAIT_TIME only for testing
      *
@@ -104,7 +445,7 @@ public class AggregationServer extends SocketServer {
      *
      * @return database object
      */
-    public ConcurrentMap<String, String> getDatabase() {
+    public ConcurrentMap<String, WeatherDataView> getDatabase() {
         return database;
     }
 
@@ -126,7 +467,7 @@ public class AggregationServer extends SocketServer {
     protected void pre_start_hook() {
         super.pre_start_hook();
         createSnapShotFuture =
-                schedulePool.scheduleWithFixedDelay(serverSnapshot::createSnapShot,
+                schedulePool.scheduleWithFixedDelay(this::createSnapShot,
                         BACKUP_TIME, BACKUP_TIME, TimeUnit.MINUTES);
     }
 
@@ -138,20 +479,53 @@ public class AggregationServer extends SocketServer {
         super.start_hook();
         try {
             Socket clientSocket = serverSocket.accept();
+            if (activeConnections.get() >= MAX_CONNECTIONS) {
+                shed(clientSocket);
+                return;
+            }
+            // Counted before the pool runs the handler, so a burst of connections accepted
+            // before any handler started is still held to MAX_CONNECTIONS
+            activeConnections.incrementAndGet();
             logger.info("Create a new client handling socket at " + clientSocket.getLocalSocketAddress());
             // Connection Pool listen for incoming requests
-            connectionHandlerPool.execute(new ConnectionHandler(
+            ConnectionHandler handler = new ConnectionHandler(
                     clientSocket,
                     new BufferedReader(new InputStreamReader(clientSocket.getInputStream())),
-                    new PrintWriter(clientSocket.getOutputStream(), true),
+                    new MessageWriter(clientSocket),
                     clock, database, archive, requestHandlerPool, updateQueue,
-                    schedulePool, FRESH_PERIOD_COUNT, WAIT_TIME, removeEntryFuture));
+                    schedulePool, FRESH_PERIOD_COUNT, WAIT_TIME, removeEntryFuture,
+                    parser, metrics, replication, getFlights, admission, compressor, notifier,
+                    LONG_POLL_MAX_WAIT, broker, activeConnections);
+            handler.setMAX_BODY(MAX_BODY);
+            connectionHandlerPool.execute(handler);
+        } catch (RejectedExecutionException e) {
+            activeConnections.decrementAndGet();
+            logger.info("Connection rejected by the handler pool: " + e);
         } catch (IOException e) {
             logger.info("ERROR: start_hook for AggregationServer: " + e);
             setStartBreakSignal(true);
         }
     }
 
+    /**
+     * Refuse a connection with 503 from the accepting thread, before any handler thread
+     * is started for it
+     *
+     * @param clientSocket accepted connection
+     */
+    private void shed(Socket clientSocket) {
+        metrics.counter("aggregation_shed_connections_total").increment();
+        try (clientSocket) {
+            MessageWriter writer = new MessageWriter(clientSocket);
+            writer.write(ConnectionHandler.newShedResponse(RETRY_AFTER)
+                    .setHeader("Lamport-Clock", String.valueOf(clock.getTimeStamp())));
+            writer.flush();
+            clientSocket.shutdownOutput();
+        } catch (IOException e) {
+            logger.info("Unable to refuse connection: " + e);
+        }
+    }
+
     /**
      * Stop all thread pools and future tasks
      */
@@ -168,6 +542,12 @@ public class AggregationServer extends SocketServer {
         schedulePool.shutdownNow();
         logger.info("Closing agg server request pool");
         requestHandlerPool.shutdownNow();
+        logger.info("Closing agg server parse pool");
+        parsePool.shutdownNow();
+        logger.info("Closing agg server replication");
+        replication.close();
+        logger.info("Closing agg server subscriptions");
+        broker.close();
     }
 }
 
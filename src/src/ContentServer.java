@@ -1,9 +1,12 @@
 import utility.SocketClient;
+import utility.UploadState;
 import utility.domain.ContentServerInformation;
 import utility.domain.ContentServerParser;
+import utility.http.ChunkedWriter;
 import utility.http.HTTPRequest;
 import utility.http.HTTPResponse;
 import utility.weatherJson.Parser;
+import utility.weatherJson.WeatherData;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -11,14 +14,41 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.file.FileSystems;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Objects;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 public class ContentServer extends SocketClient {
     private final String fileName;
 
+    // Only send stations that changed since the last acknowledged upload, in watch mode
+    private boolean DELTA_UPLOAD = Boolean.parseBoolean(config.get("DELTA_UPLOAD",
+            "false"));
+
+    private final Map<String, UploadState> uploadStates = new HashMap<>();
+
+    // State sent in the last PUT, saved once the PUT is acknowledged
+    private String pendingStateDigest;
+
+    private Map<String, String> pendingStationHashes;
+
+    // Upload every file of fileName directory whenever it changes
+    private boolean watch;
+
+    private volatile boolean isWatching;
+
+    private WatchService watchService;
+
+    // Stream PUT bodies in chunked transfer coding as files are parsed, without building
+    // them in memory. Delta uploads hash the whole file first and are never streamed.
+    private boolean STREAM_UPLOAD = Boolean.parseBoolean(config.get("STREAM_UPLOAD",
+            "false"));
+
+    // File whose PUT was streamed last, streamed again if it has to be resent
+    private String streamedFile;
+
+    // How long to wait for more file changes before uploading them
+    private int WATCH_WINDOW = Integer.parseInt(config.get("WATCH_WINDOW", "500"));
 
     public ContentServer(
             Socket clientSocket,
@@ -47,13 +77,18 @@ public class ContentServer extends SocketClient {
         BufferedReader in =
                 new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
         PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        return new ContentServer(clientSocket, out, in, info.hostname, info.port,
-                info.fileName);
+        ContentServer contentServer = new ContentServer(clientSocket, out, in,
+                info.hostname, info.port, info.fileName);
+        contentServer.watch = info.watch;
+        return contentServer;
     }
 
     public static void main(String[] argv) throws IOException {
         ContentServer client = ContentServer.from_args(argv);
-        client.run();
+        if (client.watch)
+            client.watch();
+        else
+            client.run();
     }
 
     /**
@@ -61,15 +96,78 @@ public class ContentServer extends SocketClient {
      * <p>
      * The server reads the local weather data file and load to memory
      *
+     * @param fileName path to the weather data file
      * @return weather data in json format
      * @throws IOException if file is not found
      */
-    private String getBody() throws IOException {
+    private String getBody(String fileName) throws IOException {
         Parser parser = new Parser();
         parser.parseFile(Paths.get(fileName));
         return parser.toString();
     }
 
+    /**
+     * Check if uploads are deltas. Only a watching ContentServer keeps its connection open,
+     * so only its archive entries, the bases of its deltas, cannot expire on the server.
+     */
+    private boolean isDeltaUpload() {
+        return DELTA_UPLOAD && watch;
+    }
+
+    /**
+     * Get the content to be sent in body in delta mode.
+     * <p>
+     * Only stations whose hash differs from the last acknowledged upload are included,
+     * and the request is marked with the digest of the state it applies on (Delta-Base).
+     * The full file is sent on the first upload of the file by this ContentServer, or if
+     * a station was removed from the file. The digest of the full resulting state is
+     * always sent (State-Digest) so the server can check the next delta. Both digests are
+     * equal if the file did not change.
+     *
+     * @param request  PUT request to add delta headers to
+     * @param fileName path to the weather data file
+     * @return weather data in json format
+     * @throws IOException if file is not found
+     */
+    private String getDeltaBody(HTTPRequest request, String fileName) throws IOException {
+        Parser parser = new Parser();
+        parser.parseFile(Paths.get(fileName));
+        Map<String, String> stations = new LinkedHashMap<>();
+        for (Map.Entry<String, WeatherData> entry : parser.getContainer().entrySet())
+            stations.put(entry.getKey(), entry.getValue().toString());
+        String body = parser.toString();
+        pendingStateDigest = UploadState.digest(body);
+        pendingStationHashes = UploadState.hashStations(stations);
+        request.setHeader("State-Digest", pendingStateDigest);
+
+        UploadState state = getUploadState(fileName);
+        if (state.getStateDigest() == null ||
+            !stations.keySet().containsAll(state.getStationIDs()))
+            return body;
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> entry : pendingStationHashes.entrySet())
+            if (!entry.getValue().equals(state.getStationHash(entry.getKey())))
+                changed.add(entry.getKey());
+        request.setHeader("Delta-Base", state.getStateDigest());
+        return parser.toString(changed);
+    }
+
+    private UploadState getUploadState(String fileName) {
+        return uploadStates.computeIfAbsent(fileName, key -> new UploadState());
+    }
+
+    public void setDELTA_UPLOAD(boolean DELTA_UPLOAD) {
+        this.DELTA_UPLOAD = DELTA_UPLOAD;
+    }
+
+    public void setSTREAM_UPLOAD(boolean STREAM_UPLOAD) {
+        this.STREAM_UPLOAD = STREAM_UPLOAD;
+    }
+
+    public void setWATCH_WINDOW(int WATCH_WINDOW) {
+        this.WATCH_WINDOW = WATCH_WINDOW;
+    }
+
     /**
      * Generate a PUT request to send to agg server
      *
@@ -77,19 +175,73 @@ public class ContentServer extends SocketClient {
      * @throws IOException if file is not found
      */
     public HTTPRequest formatPUTMessage() throws IOException {
+        return formatPUTMessage(fileName);
+    }
+
+    /**
+     * Generate a PUT request for a weather data file to send to agg server
+     *
+     * @param fileName path to the weather data file
+     * @return HTTPRequest PUT request with json file content
+     * @throws IOException if file is not found
+     */
+    public HTTPRequest formatPUTMessage(String fileName) throws IOException {
         HTTPRequest request = new HTTPRequest("1.1")
                 .setMethod("PUT")
                 .setURI("/" + fileName)
                 .setHeader("Host", getHostname() + ":" + getPort())
                 .setHeader("Accept", "application/json")
                 .setHeader("Content-Type", "application/json");
-        String body = getBody();
+        String body = isDeltaUpload() ? getDeltaBody(request, fileName) : getBody(fileName);
         request.setHeader("Content-Length", String.valueOf(body.length()));
         request.setBody(body);
         return request;
     }
 
 
+    /**
+     * Send a PUT request for a weather data file, its body streamed as the file is parsed
+     * if STREAM_UPLOAD is set. In delta mode, nothing is sent if the file is unchanged
+     * since its last acknowledged upload.
+     *
+     * @param fileName path to the weather data file
+     * @return true if a PUT was sent
+     * @throws IOException if file is not found
+     */
+    private boolean sendPUT(String fileName) throws IOException {
+        if (!STREAM_UPLOAD || isDeltaUpload()) {
+            streamedFile = null;
+            HTTPRequest request = formatPUTMessage(fileName);
+            if (request.getHeader("Delta-Base") != null &&
+                request.getHeader("Delta-Base").equals(request.getHeader("State-Digest"))) {
+                logger.info("File unchanged since its last upload: " + fileName);
+                pendingStateDigest = null;
+                return false;
+            }
+            send(request);
+            return true;
+        }
+        streamedFile = fileName;
+        HTTPRequest request = new HTTPRequest("1.1")
+                .setMethod("PUT")
+                .setURI("/" + fileName)
+                .setHeader("Host", getHostname() + ":" + getPort())
+                .setHeader("Accept", "application/json")
+                .setHeader("Content-Type", "application/json");
+        try (ChunkedWriter body = sendChunked(request)) {
+            new Parser().streamFile(Paths.get(fileName), body);
+        }
+        return true;
+    }
+
+    @Override
+    protected void resend() throws IOException {
+        if (streamedFile != null)
+            sendPUT(streamedFile);
+        else
+            super.resend();
+    }
+
     /**
      * Create an empty GET request
      *
@@ -109,7 +261,31 @@ public class ContentServer extends SocketClient {
     }
 
     /**
-     * Sends GET request to get timestamp, then send PUT request
+     * Handle the response to a PUT request.
+     * <p>
+     * In delta mode, a 412 response means the server does not hold the state the delta
+     * was computed from, so the full file is sent instead.
+     *
+     * @param response PUT response
+     * @param fileName path to the uploaded file
+     * @return true if the upload is complete, false if the PUT was sent again
+     * @throws IOException if file is not found
+     */
+    private boolean handlePUTResponse(HTTPResponse response, String fileName) throws IOException {
+        if (isDeltaUpload() && Objects.equals(response.statusCode, "412")) {
+            getUploadState(fileName).clear();
+            send(formatPUTMessage(fileName));
+            return false;
+        }
+        if (isDeltaUpload() && response.statusCode.startsWith("2") &&
+            pendingStateDigest != null)
+            getUploadState(fileName).save(pendingStateDigest, pendingStationHashes);
+        pendingStateDigest = null;
+        return true;
+    }
+
+    /**
+     * Sends GET request to get timestamp, then send PUT request.
      *
      * @throws IOException if connection issues encountered
      */
@@ -122,14 +298,121 @@ public class ContentServer extends SocketClient {
                 HTTPResponse httpResponse = HTTPResponse.fromMessage(response);
                 // ACK for GET message
                 if (Objects.equals(httpResponse.statusCode, "204")) {
-                    HTTPRequest requestPUT = formatPUTMessage();
-                    send(requestPUT);
-                } else { // Close connection when PUT ACK is received
-                    break;
+                    sendPUT(fileName);
+                } else if (handlePUTResponse(httpResponse, fileName)) {
+                    break; // Close connection when PUT ACK is received
                 }
             } else
                 break; // Break if serverside connection is terminated
         }
         close();
     }
+
+    /**
+     * Upload a file over the current connection, reconnecting if the connection fails.
+     *
+     * @param fileName path to the weather data file
+     * @throws IOException if the file cannot be uploaded after MAX_RETRY attempts
+     */
+    private void upload(String fileName) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                if (!sendPUT(fileName))
+                    return;
+                while (true) {
+                    String response = receive();
+                    if (response == null)
+                        throw new IOException("Connection closed by server");
+                    if (handlePUTResponse(HTTPResponse.fromMessage(response), fileName))
+                        return;
+                }
+            } catch (NoSuchFileException e) {
+                logger.info("File removed before upload: " + fileName);
+                return;
+            } catch (IOException | RuntimeException e) {
+                logger.info("Upload attempt " + attempt + " failed for " + fileName + ": " + e);
+                if (attempt >= getMAX_RETRY())
+                    throw new IOException("Unable to upload " + fileName, e);
+                reconnect();
+            }
+        }
+    }
+
+    private boolean isWatchedFile(Path path) {
+        return Files.isRegularFile(path) && !path.getFileName().toString().startsWith(".");
+    }
+
+    /**
+     * Collect the changed files of a watch key and reset the key
+     */
+    private void collectChanges(WatchKey key, Path directory, Set<Path> changed) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                continue;
+            changed.add(directory.resolve((Path) event.context()));
+        }
+        key.reset();
+    }
+
+    /**
+     * Upload every file of the fileName directory, then keep uploading files as they are
+     * created or modified, until stopWatching is called.
+     * <p>
+     * All PUT requests are sent over the current connection without the initial GET.
+     * Changes received within WATCH_WINDOW ms of the first one are coalesced, so a file
+     * written several times is only parsed and uploaded once. In delta mode, the first
+     * upload of each file is full, since the archive entry a previous run left may have
+     * expired, and later uploads only send the changed stations.
+     *
+     * @throws IOException if the directory cannot be watched or a file cannot be uploaded
+     */
+    public void watch() throws IOException {
+        Path directory = Paths.get(fileName);
+        watchService = FileSystems.getDefault().newWatchService();
+        isWatching = true;
+        try {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(directory)) {
+                for (Path path : paths)
+                    if (isWatchedFile(path))
+                        upload(path.toString());
+            }
+            while (isWatching) {
+                Set<Path> changed = new LinkedHashSet<>();
+                collectChanges(watchService.take(), directory, changed);
+                // The window starts at the first change, so a file written without pause is
+                // still uploaded every WATCH_WINDOW ms
+                long deadline = System.nanoTime() +
+                                TimeUnit.MILLISECONDS.toNanos(WATCH_WINDOW);
+                WatchKey key;
+                long remaining;
+                while ((remaining = deadline - System.nanoTime()) > 0 &&
+                       (key = watchService.poll(remaining, TimeUnit.NANOSECONDS)) != null)
+                    collectChanges(key, directory, changed);
+                for (Path path : changed)
+                    if (isWatchedFile(path))
+                        upload(path.toString());
+            }
+        } catch (ClosedWatchServiceException e) {
+            logger.info("Stop watching " + directory);
+        } catch (InterruptedException e) {
+            logger.info("Stop watching " + directory);
+            Thread.currentThread().interrupt();
+        } finally {
+            watchService.close();
+            close();
+        }
+    }
+
+    /**
+     * Stop the watch loop. Changes that are being uploaded are completed first.
+     *
+     * @throws IOException if the watch service cannot be closed
+     */
+    public void stopWatching() throws IOException {
+        isWatching = false;
+        if (watchService != null)
+            watchService.close();
+    }
 }
@@ -1,7 +1,10 @@
 import utility.SocketClient;
 import utility.domain.GETClientParser;
 import utility.domain.GETServerInformation;
+import utility.http.ChunkedReader;
 import utility.http.HTTPRequest;
+import utility.http.HTTPResponse;
+import utility.pubsub.PubSubBroker;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -9,11 +12,29 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 
 public class GETClient extends SocketClient {
 
     private final String stationID;
 
+    // Last full response of each station with an ETag, sent back as If-None-Match
+    private final Map<String, HTTPResponse> cachedResponses = new HashMap<>();
+
+    // Poll the station every pollInterval ms instead of sending a single GET
+    private int pollInterval;
+
+    // Long-poll the station, each GET waiting up to wait s on the server for a change
+    private int wait;
+
+    // Subscribe to the updates of topic instead of requesting the station
+    private String topic;
+
+    // Body of the subscription, each chunk an update
+    private ChunkedReader updates;
+
     public GETClient(
             Socket clientSocket,
             PrintWriter out,
@@ -41,7 +62,12 @@ public class GETClient extends SocketClient {
         Socket clientSocket = new Socket(info.hostname, info.port);
         BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
         PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        return new GETClient(clientSocket, out, in, info.hostname, info.port, info.stationID);
+        GETClient client = new GETClient(clientSocket, out, in, info.hostname, info.port,
+                info.stationID);
+        client.pollInterval = info.pollInterval;
+        client.wait = info.wait;
+        client.topic = info.topic;
+        return client;
     }
 
 
@@ -55,6 +81,8 @@ public class GETClient extends SocketClient {
 
         if (stationID == null)
             request.setURI("/");
+        else if (wait > 0)
+            request.setURI("/" + stationID + "?wait=" + wait + "s");
         else
             request.setURI("/" + stationID);
 
@@ -63,26 +91,150 @@ public class GETClient extends SocketClient {
 
         //Accept Json
         request.setHeader("Accept", "application/json");
+
+        //Only ask for the body if it changed since the last response
+        HTTPResponse cached = cachedResponses.get(request.uri);
+        if (cached != null)
+            request.setHeader("If-None-Match", cached.getHeader("ETag"));
         return request;
     }
 
+    /**
+     * Send a GET request and receive its response.
+     * <p>
+     * Responses with an ETag are remembered per station. A 304 Not Modified answer to the
+     * next GET of the station is replaced with the remembered response.
+     *
+     * @return response or null if the server closed the connection
+     * @throws IOException if connection issues occur
+     */
+    public HTTPResponse get() throws IOException {
+        HTTPRequest request = formatGETMessage();
+        send(request);
+        String message = receive();
+        if (message == null)
+            return null;
+        HTTPResponse response = HTTPResponse.fromMessage(message);
+        HTTPResponse cached = cachedResponses.get(request.uri);
+        if (Objects.equals(response.statusCode, "304") && cached != null)
+            return cached;
+        if (Objects.equals(response.statusCode, "200") && response.getHeader("ETag") != null)
+            cachedResponses.put(request.uri, response);
+        else
+            cachedResponses.remove(request.uri);
+        return response;
+    }
+
     /**
      * Sends a GET request to the server and receives a response
      *
      * @throws IOException if connection issues occur
      */
     public void run() throws IOException {
-        HTTPRequest request = formatGETMessage();
+        get();
+        close();
+    }
+
+    /**
+     * Send count GETs over the same connection, pollInterval ms apart. Unchanged stations
+     * are answered with 304 Not Modified. When long-polling, the server only answers once
+     * the station changed or wait s passed, so GETs follow each other at once.
+     *
+     * @param count number of GETs
+     * @throws IOException if connection issues occur
+     */
+    public void poll(int count) throws IOException {
+        if (wait > 0)
+            clientSocket.setSoTimeout(clientSocket.getSoTimeout() + wait * 1000);
+        try {
+            HTTPResponse last = null;
+            for (int i = 0; i < count; i++) {
+                if (i > 0)
+                    Thread.sleep(pollInterval);
+                HTTPResponse response = get();
+                if (response == null)
+                    break;
+                if (response != last)
+                    logger.info("Station " + stationID + " is now:\n" + response.body);
+                last = response;
+            }
+        } catch (InterruptedException e) {
+            logger.info("Stop polling " + stationID);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Subscribe to the updates of a topic: stations, stations/stationID or states/state.
+     * Updates stored by the server after this call are then read with nextUpdate.
+     *
+     * @param topic topic subscribed to
+     * @return response head, 200 if subscribed, or null if the server closed the connection
+     * @throws IOException if connection issues occur
+     */
+    public HTTPResponse subscribe(String topic) throws IOException {
+        HTTPRequest request = new HTTPRequest("1.1").setMethod("GET")
+                .setURI(PubSubBroker.URI + topic)
+                .setHeader("Host", getHostname() + ":" + getPort())
+                .setHeader("Accept", "application/json");
         send(request);
-        while (true) {
-            String response = receive();
-            break;
+        HTTPResponse response = receiveHead();
+        if (response != null && Objects.equals(response.statusCode, "200"))
+            updates = new ChunkedReader(in);
+        return response;
+    }
+
+    /**
+     * Wait for the next update of the subscribed topic
+     *
+     * @return station as a GET of it returns it, or null once the subscription ended
+     * @throws IOException if connection issues occur
+     */
+    public String nextUpdate() throws IOException {
+        if (updates == null)
+            return null;
+        String update = updates.readChunk();
+        if (update == null)
+            updates = null;
+        return update;
+    }
+
+    /**
+     * Subscribe to topic and log every update until the server ends the subscription
+     *
+     * @throws IOException if connection issues occur
+     */
+    public void listen() throws IOException {
+        // Updates may be far apart, only a closed connection ends the subscription
+        clientSocket.setSoTimeout(0);
+        try {
+            HTTPResponse response = subscribe(topic);
+            if (response == null || !Objects.equals(response.statusCode, "200"))
+                return;
+            String update;
+            while ((update = nextUpdate()) != null)
+                logger.info("Update of " + topic + ":\n" + update);
+        } finally {
+            close();
         }
-        close();
+    }
+
+    public void setPollInterval(int pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public void setWait(int wait) {
+        this.wait = wait;
     }
 
     public static void main(String[] argv) throws IOException {
         GETClient client = GETClient.from_args(argv);
-        client.run();
+        if (client.topic != null)
+            client.listen();
+        else if (client.pollInterval > 0 || client.wait > 0)
+            client.poll(Integer.MAX_VALUE);
+        else
+            client.run();
     }
 }
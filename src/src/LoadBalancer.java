@@ -2,32 +2,115 @@ import annotations.IgnoreCoverage;
 import utility.LamportClock;
 import utility.SocketClient;
 import utility.SocketCommunicator;
+import utility.SingleFlight;
 import utility.SocketServer;
+import utility.health.HealthCheck;
+import utility.http.ConditionalRequest;
 import utility.http.HTTPRequest;
 import utility.http.HTTPResponse;
+import utility.http.MessageWriter;
+import utility.http.RawHTTPMessage;
+import utility.http.ResponseCompressor;
+import utility.pubsub.PubSubBroker;
+import utility.routing.HashRing;
+import utility.routing.Membership;
+import utility.routing.MembershipListener;
+import utility.routing.Routable;
+import utility.routing.RoutingPolicy;
+import utility.routing.UpstreamPool;
+import utility.routing.ServerLoad;
+import utility.routing.ShardHandoff;
+import utility.weatherJson.Parser;
+import utility.weatherJson.WeatherDataView;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 public class LoadBalancer extends SocketServer {
+    // Runs the health checks and the replication lag probe
     private final ScheduledExecutorService heartbeatPool =
-            Executors.newSingleThreadScheduledExecutor();
+            Executors.newScheduledThreadPool(2);
     private final ExecutorService connectionPool = Executors.newCachedThreadPool();
-    private final int HEARTBEAT_SCHEDULE = Integer.parseInt(config.get(
-            "HEARTBEAT_SCHEDULE", "30000"));
-    private final List<ServerInfo> registry = new ArrayList<>();
+    // Sends the health probes of every server concurrently
+    private final ExecutorService probePool = Executors.newCachedThreadPool();
+    // Hands stations off between shards, one ring change after the other
+    private final ExecutorService handoffPool = Executors.newSingleThreadExecutor();
+    // Time between health probes of each server (ms)
+    private final int HEALTH_INTERVAL = Integer.parseInt(config.get("HEALTH_INTERVAL",
+            "100"));
+    // Time to connect and to receive the response of a health probe (ms)
+    private final int HEALTH_TIMEOUT = Integer.parseInt(config.get("HEALTH_TIMEOUT", "200"));
+    // Suspicion level above which a server is considered dead
+    private final double PHI_THRESHOLD = Double.parseDouble(config.get("PHI_THRESHOLD",
+            "8"));
+    private final Map<ServerInfo, HealthCheck> healthChecks = new ConcurrentHashMap<>();
+    // Connections to each server shared by every client for GET requests
+    private final int UPSTREAM_CONNECTIONS = Integer.parseInt(config.get(
+            "UPSTREAM_CONNECTIONS", "4"));
+    // Time to connect and to receive the response of a pooled request (ms)
+    private final int UPSTREAM_TIMEOUT = Integer.parseInt(config.get("UPSTREAM_TIMEOUT",
+            "5000"));
+    private final Map<ServerInfo, UpstreamPool> upstreamPools = new ConcurrentHashMap<>();
+    // Time to receive the response of a long-poll GET, longer than the longest wait (ms)
+    private final int LONG_POLL_TIMEOUT = Integer.parseInt(config.get("LONG_POLL_TIMEOUT",
+            "65000"));
+    // Registered servers and leader, replaced as a whole on every change so request
+    // threads read them without locking
+    private volatile Membership<ServerInfo> membership = Membership.empty();
+    private final Object membershipLock = new Object();
+    private final List<MembershipListener<ServerInfo>> membershipListeners =
+            new CopyOnWriteArrayList<>();
+    // leader sends every request to the leader, otherwise GETs are spread over the registry
+    private String ROUTING_POLICY = config.get("ROUTING_POLICY", "leader");
+    private RoutingPolicy routingPolicy = ROUTING_POLICY.equals("leader") ? null :
+            RoutingPolicy.of(ROUTING_POLICY);
+    // parse re-creates every message, relay forwards messages as received after reading
+    // their start line and Content-Length
+    private String FORWARDING = config.get("FORWARDING", "parse");
+    // Spread stations over every registered server instead of keeping them all on the
+    // leader
+    private boolean SHARDING = Boolean.parseBoolean(config.get("SHARDING", "false"));
+    // Points of each server on the hash ring assigning stations to servers
+    private final int VIRTUAL_NODES = Integer.parseInt(config.get("VIRTUAL_NODES", "128"));
+    // Identical GETs in flight at once share one upstream request
+    private final SingleFlight<String, HTTPResponse> getFlights = new SingleFlight<>();
+    private final SingleFlight<String, RawHTTPMessage> relayFlights = new SingleFlight<>();
+    // Parsed responses are compressed here for clients accepting it, relayed ones by the
+    // server
+    private final ResponseCompressor compressor = new ResponseCompressor(
+            Integer.parseInt(config.get("COMPRESSION_THRESHOLD", "1024")),
+            Integer.parseInt(config.get("COMPRESSION_CACHE_SIZE", "256")));
+    // Owners of stations for PUTs, rebuilt whenever the healthy servers change
+    private volatile HashRing<ServerInfo> ring = newRing(List.of());
+    // Owners of stations for GETs: the ring before the last change until its stations are
+    // handed off to their new owners
+    private volatile HashRing<ServerInfo> readRing = ring;
+    private final Object ringLock = new Object();
+    // Followers more than this many PUTs behind the leader receive no GET, -1 to disable
+    private int MAX_REPLICATION_LAG = Integer.parseInt(config.get("MAX_REPLICATION_LAG",
+            "-1"));
+    // How often replication lag is measured (ms)
+    private final int REPLICATION_PROBE = Integer.parseInt(config.get("REPLICATION_PROBE",
+            "1000"));
+    ScheduledFuture<?> replicationProbeFuture;
     ScheduledFuture<?> heartbeatFuture;
     private int newPort;
     private AggregationServer builtinServer;
-    private ServerInfo leader;
+    private volatile boolean isClosing;
 
     /**
      * Construct a load balancer
@@ -37,6 +120,19 @@ public class LoadBalancer extends SocketServer {
      */
     public LoadBalancer(int port) throws IOException {
         super(port);
+        // Probe and pooled connections of removed servers are no longer needed
+        addMembershipListener((previous, current) -> {
+            for (ServerInfo info : previous.getMembers())
+                if (!current.contains(info)) {
+                    HealthCheck healthCheck = healthChecks.remove(info);
+                    if (healthCheck != null)
+                        healthCheck.close();
+                    UpstreamPool upstreamPool = upstreamPools.remove(info);
+                    if (upstreamPool != null)
+                        upstreamPool.close();
+                }
+        });
+        addMembershipListener((previous, current) -> updateRing());
         newPort = port + 1;
         startBuiltInServer();
         setLeader("127.0.0.1", newPort);
@@ -66,7 +162,240 @@ public class LoadBalancer extends SocketServer {
      * @return ServerInfo object of the current leader
      */
     public ServerInfo getLeader() {
-        return leader;
+        return membership.getLeader();
+    }
+
+    /**
+     * Get the current view of registered servers and leader
+     *
+     * @return membership, never modified once returned
+     */
+    public Membership<ServerInfo> getMembership() {
+        return membership;
+    }
+
+    /**
+     * Register a listener called after every membership change, in the order of changes
+     *
+     * @param listener listener, must not block
+     */
+    public void addMembershipListener(MembershipListener<ServerInfo> listener) {
+        membershipListeners.add(listener);
+    }
+
+    /**
+     * Publish the view computed from the current one by change, notifying listeners if it
+     * is a new view
+     */
+    private void publish(UnaryOperator<Membership<ServerInfo>> change) {
+        synchronized (membershipLock) {
+            Membership<ServerInfo> previous = membership;
+            Membership<ServerInfo> current = change.apply(previous);
+            if (current == previous)
+                return;
+            membership = current;
+            logger.info("Membership version " + current.getVersion() + ": " +
+                        current.getMembers().size() + " servers");
+            for (MembershipListener<ServerInfo> listener : membershipListeners)
+                listener.onMembershipChange(previous, current);
+        }
+    }
+
+    /**
+     * Set how GET requests are routed, only for testing
+     *
+     * @param ROUTING_POLICY leader, round_robin, least_outstanding or p2c_ewma
+     */
+    public void setROUTING_POLICY(String ROUTING_POLICY) {
+        this.ROUTING_POLICY = ROUTING_POLICY;
+        routingPolicy = ROUTING_POLICY.equals("leader") ? null :
+                RoutingPolicy.of(ROUTING_POLICY);
+    }
+
+    /**
+     * Set how requests are forwarded, only for testing
+     *
+     * @param FORWARDING parse or relay
+     */
+    public void setFORWARDING(String FORWARDING) {
+        this.FORWARDING = FORWARDING;
+    }
+
+    /**
+     * Get the number of GETs answered with the response of an identical GET in flight
+     */
+    public long getCoalescedRequests() {
+        return getFlights.getShared() + relayFlights.getShared();
+    }
+
+    /**
+     * Set whether stations are spread over every registered server, only for testing
+     *
+     * @param SHARDING true to shard stations
+     */
+    public void setSHARDING(boolean SHARDING) {
+        this.SHARDING = SHARDING;
+    }
+
+    private HashRing<ServerInfo> newRing(List<ServerInfo> servers) {
+        return new HashRing<>(servers, VIRTUAL_NODES, info -> info.hostname + ":" + info.port);
+    }
+
+    /**
+     * Get the server holding a station when stations are sharded, which receives its PUTs
+     *
+     * @param stationID station id
+     * @return owner of the station on the hash ring, or the leader if no server is healthy
+     */
+    public ServerInfo getShard(String stationID) {
+        ServerInfo shard = ring.get(stationID);
+        return shard == null ? getLeader() : shard;
+    }
+
+    /**
+     * Get the server a GET of a station is sent to when stations are sharded. Until the
+     * stations are handed off after a ring change, it is the previous owner if it is still
+     * healthy, even if it was removed, since the new owner may not hold the station yet or
+     * hold a stale record.
+     *
+     * @param stationID station id
+     * @return owner of the station for reads
+     */
+    public ServerInfo getReadShard(String stationID) {
+        ServerInfo shard = readRing.get(stationID);
+        return shard != null && shard.isHealthy() ? shard : getShard(stationID);
+    }
+
+    /**
+     * Check whether stations are still being handed off after a ring change
+     */
+    public boolean isHandoffPending() {
+        return readRing != ring;
+    }
+
+    /**
+     * Rebuild the ring from the healthy registered servers if they changed. When stations
+     * are sharded, those changing owner are then handed off, GETs following the previous
+     * ring until they are.
+     */
+    private void updateRing() {
+        synchronized (ringLock) {
+            HashRing<ServerInfo> previous = ring;
+            List<ServerInfo> healthy = membership.getMembers().stream()
+                    .filter(ServerInfo::isHealthy).toList();
+            if (healthy.equals(previous.getNodes()))
+                return;
+            HashRing<ServerInfo> current = newRing(healthy);
+            ring = current;
+            logger.info("Hash ring rebuilt with " + healthy.size() + " servers");
+            if (!SHARDING) {
+                readRing = current;
+                return;
+            }
+            try {
+                handoffPool.execute(() -> {
+                    handOff(previous, current);
+                    readRing = current;
+                    // Pools opened by GETs sent to removed servers during the hand-off
+                    for (ServerInfo info : previous.getNodes())
+                        if (!membership.contains(info)) {
+                            UpstreamPool upstreamPool = upstreamPools.remove(info);
+                            if (upstreamPool != null)
+                                upstreamPool.close();
+                        }
+                });
+            } catch (RejectedExecutionException e) {
+                readRing = current;
+            }
+        }
+    }
+
+    /**
+     * Send the stations of every healthy server of the previous ring that another server
+     * owns on the current ring to that server. A server that does not answer keeps its
+     * stations, which are only found again once the ring gives them back to it.
+     *
+     * @param previous ring before the change
+     * @param current  ring after the change
+     */
+    private void handOff(HashRing<ServerInfo> previous, HashRing<ServerInfo> current) {
+        for (ServerInfo from : previous.getNodes()) {
+            if (!from.isHealthy())
+                continue;
+            // Removed servers no longer have a pooled connection
+            UpstreamPool pool = new UpstreamPool(from.hostname, from.port, 1,
+                    UPSTREAM_TIMEOUT);
+            try {
+                HTTPResponse stations = pool.send(new HTTPRequest("1.1").setMethod("GET")
+                        .setURI(ShardHandoff.URI)
+                        .setHeader("Host", from.hostname + ":" + from.port));
+                if (!stations.statusCode.equals("200") || stations.body == null)
+                    continue;
+                Map<ServerInfo, String> moved = ShardHandoff.split(
+                        Parser.index(stations.body), from, current);
+                for (Map.Entry<ServerInfo, String> entry : moved.entrySet()) {
+                    ServerInfo to = entry.getKey();
+                    HTTPResponse response = getUpstreamPool(to).send(new HTTPRequest("1.1")
+                            .setMethod("PUT").setURI(ShardHandoff.URI)
+                            .setHeader("Host", to.hostname + ":" + to.port)
+                            .setHeader("Content-Type", "application/json")
+                            .setHeader("Content-Length",
+                                    String.valueOf(entry.getValue().length()))
+                            .setBody(entry.getValue()));
+                    logger.info("Handed off stations of " + from.hostname + ":" + from.port +
+                                " to " + to.hostname + ":" + to.port + ": " +
+                                response.statusCode);
+                }
+            } catch (IOException | RuntimeException e) {
+                logger.info("Hand-off from " + from.hostname + ":" + from.port +
+                            " failed: " + e);
+            } finally {
+                pool.close();
+            }
+        }
+    }
+
+    /**
+     * Set the replication lag bound of servers receiving GETs, only for testing
+     *
+     * @param MAX_REPLICATION_LAG number of PUTs a follower can be behind, -1 to disable
+     */
+    public void setMAX_REPLICATION_LAG(int MAX_REPLICATION_LAG) {
+        this.MAX_REPLICATION_LAG = MAX_REPLICATION_LAG;
+    }
+
+    /**
+     * Check whether a server can receive GETs without serving data older than
+     * MAX_REPLICATION_LAG PUTs
+     */
+    private boolean isReadable(ServerInfo info) {
+        return info.isHealthy() && (MAX_REPLICATION_LAG < 0 || info.equals(getLeader()) ||
+                                    info.getReplicationLag() <= MAX_REPLICATION_LAG);
+    }
+
+    /**
+     * Select the server a GET request is forwarded to
+     *
+     * @return a healthy server chosen by the routing policy, or null to use the leader
+     */
+    ServerInfo selectReadServer() {
+        RoutingPolicy policy = routingPolicy;
+        if (policy == null)
+            return null;
+        List<ServerInfo> healthy = membership.getMembers().stream().filter(this::isReadable)
+                .toList();
+        if (healthy.isEmpty())
+            return null;
+        return policy.select(healthy);
+    }
+
+    /**
+     * Get the registered server identified by hostname and port
+     *
+     * @return registered ServerInfo or null if not registered
+     */
+    private ServerInfo getServer(String hostname, int port) {
+        return membership.get(new ServerInfo(hostname, port));
     }
 
     /**
@@ -77,7 +406,7 @@ public class LoadBalancer extends SocketServer {
      * @return true if the load balancer is connected to the server, otherwise false
      */
     public boolean contains(String hostname, int port) {
-        return registry.contains(new ServerInfo(hostname, port));
+        return membership.contains(new ServerInfo(hostname, port));
     }
 
 
@@ -89,29 +418,89 @@ public class LoadBalancer extends SocketServer {
      */
     public void addServer(String hostname, int port) {
         logger.info("Adding new host to registry: " + hostname + ":" + port);
-        if (isAlive(hostname, port))
-            registry.add(new ServerInfo(hostname, port));
+        if (isAlive(hostname, port)) {
+            ServerInfo info = new ServerInfo(hostname, port);
+            publish(current -> current.withMember(info));
+        }
+    }
+
+    /**
+     * Remove an agg server from the list. The leader stays leader until a new one is
+     * elected.
+     *
+     * @param hostname aggregation server hostname
+     * @param port     aggregation server port
+     */
+    public void removeServer(String hostname, int port) {
+        logger.info("Removing host from registry: " + hostname + ":" + port);
+        ServerInfo info = new ServerInfo(hostname, port);
+        publish(current -> current.withoutMember(info));
     }
 
     /**
      * Select a new leader from the pool of connected agg servers.
      * <p>
-     * The load balancer sends a heart beat message to each server sequentially. The first server that
-     * response with a healthy status is set to be the leader. If no server is alive, a new built in server
-     * is set.
+     * The load balancer probes every server concurrently, then reads the replication status
+     * of the healthy ones concurrently, each bounded by HEALTH_TIMEOUT and never retried.
+     * Sequence numbers only compare within the epoch of one replication log, so among
+     * healthy servers, the one holding the most replicated PUTs of the epoch held by the most
+     * servers is set to be the leader, the first in the registry on a tie. The other servers
+     * holding replicated PUTs are then told to catch up from it. If no server is alive, a new
+     * built in server is set, copying the state of any registered server that still sends a
+     * snapshot.
      */
     public synchronized void electLeader() throws IOException {
         logger.info("Electing new leader among connected servers");
-        for (ServerInfo info : registry) {
-            if (isAlive(info.hostname, info.port)) {
-                leader = info;
-                logger.info("Success: Selecting: " + info.hostname + ":" + info.port);
-                return;
+        List<ServerInfo> servers = membership.getMembers();
+        List<Boolean> isAlive = probeAll(servers);
+        List<ServerInfo> alive = new ArrayList<>();
+        for (int i = 0; i < servers.size(); i++)
+            if (isAlive.get(i))
+                alive.add(servers.get(i));
+        List<String> statuses = probeAll(alive, HealthCheck::getReplicationStatus, null);
+        List<Map<String, Long>> positions = new ArrayList<>();
+        Map<String, Integer> holders = new HashMap<>();
+        for (String status : statuses) {
+            Map<String, Long> position = getPositions(status);
+            positions.add(position);
+            for (String epoch : position.keySet())
+                holders.merge(epoch, 1, Integer::sum);
+        }
+        String electedEpoch = null;
+        for (Map<String, Long> position : positions)
+            for (String epoch : position.keySet())
+                if (electedEpoch == null || holders.get(epoch) > holders.get(electedEpoch))
+                    electedEpoch = epoch;
+        ServerInfo elected = null;
+        long electedPosition = Long.MIN_VALUE;
+        for (int i = 0; i < alive.size(); i++) {
+            ServerInfo info = alive.get(i);
+            long position = positions.get(i).getOrDefault(electedEpoch, 0L);
+            if (elected == null || position > electedPosition) {
+                elected = info;
+                electedPosition = position;
             }
         }
+        if (elected != null) {
+            ServerInfo leader = elected;
+            publish(current -> current.withLeader(leader));
+            logger.info("Success: Selecting: " + leader.hostname + ":" + leader.port);
+            List<ServerInfo> followers = new ArrayList<>();
+            for (int i = 0; i < alive.size(); i++)
+                if (!alive.get(i).equals(leader) && !positions.get(i).isEmpty())
+                    followers.add(alive.get(i));
+            probeAll(followers, healthCheck -> healthCheck.follow(leader.hostname + ":" +
+                                                                  leader.port), false);
+            return;
+        }
         logger.info("Not connecting to external server, creating a self-managed " +
                 "server.");
-        startBuiltInServer();
+        StringBuilder peers = new StringBuilder();
+        for (ServerInfo info : servers)
+            if (!(info.hostname.equals("127.0.0.1") && info.port == newPort))
+                peers.append(peers.length() == 0 ? "" : ",").append(info.hostname)
+                        .append(":").append(info.port);
+        startBuiltInServer(peers.toString());
         setLeader("127.0.0.1", newPort);
     }
 
@@ -122,49 +511,194 @@ public class LoadBalancer extends SocketServer {
      * @param port     aggregation server port
      */
     public synchronized void setLeader(String hostname, int port) {
-        ServerInfo info = new ServerInfo(hostname, port);
         if (!contains(hostname, port)) {
             addServer(hostname, port);
         }
-        leader = info;
+        ServerInfo info = getServer(hostname, port);
+        ServerInfo newLeader = info == null ? new ServerInfo(hostname, port) : info;
+        publish(current -> current.withLeader(newLeader));
+    }
+
+    private HealthCheck getHealthCheck(ServerInfo info) {
+        return healthChecks.computeIfAbsent(info, key -> new HealthCheck(key.hostname,
+                key.port, HEALTH_INTERVAL, HEALTH_TIMEOUT));
+    }
+
+    /**
+     * Get the pool of connections shared by clients to send GET requests to a server
+     *
+     * @param info server
+     * @return pool of the server
+     */
+    public UpstreamPool getUpstreamPool(ServerInfo info) {
+        return upstreamPools.computeIfAbsent(info, key -> new UpstreamPool(key.hostname,
+                key.port, UPSTREAM_CONNECTIONS, UPSTREAM_TIMEOUT));
     }
 
     /**
-     * Send an empty GET message to check whether the server is alive.
+     * Send a GET /health probe to check whether the server is alive.
      *
      * @param hostname aggregation server hostname
      * @param port     aggregation server port
-     * @return true if a 2xx code is received
+     * @return true if a 200 code is received within HEALTH_TIMEOUT
      */
     public boolean isAlive(String hostname, int port) {
+        return getHealthCheck(new ServerInfo(hostname, port)).probe();
+    }
+
+    /**
+     * Probe servers concurrently, waiting at most for one probe deadline
+     *
+     * @param servers servers to probe
+     * @return whether each server answered its probe, in the order of servers
+     */
+    private List<Boolean> probeAll(List<ServerInfo> servers) {
+        return probeAll(servers, HealthCheck::probe, false);
+    }
+
+    /**
+     * Send a request to every server concurrently over its probe connection, waiting at
+     * most for one probe deadline
+     *
+     * @param servers servers to probe
+     * @param probe   request sent with the HealthCheck of a server
+     * @param failed  result of a server that does not answer in time
+     * @return result of each server, in the order of servers
+     */
+    private <T> List<T> probeAll(List<ServerInfo> servers, Function<HealthCheck, T> probe,
+                                 T failed) {
+        List<Callable<T>> probes = new ArrayList<>();
+        for (ServerInfo info : servers) {
+            HealthCheck healthCheck = getHealthCheck(info);
+            probes.add(() -> probe.apply(healthCheck));
+        }
+        List<T> results = new ArrayList<>();
         try {
-            GETClient.main((hostname + ":" + port).split(" "));
-            logger.info("Success: server is healthy " + hostname + ":" + port);
-            return true;
-        } catch (IOException e) {
-            logger.info("Failed: unable to get heartbeat from: " + hostname + ":" + port);
-            return false;
+            // Connecting and receiving are bounded separately
+            for (Future<T> future : probePool.invokeAll(probes, 2L * HEALTH_TIMEOUT,
+                    TimeUnit.MILLISECONDS)) {
+                try {
+                    results.add(future.isCancelled() ? failed : future.get());
+                } catch (ExecutionException e) {
+                    results.add(failed);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RejectedExecutionException e) {
+            logger.info("Health probes rejected, load balancer is closing");
+        }
+        while (results.size() < servers.size())
+            results.add(failed);
+        return results;
+    }
+
+    /**
+     * Probe every server and update its health. A server is only marked down once the
+     * phi accrual detector suspects it, so a single slow probe does not remove it. If the
+     * leader is suspected, a new leader is elected.
+     */
+    public void checkHealth() {
+        List<ServerInfo> servers = membership.getMembers();
+        List<Boolean> isAlive = probeAll(servers);
+        for (int i = 0; i < servers.size(); i++) {
+            ServerInfo info = servers.get(i);
+            if (isAlive.get(i))
+                info.setHealthy(true);
+            else if (!getHealthCheck(info).isAvailable(PHI_THRESHOLD))
+                info.setHealthy(false);
+        }
+        // Stations of a dead server go to the others, and come back once it recovers
+        updateRing();
+        ServerInfo leader = getLeader();
+        if (!getHealthCheck(leader).isAvailable(PHI_THRESHOLD)) {
+            logger.info("Leader " + leader.hostname + ":" + leader.port + " is suspected, " +
+                        "phi: " + getHealthCheck(leader).getPhi());
+            try {
+                electLeader();
+            } catch (IOException e) {
+                logger.info("Health check fails for class LoadBalancer. Message: " + e);
+            }
         }
     }
 
+    private static long getSequence(String status, String key) {
+        Matcher matcher = Pattern.compile("\"" + key + "\": (\\d+)").matcher(status);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private static String getEpoch(String status, String key) {
+        Matcher matcher = Pattern.compile("\"" + key + "\": \"([^\"]*)\"").matcher(status);
+        return matcher.find() ? matcher.group(1) : "";
+    }
+
+    /**
+     * Get how many replicated PUTs a server holds in each epoch, as leader and as follower
+     *
+     * @param status replication status of the server, null if it did not respond
+     * @return sequence number of the last PUT held, by epoch. Empty if the server holds
+     * none or did not respond
+     */
+    private static Map<String, Long> getPositions(String status) {
+        Map<String, Long> positions = new LinkedHashMap<>();
+        if (status == null)
+            return positions;
+        long head = getSequence(status, "head");
+        if (head > 0)
+            positions.put(getEpoch(status, "epoch"), head);
+        long applied = getSequence(status, "applied");
+        String leaderEpoch = getEpoch(status, "leaderEpoch");
+        if (applied > 0 && !leaderEpoch.isEmpty())
+            positions.merge(leaderEpoch, applied, Math::max);
+        return positions;
+    }
+
     /**
-     * Pre-start hook: every 30 seconds or HEARTBEAT_SCHEDULE, the load balancer
-     * sends a heart beat check to the current leader. If the current leader is dead,
-     * it initiates a procedure to elect a new leader.
+     * Measure how many PUTs each server is behind the leader. Servers the leader does not
+     * ship to, or that follow the log of another epoch, are never considered up-to-date.
+     * Statuses are read concurrently over the probe connections, bounded by HEALTH_TIMEOUT
+     * and never retried.
+     */
+    public void probeReplication() {
+        Membership<ServerInfo> view = membership;
+        ServerInfo currentLeader = view.getLeader();
+        String leaderStatus = getHealthCheck(currentLeader).getReplicationStatus();
+        if (leaderStatus == null)
+            return;
+        long head = getSequence(leaderStatus, "head");
+        String epoch = getEpoch(leaderStatus, "epoch");
+        List<ServerInfo> followers = new ArrayList<>();
+        for (ServerInfo info : view.getMembers()) {
+            if (info.equals(currentLeader))
+                info.setReplicationLag(0);
+            else if (leaderStatus.contains("\"" + info.hostname + ":" + info.port + "\""))
+                followers.add(info);
+            else
+                info.setReplicationLag(Long.MAX_VALUE);
+        }
+        List<String> statuses = probeAll(followers, HealthCheck::getReplicationStatus, null);
+        for (int i = 0; i < followers.size(); i++) {
+            // PUTs applied from another log say nothing of the lag behind this one
+            long applied = statuses.get(i) == null ||
+                           !getEpoch(statuses.get(i), "leaderEpoch").equals(epoch) ? -1 :
+                    getSequence(statuses.get(i), "applied");
+            followers.get(i).setReplicationLag(applied < 0 ? Long.MAX_VALUE :
+                    Math.max(0, head - applied));
+        }
+    }
+
+    /**
+     * Pre-start hook: every HEALTH_INTERVAL, the load balancer probes every server. If the
+     * current leader is suspected dead, it initiates a procedure to elect a new leader.
      */
     @IgnoreCoverage
     protected void pre_start_hook() {
         super.pre_start_hook();
-        heartbeatFuture = heartbeatPool.scheduleWithFixedDelay(() -> {
-            if (!isAlive(leader.hostname, leader.port)) {
-                try {
-                    electLeader();
-                } catch (IOException e) {
-                    logger.info("Pre-Start-Hook fails for class LoadBalancer. " +
-                            "Message: " + e);
-                }
-            }
-        }, HEARTBEAT_SCHEDULE, HEARTBEAT_SCHEDULE, TimeUnit.MILLISECONDS);
+        heartbeatFuture = heartbeatPool.scheduleWithFixedDelay(this::checkHealth,
+                HEALTH_INTERVAL, HEALTH_INTERVAL, TimeUnit.MILLISECONDS);
+        if (MAX_REPLICATION_LAG >= 0)
+            replicationProbeFuture = heartbeatPool.scheduleWithFixedDelay(
+                    this::probeReplication, 0, REPLICATION_PROBE, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -179,7 +713,7 @@ public class LoadBalancer extends SocketServer {
             connectionPool.execute(new ClientHandler(
                     clientSocket,
                     clock,
-                    new PrintWriter(clientSocket.getOutputStream(), true),
+                    new MessageWriter(clientSocket),
                     new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))));
         } catch (IOException e) {
             logger.info("ERROR: start_hook LoadBalancer error: " + e);
@@ -192,13 +726,25 @@ public class LoadBalancer extends SocketServer {
      * from the port of the load balancer + 1. When a port is occupied, this process is repeated until sucessful.
      */
     private void startBuiltInServer() {
+        startBuiltInServer("");
+    }
+
+    /**
+     * Start a local built-in server that copies the state of a peer before taking traffic
+     *
+     * @param catchUpFrom hostname:port of peers tried in order, separated by commas
+     */
+    private void startBuiltInServer(String catchUpFrom) {
+        // An election racing with close must not leave a server running
+        if (isClosing)
+            return;
         try {
-            builtinServer = new AggregationServer(newPort);
+            builtinServer = new AggregationServer(newPort, catchUpFrom);
             new Thread(() -> builtinServer.start()).start();
             addServer("127.0.0.1", newPort);
         } catch (IOException | ClassNotFoundException e) {
             newPort += 1;
-            startBuiltInServer();
+            startBuiltInServer(catchUpFrom);
         }
     }
 
@@ -210,22 +756,45 @@ public class LoadBalancer extends SocketServer {
         super.pre_close_hook();
         if (heartbeatFuture != null)
             heartbeatFuture.cancel(true);
+        if (replicationProbeFuture != null)
+            replicationProbeFuture.cancel(true);
         logger.info("Closing load balancer connection pool");
         connectionPool.shutdownNow();
         logger.info("Closing load balancer heartbeat pool");
         heartbeatPool.shutdownNow();
-        if (builtinServer != null && builtinServer.isUp())
-            builtinServer.close();
+        probePool.shutdownNow();
+        handoffPool.shutdownNow();
+        for (HealthCheck healthCheck : healthChecks.values())
+            healthCheck.close();
+        for (UpstreamPool upstreamPool : upstreamPools.values())
+            upstreamPool.close();
+        synchronized (this) {
+            isClosing = true;
+            if (builtinServer != null && builtinServer.isUp())
+                builtinServer.close();
+        }
     }
 
     /**
-     * Auxiliary Server Info class. Is a data class containing the server hostname and port
+     * Exchange of one request and its response over an upstream pool
+     */
+    private interface Exchange<T> {
+        T run(UpstreamPool pool) throws IOException;
+    }
+
+    /**
+     * Auxiliary Server Info class. Is a data class containing the server hostname and port,
+     * together with the load and health used to route GET requests
      */
     @IgnoreCoverage
-    public static class ServerInfo {
+    public static class ServerInfo implements Routable {
         private final String hostname;
         private final int port;
         private final int hashCode;
+        private final ServerLoad load = new ServerLoad();
+        private volatile boolean isHealthy = true;
+        // PUTs behind the leader, unknown until measured
+        private volatile long replicationLag = Long.MAX_VALUE;
 
         public ServerInfo(String hostname, int port) {
             this.hostname = hostname;
@@ -241,6 +810,27 @@ public class LoadBalancer extends SocketServer {
             return port;
         }
 
+        @Override
+        public ServerLoad getLoad() {
+            return load;
+        }
+
+        public boolean isHealthy() {
+            return isHealthy;
+        }
+
+        public void setHealthy(boolean isHealthy) {
+            this.isHealthy = isHealthy;
+        }
+
+        public long getReplicationLag() {
+            return replicationLag;
+        }
+
+        public void setReplicationLag(long replicationLag) {
+            this.replicationLag = replicationLag;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o)
@@ -261,37 +851,157 @@ public class LoadBalancer extends SocketServer {
      */
     public class ClientHandler extends SocketCommunicator implements Runnable {
 
+        // Dedicated connection to the leader for PUT requests, opened on the first PUT.
+        // The leader expires the uploads of a ContentServer when its connection closes,
+        // so these requests cannot share pooled connections.
         SocketClient serverInterface;
 
+        // Dedicated connection to the leader for relayed PUT requests
+        private UpstreamPool relayInterface;
+
+        // Dedicated connection for long-poll GETs, which hold it until their station
+        // changes and would block the requests pipelined behind them on a pooled one
+        private UpstreamPool longPollInterface;
+        private ServerInfo longPollServer;
+
+        // Dedicated connections to the shards for sharded PUT requests
+        private final Map<ServerInfo, SocketClient> shardInterfaces = new HashMap<>();
+
+        // Sharded requests are split by station, which needs them parsed
+        private final boolean isRelay = FORWARDING.equals("relay") && !SHARDING;
+
         public ClientHandler(
                 Socket clientSocket,
                 LamportClock clock,
-                PrintWriter out,
+                MessageWriter writer,
                 BufferedReader in
         ) throws IOException {
-            super(clientSocket, clock, out, in, "server");
-            // Create connection to leader server
-            serverInterface =
-                    GETClient.from_args((leader.hostname + ":" + leader.port).split(
-                            " "));
+            super(clientSocket, clock, writer, in, "server");
+        }
+
+
+        /**
+         * Forward a GET request to server over the shared upstream pool, recording the load
+         * of the server
+         *
+         * @param server   server selected by the routing policy
+         * @param exchange sends the request over the pool and waits for the response
+         * @return response of the server
+         * @throws IOException if the server does not respond
+         */
+        private <T> T forward(ServerInfo server, Exchange<T> exchange) throws IOException {
+            server.getLoad().begin();
+            long start = System.nanoTime();
+            try {
+                T response = exchange.run(getUpstreamPool(server));
+                server.getLoad().end(System.nanoTime() - start);
+                return response;
+            } catch (IOException | RuntimeException e) {
+                server.getLoad().cancel();
+                throw e;
+            }
+        }
 
+        /**
+         * Send a GET to the server selected by the routing policy. If that server fails, it
+         * stops receiving GETs until a heartbeat succeeds and the request is sent to the
+         * leader.
+         *
+         * @param exchange sends the request over the pool and waits for the response
+         * @return response of the server
+         * @throws IOException if the leader does not respond
+         */
+        private <T> T forwardGET(Exchange<T> exchange) throws IOException {
+            ServerInfo readServer = selectReadServer();
+            if (readServer != null) {
+                try {
+                    return forward(readServer, exchange);
+                } catch (IOException | RuntimeException e) {
+                    logger.info("Error: GET failed on " + readServer.hostname + ":" +
+                                readServer.port + ", using leader: " + e);
+                    readServer.setHealthy(false);
+                }
+            }
+            return forward(getLeader(), exchange);
         }
 
+        /**
+         * Run call, or wait for the identical GET already in flight from another client
+         * and share its response
+         *
+         * @param flights GETs in flight
+         * @param key     identifies identical GETs
+         * @param call    sends the GET upstream
+         * @return response of the GET
+         * @throws IOException if the shared GET fails
+         */
+        private <T> T coalesce(SingleFlight<String, T> flights, String key, Callable<T> call)
+                throws IOException {
+            try {
+                return flights.execute(key, call);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() :
+                        new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + key);
+            }
+        }
 
         /**
-         * Redirect the current request to the leader and receives a response.
+         * Redirect the current request and receives a response.
+         * <p>
+         * GET requests are sent by forwardGET over the shared upstream pool, and identical
+         * GETs in flight at once share one upstream request. Other requests always go to the
+         * leader over the connection of this client, and GETs received after them no longer
+         * share responses of GETs sent before.
          * If retry limit exceeds, send a 500 Internal Server Error Message
          *
          * @param request
          */
         public void handleRequest(String request) {
+            HTTPRequest httpRequest = HTTPRequest.fromMessage(request);
+            if (httpRequest.method.equals("GET") &&
+                httpRequest.uri.startsWith(PubSubBroker.URI)) {
+                send(newSubscribeResponse());
+                return;
+            }
+            String longPollStation = httpRequest.method.equals("GET") ?
+                    getLongPollStation(httpRequest.uri) : null;
+            // Upstream responses stay plain and full so they can be shared, split and
+            // gathered, conditional GETs are answered here. Long-polls wait on the server
+            // for a version other than If-None-Match, so they keep it.
+            HTTPRequest clientRequest = httpRequest.copy();
+            httpRequest.header.remove("Accept-Encoding");
+            if (longPollStation == null)
+                httpRequest.header.remove("If-None-Match");
             try {
-                serverInterface.send(HTTPRequest.fromMessage(request));
-                HTTPResponse response =
-                        HTTPResponse.fromMessage(serverInterface.receive());
-                send(response);
-            } catch (IOException e) {
-                logger.info("Error: server error.");
+                HTTPResponse response;
+                if (longPollStation != null) {
+                    response = getLongPollInterface(longPollStation).send(httpRequest);
+                } else if (httpRequest.method.equals("GET")) {
+                    // Each client stamps its own Lamport clock on the shared response
+                    response = coalesce(getFlights, httpRequest.uri, () -> SHARDING ?
+                            handleShardedGET(httpRequest) :
+                            forwardGET(pool -> pool.send(httpRequest))).copy();
+                } else {
+                    getFlights.forget();
+                    if (SHARDING && httpRequest.method.equals("PUT")) {
+                        response = handleShardedPUT(httpRequest);
+                    } else {
+                        if (serverInterface == null) {
+                            ServerInfo leader = getLeader();
+                            serverInterface = GETClient.from_args((leader.hostname + ":" +
+                                                                   leader.port).split(" "));
+                        }
+                        serverInterface.send(httpRequest);
+                        response = HTTPResponse.fromMessage(serverInterface.receive());
+                    }
+                }
+                send(compressor.compress(clientRequest,
+                        ConditionalRequest.apply(clientRequest, response)));
+            } catch (IOException | RuntimeException e) {
+                logger.info("Error: server error: " + e);
                 HTTPResponse response =
                         new HTTPResponse("1.1").setStatusCode("500").setReasonPhrase(
                                 "Internal Server Error");
@@ -299,11 +1009,275 @@ public class LoadBalancer extends SocketServer {
             }
         }
 
+        /**
+         * Create the response to a subscription. Its body never ends, so it would hold a
+         * shared upstream connection for good and cannot be coalesced: clients subscribe
+         * on a server directly.
+         *
+         * @return 501
+         */
+        private HTTPResponse newSubscribeResponse() {
+            String body = "{\"501\":\"Not Implemented\", \"Message\": \"Subscriptions are not proxied, please subscribe on a server\"}";
+            return new HTTPResponse("1.1")
+                    .setStatusCode("501")
+                    .setReasonPhrase("Not Implemented")
+                    .setHeader("Content-Type", "application/json")
+                    .setHeader("Content-Length", String.valueOf(body.length()))
+                    .setBody(body);
+        }
+
+        /**
+         * Get the station of a long-poll GET, which waits on the server with ?wait= until
+         * the station changes
+         *
+         * @param uri URI of a GET
+         * @return station or null if the GET is not a long-poll
+         */
+        private String getLongPollStation(String uri) {
+            int query = uri.indexOf('?');
+            if (query == -1 || !uri.substring(query + 1).contains("wait="))
+                return null;
+            String stationID = uri.substring(uri.indexOf('/') + 1, query);
+            return stationID.isEmpty() ? null : stationID;
+        }
+
+        /**
+         * Get the connection long-poll GETs of this client are sent over, to the server
+         * owning the station
+         */
+        private UpstreamPool getLongPollInterface(String stationID) {
+            ServerInfo server = SHARDING ? getShard(stationID) : getLeader();
+            if (longPollInterface == null || !server.equals(longPollServer)) {
+                if (longPollInterface != null)
+                    longPollInterface.close();
+                longPollInterface = new UpstreamPool(server.hostname, server.port, 1,
+                        LONG_POLL_TIMEOUT);
+                longPollServer = server;
+            }
+            return longPollInterface;
+        }
+
+        /**
+         * Send a GET to the server owning its station. Stations separated by commas are
+         * requested from their shards at once and the found ones gathered in one body.
+         *
+         * @param request GET request
+         * @return response of the shard, or gathered response
+         * @throws IOException if a shard does not respond
+         */
+        private HTTPResponse handleShardedGET(HTTPRequest request) throws IOException {
+            String endPoint = request.getURIEndPoint();
+            if (endPoint == null)
+                return forward(getLeader(), pool -> pool.send(request));
+            String[] stationIDs = endPoint.split(",");
+            if (stationIDs.length == 1) {
+                ServerInfo readShard = getReadShard(endPoint);
+                try {
+                    return forward(readShard, pool -> pool.send(request));
+                } catch (IOException e) {
+                    return retryOnOwner(endPoint, readShard, request, e);
+                }
+            }
+            // Every request is in flight before waiting for the first response
+            List<ServerInfo> readShards = new ArrayList<>();
+            List<HTTPRequest> requests = new ArrayList<>();
+            List<UpstreamPool.Pending> pending = new ArrayList<>();
+            for (String stationID : stationIDs) {
+                HTTPRequest stationRequest = new HTTPRequest(request.method, "/" + stationID,
+                        request.version, new LinkedHashMap<>(request.header), null);
+                readShards.add(getReadShard(stationID));
+                requests.add(stationRequest);
+                pending.add(getUpstreamPool(readShards.get(readShards.size() - 1))
+                        .submit(stationRequest));
+            }
+            StringBuilder records = new StringBuilder();
+            HTTPResponse notFound = null;
+            for (int i = 0; i < stationIDs.length; i++) {
+                HTTPResponse shardResponse;
+                try {
+                    shardResponse = pending.get(i).await();
+                } catch (IOException e) {
+                    shardResponse = retryOnOwner(stationIDs[i], readShards.get(i),
+                            requests.get(i), e);
+                }
+                String body = shardResponse.body;
+                if (!shardResponse.statusCode.equals("200") || body == null ||
+                    !body.startsWith("{\n") || !body.endsWith("\n}")) {
+                    notFound = shardResponse;
+                    continue;
+                }
+                records.append(records.length() == 0 ? "" : ",\n")
+                        .append(body, 2, body.length() - 2);
+            }
+            if (records.length() == 0)
+                return notFound;
+            String body = "{\n" + records + "\n}";
+            return new HTTPResponse("1.1")
+                    .setStatusCode("200")
+                    .setReasonPhrase("OK")
+                    .setHeader("Content-Type", "application/json")
+                    .setHeader("Content-Length", String.valueOf(body.length()))
+                    .setBody(body);
+        }
+
+        /**
+         * Send a GET that failed on the read shard of a station to the owner of the station.
+         * A previous owner read from during a hand-off closes its pool once the stations are
+         * handed off, failing GETs still in flight, and the owner then holds the station.
+         *
+         * @param stationID station id
+         * @param readShard server the GET failed on
+         * @param request   GET of the station
+         * @param failure   failure of the GET
+         * @return response of the owner
+         * @throws IOException failure if the read shard is the owner, or if the owner fails
+         */
+        private HTTPResponse retryOnOwner(String stationID, ServerInfo readShard,
+                                          HTTPRequest request, IOException failure)
+                throws IOException {
+            ServerInfo shard = getShard(stationID);
+            if (shard.equals(readShard))
+                throw failure;
+            logger.info("Error: GET failed on " + readShard.hostname + ":" + readShard.port +
+                        ", using owner " + shard.hostname + ":" + shard.port + ": " + failure);
+            return forward(shard, pool -> pool.send(request));
+        }
+
+        private SocketClient getShardInterface(ServerInfo shard) throws IOException {
+            SocketClient shardInterface = shardInterfaces.get(shard);
+            if (shardInterface == null) {
+                shardInterface = GETClient.from_args((shard.hostname + ":" + shard.port)
+                        .split(" "));
+                shardInterfaces.put(shard, shardInterface);
+            }
+            return shardInterface;
+        }
+
+        private void closeShardInterfaces() {
+            for (SocketClient shardInterface : shardInterfaces.values()) {
+                try {
+                    shardInterface.close();
+                } catch (IOException e) {
+                    logger.info("ERROR: unable to close shard connection: " + e);
+                }
+            }
+            shardInterfaces.clear();
+        }
+
+        /**
+         * Send each station of a PUT to the server owning it. A PUT spanning several shards
+         * is split in one PUT per shard, sent before waiting for any response. Each part
+         * goes over a connection of this client, so the shard expires it when the client
+         * leaves.
+         *
+         * @param request PUT request
+         * @return response of the first shard, or of the first shard that failed
+         * @throws IOException if a shard does not respond
+         */
+        private HTTPResponse handleShardedPUT(HTTPRequest request) throws IOException {
+            Map<ServerInfo, List<String>> records = new LinkedHashMap<>();
+            if (request.body != null)
+                for (WeatherDataView view : Parser.index(request.body).values())
+                    records.computeIfAbsent(getShard(view.getID()), shard ->
+                            new ArrayList<>()).add(view.getRecord());
+            Map<ServerInfo, HTTPRequest> parts = new LinkedHashMap<>();
+            if (records.size() <= 1) {
+                parts.put(records.isEmpty() ? getLeader() : records.keySet().iterator().next(),
+                        request);
+            } else {
+                for (Map.Entry<ServerInfo, List<String>> entry : records.entrySet()) {
+                    String body = "{\n" + String.join(",\n", entry.getValue()) + "\n}";
+                    HTTPRequest part = new HTTPRequest(request.method, request.uri,
+                            request.version, new LinkedHashMap<>(request.header), body);
+                    // Digests describe the whole file, which no shard holds
+                    part.header.remove("Delta-Base");
+                    part.header.remove("State-Digest");
+                    part.setHeader("Content-Length", String.valueOf(body.length()));
+                    parts.put(entry.getKey(), part);
+                }
+            }
+            try {
+                for (Map.Entry<ServerInfo, HTTPRequest> part : parts.entrySet())
+                    getShardInterface(part.getKey()).send(part.getValue());
+                HTTPResponse result = null;
+                for (ServerInfo shard : parts.keySet()) {
+                    String message = getShardInterface(shard).receive();
+                    if (message == null)
+                        throw new IOException("Connection closed by " + shard.hostname + ":" +
+                                              shard.port);
+                    HTTPResponse response = HTTPResponse.fromMessage(message);
+                    if (result == null || (result.statusCode.startsWith("2") &&
+                                           !response.statusCode.startsWith("2")))
+                        result = response;
+                }
+                return result;
+            } catch (IOException | RuntimeException e) {
+                // Responses left unread would be matched to the next PUT
+                closeShardInterfaces();
+                throw e;
+            }
+        }
+
+        /**
+         * Relay the current request as received and relay the response back.
+         * <p>
+         * Requests are routed and coalesced like in handleRequest, from their start line
+         * only. Headers and body are neither parsed nor rewritten, so the Lamport clocks of
+         * the client and the server are exchanged directly.
+         *
+         * @param request request as received
+         */
+        public void relayRequest(RawHTTPMessage request) {
+            try {
+                RawHTTPMessage response;
+                String[] startLine = request.startLine.split(" ");
+                if (request.getMethod().equals("GET") && startLine.length > 1 &&
+                    startLine[1].startsWith(PubSubBroker.URI)) {
+                    send(newSubscribeResponse());
+                    return;
+                }
+                String longPollStation = request.getMethod().equals("GET") &&
+                                         startLine.length > 1 ?
+                        getLongPollStation(startLine[1]) : null;
+                if (longPollStation != null) {
+                    response = getLongPollInterface(longPollStation).relay(request);
+                } else if (request.getMethod().equals("GET")) {
+                    // The server compresses relayed responses as each client accepts and
+                    // answers conditional GETs, only identical requests share a response
+                    response = coalesce(relayFlights, request.startLine + "\n" +
+                                                      request.getHeader("Accept-Encoding") +
+                                                      "\n" + request.getHeader("If-None-Match"),
+                            () -> forwardGET(pool -> pool.relay(request)));
+                } else {
+                    relayFlights.forget();
+                    if (relayInterface == null) {
+                        ServerInfo leader = getLeader();
+                        relayInterface = new UpstreamPool(leader.hostname, leader.port, 1,
+                                UPSTREAM_TIMEOUT);
+                    }
+                    response = relayInterface.relay(request);
+                }
+                response.writeTo(writer);
+                flushUnlessPipelined();
+            } catch (IOException e) {
+                logger.info("Error: server error: " + e);
+                send(new HTTPResponse("1.1").setStatusCode("500").setReasonPhrase(
+                        "Internal Server Error"));
+            }
+        }
+
         @Override
         public void run() {
 
             while (true) {
                 try {
+                    if (isRelay) {
+                        RawHTTPMessage request = RawHTTPMessage.read(in);
+                        if (request == null)
+                            break;
+                        relayRequest(request);
+                        continue;
+                    }
                     String request = receive();
                     if (request == null)
                         break;
@@ -314,7 +1288,13 @@ public class LoadBalancer extends SocketServer {
                 }
             }
             try {
-                serverInterface.close();
+                if (serverInterface != null)
+                    serverInterface.close();
+                if (relayInterface != null)
+                    relayInterface.close();
+                if (longPollInterface != null)
+                    longPollInterface.close();
+                closeShardInterfaces();
                 close();
             } catch (IOException e) {
                 logger.info("ERROR: unable to close server socket");
@@ -0,0 +1,256 @@
+import utility.LatencyHistogram;
+import utility.SocketClient;
+import utility.config.Config;
+import utility.domain.LoadGeneratorParser;
+import utility.domain.ServerInformation;
+import utility.http.HTTPRequest;
+import utility.http.HTTPResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Simulate many ContentServers and GETClients against one server from a single JVM.
+ * <p>
+ * Every simulated client is a ContentServer or GETClient with its own connection, driven
+ * by its own thread. In closed mode a client sends its next request as soon as it receives
+ * the previous response. In open mode requests are scheduled at a fixed rate per client and
+ * latency is measured from the scheduled time, so a slow server is not hidden by clients
+ * waiting for it. Responses received during the warmup period are not recorded.
+ */
+public class LoadGenerator {
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+    private final Config config = new Config("src/config/loadgen.properties");
+    private final String hostname;
+    private final int port;
+
+    private int CONTENT_SERVERS = Integer.parseInt(config.get("CONTENT_SERVERS", "4"));
+    private int GET_CLIENTS = Integer.parseInt(config.get("GET_CLIENTS", "16"));
+    // open or closed
+    private String MODE = config.get("MODE", "closed");
+    // Requests per second of each client in open mode
+    private double PUT_RATE = Double.parseDouble(config.get("PUT_RATE", "20"));
+    private double GET_RATE = Double.parseDouble(config.get("GET_RATE", "100"));
+    // Stations in the file uploaded by each ContentServer
+    private int PAYLOAD_STATIONS = Math.max(1,
+            Integer.parseInt(config.get("PAYLOAD_STATIONS", "1")));
+    private int DURATION = Integer.parseInt(config.get("DURATION", "10000"));
+    private int WARMUP = Integer.parseInt(config.get("WARMUP", "1000"));
+
+    public LoadGenerator(String hostname, int port) {
+        this.hostname = hostname;
+        this.port = port;
+    }
+
+    /**
+     * Latency and errors of one type of request
+     */
+    public static class Result {
+        public final String name;
+        public final int clients;
+        public final LatencyHistogram histogram = new LatencyHistogram();
+        public final AtomicLong errors = new AtomicLong();
+        private final long measuredNanos;
+
+        Result(String name, int clients, long measuredNanos) {
+            this.name = name;
+            this.clients = clients;
+            this.measuredNanos = measuredNanos;
+        }
+
+        public double getThroughput() {
+            return measuredNanos <= 0 ? 0 : histogram.getCount() * 1e9 / measuredNanos;
+        }
+
+        private static String millis(double nanos) {
+            return String.format("%.3f", nanos / 1e6);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-4s %8d %10d %8d %12.1f %10s %10s %10s %10s %10s", name,
+                    clients, histogram.getCount(), errors.get(), getThroughput(),
+                    millis(histogram.getMean()), millis(histogram.getValueAtPercentile(50)),
+                    millis(histogram.getValueAtPercentile(99)),
+                    millis(histogram.getValueAtPercentile(99.9)),
+                    millis(histogram.getMax()));
+        }
+
+        public static String header() {
+            return String.format("%-4s %8s %10s %8s %12s %10s %10s %10s %10s %10s", "type",
+                    "clients", "requests", "errors", "req/s", "mean(ms)", "p50(ms)",
+                    "p99(ms)", "p999(ms)", "max(ms)");
+        }
+    }
+
+    /**
+     * Write the file uploaded by a simulated ContentServer, using the Adelaide station as
+     * template for every station
+     *
+     * @param directory directory to write to
+     * @param index     index of the ContentServer
+     * @return path to the file
+     * @throws IOException if the file cannot be written
+     */
+    private Path writePayload(Path directory, int index) throws IOException {
+        String template = Files.readString(Paths.get("src/resources/WeatherData/SingleEntry" +
+                                                     "/Adelaide_2023-07-15_16-00-00.txt"));
+        StringBuilder builder = new StringBuilder();
+        for (int station = 0; station < PAYLOAD_STATIONS; station++)
+            builder.append(template.replaceFirst("id: \\d+", "id: " + stationID(index,
+                    station))).append("\n");
+        return Files.writeString(directory.resolve("feed" + index + ".txt"), builder);
+    }
+
+    private String stationID(int contentServer, int station) {
+        return String.valueOf(900000 + contentServer * 1000 + station);
+    }
+
+    /**
+     * Send request over client until end, recording each latency in result
+     */
+    private void drive(SocketClient client, HTTPRequest request, double rate, long start,
+                       long end, Result result) throws IOException {
+        boolean isOpen = MODE.equals("open") && rate > 0;
+        long interval = isOpen ? (long) (1e9 / rate) : 0;
+        long measureFrom = start + WARMUP * 1_000_000L;
+        long next = start;
+        while (true) {
+            long scheduled = isOpen ? next : System.nanoTime();
+            if (scheduled >= end)
+                break;
+            if (isOpen) {
+                long delay = scheduled - System.nanoTime();
+                if (delay > 0)
+                    LockSupport.parkNanos(delay);
+                next += interval;
+            }
+            String response;
+            try {
+                client.send(request);
+                response = client.receive();
+            } catch (RuntimeException e) {
+                response = null;
+            }
+            long latency = System.nanoTime() - scheduled;
+            if (scheduled >= measureFrom) {
+                result.histogram.record(latency);
+                if (response == null ||
+                    !HTTPResponse.fromMessage(response).statusCode.startsWith("2"))
+                    result.errors.incrementAndGet();
+            }
+            // Messages are kept for retries only, do not let them pile up
+            client.sentMessages.clear();
+            client.receivedMessages.clear();
+            if (response == null)
+                client.reconnect();
+        }
+        client.close();
+    }
+
+    /**
+     * Run the simulation
+     *
+     * @return PUT and GET results
+     * @throws IOException if payload files cannot be created
+     */
+    public List<Result> run() throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("loadgen");
+        ExecutorService clients = Executors.newFixedThreadPool(
+                Math.max(CONTENT_SERVERS + GET_CLIENTS, 1));
+        long measuredNanos = (DURATION - (long) WARMUP) * 1_000_000L;
+        Result putResult = new Result("PUT", CONTENT_SERVERS, measuredNanos);
+        Result getResult = new Result("GET", GET_CLIENTS, measuredNanos);
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            List<Path> payloads = new ArrayList<>();
+            for (int i = 0; i < CONTENT_SERVERS; i++)
+                payloads.add(writePayload(directory, i));
+            long start = System.nanoTime() + 100_000_000L;
+            long end = start + DURATION * 1_000_000L;
+            for (Path payload : payloads)
+                tasks.add(() -> {
+                    ContentServer contentServer = ContentServer.from_args(new String[]{
+                            hostname + ":" + port, payload.toString()});
+                    HTTPRequest request = contentServer.formatPUTMessage(payload.toString());
+                    drive(contentServer, request, PUT_RATE, start, end, putResult);
+                    return null;
+                });
+            for (int i = 0; i < GET_CLIENTS; i++) {
+                String station = CONTENT_SERVERS == 0 ? null :
+                        stationID(i % CONTENT_SERVERS, i % PAYLOAD_STATIONS);
+                tasks.add(() -> {
+                    GETClient client = GETClient.from_args(station == null ?
+                            new String[]{hostname + ":" + port} :
+                            new String[]{hostname + ":" + port, station});
+                    drive(client, client.formatGETMessage(), GET_RATE, start, end, getResult);
+                    return null;
+                });
+            }
+            for (Future<Void> future : clients.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.info("Simulated client failed: " + e.getCause());
+                }
+            }
+        } finally {
+            clients.shutdownNow();
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+        return List.of(putResult, getResult);
+    }
+
+    public void setCONTENT_SERVERS(int CONTENT_SERVERS) {
+        this.CONTENT_SERVERS = CONTENT_SERVERS;
+    }
+
+    public void setGET_CLIENTS(int GET_CLIENTS) {
+        this.GET_CLIENTS = GET_CLIENTS;
+    }
+
+    public void setMODE(String MODE) {
+        this.MODE = MODE;
+    }
+
+    public void setPUT_RATE(double PUT_RATE) {
+        this.PUT_RATE = PUT_RATE;
+    }
+
+    public void setGET_RATE(double GET_RATE) {
+        this.GET_RATE = GET_RATE;
+    }
+
+    public void setPAYLOAD_STATIONS(int PAYLOAD_STATIONS) {
+        this.PAYLOAD_STATIONS = Math.max(1, PAYLOAD_STATIONS);
+    }
+
+    public void setDURATION(int DURATION) {
+        this.DURATION = DURATION;
+    }
+
+    public void setWARMUP(int WARMUP) {
+        this.WARMUP = WARMUP;
+    }
+
+    public static void main(String[] argv) throws IOException, InterruptedException {
+        ServerInformation info = new LoadGeneratorParser().parse(argv);
+        List<Result> results = new LoadGenerator(info.hostname, info.port).run();
+        System.out.println(Result.header());
+        for (Result result : results)
+            System.out.println(result);
+    }
+}
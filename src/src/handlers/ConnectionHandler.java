@@ -1,21 +1,47 @@
 package handlers;
 
 import annotations.IgnoreCoverage;
+import utility.AdmissionController;
 import utility.FileMetadata;
 import utility.LamportClock;
+import utility.MetricsRegistry;
+import utility.SingleFlight;
 import utility.SocketCommunicator;
+import utility.UpdateNotifier;
+import utility.http.BodyTooLargeException;
+import utility.http.ChunkedWriter;
+import utility.http.ConditionalRequest;
 import utility.http.HTTPRequest;
 import utility.http.HTTPResponse;
+import utility.http.MessageWriter;
+import utility.http.ResponseCompressor;
+import utility.pubsub.PubSubBroker;
+import utility.pubsub.Subscriber;
+import utility.pubsub.Update;
+import utility.replication.Replication;
+import utility.replication.StateTransfer;
+import utility.routing.ShardHandoff;
+import utility.weatherJson.ParallelParser;
+import utility.weatherJson.WeatherDataView;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConnectionHandler extends SocketCommunicator implements Runnable {
+    // Longest wait of a subscription for updates before checking the server is up (ms)
+    private static final int SUBSCRIPTION_CHECK = 1000;
 
-    private final ConcurrentMap<String, String> database;
+    private final ConcurrentMap<String, WeatherDataView> database;
 
     private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> archive;
 
@@ -30,18 +56,51 @@ public class ConnectionHandler extends SocketCommunicator implements Runnable {
 
     private ScheduledFuture<?> removeEntryTask;
 
+    private final ParallelParser parser;
+
+    private final MetricsRegistry metrics;
+
+    private final Replication replication;
+
+    // GETs for the same resource in flight at once share one RequestHandler execution
+    private final SingleFlight<String, HTTPResponse> getFlights;
+
+    private final AdmissionController admission;
+
+    private final ResponseCompressor compressor;
+
+    private final UpdateNotifier notifier;
+
+    // Longest wait of a long-poll GET (ms)
+    private final int maxWait;
+
+    private final PubSubBroker broker;
+
+    // Connections accepted and not yet closed, counted by the accepting thread
+    private final AtomicInteger activeConnections;
+
     public ConnectionHandler(
             Socket socket,
             BufferedReader in,
-            PrintWriter out,
+            MessageWriter writer,
             LamportClock clock,
-            ConcurrentMap<String, String> database,
+            ConcurrentMap<String, WeatherDataView> database,
             ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> archive,
             ExecutorService requestHandlerPool,
             LinkedBlockingQueue<FileMetadata> updateQueue,
             ScheduledExecutorService schedulePool, int freshcount, int waitTime,
-            ScheduledFuture<?> removeEntryFuture) {
-        super(socket, clock, out, in, "server");
+            ScheduledFuture<?> removeEntryFuture,
+            ParallelParser parser,
+            MetricsRegistry metrics,
+            Replication replication,
+            SingleFlight<String, HTTPResponse> getFlights,
+            AdmissionController admission,
+            ResponseCompressor compressor,
+            UpdateNotifier notifier,
+            int maxWait,
+            PubSubBroker broker,
+            AtomicInteger activeConnections) {
+        super(socket, clock, writer, in, "server");
         this.database = database;
         this.archive = archive;
         this.requestHandlerPool = requestHandlerPool;
@@ -50,51 +109,449 @@ public class ConnectionHandler extends SocketCommunicator implements Runnable {
         FRESH_COUNT = freshcount;
         this.WAIT_TIME = waitTime;
         this.removeEntryTask = removeEntryFuture;
+        this.parser = parser;
+        this.metrics = metrics;
+        this.replication = replication;
+        this.getFlights = getFlights;
+        this.admission = admission;
+        this.compressor = compressor;
+        this.notifier = notifier;
+        this.maxWait = maxWait;
+        this.broker = broker;
+        this.activeConnections = activeConnections;
+    }
+
+    /**
+     * Create the response to a request or connection shed under overload
+     *
+     * @param retryAfter delay suggested to the client (s)
+     * @return 503 with Retry-After
+     */
+    public static HTTPResponse newShedResponse(int retryAfter) {
+        String body = "{\"503\":\"Service Unavailable\", \"Message\": \"Server is overloaded, please retry later\"}";
+        return new HTTPResponse("1.1")
+                .setStatusCode("503")
+                .setReasonPhrase("Service Unavailable")
+                .setHeader("Retry-After", String.valueOf(retryAfter))
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    /**
+     * Create the response to a request whose body is larger than MAX_BODY once decoded
+     *
+     * @return 413
+     */
+    private HTTPResponse newBodyTooLargeResponse() {
+        String body = "{\"413\":\"Payload Too Large\", \"Message\": \"Decoded body is larger than " + MAX_BODY + " bytes\"}";
+        return new HTTPResponse("1.1")
+                .setStatusCode("413")
+                .setReasonPhrase("Payload Too Large")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    /**
+     * Answer GET /metrics without going through RequestHandler. The export grows with every
+     * label set, so it is streamed in chunks as metrics are read rather than built first.
+     *
+     * @throws IOException if the connection fails
+     */
+    private void sendMetrics() throws IOException {
+        HTTPResponse response = new HTTPResponse("1.1")
+                .setStatusCode("200")
+                .setReasonPhrase("OK")
+                .setHeader("Content-Type", "text/plain; version=0.0.4");
+        try (ChunkedWriter body = sendChunked(response)) {
+            metrics.writePrometheus(body);
+        }
+    }
+
+    /**
+     * Answer GET /subscribe/topic by streaming the updates of the topic until the server
+     * closes. Each update is a chunk of a chunked body, written as serialized once by the
+     * broker for every subscriber. A client too slow to keep up misses intermediate updates
+     * rather than holding them in memory.
+     *
+     * @param request subscription request
+     * @throws IOException          if the connection fails
+     * @throws InterruptedException if the server closes
+     */
+    private void subscribe(HTTPRequest request) throws IOException, InterruptedException {
+        String topic = request.uri.substring(PubSubBroker.URI.length());
+        if (!PubSubBroker.isTopic(topic)) {
+            String body = "{\"404\":\"Not Found\", \"Message\": \"Topic must be stations, " +
+                          "stations/stationID or states/state\"}";
+            send(new HTTPResponse("1.1")
+                    .setStatusCode("404")
+                    .setReasonPhrase("Not Found")
+                    .setHeader("Content-Type", "application/json")
+                    .setHeader("Content-Length", String.valueOf(body.length()))
+                    .setBody(body));
+            return;
+        }
+        metrics.counter("aggregation_subscriptions_total").increment();
+        // Subscribed before the head is sent, so updates after it are all received
+        Subscriber subscriber = broker.subscribe(topic);
+        try {
+            ChunkedWriter body = sendChunked(new HTTPResponse("1.1")
+                    .setStatusCode("200")
+                    .setReasonPhrase("OK")
+                    .setHeader("Content-Type", "application/json"));
+            writer.flush();
+            List<Update> updates;
+            while ((updates = subscriber.take(SUBSCRIPTION_CHECK, TimeUnit.MILLISECONDS))
+                   != null && !requestHandlerPool.isShutdown()) {
+                for (Update update : updates)
+                    writer.write(update.getChunk());
+                writer.flush();
+            }
+            body.close();
+        } finally {
+            broker.unsubscribe(subscriber);
+        }
+    }
+
+    /**
+     * Create the response to GET /replication, served without going through RequestHandler
+     *
+     * @return head of the replication log and last applied replicated PUT
+     */
+    private HTTPResponse getReplicationResponse() {
+        String body = replication.toJSON();
+        return new HTTPResponse("1.1")
+                .setStatusCode("200")
+                .setReasonPhrase("OK")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    /**
+     * Create the response to PUT /replication, sent by the load balancer once it elected a
+     * leader. The server catches up from the leader given in Replication-Leader in the
+     * background.
+     *
+     * @param request PUT /replication request
+     * @return 202 once the catch-up is started, 400 without a leader
+     */
+    private HTTPResponse getFollowResponse(HTTPRequest request) {
+        String leader = request.getHeader("Replication-Leader");
+        if (leader == null || !leader.matches("[^:]+:\\d+")) {
+            String body = "{\"400\":\"Bad Request\", \"Message\": \"Replication-Leader must be hostname:port\"}";
+            return new HTTPResponse("1.1")
+                    .setStatusCode("400")
+                    .setReasonPhrase("Bad Request")
+                    .setHeader("Content-Type", "application/json")
+                    .setHeader("Content-Length", String.valueOf(body.length()))
+                    .setBody(body);
+        }
+        replication.catchUpFrom(leader);
+        return new HTTPResponse("1.1")
+                .setStatusCode("202")
+                .setReasonPhrase("Accepted")
+                .setHeader("Content-Length", "0");
+    }
+
+    /**
+     * Create the response to GET /health, served without going through RequestHandler
+     *
+     * @return 200 while requests are accepted, 503 once the server is closing
+     */
+    private HTTPResponse getHealthResponse() {
+        boolean isUp = !requestHandlerPool.isShutdown();
+        String body = isUp ? "{\"status\": \"up\"}" : "{\"status\": \"down\"}";
+        return new HTTPResponse("1.1")
+                .setStatusCode(isUp ? "200" : "503")
+                .setReasonPhrase(isUp ? "OK" : "Service Unavailable")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    /**
+     * Send the response head to GET /snapshot followed by the snapshot, which is deleted
+     * once sent
+     *
+     * @param response response head
+     * @param file     snapshot written by RequestHandler
+     * @throws IOException if the connection fails
+     */
+    private void sendSnapshot(HTTPResponse response, Path file) throws IOException {
+        try {
+            response.setHeader("Lamport-Clock",
+                    String.valueOf(clock.advanceAndGetTimeStamp()));
+            logger.info("Sending snapshot of " + response.getHeader("Content-Length") +
+                        " bytes");
+            // The snapshot follows the head directly, without the line break ending messages
+            writer.flush();
+            OutputStream stream = clientSocket.getOutputStream();
+            stream.write(response.toString().getBytes(StandardCharsets.UTF_8));
+            StateTransfer.stream(file, stream);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Queue a request in requestHandlerPool if admission control lets it in. PUTs change
+     * state and are only shed at the hard bound, GETs as soon as queue latency exceeds its
+     * target.
+     *
+     * @param request request to handle
+     * @param task    handler of the request
+     * @return response of the request, or 503 if it is shed
+     */
+    private HTTPResponse admit(HTTPRequest request, RequestHandler task)
+            throws ExecutionException, InterruptedException {
+        if (!admission.tryAcquire(!request.method.equals("GET"))) {
+            metrics.counter("aggregation_shed_requests_total", "method", request.method)
+                    .increment();
+            return newShedResponse(admission.getRetryAfter());
+        }
+        try {
+            return requestHandlerPool.submit(task).get();
+        } finally {
+            admission.release(task.getQueueWait());
+        }
+    }
+
+    /**
+     * Handle a GET, or wait for the identical GET already in flight and share its response
+     *
+     * @param request GET request
+     * @param task    handler run if no identical GET is in flight
+     * @return response of this request, or a copy of the shared one
+     */
+    private HTTPResponse coalesce(HTTPRequest request, RequestHandler task)
+            throws ExecutionException, InterruptedException {
+        try {
+            return getFlights.execute(request.uri, () -> admit(request, task)).copy();
+        } catch (ExecutionException e) {
+            // Failures of the shared execution are reported as if this request ran it
+            if (e.getCause() instanceof ExecutionException)
+                throw (ExecutionException) e.getCause();
+            if (e.getCause() instanceof RejectedExecutionException)
+                throw (RejectedExecutionException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * Take the wait parameter of a long-poll GET out of its URI, so it is handled and
+     * shared like a plain GET of the station. Other requests are left unchanged.
+     *
+     * @param request request whose URI is stripped of its query if it is a GET
+     * @return time to wait for the station to change (ms), 0 to answer at once
+     */
+    private long takeWait(HTTPRequest request) {
+        if (!request.method.equals("GET"))
+            return 0;
+        int query = request.uri.indexOf('?');
+        if (query == -1)
+            return 0;
+        long wait = 0;
+        for (String parameter : request.uri.substring(query + 1).split("&")) {
+            if (!parameter.startsWith("wait="))
+                continue;
+            String value = parameter.substring(5);
+            try {
+                if (value.endsWith("ms"))
+                    wait = Long.parseLong(value.substring(0, value.length() - 2));
+                else if (value.endsWith("s"))
+                    wait = Long.parseLong(value.substring(0, value.length() - 1)) * 1000;
+                else
+                    wait = Long.parseLong(value) * 1000;
+            } catch (NumberFormatException e) {
+                wait = 0;
+            }
+        }
+        request.setURI(request.uri.substring(0, query));
+        return Math.max(Math.min(wait, maxWait), 0);
+    }
+
+    /**
+     * Check if a GET response holds nothing new for the client: the station is not on the
+     * server, or is still the version named by If-None-Match
+     */
+    private static boolean isUnchanged(HTTPRequest request, HTTPResponse response) {
+        return response.statusCode.equals("404") ||
+               response.statusCode.equals("200") && ConditionalRequest.matches(
+                       request.getHeader("If-None-Match"), response.getHeader("ETag"));
+    }
+
+    /**
+     * Handle a long-poll GET: answer as soon as the station differs from the version the
+     * client holds, waiting for a PUT to change it for at most wait ms. The connection
+     * thread waits, not requestHandlerPool.
+     *
+     * @param request   GET request
+     * @param receiveTS Lamport timestamp of the request
+     * @param wait      longest wait (ms)
+     * @return response to the GET once the station changed, or the last one after wait
+     */
+    private HTTPResponse longPoll(HTTPRequest request, int receiveTS, long wait)
+            throws ExecutionException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+        String stationID = request.getURIEndPoint();
+        while (true) {
+            // Watched before reading, an update in between still wakes the wait up
+            CompletableFuture<Void> update = notifier.watch(stationID);
+            try {
+                HTTPResponse response = coalesce(request,
+                        newRequestHandler(request, receiveTS));
+                long remaining = deadline - System.nanoTime();
+                if (!isUnchanged(request, response) || remaining <= 0 ||
+                    !notifier.await(update, remaining, TimeUnit.NANOSECONDS))
+                    return response;
+            } finally {
+                notifier.unwatch(stationID, update);
+            }
+        }
+    }
+
+    private RequestHandler newRequestHandler(HTTPRequest request, int receiveTS) {
+        return new RequestHandler(
+                request,
+                clientSocket.getInetAddress().toString(),
+                receiveTS,
+                updateQueue,
+                database,
+                FRESH_COUNT,
+                archive,
+                parser,
+                metrics,
+                replication,
+                notifier
+        );
     }
 
     @IgnoreCoverage
     @Override
     public void run() {
-        FileMetadata metadataPUT = null;
+        metrics.counter("aggregation_connections_total").increment();
+        // A watching ContentServer uploads several files over the same connection
+        Map<String, FileMetadata> metadataPUT = new LinkedHashMap<>();
         try {
             String message;
             while (true) {
-                message = receive();
+                try {
+                    message = receive();
+                } catch (BodyTooLargeException e) {
+                    // The coded body was read whole, so the connection can go on
+                    logger.info(e.getMessage());
+                    send(newBodyTooLargeResponse());
+                    continue;
+                }
                 // Client will close the connection
                 if (message == null)
                     break;
+                long receivedAt = System.nanoTime();
                 HTTPRequest request = HTTPRequest.fromMessage(message);
+                long wait = takeWait(request);
+                if (request.method.equals("GET") && request.uri.equals("/metrics")) {
+                    sendMetrics();
+                    continue;
+                }
+                if (request.method.equals("GET") && request.uri.equals("/health")) {
+                    HTTPResponse response = getHealthResponse();
+                    send(response);
+                    // Connections of a closed server must not outlive it
+                    if (!response.statusCode.equals("200"))
+                        break;
+                    continue;
+                }
+                if (request.method.equals("GET") && request.uri.equals("/replication")) {
+                    send(getReplicationResponse());
+                    continue;
+                }
+                if (request.method.equals("PUT") && request.uri.equals("/replication")) {
+                    send(getFollowResponse(request));
+                    continue;
+                }
+                if (request.method.equals("GET") && request.uri.startsWith(PubSubBroker.URI)) {
+                    subscribe(request);
+                    continue;
+                }
                 int receiveTS = clock.getTimeStamp();
-                // Save metadata to remove archive's entry 30s after disconnection
-                if (request.method.equals("PUT"))
-                    metadataPUT = new FileMetadata(clientSocket.getInetAddress().toString(),
-                            request.getURIEndPoint(), String.valueOf(receiveTS));
+                // GETs received after a PUT must not share a response computed before it
+                if (!request.method.equals("GET"))
+                    getFlights.forget();
+                // Save metadata to remove archive's entry 30s after disconnection. Replicated
+                // entries are scheduled for removal once applied, hand-offs are not archived.
+                if (request.method.equals("PUT") &&
+                    request.getHeader("Replication-Sequence") == null &&
+                    !ShardHandoff.URI.equals(request.uri))
+                    metadataPUT.put(request.getURIEndPoint(),
+                            new FileMetadata(clientSocket.getInetAddress().toString(),
+                                    request.getURIEndPoint(), String.valueOf(receiveTS)));
 
                 // Submit request to a task queue and get the Future as a CompletionService
                 logger.info("Submitting job to execution threadpool");
-                Callable<HTTPResponse> task = new RequestHandler(
-                        request,
-                        clientSocket.getInetAddress().toString(),
-                        receiveTS,
-                        updateQueue,
-                        database,
-                        FRESH_COUNT,
-                        archive
-                );
-                Future<HTTPResponse> future = requestHandlerPool.submit(task);
-                HTTPResponse futureResponse = future.get();
-                send(futureResponse);
+                RequestHandler task = newRequestHandler(request, receiveTS);
+                long submittedAt = System.nanoTime();
+                HTTPResponse futureResponse;
+                boolean isLongPoll = wait > 0 && request.method.equals("GET") &&
+                                     request.getURIEndPoint() != null;
+                // Snapshots are written per request and cannot be shared, hand-offs must see
+                // every PUT before them
+                if (isLongPoll) {
+                    metrics.counter("aggregation_long_polls_total").increment();
+                    futureResponse = longPoll(request, receiveTS, wait);
+                } else if (request.method.equals("GET") &&
+                           !StateTransfer.URI.equals(request.uri) &&
+                           !ShardHandoff.URI.equals(request.uri))
+                    futureResponse = coalesce(request, task);
+                else
+                    futureResponse = admit(request, task);
+                // Time spent waiting for updates is not response wait
+                if (!isLongPoll)
+                    metrics.summary("aggregation_response_wait_seconds")
+                            .record(System.nanoTime() - submittedAt);
+                // A follower never sees the ContentServer disconnect, so it removes a
+                // replicated entry WAIT_TIME after applying it, when the leader removes it at
+                // the earliest
+                if (request.method.equals("PUT") &&
+                    request.getHeader("Replication-Source") != null)
+                    removeEntryTask = schedulePool.schedule(new RemoveEntryRunnable(
+                            new FileMetadata(request.getHeader("Replication-Source"),
+                                    request.getURIEndPoint(), String.valueOf(receiveTS)),
+                            archive), WAIT_TIME, TimeUnit.MILLISECONDS);
+                futureResponse = ConditionalRequest.apply(request, futureResponse);
+                // Counted before sending so a client seeing its response sees it counted
+                metrics.counter("aggregation_requests_total", "method", request.method,
+                        "code", futureResponse.statusCode).increment();
+                // The snapshot is not a text message, the connection ends after it
+                if (task.getSnapshotFile() != null) {
+                    sendSnapshot(futureResponse, task.getSnapshotFile());
+                    break;
+                }
+                send(compressor.compress(request, futureResponse));
+                metrics.summary("aggregation_request_duration_seconds", "method",
+                        request.method).record(System.nanoTime() - receivedAt);
             }
-            // Submit a cleanup task if request is PUT
-            if (metadataPUT != null) {
-                logger.info("Schedule a job to remove entry: " + metadataPUT.getRemoteIP() + "/" + metadataPUT.getFileName() + " after " + WAIT_TIME);
-                Runnable removeArchiveData = new RemoveEntryRunnable(metadataPUT, archive);
+            // Submit a cleanup task for each file sent with PUT
+            for (FileMetadata metadata : metadataPUT.values()) {
+                logger.info("Schedule a job to remove entry: " + metadata.getRemoteIP() + "/" + metadata.getFileName() + " after " + WAIT_TIME);
+                Runnable removeArchiveData = new RemoveEntryRunnable(metadata, archive);
                 removeEntryTask = schedulePool.schedule(removeArchiveData, WAIT_TIME, TimeUnit.MILLISECONDS);
             }
             close();
         } catch (IOException | ExecutionException | InterruptedException e) {
             logger.info("Runtime exception " + e.getMessage());
+        } catch (RejectedExecutionException e) {
+            // Server is closing, clients sharing this connection must see it close
+            logger.info("Request rejected, closing connection");
+            try {
+                close();
+            } catch (IOException ex) {
+                logger.info("Unable to close connection: " + ex.getMessage());
+            }
+        } finally {
+            metrics.counter("aggregation_connections_closed_total").increment();
+            activeConnections.decrementAndGet();
         }
     }
 }
-
@@ -5,15 +5,38 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.RunnableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 @IgnoreCoverage
 public class PriorityRunnableFuture<T> implements RunnableFuture<T> {
+    private static final AtomicLong SEQUENCE = new AtomicLong();
     private final RunnableFuture<T> src;
     private final int priority;
+    private final int lane;
+    private final long deadline;
+    private final RequestHandler handler;
+    // Submission order, breaks ties between tasks with the same deadline
+    private final long sequence = SEQUENCE.getAndIncrement();
 
     public PriorityRunnableFuture(RunnableFuture<T> src, int priority) {
         this.src = src;
         this.priority = priority;
+        this.lane = RequestHandler.WRITE_LANE;
+        this.deadline = Long.MAX_VALUE;
+        this.handler = null;
+    }
+
+    /**
+     * @param src     task to run
+     * @param handler request handler called by src, giving the Lamport timestamp, lane and
+     *                deadline of the task
+     */
+    public PriorityRunnableFuture(RunnableFuture<T> src, RequestHandler handler) {
+        this.src = src;
+        this.priority = handler.getPriority();
+        this.lane = handler.getLane();
+        this.deadline = handler.getDeadline();
+        this.handler = handler;
     }
 
 
@@ -51,5 +74,26 @@ public class PriorityRunnableFuture<T> implements RunnableFuture<T> {
     public int getPriority() {
         return priority;
     }
+
+    public int getLane() {
+        return lane;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the request handler called by the task
+     *
+     * @return handler or null if the task was not created for one
+     */
+    public RequestHandler getHandler() {
+        return handler;
+    }
 }
 
@@ -5,6 +5,9 @@ import annotations.IgnoreCoverage;
 
 import java.util.Comparator;
 
+/**
+ * Order requests by Lamport timestamp, the earliest first
+ */
 @IgnoreCoverage
 public class PriorityRunnableFutureComparator implements Comparator<Runnable> {
     @Override
@@ -18,7 +21,7 @@ public class PriorityRunnableFutureComparator implements Comparator<Runnable> {
         else {
             int p1 = ((PriorityRunnableFuture<?>) o1).getPriority();
             int p2 = ((PriorityRunnableFuture<?>) o2).getPriority();
-            return -Integer.compare(p1, p2);
+            return Integer.compare(p1, p2);
         }
     }
 }
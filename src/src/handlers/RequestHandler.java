@@ -1,11 +1,23 @@
 package handlers;
 
 import utility.FileMetadata;
+import utility.MetricsRegistry;
+import utility.ServerSnapshot;
+import utility.UpdateNotifier;
 import utility.http.HTTPRequest;
 import utility.http.HTTPResponse;
+import utility.replication.Replication;
+import utility.replication.StateTransfer;
+import utility.routing.ShardHandoff;
+import utility.weatherJson.ParallelParser;
 import utility.weatherJson.Parser;
-import utility.weatherJson.WeatherData;
+import utility.weatherJson.WeatherDataView;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
@@ -13,24 +25,60 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public class RequestHandler implements Callable<HTTPResponse> {
+    // Lanes of requestHandlerPool: PUTs, snapshots and hand-offs change state or must see it
+    // between two PUTs, and keep Lamport order. GETs of stations only read it
+    public static final int WRITE_LANE = 0;
+    public static final int READ_LANE = 1;
+
     private final HTTPRequest request;
     private final int priority;
     private final LinkedBlockingQueue<FileMetadata> updateQueue;
 
     private final String remoteIP;
-    private final ConcurrentMap<String, String> database;
+    private final ConcurrentMap<String, WeatherDataView> database;
 
     private final int FRESH_COUNT;
     private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> archive;
 
+    private final ParallelParser parser;
+
+    private final MetricsRegistry metrics;
+
+    private final Replication replication;
+
+    // Wakes up long-poll GETs and subscriptions of the stations written by PUTs
+    private final UpdateNotifier notifier;
+
+    // Time the request was queued in requestHandlerPool
+    private final long createdAt = System.nanoTime();
+
+    // Time the request started being handled, 0 until then
+    private volatile long startedAt;
+
+    // Time after which the request is answered 503 without being handled
+    private long deadline = Long.MAX_VALUE;
+    private int retryAfter;
+
+    // Outcome of the PUT when applied by applyBatch, returned by call
+    private boolean batched;
+    private HTTPResponse batchResponse;
+    private RuntimeException batchFailure;
+
+    // Snapshot written for GET /snapshot, sent after the response head
+    private Path snapshotFile;
+
     public RequestHandler(
             HTTPRequest request,
             String remoteIP,
             int priority,
             LinkedBlockingQueue<FileMetadata> updateQueue,
-            ConcurrentMap<String, String> database,
+            ConcurrentMap<String, WeatherDataView> database,
             int freshUpdateCount,
-            ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> archive
+            ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> archive,
+            ParallelParser parser,
+            MetricsRegistry metrics,
+            Replication replication,
+            UpdateNotifier notifier
     ) {
         this.request = request;
         this.priority = priority;
@@ -38,7 +86,13 @@ public class RequestHandler implements Callable<HTTPResponse> {
         this.database = database;
         this.FRESH_COUNT = freshUpdateCount;
         this.archive = archive;
-        this.remoteIP = remoteIP;
+        // Replicated PUTs are stored under the ContentServer that sent them to the leader
+        String source = request.getHeader("Replication-Source");
+        this.remoteIP = source != null ? source : remoteIP;
+        this.parser = parser;
+        this.metrics = metrics;
+        this.replication = replication;
+        this.notifier = notifier;
     }
 
 
@@ -55,14 +109,17 @@ public class RequestHandler implements Callable<HTTPResponse> {
                     .setBody(body);
         }
         // Station ID data is available
-        if (database.containsKey(stationID)) {
-            String body = "{\n" + database.get(stationID) + "\n}";
-            return new HTTPResponse("1.1")
+        WeatherDataView station = database.get(stationID);
+        if (station != null) {
+            String body = "{\n" + station + "\n}";
+            HTTPResponse response = new HTTPResponse("1.1")
                     .setStatusCode("200")
                     .setReasonPhrase("OK")
                     .setHeader("Content-Type", "application/json")
                     .setHeader("Content-Length", String.valueOf(body.length()))
                     .setBody(body);
+            // Lets clients poll with If-None-Match
+            return response.setHeader("ETag", station.getETag());
         }
         // Station ID data unavailable
         String body = "{\"404\":\"Not Found\", \"Message\": \"The requested station ID is not on server\"}";
@@ -74,31 +131,292 @@ public class RequestHandler implements Callable<HTTPResponse> {
                 .setBody(body);
     }
 
+    /**
+     * Create the response to a replicated PUT of an epoch the server does not follow.
+     * <p>
+     * Its sequence number says nothing of what the server holds, so the server catches up
+     * from the leader given in Replication-Leader and answers 503 until it holds the
+     * snapshot, the leader then ships the PUTs after it. Without a leader to catch up from,
+     * the PUT is refused for good.
+     *
+     * @param epoch epoch of the replicated PUT
+     * @return response or null if the server follows the epoch
+     */
+    private HTTPResponse checkReplicationEpoch(String epoch) {
+        if (replication.follows(epoch))
+            return null;
+        String leader = request.getHeader("Replication-Leader");
+        if (leader == null || !leader.matches("[^:]+:\\d+")) {
+            String body = "{\"409\":\"Conflict\", \"Message\": \"Replicated PUT comes from a leader the server does not follow\"}";
+            return new HTTPResponse("1.1")
+                    .setStatusCode("409")
+                    .setReasonPhrase("Conflict")
+                    .setHeader("Content-Type", "application/json")
+                    .setHeader("Content-Length", String.valueOf(body.length()))
+                    .setBody(body);
+        }
+        replication.catchUpFrom(leader);
+        String body = "{\"503\":\"Service Unavailable\", \"Message\": \"Catching up from the leader of the replicated PUT\"}";
+        return new HTTPResponse("1.1")
+                .setStatusCode("503")
+                .setReasonPhrase("Service Unavailable")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    /**
+     * Create the response to a replicated PUT that does not directly follow the last
+     * applied one.
+     * <p>
+     * An already applied PUT is acknowledged again, a PUT after a gap is refused. Both carry
+     * the last applied sequence number, so the leader can resume from there.
+     *
+     * @param sequence sequence number of the replicated PUT
+     * @return response or null if the PUT is the next one to apply
+     */
+    private HTTPResponse checkReplicationSequence(long sequence) {
+        long applied = replication.getApplied();
+        if (sequence == applied + 1)
+            return null;
+        if (sequence <= applied)
+            return new HTTPResponse("1.1")
+                    .setStatusCode("200")
+                    .setReasonPhrase("OK")
+                    .setHeader("Replication-Applied", String.valueOf(applied));
+        String body = "{\"409\":\"Conflict\", \"Message\": \"Replicated PUT does not follow the last applied one\"}";
+        return new HTTPResponse("1.1")
+                .setStatusCode("409")
+                .setReasonPhrase("Conflict")
+                .setHeader("Replication-Applied", String.valueOf(applied))
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    /**
+     * Register the server asking for a snapshot as follower and write the snapshot. Both
+     * happen between two PUTs, so the follower is shipped every PUT the snapshot misses.
+     *
+     * @return response head of the snapshot, the snapshot itself is in snapshotFile
+     */
+    public HTTPResponse handleSnapshot() {
+        long sequence = replication.getLog().getHead();
+        String follower = request.getHeader("Replication-Follower");
+        if (follower != null) {
+            String[] hostPort = follower.split(":");
+            try {
+                replication.addFollower(hostPort[0], Integer.parseInt(hostPort[1]), sequence);
+            } catch (RuntimeException e) {
+                String body = "{\"400\":\"Bad Request\", \"Message\": \"Replication-Follower must be hostname:port\"}";
+                return new HTTPResponse("1.1")
+                        .setStatusCode("400")
+                        .setReasonPhrase("Bad Request")
+                        .setHeader("Content-Type", "application/json")
+                        .setHeader("Content-Length", String.valueOf(body.length()))
+                        .setBody(body);
+            }
+        }
+        try {
+            snapshotFile = Files.createTempFile("snapshot", ".ser");
+            ServerSnapshot.createTransferFile(snapshotFile, database, archive);
+            return new HTTPResponse("1.1")
+                    .setStatusCode("200")
+                    .setReasonPhrase("OK")
+                    .setHeader("Content-Type", "application/octet-stream")
+                    .setHeader("Content-Length", String.valueOf(Files.size(snapshotFile)))
+                    .setHeader("Replication-Epoch", replication.getLog().getEpoch())
+                    .setHeader("Replication-Sequence", String.valueOf(sequence));
+        } catch (IOException e) {
+            deleteSnapshotFile();
+            String body = "{\"500\":\"Internal Server Error\", \"Message\": \"Unable to write snapshot\"}";
+            return new HTTPResponse("1.1")
+                    .setStatusCode("500")
+                    .setReasonPhrase("Internal Server Error")
+                    .setHeader("Content-Type", "application/json")
+                    .setHeader("Content-Length", String.valueOf(body.length()))
+                    .setBody(body);
+        }
+    }
+
+    /**
+     * Answer every station held by the server, for the load balancer to hand the stations
+     * another shard now owns over to it
+     *
+     * @return records of the stations, or 204 if there is none
+     */
+    public HTTPResponse handleHandoffGET() {
+        if (database.isEmpty())
+            return new HTTPResponse("1.1")
+                    .setStatusCode("204")
+                    .setReasonPhrase("No Content");
+        String body = ShardHandoff.toBody(database.values());
+        return new HTTPResponse("1.1")
+                .setStatusCode("200")
+                .setReasonPhrase("OK")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    /**
+     * Install stations handed off by another shard. A station is only replaced by a more
+     * recent record, so a PUT received since the ring changed is kept. Stations are neither
+     * archived nor replicated, they belong to the files of the other shard.
+     *
+     * @return 200 with the number of installed stations
+     */
+    public HTTPResponse handleHandoffPUT() {
+        Map<String, WeatherDataView> stations = new HashMap<>();
+        if (request.body != null)
+            for (WeatherDataView station : parser.index(request.body).values()) {
+                WeatherDataView current = database.get(station.getID());
+                if (current == null || Parser.supersedes(current.getRawTS(),
+                        station.getRawTS()))
+                    stations.put(station.getID(), station.detach());
+            }
+        updateStationDatabase(stations);
+        String body = "{\"200\":\"OK\", \"Installed\": " + stations.size() + "}";
+        return new HTTPResponse("1.1")
+                .setStatusCode("200")
+                .setReasonPhrase("OK")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    /**
+     * Get the snapshot written for GET /snapshot
+     *
+     * @return snapshot file or null if the request is not GET /snapshot or failed
+     */
+    public Path getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    private void deleteSnapshotFile() {
+        try {
+            if (snapshotFile != null)
+                Files.deleteIfExists(snapshotFile);
+        } catch (IOException ignored) {
+        }
+        snapshotFile = null;
+    }
+
     public HTTPResponse handlePUT() throws InterruptedException {
-        HTTPResponse response = generateHTTPResponseToPUT();
+        Map<String, WeatherDataView> stations = new HashMap<>();
+        HTTPResponse response = applyPUT(stations);
         // Remove updates older than 20 most recent
         removeStalePUTDataFromArchive();
+        updateStationDatabase(stations);
+        return response;
+    }
+
+    /**
+     * Write stations to database, wake up the GETs waiting for them and publish them to
+     * subscriptions
+     *
+     * @param stations stations of the applied PUTs
+     */
+    private void updateStationDatabase(Map<String, WeatherDataView> stations) {
+        database.putAll(stations);
+        notifier.publish(stations);
+    }
+
+    /**
+     * Apply queued PUTs as one group commit, in Lamport order. Each PUT is checked, archived
+     * and shipped to followers in turn, then stale archive entries are removed once and the
+     * stations of the whole batch are written to database at once, a station updated by
+     * several PUTs only with its last value. call then returns the response of each PUT
+     * without handling it again.
+     *
+     * @param batch handlers of PUTs sharing the same state, in Lamport order
+     * @throws InterruptedException if interrupted while updating updateQueue
+     */
+    public static void applyBatch(List<RequestHandler> batch) throws InterruptedException {
+        if (batch.isEmpty())
+            return;
+        Map<String, WeatherDataView> stations = new HashMap<>();
+        try {
+            for (RequestHandler handler : batch) {
+                try {
+                    handler.batchResponse = handler.applyPUT(stations);
+                } catch (RuntimeException e) {
+                    handler.batchFailure = e;
+                }
+                handler.batched = true;
+            }
+        } finally {
+            // PUTs already archived must reach database even if the batch stops early
+            RequestHandler last = batch.get(batch.size() - 1);
+            last.removeStalePUTDataFromArchive();
+            last.updateStationDatabase(stations);
+        }
+    }
+
+    /**
+     * Check and apply a PUT to archive and replication, collecting its stations
+     *
+     * @param stations stations to write to database, updated with those of the PUT
+     * @return response to the PUT
+     */
+    private HTTPResponse applyPUT(Map<String, WeatherDataView> stations)
+            throws InterruptedException {
+        String replicationSequence = request.getHeader("Replication-Sequence");
+        String replicationEpoch = request.getHeader("Replication-Epoch");
+        long sequence = 0;
+        if (replicationSequence != null) {
+            try {
+                sequence = Long.parseLong(replicationSequence);
+            } catch (NumberFormatException e) {
+                sequence = -1;
+            }
+            HTTPResponse response = checkReplicationEpoch(replicationEpoch);
+            if (response == null)
+                response = checkReplicationSequence(sequence);
+            if (response != null)
+                return response;
+        }
+        // A delta PUT only applies on top of the state it was computed from
+        ConcurrentMap<String, String> baseEntry = getArchiveEntry();
+        String deltaBase = request.getHeader("Delta-Base");
+        if (deltaBase != null &&
+            (baseEntry == null || !deltaBase.equals(baseEntry.get("State-Digest")))) {
+            String body = "{\"412\":\"Precondition Failed\", \"Message\": \"Delta base is not on server, please send the full file\"}";
+            return new HTTPResponse("1.1")
+                    .setStatusCode("412")
+                    .setReasonPhrase("Precondition Failed")
+                    .setHeader("Content-Type", "application/json")
+                    .setHeader("Content-Length", String.valueOf(body.length()))
+                    .setBody(body);
+        }
+        // Only index station boundaries, records are decoded on first GET
+        Map<String, WeatherDataView> indexed = parser.index(request.body);
+        HTTPResponse response = generateHTTPResponseToPUT();
+        // Add new metadata to updateQueue
+        updateQueue.put(new FileMetadata(remoteIP, request.getURIEndPoint(),
+                String.valueOf(priority)));
 
         // Update archive
-        addPUTDataToArchive();
+        String value = addPUTDataToArchive(baseEntry);
+
+        // Views are stored without the rest of the PUT body
+        for (WeatherDataView station : indexed.values())
+            stations.put(station.getID(), station.detach());
 
-        // Update database
-        updateStationDatabase();
+        // Ship the PUT to followers, or record it as applied if it came from the leader.
+        // A delta PUT is shipped as the merged file, followers may not hold its base.
+        if (replicationSequence != null)
+            replication.follow(replicationEpoch, sequence);
+        else if (deltaBase != null)
+            replication.record(remoteIP, toFullPUT(value));
+        else
+            replication.record(remoteIP, request);
 
         // Return response
         return response;
     }
 
-    private void updateStationDatabase() {
-        Parser parser = new Parser();
-        parser.parseMessage(request.body);
-        Map<String, WeatherData> container = parser.getContainer();
-        for (Map.Entry<String, WeatherData> weatherEntry : container.entrySet()) {
-            String weatherData = weatherEntry.getValue().toString();
-            database.put(weatherEntry.getKey(), weatherData);
-        }
-    }
-
     private HTTPResponse generateHTTPResponseToPUT() {
         // Response for newly connected host
         if (!archive.containsKey(remoteIP))
@@ -116,10 +434,7 @@ public class RequestHandler implements Callable<HTTPResponse> {
                 .setBody(request.body);
     }
 
-    private void removeStalePUTDataFromArchive() throws InterruptedException {
-        String fileName = request.getURIEndPoint();
-        // Add new metadata to updateQueue
-        updateQueue.put(new FileMetadata(remoteIP, fileName, String.valueOf(priority)));
+    private void removeStalePUTDataFromArchive() {
         while (updateQueue.size() > FRESH_COUNT) {
             // Remove stale updates from the beginning of the queue
             FileMetadata popData = updateQueue.poll();
@@ -130,23 +445,74 @@ public class RequestHandler implements Callable<HTTPResponse> {
         }
     }
 
-    private void addPUTDataToArchive() {
+    private ConcurrentMap<String, String> getArchiveEntry() {
+        ConcurrentMap<String, ConcurrentMap<String, String>> remoteEntry =
+                archive.get(remoteIP);
+        if (remoteEntry == null)
+            return null;
+        return remoteEntry.get(request.getURIEndPoint());
+    }
+
+    /**
+     * Create the PUT of the whole file a delta PUT was merged into
+     *
+     * @param value archived file after the merge
+     * @return copy of the request holding the whole file
+     */
+    private HTTPRequest toFullPUT(String value) {
+        HTTPRequest full = request.copy().setBody(value)
+                .setHeader("Content-Length", String.valueOf(value.length()));
+        full.header.remove("Delta-Base");
+        return full;
+    }
+
+    /**
+     * Archive the PUT, merging a delta PUT into the archived file it was computed from
+     *
+     * @return archived file
+     */
+    private String addPUTDataToArchive(ConcurrentMap<String, String> baseEntry) {
         ConcurrentMap<String, ConcurrentMap<String, String>>
                 remoteEntry = archive.getOrDefault(remoteIP, new ConcurrentHashMap<>());
         ConcurrentMap<String, String> entry = new ConcurrentHashMap<>();
-        entry.put("Value", request.body);
+        // Delta PUT only holds changed stations, merge them into the archived file
+        if (request.getHeader("Delta-Base") != null)
+            entry.put("Value", Parser.mergeMessage(baseEntry.get("Value"), request.body));
+        else
+            entry.put("Value", request.body);
+        if (request.getHeader("State-Digest") != null)
+            entry.put("State-Digest", request.getHeader("State-Digest"));
         entry.put("Timestamp", String.valueOf(priority));
         remoteEntry.put(request.getURIEndPoint(), entry);
         archive.put(remoteIP, remoteEntry);
+        return entry.get("Value");
     }
 
 
     @Override
     public HTTPResponse call() throws InterruptedException {
+        long start = System.nanoTime();
+        startedAt = start;
+        metrics.summary("aggregation_request_queue_wait_seconds").record(start - createdAt);
         HTTPResponse response;
-        if (request.method.equals("GET"))
+        if (start > deadline) {
+            metrics.counter("aggregation_expired_requests_total", "method", request.method)
+                    .increment();
+            return ConnectionHandler.newShedResponse(retryAfter);
+        }
+        if (request.method.equals("GET") && StateTransfer.URI.equals(request.uri))
+            response = handleSnapshot();
+        else if (request.method.equals("GET") && ShardHandoff.URI.equals(request.uri))
+            response = handleHandoffGET();
+        else if (request.method.equals("PUT") && ShardHandoff.URI.equals(request.uri))
+            response = handleHandoffPUT();
+        else if (request.method.equals("GET"))
             response = handleGET();
-        else if (request.method.equals("PUT"))
+        else if (request.method.equals("PUT") && batched) {
+            if (batchFailure != null)
+                throw batchFailure;
+            response = batchResponse;
+        } else if (request.method.equals("PUT"))
             response = handlePUT();
         else {
             String body = "{\"400\":\"Bad Request\", \"Message\": \"Server only supports PUT/GET requests\"}";
@@ -155,11 +521,55 @@ public class RequestHandler implements Callable<HTTPResponse> {
                     .setReasonPhrase("Bad Request").setHeader("Content-Length", request.header.get("Content-Length"))
                     .setBody(body);
         }
+        metrics.summary("aggregation_request_handler_duration_seconds", "method",
+                request.method).record(System.nanoTime() - start);
         return response;
     }
 
+    /**
+     * Get how long the request waited in requestHandlerPool
+     *
+     * @return queue wait (ns), -1 if the request was not handled
+     */
+    public long getQueueWait() {
+        long started = startedAt;
+        return started == 0 ? -1 : started - createdAt;
+    }
+
     public int getPriority() {
         return priority;
     }
+
+    /**
+     * Check if the request can be applied by applyBatch
+     */
+    public boolean isBatchable() {
+        return request.method.equals("PUT") && !ShardHandoff.URI.equals(request.uri);
+    }
+
+    /**
+     * Get the lane of the request in requestHandlerPool
+     *
+     * @return READ_LANE for GETs of stations, WRITE_LANE otherwise
+     */
+    public int getLane() {
+        return request.method.equals("GET") && !StateTransfer.URI.equals(request.uri) &&
+               !ShardHandoff.URI.equals(request.uri) ? READ_LANE : WRITE_LANE;
+    }
+
+    /**
+     * Set how long the request may wait in requestHandlerPool before being answered 503
+     *
+     * @param timeout    wait allowed since the request was created (ms)
+     * @param retryAfter delay suggested to the client when the wait is exceeded (s)
+     */
+    public void setDeadline(int timeout, int retryAfter) {
+        this.deadline = createdAt + timeout * 1_000_000L;
+        this.retryAfter = retryAfter;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
 }
 
@@ -0,0 +1,86 @@
+package handlers;
+
+import utility.LaneQueue;
+import utility.MetricsRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Group commit of the PUTs queued in requestHandlerPool.
+ * <p>
+ * Before the handler thread runs a PUT, the PUTs following it in the write lane are taken
+ * out of the queue, waiting up to a delay for more to arrive, until the batch is full or the
+ * head of the lane is not a PUT. The batch is applied at once in Lamport order by
+ * RequestHandler.applyBatch, and the tasks taken out are run right away, completing their
+ * futures with the responses of the batch. Under bursty load the cost of updating database
+ * is paid once per batch, and a station updated by several PUTs of a batch is written once.
+ */
+public class WriteBatcher {
+    private final LaneQueue<Runnable> queue;
+    private final int maxSize;
+    private final int maxDelay;
+    private final MetricsRegistry metrics;
+
+    /**
+     * @param queue    queue of requestHandlerPool
+     * @param maxSize  most PUTs applied in one batch
+     * @param maxDelay longest wait for another PUT to join a batch (ms), 0 to only take
+     *                 PUTs already queued
+     * @param metrics  registry recording the batches
+     */
+    public WriteBatcher(LaneQueue<Runnable> queue, int maxSize, int maxDelay,
+                        MetricsRegistry metrics) {
+        this.queue = queue;
+        this.maxSize = Math.max(maxSize, 1);
+        this.maxDelay = maxDelay;
+        this.metrics = metrics;
+    }
+
+    private static RequestHandler batchableHandler(Runnable task) {
+        if (!(task instanceof PriorityRunnableFuture))
+            return null;
+        RequestHandler handler = ((PriorityRunnableFuture<?>) task).getHandler();
+        return handler != null && handler.isBatchable() ? handler : null;
+    }
+
+    /**
+     * Apply the PUT about to run together with the PUTs queued after it. Other tasks are
+     * left untouched.
+     *
+     * @param task task about to run on the handler thread
+     */
+    public void collect(Runnable task) {
+        RequestHandler first = batchableHandler(task);
+        if (first == null || maxSize == 1)
+            return;
+        List<RequestHandler> batch = new ArrayList<>();
+        List<Runnable> tasks = new ArrayList<>();
+        batch.add(first);
+        try {
+            long deadline = System.nanoTime() + maxDelay * 1_000_000L;
+            while (batch.size() < maxSize) {
+                Runnable next = queue.pollLane(RequestHandler.WRITE_LANE,
+                        queued -> batchableHandler(queued) != null,
+                        deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (next == null)
+                    break;
+                tasks.add(next);
+                batch.add(batchableHandler(next));
+            }
+            if (batch.size() > 1) {
+                RequestHandler.applyBatch(batch);
+                metrics.counter("aggregation_write_batches_total").increment();
+                metrics.counter("aggregation_batched_puts_total").add(batch.size());
+            }
+        } catch (InterruptedException e) {
+            // PUTs not applied yet are handled one by one when their task runs
+            Thread.currentThread().interrupt();
+        } finally {
+            // Tasks taken out of the queue must complete whatever happened
+            for (Runnable next : tasks)
+                next.run();
+        }
+    }
+}
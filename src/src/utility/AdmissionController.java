@@ -0,0 +1,101 @@
+package utility;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bound the number of requests queued or running, with a limit adapted to queue latency.
+ * <p>
+ * Like CoDel, the controller watches the smallest queue wait seen during each interval: a
+ * queue that never drains below the target wait for a whole interval is a standing queue,
+ * not a burst. The limit is then scaled down by target / wait, at most halving it, and
+ * otherwise grows by its square root, as gradient based concurrency limits do. Low priority
+ * requests are admitted up to the adaptive limit, high priority ones up to the hard bound,
+ * so under overload the low priority ones are shed first and queue latency stays near the
+ * target.
+ */
+public class AdmissionController {
+    private final int maxLimit;
+    private final int minLimit;
+    private final long target;
+    private final long interval;
+    private final int retryAfter;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+    private long intervalStart = System.nanoTime();
+    private long minWait = Long.MAX_VALUE;
+
+    /**
+     * @param maxLimit   hard bound on requests queued or running
+     * @param minLimit   lowest adaptive limit
+     * @param target     acceptable queue wait (ms)
+     * @param interval   time the queue wait must stay above target to lower the limit (ms)
+     * @param retryAfter delay suggested to shed clients (s)
+     */
+    public AdmissionController(int maxLimit, int minLimit, int target, int interval,
+                               int retryAfter) {
+        this.maxLimit = Math.max(maxLimit, 1);
+        this.minLimit = Math.max(Math.min(minLimit, this.maxLimit), 1);
+        this.target = target * 1_000_000L;
+        this.interval = interval * 1_000_000L;
+        this.retryAfter = retryAfter;
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Admit a request if the limit of its priority is not reached
+     *
+     * @param isPriority true for requests only shed at the hard bound
+     * @return true if admitted, release must then be called once it is handled
+     */
+    public boolean tryAcquire(boolean isPriority) {
+        int bound = isPriority ? maxLimit : limit;
+        while (true) {
+            int current = inFlight.get();
+            if (current >= bound)
+                return false;
+            if (inFlight.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * Release an admitted request
+     *
+     * @param queueWait time the request waited before being handled (ns), negative if it
+     *                  never ran
+     */
+    public void release(long queueWait) {
+        inFlight.decrementAndGet();
+        if (queueWait >= 0)
+            update(queueWait, System.nanoTime());
+    }
+
+    /**
+     * Record a queue wait and adapt the limit at the end of each interval
+     */
+    synchronized void update(long queueWait, long now) {
+        minWait = Math.min(minWait, queueWait);
+        if (now - intervalStart < interval)
+            return;
+        double gradient = Math.max(0.5, Math.min(1.0, (double) target / Math.max(minWait, 1)));
+        int newLimit = (int) (limit * gradient + Math.sqrt(limit));
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        intervalStart = now;
+        minWait = Long.MAX_VALUE;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the delay suggested to shed clients in Retry-After (s)
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,299 @@
+package utility;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Unbounded blocking queue made of lanes, one per class of element, dequeued by weight.
+ * <p>
+ * Each lane is a priority queue with its own order. Between lanes holding elements, the
+ * next one is chosen by smooth weighted round robin: every lane earns its weight in credit,
+ * the richest one is dequeued and pays the total weight. A lane of weight w out of W is then
+ * dequeued w times in every W, evenly spread, so a backlog in one lane delays the others by
+ * a bounded share instead of starving them. Empty lanes earn nothing and cannot save credit
+ * for a later burst.
+ *
+ * @param <E> type of the elements
+ */
+public class LaneQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+    private final ToIntFunction<? super E> classifier;
+    private final List<PriorityQueue<E>> lanes = new ArrayList<>();
+    private final List<Integer> weights = new ArrayList<>();
+    private final List<Long> credits = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private int count;
+
+    /**
+     * @param classifier index of the lane of an element, in the order lanes are added
+     */
+    public LaneQueue(ToIntFunction<? super E> classifier) {
+        this.classifier = classifier;
+    }
+
+    /**
+     * Add a lane, before the queue is used
+     *
+     * @param weight share of dequeues given to the lane while others hold elements
+     * @param order  order of the elements of the lane
+     * @return this queue
+     */
+    public LaneQueue<E> addLane(int weight, Comparator<? super E> order) {
+        lanes.add(new PriorityQueue<>(order));
+        weights.add(Math.max(weight, 1));
+        credits.add(0L);
+        return this;
+    }
+
+    private PriorityQueue<E> laneOf(E e) {
+        int lane = classifier.applyAsInt(e);
+        if (lane < 0 || lane >= lanes.size())
+            throw new IllegalArgumentException("No lane " + lane);
+        return lanes.get(lane);
+    }
+
+    /**
+     * Choose the lane to dequeue, charging it for the dequeue
+     *
+     * @return index of the lane or -1 if every lane is empty
+     */
+    private int nextLane() {
+        int next = -1;
+        long total = 0;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (lanes.get(i).isEmpty()) {
+                credits.set(i, 0L);
+                continue;
+            }
+            credits.set(i, credits.get(i) + weights.get(i));
+            total += weights.get(i);
+            if (next < 0 || credits.get(i) > credits.get(next))
+                next = i;
+        }
+        if (next >= 0)
+            credits.set(next, credits.get(next) - total);
+        return next;
+    }
+
+    /**
+     * Get the lane dequeued next without charging it
+     */
+    private int peekLane() {
+        int next = -1;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (lanes.get(i).isEmpty())
+                continue;
+            if (next < 0 || credits.get(i) + weights.get(i) > credits.get(next) + weights.get(next))
+                next = i;
+        }
+        return next;
+    }
+
+    private E dequeue() {
+        int lane = nextLane();
+        if (lane < 0)
+            return null;
+        count--;
+        return lanes.get(lane).poll();
+    }
+
+    @Override
+    public boolean offer(E e) {
+        if (e == null)
+            throw new NullPointerException();
+        PriorityQueue<E> lane = laneOf(e);
+        lock.lock();
+        try {
+            lane.offer(e);
+            count++;
+            notEmpty.signalAll();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(E e) {
+        offer(e);
+    }
+
+    @Override
+    public boolean offer(E e, long timeout, TimeUnit unit) {
+        return offer(e);
+    }
+
+    @Override
+    public E poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0)
+                notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Take the head of a lane if it is accepted, waiting for one if the lane is empty.
+     * Elements taken this way are not charged to the lane.
+     *
+     * @param lane    index of the lane
+     * @param accept  condition on the head
+     * @param timeout longest wait for an element to arrive in the lane
+     * @param unit    unit of timeout
+     * @return head of the lane, or null if it is not accepted or none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E pollLane(int lane, Predicate<? super E> accept, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        PriorityQueue<E> queue = lanes.get(lane);
+        lock.lockInterruptibly();
+        try {
+            while (queue.isEmpty()) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            if (!accept.test(queue.peek()))
+                return null;
+            count--;
+            return queue.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        lock.lock();
+        try {
+            int lane = peekLane();
+            return lane < 0 ? null : lanes.get(lane).peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            for (PriorityQueue<E> lane : lanes) {
+                if (lane.remove(o)) {
+                    count--;
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of elements in a lane
+     *
+     * @param lane index of the lane
+     */
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return lanes.get(lane).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super E> c, int maxElements) {
+        if (c == this)
+            throw new IllegalArgumentException();
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && count > 0) {
+                c.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterate over a copy of the elements, lane by lane
+     */
+    @Override
+    public Iterator<E> iterator() {
+        lock.lock();
+        try {
+            List<E> copy = new ArrayList<>(count);
+            for (PriorityQueue<E> lane : lanes)
+                copy.addAll(lane);
+            return copy.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
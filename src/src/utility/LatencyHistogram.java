@@ -0,0 +1,110 @@
+package utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe histogram of latency values in nanoseconds.
+ * <p>
+ * Values below 128 have their own bucket. Larger values share a bucket with the values
+ * having the same 7 most significant bits, so every reported percentile is within 1.6% of
+ * the recorded value while the histogram stays a fixed array of a few thousand counters.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    private final AtomicLongArray counts =
+            new AtomicLongArray(bucketOf(Long.MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucketOf(long value) {
+        if (value < 2L * HALF_SUB_BUCKETS)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return HALF_SUB_BUCKETS * shift + (int) (value >>> shift);
+    }
+
+    /**
+     * Get the largest value sharing a bucket
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < 2 * HALF_SUB_BUCKETS)
+            return bucket;
+        int shift = bucket / HALF_SUB_BUCKETS - 1;
+        long subBucket = bucket - (long) HALF_SUB_BUCKETS * shift;
+        return (subBucket << shift) + (1L << shift) - 1;
+    }
+
+    /**
+     * Record a value
+     *
+     * @param value latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Add every value recorded by other
+     *
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length(); i++) {
+            long bucketCount = other.counts.get(i);
+            if (bucketCount != 0)
+                counts.addAndGet(i, bucketCount);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get mean of recorded values
+     *
+     * @return mean or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long total = count.get();
+        return total == 0 ? 0 : (double) sum.get() / total;
+    }
+
+    /**
+     * Get the value below which percentile percent of the recorded values fall
+     *
+     * @param percentile between 0 and 100
+     * @return value or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), max.get());
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,158 @@
+package utility;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process registry of server metrics, exported in the Prometheus text format.
+ * <p>
+ * Counters are LongAdders and latency summaries are LatencyHistograms, so recording never
+ * takes a lock. Gauges are read when the metrics are exported. A metric is identified by
+ * its name and an optional list of label name, label value pairs.
+ */
+public class MetricsRegistry {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private final ConcurrentMap<String, ConcurrentMap<String, LongAdder>> counters =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, LatencyHistogram>> summaries =
+            new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> help = new ConcurrentHashMap<>();
+
+    private static String labelsOf(String[] labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name, value pairs");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            builder.append(i == 0 ? "" : ",").append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\"");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Set the description exported with a metric
+     *
+     * @param name        metric name
+     * @param description description of the metric
+     */
+    public void describe(String name, String description) {
+        help.put(name, description);
+    }
+
+    /**
+     * Get or create a counter
+     *
+     * @param name   metric name, ending with _total
+     * @param labels label name, label value pairs
+     * @return counter to increment
+     */
+    public LongAdder counter(String name, String... labels) {
+        return counters.computeIfAbsent(name, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(labelsOf(labels), key -> new LongAdder());
+    }
+
+    /**
+     * Get or create a latency summary
+     *
+     * @param name   metric name, ending with _seconds
+     * @param labels label name, label value pairs
+     * @return histogram recording nanoseconds
+     */
+    public LatencyHistogram summary(String name, String... labels) {
+        return summaries.computeIfAbsent(name, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(labelsOf(labels), key -> new LatencyHistogram());
+    }
+
+    /**
+     * Register a gauge read on every export
+     *
+     * @param name  metric name
+     * @param value current value of the gauge
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    private void appendHeader(Appendable builder, String name, String type)
+            throws IOException {
+        if (help.containsKey(name))
+            builder.append("# HELP ").append(name).append(" ").append(help.get(name))
+                    .append("\n");
+        builder.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+    }
+
+    private static String withLabels(String name, String labels, String extra) {
+        String all = labels.isEmpty() ? extra : extra.isEmpty() ? labels :
+                labels + "," + extra;
+        return all.isEmpty() ? name : name + "{" + all + "}";
+    }
+
+    /**
+     * Export every metric in the Prometheus text exposition format. Latencies are exported
+     * in seconds as summaries with the 0.5, 0.9, 0.99 and 0.999 quantiles.
+     *
+     * @return metrics, one sample per line
+     */
+    public String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        try {
+            writePrometheus(builder);
+        } catch (IOException e) {
+            // Appending to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Export every metric like toPrometheus, writing each sample as it is read
+     *
+     * @param builder destination of the samples, such as the body of a response
+     * @throws IOException if builder fails
+     */
+    public void writePrometheus(Appendable builder) throws IOException {
+        for (Map.Entry<String, LongSupplier> gauge : new TreeMap<>(gauges).entrySet()) {
+            appendHeader(builder, gauge.getKey(), "gauge");
+            builder.append(gauge.getKey()).append(" ")
+                    .append(String.valueOf(gauge.getValue().getAsLong())).append("\n");
+        }
+        for (Map.Entry<String, ConcurrentMap<String, LongAdder>> counter :
+                new TreeMap<>(counters).entrySet()) {
+            appendHeader(builder, counter.getKey(), "counter");
+            for (Map.Entry<String, LongAdder> sample :
+                    new TreeMap<>(counter.getValue()).entrySet())
+                builder.append(withLabels(counter.getKey(), sample.getKey(), ""))
+                        .append(" ").append(String.valueOf(sample.getValue().sum()))
+                        .append("\n");
+        }
+        for (Map.Entry<String, ConcurrentMap<String, LatencyHistogram>> summary :
+                new TreeMap<>(summaries).entrySet()) {
+            String name = summary.getKey();
+            appendHeader(builder, name, "summary");
+            for (Map.Entry<String, LatencyHistogram> sample :
+                    new TreeMap<>(summary.getValue()).entrySet()) {
+                LatencyHistogram histogram = sample.getValue();
+                for (double quantile : QUANTILES)
+                    builder.append(withLabels(name, sample.getKey(),
+                                    "quantile=\"" + quantile + "\""))
+                            .append(" ")
+                            .append(String.valueOf(
+                                    histogram.getValueAtPercentile(quantile * 100) / 1e9))
+                            .append("\n");
+                builder.append(withLabels(name + "_sum", sample.getKey(), ""))
+                        .append(" ").append(String.valueOf(histogram.getSum() / 1e9))
+                        .append("\n");
+                builder.append(withLabels(name + "_count", sample.getKey(), ""))
+                        .append(" ").append(String.valueOf(histogram.getCount()))
+                        .append("\n");
+            }
+        }
+    }
+}
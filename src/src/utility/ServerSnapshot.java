@@ -1,14 +1,23 @@
 package utility;
 
+import utility.weatherJson.WeatherDataView;
+
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Logger;
 
 
 public class ServerSnapshot {
     public Logger logger;
-    private final ConcurrentMap<String, String> database;
+    private final ConcurrentMap<String, WeatherDataView> database;
     private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String,
             String>>> archive;
 
@@ -49,7 +58,7 @@ public class ServerSnapshot {
             logger.info("Restoring database from backup");
             FileInputStream dbInStream = new FileInputStream(databaseDir);
             ObjectInputStream dbIn = new ObjectInputStream(dbInStream);
-            database = (ConcurrentMap<String, String>) dbIn.readObject();
+            database = (ConcurrentMap<String, WeatherDataView>) dbIn.readObject();
             dbIn.close();
             dbInStream.close();
         } else {
@@ -58,7 +67,7 @@ public class ServerSnapshot {
         }
     }
 
-    public ConcurrentMap<String, String> getDatabase() {
+    public ConcurrentMap<String, WeatherDataView> getDatabase() {
         return database;
     }
 
@@ -93,4 +102,91 @@ public class ServerSnapshot {
             logger.info("Fail to Create Snapshot: " + e.getMessage());
         }
     }
+
+    /**
+     * Write database and archive to a single file, sent to a server catching up
+     *
+     * @param path     file to write
+     * @param database database to write
+     * @param archive  archive to write
+     * @throws IOException if the file cannot be written
+     */
+    public static void createTransferFile(
+            Path path,
+            ConcurrentMap<String, WeatherDataView> database,
+            ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> archive
+    ) throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path)))) {
+            out.writeObject(database);
+            out.writeObject(archive);
+        }
+    }
+
+    /**
+     * Replace database and archive with the ones of a transfer file, and rebuild
+     * updateQueue from the installed archive so its entries are evicted by FRESH_COUNT
+     * like those of the leader
+     *
+     * @param path        file written by createTransferFile
+     * @param updateQueue queue of archived uploads, replaced
+     * @throws IOException            if the file cannot be read
+     * @throws ClassNotFoundException if the file does not hold a database and archive
+     */
+    public void install(Path path, LinkedBlockingQueue<FileMetadata> updateQueue)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            ConcurrentMap<String, WeatherDataView> newDatabase = readMap(in);
+            ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>>
+                    newArchive = readMap(in);
+            logger.info("Installing transferred snapshot");
+            // A follower catching up keeps serving, so stations are replaced rather than
+            // cleared first
+            archive.keySet().retainAll(newArchive.keySet());
+            archive.putAll(newArchive);
+            database.keySet().retainAll(newDatabase.keySet());
+            database.putAll(newDatabase);
+            rebuildUpdateQueue(updateQueue);
+        }
+    }
+
+    /**
+     * Read a map written by createTransferFile
+     */
+    @SuppressWarnings("unchecked")
+    private static <K, V> ConcurrentMap<K, V> readMap(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        Object map = in.readObject();
+        if (!(map instanceof ConcurrentMap))
+            throw new InvalidObjectException("Transfer file does not hold a map");
+        return (ConcurrentMap<K, V>) map;
+    }
+
+    /**
+     * Fill updateQueue with an entry per archived upload, oldest Timestamp first, as if the
+     * uploads had just been applied in that order
+     *
+     * @param updateQueue queue of archived uploads, replaced
+     */
+    public void rebuildUpdateQueue(LinkedBlockingQueue<FileMetadata> updateQueue) {
+        List<FileMetadata> uploads = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentMap<String, ConcurrentMap<String, String>>> remote :
+                archive.entrySet())
+            for (Map.Entry<String, ConcurrentMap<String, String>> upload :
+                    remote.getValue().entrySet())
+                uploads.add(new FileMetadata(remote.getKey(), upload.getKey(),
+                        upload.getValue().getOrDefault("Timestamp", "0")));
+        uploads.sort(Comparator.comparingLong(upload -> parseTimestamp(upload.getTimestamp())));
+        updateQueue.clear();
+        updateQueue.addAll(uploads);
+    }
+
+    private static long parseTimestamp(String timestamp) {
+        try {
+            return Long.parseLong(timestamp);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
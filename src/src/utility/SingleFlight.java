@@ -0,0 +1,64 @@
+package utility;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapse concurrent calls for the same key into one execution.
+ * <p>
+ * The first caller for a key runs the call, callers arriving before it finishes wait for and
+ * share its result. Once the result is set the key is free again, so a later caller runs the
+ * call anew. forget frees every key at once, so callers arriving after a write do not share a
+ * result computed before it.
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the results
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * Run call, or wait for the call already running for key
+     *
+     * @param key  key identifying identical calls
+     * @param call call to run if none is running for key
+     * @return result of the call
+     * @throws ExecutionException   if the call throws, with its exception as cause
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public V execute(K key, Callable<V> call) throws ExecutionException, InterruptedException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            shared.increment();
+            return running.get();
+        }
+        try {
+            flight.complete(call.call());
+        } catch (Exception e) {
+            flight.completeExceptionally(e);
+        } finally {
+            inFlight.remove(key, flight);
+        }
+        return flight.get();
+    }
+
+    /**
+     * Let callers from now on run their own call instead of joining a running one
+     */
+    public void forget() {
+        inFlight.clear();
+    }
+
+    /**
+     * Get the number of calls that shared the result of a running one
+     */
+    public long getShared() {
+        return shared.sum();
+    }
+}
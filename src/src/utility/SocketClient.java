@@ -1,9 +1,12 @@
 package utility;
 
+import utility.http.ContentCoding;
+import utility.http.HTTPMessage;
 import utility.http.HTTPRequest;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
@@ -20,6 +23,13 @@ public class SocketClient extends SocketCommunicator {
 
     private int MAX_RETRY = Integer.parseInt(config.get("MAX_RETRY", "5"));
 
+    // Accept compressed responses, and compress request bodies of at least
+    // COMPRESSION_THRESHOLD characters
+    private boolean COMPRESSION = Boolean.parseBoolean(config.get("COMPRESSION", "true"));
+
+    private int COMPRESSION_THRESHOLD = Integer.parseInt(config.get("COMPRESSION_THRESHOLD",
+            "1024"));
+
     public SocketClient(
             Socket clientSocket,
             PrintWriter out,
@@ -28,6 +38,28 @@ public class SocketClient extends SocketCommunicator {
         clientSocket.setSoTimeout(SO_TIMEOUT);
     }
 
+    public void setCOMPRESSION(boolean COMPRESSION) {
+        this.COMPRESSION = COMPRESSION;
+    }
+
+    /**
+     * Advertise the base64 gzip and deflate codings on requests and compress large request
+     * bodies with gzip
+     */
+    @Override
+    protected HTTPMessage toWire(HTTPMessage message) {
+        if (!COMPRESSION || !(message instanceof HTTPRequest))
+            return message;
+        HTTPRequest request = ((HTTPRequest) message).copy();
+        if (request.getHeader("Accept-Encoding") == null)
+            request.setHeader("Accept-Encoding", ContentCoding.ACCEPTED);
+        if (request.body != null && request.body.length() >= COMPRESSION_THRESHOLD &&
+            request.getHeader("Content-Encoding") == null)
+            ContentCoding.setEncodedBody(request,
+                    ContentCoding.encode(request.body, ContentCoding.GZIP), ContentCoding.GZIP);
+        return request;
+    }
+
     public String receive() throws IOException {
         // GETClient and ContentServer can resend messages up to 5 times
         logger.info("Receiving data from remote.");
@@ -39,7 +71,7 @@ public class SocketClient extends SocketCommunicator {
             retry += 1;
             logger.info("Retry attempt: " + retry);
             if (retry < MAX_RETRY) {
-                send(HTTPRequest.fromMessage(sentMessages.get(sentMessages.size() - 1)));
+                resend();
                 return receive();
             } else {
                 retry = 0;
@@ -49,6 +81,15 @@ public class SocketClient extends SocketCommunicator {
         }
     }
 
+    /**
+     * Send the last request again after its response timed out
+     *
+     * @throws IOException if the request cannot be formatted again
+     */
+    protected void resend() throws IOException {
+        send(HTTPRequest.fromMessage(sentMessages.get(sentMessages.size() - 1)));
+    }
+
     protected String hostname;
 
     protected int port;
@@ -65,4 +106,29 @@ public class SocketClient extends SocketCommunicator {
         this.SO_TIMEOUT = SO_TIMEOUT;
         clientSocket.setSoTimeout(SO_TIMEOUT);
     }
+
+    public int getMAX_RETRY() {
+        return MAX_RETRY;
+    }
+
+    /**
+     * Replace the current connection with a new one to the same hostname and port.
+     * <p>
+     * Used by long-running clients to recover from a dropped connection.
+     *
+     * @throws IOException if connection to host cannot be established
+     */
+    public void reconnect() throws IOException {
+        logger.info("Reconnecting to " + hostname + ":" + port);
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            logger.info("ERROR: unable to close previous connection: " + e);
+        }
+        clientSocket = new Socket(hostname, port);
+        clientSocket.setSoTimeout(SO_TIMEOUT);
+        in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        out = new PrintWriter(clientSocket.getOutputStream(), true);
+        isUp = true;
+    }
 }
\ No newline at end of file
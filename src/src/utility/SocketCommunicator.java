@@ -1,10 +1,13 @@
 package utility;
 
 import utility.config.Config;
+import utility.http.ChunkedWriter;
+import utility.http.ContentCoding;
 import utility.http.HTTPMessage;
 import utility.http.HTTPRequest;
 import utility.http.HTTPResponse;
 import utility.http.HTTPSocketParser;
+import utility.http.MessageWriter;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -20,12 +23,17 @@ public abstract class SocketCommunicator {
     public List<String> receivedMessages;
     protected Socket clientSocket;
     protected LamportClock clock;
-    PrintWriter out;
-    BufferedReader in;
+    protected PrintWriter out;
+    // Buffered writer used instead of out when set
+    protected MessageWriter writer;
+    protected BufferedReader in;
     String type;
 
     protected Config config = new Config("src/config/client.properties");
 
+    // Largest body accepted once decompressed (bytes)
+    protected int MAX_BODY = Integer.parseInt(config.get("MAX_BODY", "16777216"));
+
     public boolean isUp;
 
     public SocketCommunicator(
@@ -46,6 +54,20 @@ public abstract class SocketCommunicator {
         logger.info("Connecting to remote: " + clientSocket.getRemoteSocketAddress());
     }
 
+    /**
+     * Construct a communicator writing through a MessageWriter, flushed once the requests
+     * pipelined by the remote are answered
+     */
+    public SocketCommunicator(
+            Socket clientSocket,
+            LamportClock clock,
+            MessageWriter writer,
+            BufferedReader in,
+            String type) {
+        this(clientSocket, clock, (PrintWriter) null, in, type);
+        this.writer = writer;
+    }
+
     private String receiveMessage() throws IOException {
         HTTPSocketParser socketParser = new HTTPSocketParser();
 
@@ -74,12 +96,17 @@ public abstract class SocketCommunicator {
         return value;
     }
 
+    public void setMAX_BODY(int MAX_BODY) {
+        this.MAX_BODY = MAX_BODY;
+    }
+
     public String receive() throws IOException {
         String receivedResponse = receiveMessage();
         if (receivedResponse != null) {
             if (type.equals("client")) {
                 HTTPResponse response =
                         HTTPResponse.fromMessage(receivedResponse);
+                ContentCoding.decode(response, MAX_BODY);
                 clock.advanceAndSetTimeStamp(parseLamportClock(response));
                 receivedMessages.add(response.toString());
                 logger.info("Receive response at " + this.getClass().getName() + ":\n" + response);
@@ -87,6 +114,7 @@ public abstract class SocketCommunicator {
             } else {
                 HTTPRequest request =
                         HTTPRequest.fromMessage(receivedResponse);
+                ContentCoding.decode(request, MAX_BODY);
                 clock.advanceAndSetTimeStamp(parseLamportClock(request));
                 receivedMessages.add(request.toString());
                 logger.info("Receive request at " + this.getClass().getName() + ":\n" + request);
@@ -103,12 +131,137 @@ public abstract class SocketCommunicator {
         message.setHeader("Lamport-Clock", String.valueOf(TS));
         logger.info("Sending message from " + this.getClass().getName() + ": \n" + message);
         sentMessages.add(message.toString());
-        out.println(message);
+        HTTPMessage wire = toWire(message);
+        if (writer == null) {
+            out.println(wire);
+            return;
+        }
+        writer.write(wire);
+        flushUnlessPipelined();
+    }
+
+    /**
+     * Send the head of a message whose body is streamed in chunked transfer coding, for a
+     * body too large to build in memory or whose length is not known up front.
+     * <p>
+     * Content-Length is replaced with Transfer-Encoding: chunked. sentMessages keeps the
+     * head only. The body is written to the returned writer, and the message ends when it
+     * is closed.
+     *
+     * @param message message head, its body is ignored
+     * @return writer of the body
+     */
+    public ChunkedWriter sendChunked(HTTPMessage message) {
+        int TS = clock.advanceAndGetTimeStamp();
+        message.setHeader("Lamport-Clock", String.valueOf(TS));
+        message.getHeaders().remove("Content-Length");
+        message.setHeader("Transfer-Encoding", "chunked");
+        message.setBody(null);
+        logger.info("Sending chunked message from " + this.getClass().getName() + ": \n" +
+                    message);
+        sentMessages.add(message.toString());
+        if (writer == null) {
+            out.print(message);
+            return new ChunkedWriter(out);
+        }
+        writer.writeHead(message);
+        return new ChunkedWriter(writer.asWriter());
+    }
+
+    /**
+     * Receive the head of a response whose chunked body is read as it arrives, such as a
+     * subscription. The body is then read with a ChunkedReader over in. A response with a
+     * Content-Length is received whole.
+     *
+     * @return response, without body if chunked, or null if the connection is closed
+     * @throws IOException if the connection fails
+     */
+    public HTTPResponse receiveHead() throws IOException {
+        String line = in.readLine();
+        // Messages end with a line break, skip the one ending the previous message
+        while (line != null && line.isEmpty())
+            line = in.readLine();
+        if (line == null)
+            return null;
+        StringBuilder head = new StringBuilder();
+        while (line != null && !line.isEmpty() && !line.equals("\r")) {
+            head.append(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line)
+                    .append("\r\n");
+            line = in.readLine();
+        }
+        if (line == null)
+            throw new IOException("Connection closed in message head");
+        HTTPResponse response = HTTPResponse.fromMessage(head.append("\r\n").toString());
+        String contentLength = response.getHeader("Content-Length");
+        if (contentLength != null) {
+            char[] body = new char[Integer.parseInt(contentLength.trim())];
+            int read = 0;
+            while (read < body.length) {
+                int count = in.read(body, read, body.length - read);
+                if (count == -1)
+                    throw new IOException("Connection closed in message body");
+                read += count;
+            }
+            response.setBody(new String(body));
+        }
+        clock.advanceAndSetTimeStamp(parseLamportClock(response));
+        receivedMessages.add(response.toString());
+        logger.info("Receive response head at " + this.getClass().getName() + ":\n" +
+                    response);
+        return response;
+    }
+
+    /**
+     * Get the form of a message sent on the connection, such as with a compressed body.
+     * sentMessages keeps the message as given.
+     *
+     * @param message message to send
+     * @return message or a copy of it to write instead
+     */
+    protected HTTPMessage toWire(HTTPMessage message) {
+        return message;
+    }
+
+    /**
+     * Check if the remote already sent another request, skipping the line breaks ending
+     * the previous one
+     *
+     * @return true if a request is waiting to be read
+     */
+    private boolean isPipelined() throws IOException {
+        while (in.ready()) {
+            in.mark(1);
+            int next = in.read();
+            if (next != '\r' && next != '\n') {
+                in.reset();
+                return next != -1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Flush the messages buffered in writer, unless the remote pipelined another request
+     * whose response can join them
+     */
+    protected void flushUnlessPipelined() {
+        try {
+            if (!isPipelined())
+                writer.flush();
+        } catch (IOException e) {
+            logger.info("Unable to send to " + clientSocket.getRemoteSocketAddress() + ": " + e);
+        }
     }
 
 
     public void close() throws IOException {
         logger.info("Closing " + type + " connection");
+        try {
+            if (writer != null)
+                writer.flush();
+        } catch (IOException e) {
+            logger.info("Unable to send to " + clientSocket.getRemoteSocketAddress() + ": " + e);
+        }
         clientSocket.close();
         isUp = false;
     }
@@ -3,7 +3,10 @@ package utility;
 import utility.config.Config;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 public abstract class SocketServer {
@@ -20,6 +23,11 @@ public abstract class SocketServer {
 
     private boolean startBreakSignal = false;
 
+    private volatile boolean isStarted = false;
+
+    // Released when start returns, the port is only free once the accepting thread exits
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
     public SocketServer(int port) {
         this.port = port;
         clock = new LamportClock();
@@ -47,8 +55,16 @@ public abstract class SocketServer {
     }
 
     public void run() throws IOException {
-        serverSocket = new ServerSocket(port);
+        // Reuse must be set before binding, otherwise connections of a previous server
+        // in TIME_WAIT keep the port unavailable
+        serverSocket = new ServerSocket();
         serverSocket.setReuseAddress(true);
+        try {
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
         logger.info("Server listens to port " + port);
     }
 
@@ -66,10 +82,15 @@ public abstract class SocketServer {
     }
 
     public void start() {
-        pre_start_hook();
-        do {
-            start_hook();
-        } while (!startBreakSignal);
+        isStarted = true;
+        try {
+            pre_start_hook();
+            do {
+                start_hook();
+            } while (!startBreakSignal);
+        } finally {
+            stopped.countDown();
+        }
     }
 
     public void close() {
@@ -81,6 +102,14 @@ public abstract class SocketServer {
         } catch (IOException e) {
             logger.info("ERROR: fails to close server socket: " + e);
         }
+        // Closing a socket blocked in accept only releases the port when accept returns,
+        // wait for it so the port can be bound again as soon as close returns
+        try {
+            if (isStarted && !stopped.await(1, TimeUnit.SECONDS))
+                logger.info("Server thread did not stop within 1s");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         logger.info(this.getClass().getName() + " is closed");
         isUp = false;
         post_close_hook();
@@ -0,0 +1,141 @@
+package utility;
+
+import utility.pubsub.PubSubBroker;
+import utility.weatherJson.WeatherDataView;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wake up clients waiting for a station to change.
+ * <p>
+ * Every waiter of a station shares the same future, completed and forgotten when the
+ * station is written to the database, so publishing costs one map lookup per updated
+ * station whatever the number of waiters. A waiter must watch the station before reading
+ * it, so an update between the read and the wait is not missed, and unwatch it once done,
+ * so stations that are never written do not keep a future each. Updates are also handed
+ * to the PubSubBroker of the server, if any, for its subscriptions.
+ */
+public class UpdateNotifier {
+    private final ConcurrentMap<String, Watch> updates = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final PubSubBroker broker;
+
+    public UpdateNotifier() {
+        this(null);
+    }
+
+    /**
+     * @param broker broker publishing the updates to subscriptions, can be null
+     */
+    public UpdateNotifier(PubSubBroker broker) {
+        this.broker = broker;
+    }
+
+    /**
+     * Get the future completed on the next update of a station. Every call must be
+     * followed by unwatch.
+     *
+     * @param stationID station watched
+     * @return future shared with every other waiter of the station
+     */
+    public CompletableFuture<Void> watch(String stationID) {
+        return updates.compute(stationID, (key, watch) -> {
+            if (watch == null)
+                watch = new Watch();
+            watch.watchers++;
+            return watch;
+        }).update;
+    }
+
+    /**
+     * Stop watching a station, forgetting its future once no one else watches it
+     *
+     * @param stationID station watched
+     * @param update    future returned by watch
+     */
+    public void unwatch(String stationID, CompletableFuture<Void> update) {
+        // A published future was already removed, a later one belongs to other waiters
+        updates.computeIfPresent(stationID, (key, watch) ->
+                watch.update == update && --watch.watchers == 0 ? null : watch);
+    }
+
+    /**
+     * Wake up the waiters of updated stations
+     *
+     * @param stationIDs stations written to the database
+     */
+    public void publish(Collection<String> stationIDs) {
+        if (updates.isEmpty())
+            return;
+        for (String stationID : stationIDs) {
+            Watch watch = updates.remove(stationID);
+            if (watch != null)
+                watch.update.complete(null);
+        }
+    }
+
+    /**
+     * Wake up the waiters of updated stations and publish them to subscriptions
+     *
+     * @param stations stations written to the database by stationID
+     */
+    public void publish(Map<String, WeatherDataView> stations) {
+        publish(stations.keySet());
+        if (broker != null)
+            broker.publish(stations.values());
+    }
+
+    /**
+     * Wait for an update returned by watch
+     *
+     * @param update  future returned by watch
+     * @param timeout longest wait
+     * @param unit    unit of timeout
+     * @return true if the station was updated, false if the wait timed out
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean await(CompletableFuture<Void> update, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        waiting.incrementAndGet();
+        try {
+            update.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            // Updates are never completed exceptionally
+            return true;
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the number of clients waiting for an update
+     */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /**
+     * Get the number of stations watched by at least one client
+     */
+    public int getWatched() {
+        return updates.size();
+    }
+
+    // Future of the next update of a station and number of clients watching it, only
+    // changed inside compute
+    private static final class Watch {
+        private final CompletableFuture<Void> update = new CompletableFuture<>();
+        private int watchers;
+    }
+}
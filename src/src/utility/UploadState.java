@@ -0,0 +1,99 @@
+package utility;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Last acknowledged upload of a ContentServer file.
+ * <p>
+ * Stores a content hash per station and a digest of the whole uploaded state, so the
+ * next upload of the same file can send only the stations that changed. The state only
+ * lives as long as the ContentServer, like the archive entry the server merges deltas
+ * into.
+ */
+public class UploadState {
+    private String stateDigest;
+    private final Map<String, String> stationHashes = new HashMap<>();
+
+    /**
+     * Compute SHA-256 digest of content
+     *
+     * @param content content to hash
+     * @return hex digest
+     */
+    public static String digest(String content) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = messageDigest.digest(content.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : hash)
+                builder.append(String.format("%02x", b));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Get digest of the last acknowledged state
+     *
+     * @return digest or null if nothing was acknowledged
+     */
+    public String getStateDigest() {
+        return stateDigest;
+    }
+
+    /**
+     * Get hash of a station in the last acknowledged state
+     *
+     * @param stationID station id
+     * @return hash or null if the station was not uploaded
+     */
+    public String getStationHash(String stationID) {
+        return stationHashes.get(stationID);
+    }
+
+    /**
+     * Get stations of the last acknowledged state
+     *
+     * @return station ids
+     */
+    public Set<String> getStationIDs() {
+        return new HashSet<>(stationHashes.keySet());
+    }
+
+    /**
+     * Replace the state with a newly acknowledged upload
+     *
+     * @param stateDigest   digest of the whole uploaded state
+     * @param stationHashes hash of each uploaded station
+     */
+    public void save(String stateDigest, Map<String, String> stationHashes) {
+        this.stateDigest = stateDigest;
+        this.stationHashes.clear();
+        this.stationHashes.putAll(stationHashes);
+    }
+
+    /**
+     * Forget the last acknowledged state, so the next upload sends every station
+     */
+    public void clear() {
+        stateDigest = null;
+        stationHashes.clear();
+    }
+
+    /**
+     * Hash every station of an upload
+     *
+     * @param stations station id and formatted station data
+     * @return station id and hash
+     */
+    public static Map<String, String> hashStations(Map<String, String> stations) {
+        Map<String, String> hashes = new HashMap<>();
+        for (Map.Entry<String, String> entry : stations.entrySet())
+            hashes.put(entry.getKey(), digest(entry.getValue()));
+        return hashes;
+    }
+}
@@ -2,6 +2,7 @@ package utility.domain;
 
 public class ContentServerInformation extends ServerInformation {
     public String fileName;
+    public boolean watch;
 
     public ContentServerInformation(ServerInformation info) {
         super(info);
@@ -11,4 +12,8 @@ public class ContentServerInformation extends ServerInformation {
     public void setFileName(String fileName) {
         this.fileName = fileName;
     }
+
+    public void setWatch(boolean watch) {
+        this.watch = watch;
+    }
 }
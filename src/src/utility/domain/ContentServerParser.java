@@ -2,20 +2,23 @@ package utility.domain;
 
 public class ContentServerParser extends DomainParser {
     /**
-     * Parse ContentServer argv and return hostname, port, fileName
+     * Parse ContentServer argv and return hostname, port, fileName, watch
+     * <p>
+     * With --watch, fileName is a directory whose files are uploaded whenever they change
      *
      * @param argv CLI argv
-     * @return ContentServerInformation object containing hostname, port, fileName
+     * @return ContentServerInformation object containing hostname, port, fileName, watch
      */
     @Override
     public ContentServerInformation parse(String[] argv) {
-        if (argv.length == 2) {
+        if (argv.length == 2 || (argv.length == 3 && argv[2].equals("--watch"))) {
             ContentServerInformation info =
                     new ContentServerInformation(parseURL(argv[0]));
             info.setFileName(argv[1]);
+            info.setWatch(argv.length == 3);
             return info;
         } else {
-            throw new RuntimeException("Usage ContentServer URL fileName");
+            throw new RuntimeException("Usage ContentServer URL fileName [--watch]");
         }
     }
 }
@@ -1,23 +1,57 @@
 package utility.domain;
 
 public class GETClientParser extends DomainParser {
+    private static final String USAGE =
+            "Usage GETClient URL [stationID [--poll interval | --wait seconds] | " +
+            "--subscribe topic]";
+
     /**
-     * Parse CLIENT argv and return hostname, port, stationID
+     * Parse CLIENT argv and return hostname, port, stationID, pollInterval, wait, topic
+     * <p>
+     * With --poll, the station is requested again every interval ms. With --wait, it is
+     * requested again as soon as the server answers, each GET waiting up to wait seconds on
+     * the server for the station to change. With --subscribe, the updates of a topic are
+     * received as the server stores them.
      *
      * @param argv CLI argv
-     * @return GETServerInformation object containing hostname, port, stationID
+     * @return GETServerInformation object containing hostname, port, stationID,
+     * pollInterval, wait, topic
      */
     @Override
     public GETServerInformation parse(String[] argv) {
         if (argv==null || argv.length == 0)
-            throw new RuntimeException("Usage GETClient URL [stationID]");
+            throw new RuntimeException(USAGE);
         GETServerInformation result = new GETServerInformation(parseURL(argv[0]));
         if (argv.length == 1)
             return result;
+        if (argv.length == 3 && argv[1].equals("--subscribe")) {
+            result.setTopic(argv[2]);
+            return result;
+        }
         if (argv.length == 2) {
             result.setStationID(argv[1]);
             return result;
         }
-        throw new RuntimeException("Usage GETClient URL [stationID]");
+        if (argv.length == 4 && argv[2].equals("--poll")) {
+            result.setStationID(argv[1]);
+            try {
+                result.setPollInterval(Integer.parseInt(argv[3]));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Poll interval must be a number of ms");
+            }
+            if (result.pollInterval > 0)
+                return result;
+        }
+        if (argv.length == 4 && argv[2].equals("--wait")) {
+            result.setStationID(argv[1]);
+            try {
+                result.setWait(Integer.parseInt(argv[3]));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Wait must be a number of seconds");
+            }
+            if (result.wait > 0)
+                return result;
+        }
+        throw new RuntimeException(USAGE);
     }
 }
@@ -3,6 +3,15 @@ package utility.domain;
 public class GETServerInformation extends ServerInformation {
     public String stationID;
 
+    // Poll interval (ms), 0 to send a single GET
+    public int pollInterval;
+
+    // Longest wait of each long-poll GET (s), 0 to not long-poll
+    public int wait;
+
+    // Topic subscribed to instead of requesting a station, null to not subscribe
+    public String topic;
+
     public GETServerInformation(ServerInformation info) {
         super(info);
     }
@@ -11,4 +20,16 @@ public class GETServerInformation extends ServerInformation {
     public void setStationID(String stationID) {
         this.stationID = stationID;
     }
+
+    public void setPollInterval(int pollInterval) {
+        this.pollInterval = pollInterval;
+    }
+
+    public void setWait(int wait) {
+        this.wait = wait;
+    }
+
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
 }
@@ -0,0 +1,16 @@
+package utility.domain;
+
+public class LoadGeneratorParser extends DomainParser {
+    /**
+     * Parse LoadGenerator argv and return hostname, port of the server under test
+     *
+     * @param argv CLI argv
+     * @return ServerInformation object containing hostname, port
+     */
+    @Override
+    public ServerInformation parse(String[] argv) {
+        if (argv == null || argv.length != 1)
+            throw new RuntimeException("Usage LoadGenerator URL");
+        return parseURL(argv[0]);
+    }
+}
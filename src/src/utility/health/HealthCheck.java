@@ -0,0 +1,177 @@
+package utility.health;
+
+import utility.SocketClient;
+import utility.http.HTTPRequest;
+import utility.http.HTTPResponse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+/**
+ * Probe GET /health of one server over a persistent connection.
+ * <p>
+ * Connecting and waiting for the response are bounded by the probe timeout and a probe is
+ * never retried, so a dead or hung server costs at most one timeout. Successful probes are
+ * the heartbeats of a phi accrual detector deciding whether the server is available.
+ */
+public class HealthCheck {
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+    private final String hostname;
+    private final int port;
+    private final int timeout;
+    private final PhiAccrualDetector detector;
+    private SocketClient client;
+
+    /**
+     * @param hostname server hostname
+     * @param port     server port
+     * @param interval time between probes (ms)
+     * @param timeout  time to connect and to receive the response of a probe (ms)
+     */
+    public HealthCheck(String hostname, int port, int interval, int timeout) {
+        this.hostname = hostname;
+        this.port = port;
+        this.timeout = timeout;
+        this.detector = new PhiAccrualDetector(100, interval * 1_000_000L,
+                Math.max(interval / 4, 1) * 1_000_000L, System.nanoTime());
+    }
+
+    private SocketClient connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostname, port), timeout);
+            SocketClient connection = new SocketClient(socket,
+                    new PrintWriter(socket.getOutputStream(), true),
+                    new BufferedReader(new InputStreamReader(socket.getInputStream())));
+            connection.setSO_TIMEOUT(timeout);
+            connection.setMAX_RETRY(1);
+            return connection;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send a GET over the probe connection
+     *
+     * @param uri URI of the request
+     * @return response of the server
+     * @throws IOException if the server cannot be reached or does not answer in time
+     */
+    private HTTPResponse get(String uri) throws IOException {
+        return send(new HTTPRequest("1.1").setMethod("GET").setURI(uri));
+    }
+
+    /**
+     * Send a request over the probe connection
+     *
+     * @param request request to send
+     * @return response of the server
+     * @throws IOException if the server cannot be reached or does not answer in time
+     */
+    private HTTPResponse send(HTTPRequest request) throws IOException {
+        if (client == null)
+            client = connect();
+        client.send(request.setHeader("Host", hostname + ":" + port));
+        String message = client.receive();
+        client.sentMessages.clear();
+        client.receivedMessages.clear();
+        if (message == null)
+            throw new IOException("Connection closed by server");
+        return HTTPResponse.fromMessage(message);
+    }
+
+    /**
+     * Send one probe, recording a heartbeat if the server answers 200
+     *
+     * @return true if the server is healthy
+     */
+    public synchronized boolean probe() {
+        try {
+            if (!get("/health").statusCode.equals("200"))
+                throw new IOException("Server is not ready");
+            detector.heartbeat(System.nanoTime());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.info("Failed: health probe of " + hostname + ":" + port + ": " + e);
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Read GET /replication over the probe connection, bounded and never retried like a
+     * probe. No heartbeat is recorded.
+     *
+     * @return replication status in json format, or null if the server does not answer
+     */
+    public synchronized String getReplicationStatus() {
+        try {
+            HTTPResponse response = get("/replication");
+            if (!response.statusCode.equals("200"))
+                throw new IOException("Status " + response.statusCode);
+            return response.body;
+        } catch (IOException | RuntimeException e) {
+            logger.info("Failed: replication status of " + hostname + ":" + port + ": " + e);
+            close();
+            return null;
+        }
+    }
+
+    /**
+     * Tell the server to catch up from a leader with PUT /replication over the probe
+     * connection, bounded and never retried like a probe. The server fetches the snapshot
+     * in the background.
+     *
+     * @param leader hostname:port of the leader
+     * @return true if the server started catching up
+     */
+    public synchronized boolean follow(String leader) {
+        try {
+            HTTPResponse response = send(new HTTPRequest("1.1").setMethod("PUT")
+                    .setURI("/replication")
+                    .setHeader("Replication-Leader", leader)
+                    .setHeader("Content-Length", "0"));
+            if (!response.statusCode.equals("202"))
+                throw new IOException("Status " + response.statusCode);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.info("Failed: " + hostname + ":" + port + " following " + leader + ": " + e);
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Check whether the server is considered alive from the probes received so far
+     *
+     * @param threshold phi above which the server is suspected
+     */
+    public boolean isAvailable(double threshold) {
+        return detector.isAvailable(System.nanoTime(), threshold);
+    }
+
+    public double getPhi() {
+        return detector.phi(System.nanoTime());
+    }
+
+    /**
+     * Close the probe connection, the next probe opens a new one
+     */
+    public synchronized void close() {
+        if (client == null)
+            return;
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.info("Unable to close health probe connection: " + e);
+        }
+        client = null;
+    }
+}
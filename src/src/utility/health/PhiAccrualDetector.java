@@ -0,0 +1,88 @@
+package utility.health;
+
+/**
+ * Phi accrual failure detector.
+ * <p>
+ * Instead of a fixed timeout, the detector keeps the intervals between the last heartbeats
+ * and reports phi, the confidence that the monitored server has failed given how long it
+ * has been silent compared to the intervals seen so far. phi = -log10(P(interval > now -
+ * last heartbeat)) with intervals approximated by a normal distribution, so a phi of 8
+ * means a heartbeat this late would happen once in 10^8 intervals if the server were alive.
+ * <p>
+ * Synchronized as the heartbeats and the reads of phi come from different threads.
+ */
+public class PhiAccrualDetector {
+    private final long[] intervals;
+    private final long minStdDeviation;
+    private int size;
+    private int next;
+    private double sum;
+    private double squareSum;
+    private long lastHeartbeat;
+
+    /**
+     * @param windowSize       number of intervals kept
+     * @param expectedInterval interval used until heartbeats are received (ns)
+     * @param minStdDeviation  lower bound of the standard deviation, so a very regular
+     *                         server is not suspected for a slightly late heartbeat (ns)
+     * @param now              time of the first heartbeat (ns)
+     */
+    public PhiAccrualDetector(int windowSize, long expectedInterval, long minStdDeviation,
+                              long now) {
+        this.intervals = new long[windowSize];
+        this.minStdDeviation = minStdDeviation;
+        this.lastHeartbeat = now;
+        addInterval(expectedInterval);
+    }
+
+    private void addInterval(long interval) {
+        if (size == intervals.length) {
+            sum -= intervals[next];
+            squareSum -= (double) intervals[next] * intervals[next];
+        } else {
+            size++;
+        }
+        intervals[next] = interval;
+        sum += interval;
+        squareSum += (double) interval * interval;
+        next = (next + 1) % intervals.length;
+    }
+
+    /**
+     * Record a heartbeat received at now
+     *
+     * @param now time of the heartbeat (ns)
+     */
+    public synchronized void heartbeat(long now) {
+        addInterval(Math.max(now - lastHeartbeat, 0));
+        lastHeartbeat = now;
+    }
+
+    /**
+     * Get the suspicion level of the server at now
+     *
+     * @param now current time (ns)
+     * @return phi, 0 when the server is on time and growing as it stays silent
+     */
+    public synchronized double phi(long now) {
+        double mean = sum / size;
+        double variance = Math.max(squareSum / size - mean * mean, 0);
+        double stdDeviation = Math.max(Math.sqrt(variance), minStdDeviation);
+        double y = (now - lastHeartbeat - mean) / stdDeviation;
+        // Logistic approximation of the normal cumulative distribution
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double phi = now - lastHeartbeat > mean ? -Math.log10(e / (1 + e)) :
+                -Math.log10(1 - 1 / (1 + e));
+        return Math.max(phi, 0);
+    }
+
+    /**
+     * Check whether the server is considered alive at now
+     *
+     * @param now       current time (ns)
+     * @param threshold phi above which the server is suspected
+     */
+    public boolean isAvailable(long now, double threshold) {
+        return phi(now) < threshold;
+    }
+}
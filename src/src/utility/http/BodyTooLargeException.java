@@ -0,0 +1,14 @@
+package utility.http;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a received body is larger than the receiver accepts once decoded
+ */
+public class BodyTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public BodyTooLargeException(String message) {
+        super(message);
+    }
+}
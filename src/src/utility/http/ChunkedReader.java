@@ -0,0 +1,84 @@
+package utility.http;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Reader of a message body in chunked transfer coding, one chunk at a time.
+ * <p>
+ * Counterpart of ChunkedWriter for bodies read as they arrive, such as a subscription
+ * whose body never ends while the server runs. The message head must already be read.
+ */
+public class ChunkedReader {
+    private final BufferedReader in;
+    private boolean isEnded;
+
+    /**
+     * @param in reader of the connection, positioned after the message head
+     */
+    public ChunkedReader(BufferedReader in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next chunk, waiting for it to arrive
+     *
+     * @return text of the chunk, or null once the last chunk was read
+     * @throws IOException if the connection fails or closes in the middle of the body
+     */
+    public String readChunk() throws IOException {
+        if (isEnded)
+            return null;
+        int length = readChunkSize(in);
+        if (length == 0) {
+            readTrailer(in);
+            isEnded = true;
+            return null;
+        }
+        char[] chunk = new char[length];
+        int read = 0;
+        while (read < length) {
+            int count = in.read(chunk, read, length - read);
+            if (count == -1)
+                throw new IOException("Connection closed in chunked body");
+            read += count;
+        }
+        return new String(chunk);
+    }
+
+    /**
+     * Read the size line of the next chunk, skipping the line break ending the previous one
+     *
+     * @return size of the chunk, 0 for the last chunk
+     * @throws IOException if the connection closes or the size is not a hexadecimal number
+     */
+    static int readChunkSize(BufferedReader in) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null)
+                throw new IOException("Connection closed in chunked body");
+            line = line.trim();
+        } while (line.isEmpty());
+        int extension = line.indexOf(';');
+        try {
+            return Integer.parseInt(extension == -1 ? line :
+                    line.substring(0, extension).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + line);
+        }
+    }
+
+    /**
+     * Read the trailer after the last chunk. Trailers are not used, the empty line ends the
+     * message.
+     */
+    static void readTrailer(BufferedReader in) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+            if (line == null)
+                throw new IOException("Connection closed in message trailer");
+        } while (!line.isEmpty() && !line.equals("\r"));
+    }
+}
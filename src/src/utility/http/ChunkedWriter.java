@@ -0,0 +1,103 @@
+package utility.http;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer of a message body in chunked transfer coding.
+ * <p>
+ * Text is collected into chunks of at most CHUNK_SIZE characters, each sent and flushed
+ * as soon as it is full, so a body can be written while it is produced without knowing its
+ * length. Chunk sizes count characters, like Content-Length. Closing sends the remaining
+ * text, the last chunk and the line break ending every message, but leaves the connection
+ * open.
+ */
+public class ChunkedWriter extends Writer {
+    static final int CHUNK_SIZE = 8192;
+    private static final String LINE_BREAK = System.lineSeparator();
+
+    private final Writer out;
+    private final char[] chunk;
+    private int length;
+    private boolean isClosed;
+
+    /**
+     * @param out writer of the connection, the message head already written to it
+     */
+    public ChunkedWriter(Writer out) {
+        this(out, CHUNK_SIZE);
+    }
+
+    /**
+     * @param out       writer of the connection, the message head already written to it
+     * @param chunkSize largest chunk sent
+     */
+    public ChunkedWriter(Writer out, int chunkSize) {
+        this.out = out;
+        this.chunk = new char[chunkSize];
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (isClosed)
+            throw new IOException("Chunked body already closed");
+        while (len > 0) {
+            int copied = Math.min(len, chunk.length - length);
+            System.arraycopy(cbuf, off, chunk, length, copied);
+            length += copied;
+            off += copied;
+            len -= copied;
+            if (length == chunk.length)
+                sendChunk();
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        if (isClosed)
+            throw new IOException("Chunked body already closed");
+        while (len > 0) {
+            int copied = Math.min(len, chunk.length - length);
+            str.getChars(off, off + copied, chunk, length);
+            length += copied;
+            off += copied;
+            len -= copied;
+            if (length == chunk.length)
+                sendChunk();
+        }
+    }
+
+    private void sendChunk() throws IOException {
+        if (length == 0)
+            return;
+        out.write(Integer.toHexString(length));
+        out.write("\r\n");
+        out.write(chunk, 0, length);
+        out.write("\r\n");
+        out.flush();
+        length = 0;
+    }
+
+    /**
+     * Send the text written so far as a chunk
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!isClosed)
+            sendChunk();
+    }
+
+    /**
+     * End the body, without closing the connection
+     */
+    @Override
+    public void close() throws IOException {
+        if (isClosed)
+            return;
+        sendChunk();
+        isClosed = true;
+        out.write("0\r\n\r\n");
+        out.write(LINE_BREAK);
+        out.flush();
+    }
+}
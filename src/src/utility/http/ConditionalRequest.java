@@ -0,0 +1,56 @@
+package utility.http;
+
+/**
+ * Conditional GETs with If-None-Match.
+ * <p>
+ * A GET naming the ETag of the current representation is answered with a bodyless
+ * 304 Not Modified, so a client polling an unchanged station only receives a head. The
+ * check is made on the response about to be sent, so responses shared by coalesced GETs
+ * stay full and each client gets its own answer.
+ */
+public final class ConditionalRequest {
+    private ConditionalRequest() {
+    }
+
+    /**
+     * Check if an If-None-Match header names an entity tag. Weak tags are compared by
+     * their opaque part, as If-None-Match allows.
+     *
+     * @param ifNoneMatch If-None-Match header, may be null
+     * @param ETag        current entity tag, may be null
+     * @return true if the representation the client holds is current
+     */
+    public static boolean matches(String ifNoneMatch, String ETag) {
+        if (ifNoneMatch == null || ETag == null)
+            return false;
+        String current = opaque(ETag);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || opaque(tag).equals(current))
+                return true;
+        }
+        return false;
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Get the response to send to a request, 304 Not Modified if it is a GET whose
+     * If-None-Match names the ETag of a successful response
+     *
+     * @param request  request answered
+     * @param response response to the request, left unchanged
+     * @return response or a 304 carrying its ETag
+     */
+    public static HTTPResponse apply(HTTPRequest request, HTTPResponse response) {
+        if (!request.method.equals("GET") || !"200".equals(response.statusCode) ||
+            !matches(request.getHeader("If-None-Match"), response.getHeader("ETag")))
+            return response;
+        return new HTTPResponse("1.1")
+                .setStatusCode("304")
+                .setReasonPhrase("Not Modified")
+                .setHeader("ETag", response.getHeader("ETag"));
+    }
+}
@@ -0,0 +1,164 @@
+package utility.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * gzip and deflate content codings of message bodies, in base64.
+ * <p>
+ * Messages are read line by line as text, so a compressed body is sent in base64 and
+ * Content-Length is the length of the base64 text. Verbose JSON still shrinks several
+ * times over. A base64 body is not a gzip or deflate body, so the codings have their own
+ * tokens, only advertised by SocketClient: clients accepting the standard gzip or deflate
+ * get the body as is. Receivers decode the body before parsing the message, so only the
+ * connection sees the coded form.
+ */
+public final class ContentCoding {
+    public static final String GZIP = "x-gzip-base64";
+    public static final String DEFLATE = "x-deflate-base64";
+    // Accept-Encoding sent by clients
+    public static final String ACCEPTED = GZIP + ", " + DEFLATE;
+
+    private ContentCoding() {
+    }
+
+    /**
+     * Choose the coding of a response from the Accept-Encoding of its request, preferring
+     * gzip. Codings given a zero quality are refused, and * does not stand for codings
+     * only SocketClient can decode.
+     *
+     * @param acceptEncoding Accept-Encoding header, may be null
+     * @return GZIP, DEFLATE or null to send the body as is
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return null;
+        boolean gzip = false;
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.trim().split(";");
+            String coding = params[0].trim().toLowerCase();
+            boolean refused = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        refused = Double.parseDouble(param.substring(2)) <= 0;
+                    } catch (NumberFormatException e) {
+                        refused = true;
+                    }
+                }
+            }
+            if (refused)
+                continue;
+            gzip |= coding.equals(GZIP);
+            deflate |= coding.equals(DEFLATE);
+        }
+        return gzip ? GZIP : deflate ? DEFLATE : null;
+    }
+
+    /**
+     * Check if a coding can be decoded
+     */
+    public static boolean isSupported(String coding) {
+        return coding != null && (coding.equalsIgnoreCase(GZIP) ||
+                                  coding.equalsIgnoreCase(DEFLATE));
+    }
+
+    /**
+     * Compress a body
+     *
+     * @param body   body text
+     * @param coding GZIP or DEFLATE
+     * @return compressed body in base64
+     */
+    public static String encode(String body, String coding) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(body.length() / 4 + 64);
+        try (OutputStream out = coding.equals(DEFLATE) ? new DeflaterOutputStream(bytes) :
+                new GZIPOutputStream(bytes)) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * Decompress a body, stopping as soon as it outgrows maxSize so a small body expanding
+     * to gigabytes cannot exhaust the heap
+     *
+     * @param body    compressed body in base64
+     * @param coding  coding of the body
+     * @param maxSize largest decompressed body accepted (bytes)
+     * @return body text
+     * @throws BodyTooLargeException if the decompressed body is larger than maxSize
+     * @throws IOException           if the body is not in the coding
+     */
+    public static String decode(String body, String coding, int maxSize) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = Base64.getMimeDecoder().decode(body);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid " + coding + " body: " + e.getMessage());
+        }
+        InputStream bytes = new ByteArrayInputStream(compressed);
+        try (InputStream in = coding.equalsIgnoreCase(DEFLATE) ?
+                new InflaterInputStream(bytes) : new GZIPInputStream(bytes)) {
+            ByteArrayOutputStream decoded = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (read > maxSize - decoded.size())
+                    throw new BodyTooLargeException("Decoded " + coding +
+                                                    " body is larger than " + maxSize +
+                                                    " bytes");
+                decoded.write(buffer, 0, read);
+            }
+            return decoded.toString(StandardCharsets.UTF_8);
+        } catch (ZipException e) {
+            throw new IOException("Invalid " + coding + " body: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Replace the body of a message with its compressed form, setting its headers
+     *
+     * @param message message whose body is compressed
+     * @param body    compressed body from encode
+     * @param coding  coding of body
+     */
+    public static void setEncodedBody(HTTPMessage message, String body, String coding) {
+        message.setHeader("Content-Encoding", coding);
+        message.setHeader("Content-Length", String.valueOf(body.length()));
+        message.setBody(body);
+    }
+
+    /**
+     * Decode the body of a received message in place, so it reads as if sent as is
+     *
+     * @param message received message
+     * @param maxSize largest decoded body accepted (bytes)
+     * @throws BodyTooLargeException if the decoded body is larger than maxSize
+     * @throws IOException           if the body is not in its coding
+     */
+    public static void decode(HTTPMessage message, int maxSize) throws IOException {
+        String coding = message.getHeader("Content-Encoding");
+        if (!isSupported(coding) || message.getBody() == null)
+            return;
+        String body = decode(message.getBody(), coding, maxSize);
+        message.getHeaders().remove("Content-Encoding");
+        message.setHeader("Content-Length", String.valueOf(body.length()));
+        message.setBody(body);
+    }
+}
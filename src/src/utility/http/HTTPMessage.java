@@ -1,5 +1,7 @@
 package utility.http;
 
+import java.util.Map;
+
 public interface HTTPMessage {
 
     /**
@@ -27,6 +29,26 @@ public interface HTTPMessage {
      */
     String getHeader(String key);
 
+    /**
+     * Get the request or status line, without line break
+     *
+     * @return start line
+     */
+    String getStartLine();
+
+    /**
+     * Get message headers in the order they are sent
+     *
+     * @return header map
+     */
+    Map<String, String> getHeaders();
+
+    /**
+     * Get message body
+     *
+     * @return body or null if the message has none
+     */
+    String getBody();
 
 
     /**
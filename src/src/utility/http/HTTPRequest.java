@@ -37,6 +37,16 @@ public class HTTPRequest implements HTTPMessage {
         this.body = body;
     }
 
+    /**
+     * Copy the request, so a sender can change the copy it writes without changing the
+     * request kept by the caller
+     *
+     * @return request with the same fields and a copy of the header
+     */
+    public HTTPRequest copy() {
+        return new HTTPRequest(method, uri, version, new LinkedHashMap<>(header), body);
+    }
+
     /**
      * Set method in request header (GET/PUT/POST/etc)
      *
@@ -81,6 +91,21 @@ public class HTTPRequest implements HTTPMessage {
         return this.header.get(key);
     }
 
+    @Override
+    public String getStartLine() {
+        return String.format("%s %s HTTP/%s", method, uri, version);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return header;
+    }
+
+    @Override
+    public String getBody() {
+        return body;
+    }
+
     /**
      * Generate HTTP Request as a string object from the current state
      *
@@ -90,7 +115,7 @@ public class HTTPRequest implements HTTPMessage {
         StringBuilder message = new StringBuilder();
 
         // Add request line
-        message.append(String.format("%s %s HTTP/%s\r\n", method, uri, version));
+        message.append(getStartLine()).append("\r\n");
 
         // Add headers
         if (!header.isEmpty()) {
@@ -42,6 +42,16 @@ public class HTTPResponse implements HTTPMessage {
         this.body = body;
     }
 
+    /**
+     * Copy the response, so senders sharing a response can each stamp their own headers
+     *
+     * @return response with the same fields and a copy of the header
+     */
+    public HTTPResponse copy() {
+        return new HTTPResponse(version, statusCode, reasonPhrase, new LinkedHashMap<>(header),
+                body);
+    }
+
     /**
      * Set status code in response message
      *
@@ -92,6 +102,21 @@ public class HTTPResponse implements HTTPMessage {
         return this.header.get(key);
     }
 
+    @Override
+    public String getStartLine() {
+        return String.format("HTTP/%s %s %s", version, statusCode, reasonPhrase);
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+        return header;
+    }
+
+    @Override
+    public String getBody() {
+        return body;
+    }
+
     /**
      * Generate HTTPResponse message string
      *
@@ -101,7 +126,7 @@ public class HTTPResponse implements HTTPMessage {
         StringBuilder message = new StringBuilder();
 
         // Add request line
-        message.append(String.format("HTTP/%s %s %s\r\n", version, statusCode, reasonPhrase));
+        message.append(getStartLine()).append("\r\n");
 
         // Add headers
         if (!header.isEmpty()) {
@@ -15,6 +15,14 @@ public class HTTPSocketParser {
 
     private StringBuilder body;
 
+    // Body in chunked transfer coding: chunk_length counts the characters left in the
+    // current chunk, -1 while a chunk size line is expected
+    private boolean isChunked;
+
+    private int chunk_length;
+
+    private boolean isTrailer;
+
     public HTTPSocketParser() {
         reset();
     }
@@ -26,6 +34,9 @@ public class HTTPSocketParser {
         isComplete = false;
         body_length = 0;
         body = new StringBuilder();
+        isChunked = false;
+        chunk_length = -1;
+        isTrailer = false;
     }
 
     public String toString() {
@@ -66,6 +77,13 @@ public class HTTPSocketParser {
                 line = removeCacheReturn(line);
                 if (line.trim().isEmpty()) {
                     isBody = true;
+                    String transfer_encoding = message.getHeader("Transfer-Encoding");
+                    if (transfer_encoding != null &&
+                        transfer_encoding.toLowerCase().contains("chunked")) {
+                        isChunked = true;
+                        lineParsed += 1;
+                        return;
+                    }
                     String content_length = message.getHeader("Content-Length");
                     if (content_length == null) {
                         body_length = 0;
@@ -84,6 +102,8 @@ public class HTTPSocketParser {
                     String[] headerKeyValue = line.split(":");
                     message.setHeader(headerKeyValue[0].trim(), joinArray(headerKeyValue, 1, ":"));
                 }
+            } else if (isChunked) {
+                parseChunkLine(line);
             } else {
                 body.append(line);
                 body_length = Math.max((body_length - line.length()), 0);
@@ -99,4 +119,55 @@ public class HTTPSocketParser {
         }
         lineParsed += 1;
     }
+
+    /**
+     * Parse a line of a chunked body: a chunk size, chunk data or a trailer.
+     * <p>
+     * Chunk sizes count characters like Content-Length, line breaks within a chunk as one.
+     * The decoded body is set with its Content-Length, so the message reads as if it was
+     * sent in one piece.
+     *
+     * @param line line read without its line break
+     */
+    private void parseChunkLine(String line) {
+        if (isTrailer) {
+            // Trailers are not used, the empty line ends the message
+            if (removeCacheReturn(line).isEmpty())
+                completeChunked();
+            return;
+        }
+        if (chunk_length < 0) {
+            line = removeCacheReturn(line).trim();
+            // Skip the line break ending chunk data that ended with a line break itself
+            if (line.isEmpty())
+                return;
+            int extension = line.indexOf(';');
+            try {
+                chunk_length = Integer.parseInt(extension == -1 ? line :
+                        line.substring(0, extension).trim(), 16);
+            } catch (NumberFormatException e) {
+                chunk_length = 0;
+            }
+            if (chunk_length <= 0) {
+                chunk_length = -1;
+                isTrailer = true;
+            }
+            return;
+        }
+        body.append(line);
+        chunk_length = Math.max(chunk_length - line.length(), 0);
+        if (chunk_length > 0) {
+            body.append("\n");
+            chunk_length -= 1;
+        }
+        if (chunk_length == 0)
+            chunk_length = -1;
+    }
+
+    private void completeChunked() {
+        message.getHeaders().remove("Transfer-Encoding");
+        message.setHeader("Content-Length", String.valueOf(body.length()));
+        message.setBody(body.toString());
+        isComplete = true;
+    }
 }
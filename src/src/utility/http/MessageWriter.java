@@ -0,0 +1,235 @@
+package utility.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffered writer of HTTP messages to a connection.
+ * <p>
+ * Start line, headers and body are encoded straight into byte buffers taken from a pool
+ * shared by every connection, without building the message as a String first. Messages
+ * written before a flush share the same buffers, so a batch of pipelined responses costs
+ * one write per filled buffer instead of one per message. On a connection with a channel
+ * the buffers are written with a single gathering write. Each message ends with a line
+ * break, like the PrintWriter.println it replaces, so readers need not change.
+ */
+public class MessageWriter {
+    static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 256;
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final String LINE_BREAK = System.lineSeparator();
+
+    private final OutputStream out;
+    private final GatheringByteChannel channel;
+    // Malformed text is replaced like String.getBytes does, so encoding always completes
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // Filled buffers waiting for flush, the last one is being filled
+    private final List<ByteBuffer> pending = new ArrayList<>();
+
+    /**
+     * @param socket connection to write to
+     * @throws IOException if the output stream of the connection cannot be opened
+     */
+    public MessageWriter(Socket socket) throws IOException {
+        this(socket.getOutputStream(), socket.getChannel());
+    }
+
+    /**
+     * @param out     stream to write to
+     * @param channel channel of the stream, written to instead when not null
+     */
+    MessageWriter(OutputStream out, GatheringByteChannel channel) {
+        this.out = out;
+        this.channel = channel;
+    }
+
+    static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            return ByteBuffer.allocate(BUFFER_SIZE);
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        buffer.clear();
+        pool.offer(buffer);
+    }
+
+    private ByteBuffer current() {
+        if (pending.isEmpty() || !pending.get(pending.size() - 1).hasRemaining())
+            pending.add(acquire());
+        return pending.get(pending.size() - 1);
+    }
+
+    /**
+     * Encode text into the pending buffers, taking new buffers as they fill up
+     */
+    private void encode(CharSequence text) {
+        CharBuffer chars = CharBuffer.wrap(text);
+        while (true) {
+            CoderResult result = encoder.encode(chars, current(), true);
+            if (result.isUnderflow())
+                break;
+            // A character may not fit the few bytes left, continue in a new buffer
+            if (current().hasRemaining())
+                pending.add(acquire());
+        }
+        encoder.reset();
+    }
+
+    /**
+     * Buffer an HTTP message
+     *
+     * @param message message to write
+     */
+    public synchronized void write(HTTPMessage message) {
+        writeHead(message);
+        if (message.getBody() != null)
+            encode(message.getBody());
+        encode(LINE_BREAK);
+    }
+
+    /**
+     * Buffer the start line and headers of an HTTP message, its body is written after
+     *
+     * @param message message whose head is written
+     */
+    public synchronized void writeHead(HTTPMessage message) {
+        encode(message.getStartLine());
+        encode("\r\n");
+        for (Map.Entry<String, String> entry : message.getHeaders().entrySet()) {
+            // Formatted like toString, which writes missing values as null
+            encode(String.valueOf(entry.getKey()));
+            encode(": ");
+            encode(String.valueOf(entry.getValue()));
+            encode("\r\n");
+        }
+        encode("\r\n");
+    }
+
+    /**
+     * Buffer a message already formatted
+     *
+     * @param head start line and headers, ending with the empty line
+     * @param body body of the message
+     */
+    public synchronized void write(String head, String body) {
+        encode(head);
+        encode(body);
+        encode(LINE_BREAK);
+    }
+
+    /**
+     * Buffer bytes already encoded, such as an update serialized once for every subscriber.
+     * The buffer is written as is without being copied, and is not modified.
+     *
+     * @param encoded read-only buffer, its bytes from position to limit are written
+     */
+    public synchronized void write(ByteBuffer encoded) {
+        // Kept filled up to its limit like the pooled buffers, so flush flips it alike
+        ByteBuffer shared = encoded.slice().asReadOnlyBuffer();
+        shared.position(shared.limit());
+        pending.add(shared);
+    }
+
+    /**
+     * Get a Writer buffering its text here, flushing writes it to the connection. Used to
+     * stream a body after writeHead.
+     */
+    public Writer asWriter() {
+        return new Writer() {
+            @Override
+            public void write(char[] cbuf, int off, int len) {
+                synchronized (MessageWriter.this) {
+                    encode(CharBuffer.wrap(cbuf, off, len));
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                MessageWriter.this.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Write every buffered message to the connection
+     *
+     * @throws IOException if the connection fails, buffered messages are then dropped
+     */
+    public synchronized void flush() throws IOException {
+        if (pending.isEmpty())
+            return;
+        ByteBuffer[] buffers = pending.toArray(new ByteBuffer[0]);
+        pending.clear();
+        try {
+            for (ByteBuffer buffer : buffers)
+                buffer.flip();
+            if (channel != null) {
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers)
+                    remaining += buffer.remaining();
+                while (remaining > 0)
+                    remaining -= channel.write(buffers);
+            } else {
+                for (ByteBuffer buffer : buffers)
+                    writeTo(out, buffer);
+                out.flush();
+            }
+        } finally {
+            // Shared buffers are not pooled
+            for (ByteBuffer buffer : buffers)
+                if (!buffer.isReadOnly())
+                    release(buffer);
+        }
+    }
+
+    private static void writeTo(OutputStream out, ByteBuffer buffer) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+            return;
+        }
+        // The array of a read-only buffer is hidden, copy it block by block
+        byte[] block = new byte[Math.min(buffer.remaining(), BUFFER_SIZE)];
+        while (buffer.hasRemaining()) {
+            int length = Math.min(block.length, buffer.remaining());
+            buffer.get(block, 0, length);
+            out.write(block, 0, length);
+        }
+    }
+
+    /**
+     * Check if messages are waiting for flush
+     */
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+}
@@ -0,0 +1,145 @@
+package utility.http;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * HTTP message kept as received, for relaying it without parsing its headers or body.
+ * <p>
+ * Only the start line is kept apart, and Content-Length is read to find where the body
+ * ends. The body is copied in blocks rather than parsed line by line. A chunked body is
+ * joined, and kept with a Content-Length in place of its Transfer-Encoding.
+ */
+public class RawHTTPMessage {
+    private static final int BLOCK_SIZE = 8192;
+    public final String startLine;
+    public final String head;
+    public final String body;
+
+    private RawHTTPMessage(String startLine, String head, String body) {
+        this.startLine = startLine;
+        this.head = head;
+        this.body = body;
+    }
+
+    /**
+     * Read one message
+     *
+     * @param in reader of a connection
+     * @return message or null if the connection is closed before a message starts
+     * @throws IOException if the connection fails or closes in the middle of the message
+     */
+    public static RawHTTPMessage read(BufferedReader in) throws IOException {
+        String line = in.readLine();
+        // Messages are sent with println, skip the line break ending the previous one
+        while (line != null && line.isEmpty())
+            line = in.readLine();
+        if (line == null)
+            return null;
+        String startLine = line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        StringBuilder head = new StringBuilder(startLine).append("\r\n");
+        int contentLength = 0;
+        boolean isChunked = false;
+        while (true) {
+            line = in.readLine();
+            if (line == null)
+                throw new IOException("Connection closed in message head");
+            if (line.endsWith("\r"))
+                line = line.substring(0, line.length() - 1);
+            if (line.isEmpty())
+                break;
+            int separator = line.indexOf(':');
+            String key = separator > 0 ? line.substring(0, separator).trim() : "";
+            if (key.equalsIgnoreCase("Transfer-Encoding") &&
+                line.substring(separator + 1).toLowerCase().contains("chunked")) {
+                isChunked = true;
+                continue;
+            }
+            head.append(line).append("\r\n");
+            if (key.equalsIgnoreCase("Content-Length")) {
+                try {
+                    contentLength = Math.max(Integer.parseInt(
+                            line.substring(separator + 1).trim()), 0);
+                } catch (NumberFormatException e) {
+                    contentLength = 0;
+                }
+            }
+        }
+        StringBuilder body = new StringBuilder(isChunked ? BLOCK_SIZE : contentLength);
+        if (isChunked) {
+            int chunkLength;
+            while ((chunkLength = ChunkedReader.readChunkSize(in)) > 0)
+                readBlocks(in, body, chunkLength);
+            ChunkedReader.readTrailer(in);
+            head.append("Content-Length: ").append(body.length()).append("\r\n");
+        } else {
+            readBlocks(in, body, contentLength);
+        }
+        head.append("\r\n");
+        return new RawHTTPMessage(startLine, head.toString(), body.toString());
+    }
+
+    /**
+     * Append length characters of the connection to body
+     */
+    private static void readBlocks(BufferedReader in, StringBuilder body, int length)
+            throws IOException {
+        char[] block = new char[Math.min(length, BLOCK_SIZE)];
+        int end = body.length() + length;
+        while (body.length() < end) {
+            int read = in.read(block, 0, Math.min(block.length, end - body.length()));
+            if (read == -1)
+                throw new IOException("Connection closed in message body");
+            body.append(block, 0, read);
+        }
+    }
+
+    /**
+     * Get the first word of the start line, the method of a request
+     */
+    public String getMethod() {
+        int end = startLine.indexOf(' ');
+        return end == -1 ? startLine : startLine.substring(0, end);
+    }
+
+    /**
+     * Find a header in the head, without parsing the others
+     *
+     * @param key header name, compared ignoring case
+     * @return value of the first such header or null if there is none
+     */
+    public String getHeader(String key) {
+        for (String line : head.split("\r\n")) {
+            int separator = line.indexOf(':');
+            if (separator > 0 && line.substring(0, separator).trim().equalsIgnoreCase(key))
+                return line.substring(separator + 1).trim();
+        }
+        return null;
+    }
+
+    /**
+     * Write the message as received, ending it with a line break like SocketCommunicator
+     *
+     * @param out writer of a connection
+     */
+    public void writeTo(PrintWriter out) {
+        out.print(head);
+        out.print(body);
+        out.println();
+    }
+
+    /**
+     * Buffer the message as received, ending it with a line break like SocketCommunicator
+     *
+     * @param writer writer of a connection
+     */
+    public void writeTo(MessageWriter writer) {
+        writer.write(head, body);
+    }
+
+    @Override
+    public String toString() {
+        return head + body;
+    }
+}
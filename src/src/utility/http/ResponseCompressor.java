@@ -0,0 +1,94 @@
+package utility.http;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compress response bodies for clients accepting the base64 gzip or deflate codings.
+ * <p>
+ * Bodies shorter than the threshold are sent as is, since coding them costs more than it
+ * saves. The compressed bodies of successful GETs are kept in a small LRU cache by URI and
+ * coding: a hot station is compressed once per update instead of once per request. An
+ * entry is only used while the body it was compressed from is unchanged.
+ */
+public class ResponseCompressor {
+    private final int threshold;
+    private final Map<String, Entry> cache;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Entry {
+        final String body;
+        final String encoded;
+
+        Entry(String body, String encoded) {
+            this.body = body;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * @param threshold shortest body compressed, negative to never compress
+     * @param cacheSize number of compressed GET bodies kept
+     */
+    public ResponseCompressor(int threshold, int cacheSize) {
+        this.threshold = threshold;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Get the response to send to a request, compressed if the request accepts it
+     *
+     * @param request  request answered
+     * @param response response to the request, left unchanged
+     * @return response or a compressed copy of it
+     */
+    public HTTPResponse compress(HTTPRequest request, HTTPResponse response) {
+        String coding = ContentCoding.negotiate(request.getHeader("Accept-Encoding"));
+        String body = response.body;
+        if (coding == null || threshold < 0 || body == null || body.length() < threshold ||
+            response.getHeader("Content-Encoding") != null)
+            return response;
+        String encoded;
+        if (request.method.equals("GET") && "200".equals(response.statusCode))
+            encoded = encodeCached(request.uri + " " + coding, body, coding);
+        else
+            encoded = ContentCoding.encode(body, coding);
+        HTTPResponse compressed = response.copy();
+        ContentCoding.setEncodedBody(compressed, encoded, coding);
+        compressed.setHeader("Vary", "Accept-Encoding");
+        return compressed;
+    }
+
+    private String encodeCached(String key, String body, String coding) {
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+        }
+        if (entry != null && entry.body.equals(body)) {
+            hits.increment();
+            return entry.encoded;
+        }
+        misses.increment();
+        // Compressed outside the lock, concurrent misses of one key may both compress
+        String encoded = ContentCoding.encode(body, coding);
+        synchronized (cache) {
+            cache.put(key, new Entry(body, encoded));
+        }
+        return encoded;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
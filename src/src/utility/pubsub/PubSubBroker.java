@@ -0,0 +1,228 @@
+package utility.pubsub;
+
+import utility.weatherJson.WeatherDataView;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Publish station updates to the subscriptions of their topics.
+ * <p>
+ * Each station has a topic, and wildcard topics hold the stations of a state and all
+ * stations. Publishing only queues the updated stations for the dispatcher thread, so the
+ * thread writing the database pays the same whatever the number of subscribers. A station
+ * published again before the dispatcher took it is conflated, so the queue never holds
+ * more than one update per station. The dispatcher serializes each update once, then
+ * offers the same Update to the bounded queue of every subscriber of its topics, never
+ * waiting for a subscriber. Subscribers send their queued updates from their own
+ * connection thread.
+ */
+public class PubSubBroker {
+    // Prefix of the URI subscribing to a topic
+    public static final String URI = "/subscribe/";
+    public static final String ALL = "stations";
+    private static final String STATION = "stations/";
+    private static final String STATE = "states/";
+
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+    private final int queueSize;
+    private final ConcurrentMap<String, Set<Subscriber>> topics = new ConcurrentHashMap<>();
+    // Stations waiting for the dispatcher, in the order they were first published
+    private final LinkedHashMap<String, WeatherDataView> published = new LinkedHashMap<>();
+    private final AtomicInteger subscribers = new AtomicInteger();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder conflated = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread dispatcher;
+    private volatile boolean isRunning = true;
+
+    /**
+     * @param queueSize largest number of updates waiting for each subscriber
+     */
+    public PubSubBroker(int queueSize) {
+        this.queueSize = queueSize;
+        dispatcher = new Thread(this::dispatch, "pubsub-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Get the topic of a station
+     */
+    public static String stationTopic(String stationID) {
+        return STATION + stationID;
+    }
+
+    /**
+     * Get the topic of the stations of a state
+     */
+    public static String stateTopic(String state) {
+        return STATE + state;
+    }
+
+    /**
+     * Check if a topic can be subscribed to: ALL, a station or a state topic
+     */
+    public static boolean isTopic(String topic) {
+        if (topic == null)
+            return false;
+        if (topic.equals(ALL))
+            return true;
+        String prefix = topic.startsWith(STATION) ? STATION :
+                topic.startsWith(STATE) ? STATE : null;
+        return prefix != null && topic.length() > prefix.length() &&
+               topic.indexOf('/', prefix.length()) == -1;
+    }
+
+    /**
+     * Subscribe to a topic
+     *
+     * @param topic topic checked with isTopic
+     * @return subscription receiving the updates published after this call
+     */
+    public Subscriber subscribe(String topic) {
+        Subscriber subscriber = new Subscriber(topic, queueSize);
+        topics.compute(topic, (key, set) -> {
+            if (set == null)
+                set = ConcurrentHashMap.newKeySet();
+            set.add(subscriber);
+            return set;
+        });
+        subscribers.incrementAndGet();
+        return subscriber;
+    }
+
+    /**
+     * End a subscription
+     *
+     * @param subscriber subscription returned by subscribe
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        subscriber.close();
+        topics.computeIfPresent(subscriber.getTopic(), (key, set) -> {
+            if (set.remove(subscriber))
+                subscribers.decrementAndGet();
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * Publish the stations written to the database. Returns at once, updates of a station
+     * are sent in the order they are published.
+     *
+     * @param stations stations written together
+     */
+    public void publish(Collection<WeatherDataView> stations) {
+        if (subscribers.get() == 0 || stations.isEmpty() || !isRunning)
+            return;
+        synchronized (published) {
+            for (WeatherDataView station : stations)
+                published.put(station.getID(), station);
+            published.notifyAll();
+        }
+    }
+
+    /**
+     * Take every station waiting for the dispatcher, waiting for one if there is none
+     */
+    private List<WeatherDataView> takePublished() throws InterruptedException {
+        synchronized (published) {
+            while (published.isEmpty())
+                published.wait();
+            List<WeatherDataView> stations = new ArrayList<>(published.values());
+            published.clear();
+            return stations;
+        }
+    }
+
+    private void dispatch() {
+        while (isRunning) {
+            try {
+                for (WeatherDataView station : takePublished())
+                    fanOut(station);
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                logger.info("Unable to publish update: " + e);
+            }
+        }
+    }
+
+    /**
+     * Offer the update of a station to every subscriber of its topics, serializing it only
+     * if one is found
+     */
+    private void fanOut(WeatherDataView station) {
+        Set<Subscriber> ofStation = topics.get(stationTopic(station.getID()));
+        Set<Subscriber> ofAll = topics.get(ALL);
+        String state = station.getValue("state");
+        Set<Subscriber> ofState = state == null ? null : topics.get(stateTopic(state));
+        if (ofStation == null && ofAll == null && ofState == null)
+            return;
+        Update update = Update.of(station);
+        offer(ofStation, update);
+        offer(ofState, update);
+        offer(ofAll, update);
+    }
+
+    private void offer(Set<Subscriber> subscribers, Update update) {
+        if (subscribers == null)
+            return;
+        for (Subscriber subscriber : subscribers) {
+            Subscriber.Offer offer = subscriber.offer(update);
+            if (offer == Subscriber.Offer.CONFLATED)
+                conflated.increment();
+            else if (offer == Subscriber.Offer.DROPPED)
+                dropped.increment();
+            else if (offer == Subscriber.Offer.QUEUED)
+                delivered.increment();
+        }
+    }
+
+    /**
+     * Stop the dispatcher and close every subscription
+     */
+    public void close() {
+        isRunning = false;
+        dispatcher.interrupt();
+        for (Set<Subscriber> set : topics.values())
+            for (Subscriber subscriber : set)
+                unsubscribe(subscriber);
+    }
+
+    /**
+     * Get the number of open subscriptions
+     */
+    public int getSubscribers() {
+        return subscribers.get();
+    }
+
+    /**
+     * Get the number of updates queued for a subscriber
+     */
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * Get the number of queued updates replaced by a newer update of their station
+     */
+    public long getConflated() {
+        return conflated.sum();
+    }
+
+    /**
+     * Get the number of updates dropped because a subscriber queue was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,105 @@
+package utility.pubsub;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of the updates waiting to be sent to one subscription.
+ * <p>
+ * The broker only offers updates and never waits for the subscriber. A station updated
+ * again before its previous update was sent is conflated: the newer update replaces the
+ * older one in its place. When capacity stations are waiting, the oldest update is dropped
+ * for the new one. A slow subscriber thus misses intermediate values but never holds
+ * more than capacity updates, nor slows down the other subscribers.
+ */
+public class Subscriber {
+    private final String topic;
+    private final int capacity;
+    // Waiting updates by station, in the order they were first offered
+    private final LinkedHashMap<String, Update> pending = new LinkedHashMap<>();
+    private boolean isClosed;
+
+    /**
+     * Outcome of offering an update
+     */
+    enum Offer {
+        QUEUED,
+        // Replaced the waiting update of the same station
+        CONFLATED,
+        // Queued after dropping the oldest waiting update
+        DROPPED,
+        CLOSED
+    }
+
+    /**
+     * @param topic    topic subscribed to
+     * @param capacity largest number of waiting updates
+     */
+    Subscriber(String topic, int capacity) {
+        this.topic = topic;
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Queue an update without waiting
+     *
+     * @param update update of a station of the topic
+     * @return how the update was queued, CLOSED if the subscription is closed
+     */
+    synchronized Offer offer(Update update) {
+        if (isClosed)
+            return Offer.CLOSED;
+        Offer result = Offer.QUEUED;
+        if (pending.containsKey(update.getStationID())) {
+            result = Offer.CONFLATED;
+        } else if (pending.size() >= capacity) {
+            Iterator<Update> oldest = pending.values().iterator();
+            oldest.next();
+            oldest.remove();
+            result = Offer.DROPPED;
+        }
+        pending.put(update.getStationID(), update);
+        notifyAll();
+        return result;
+    }
+
+    /**
+     * Take every waiting update, waiting for one if there is none
+     *
+     * @param timeout longest wait
+     * @param unit    unit of timeout
+     * @return waiting updates in order, empty if none came in time, or null once closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized List<Update> take(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (pending.isEmpty() && !isClosed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+                return List.of();
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        if (isClosed)
+            return null;
+        List<Update> updates = new ArrayList<>(pending.values());
+        pending.clear();
+        return updates;
+    }
+
+    /**
+     * Close the subscription, waking up take. Updates still waiting are dropped.
+     */
+    synchronized void close() {
+        isClosed = true;
+        pending.clear();
+        notifyAll();
+    }
+}
@@ -0,0 +1,48 @@
+package utility.pubsub;
+
+import utility.weatherJson.WeatherDataView;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Update of a station serialized once for every subscriber receiving it.
+ * <p>
+ * The update is encoded as a complete chunk of a chunked body, size line included, so
+ * writing it to a subscription is a copy of bytes with no formatting or encoding. The chunk
+ * holds the station as a GET of it returns it. Its buffer is read-only and shared.
+ */
+public final class Update {
+    private final String stationID;
+    private final ByteBuffer chunk;
+
+    private Update(String stationID, ByteBuffer chunk) {
+        this.stationID = stationID;
+        this.chunk = chunk;
+    }
+
+    /**
+     * Serialize the update of a station
+     *
+     * @param station station written to the database
+     * @return update to publish
+     */
+    public static Update of(WeatherDataView station) {
+        String body = "{\n" + station + "\n}";
+        // Chunk sizes count characters, like Content-Length
+        String chunk = Integer.toHexString(body.length()) + "\r\n" + body + "\r\n";
+        ByteBuffer bytes = ByteBuffer.wrap(chunk.getBytes(StandardCharsets.UTF_8));
+        return new Update(station.getID(), bytes.asReadOnlyBuffer());
+    }
+
+    public String getStationID() {
+        return stationID;
+    }
+
+    /**
+     * Get the chunk of the update, a read-only view shared with every other subscriber
+     */
+    public ByteBuffer getChunk() {
+        return chunk.duplicate();
+    }
+}
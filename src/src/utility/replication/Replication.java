@@ -0,0 +1,224 @@
+package utility.replication;
+
+import utility.http.HTTPRequest;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Replication state of an AggregationServer.
+ * <p>
+ * As a leader, the server appends every applied PUT to its log and ships it to each
+ * follower. As a follower, it applies the replicated PUTs in sequence order and records
+ * the epoch and sequence number of the last one applied. A follower the log can no longer
+ * bring up to date is dropped, and is shipped to again once it fetched a snapshot.
+ * <p>
+ * A follower only applies PUTs of the epoch of its leader. A PUT of another epoch comes from
+ * a restarted or newly elected leader whose sequence numbers say nothing of what the
+ * follower holds: the follower catches up from that leader in the background and refuses
+ * replicated PUTs until it holds the snapshot.
+ */
+public class Replication {
+    private final ReplicationLog log;
+    private final int retryDelay;
+    private final int port;
+    // Epoch and sequence number of the last applied replicated PUT, changed together
+    private String leaderEpoch;
+    private long applied;
+    private final List<ReplicationShipper> shippers = new CopyOnWriteArrayList<>();
+    private final ExecutorService shipperPool = Executors.newCachedThreadPool();
+    private final ExecutorService catchUpPool = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean isCatchingUp = new AtomicBoolean();
+    private volatile Consumer<String> catchUp = leader -> {};
+
+    /**
+     * @param logSize    number of applied PUTs kept for followers
+     * @param retryDelay wait before reconnecting to an unreachable follower (ms)
+     */
+    public Replication(int logSize, int retryDelay) {
+        this(logSize, retryDelay, -1);
+    }
+
+    /**
+     * @param logSize    number of applied PUTs kept for followers
+     * @param retryDelay wait before reconnecting to an unreachable follower (ms)
+     * @param port       port the server serves snapshots on, sent to followers so they can
+     *                   catch up from it. -1 if it serves none
+     */
+    public Replication(int logSize, int retryDelay, int port) {
+        this.log = new ReplicationLog(logSize);
+        this.retryDelay = retryDelay;
+        this.port = port;
+    }
+
+    /**
+     * Start shipping applied PUTs to a follower
+     *
+     * @param hostname follower hostname
+     * @param port     follower port
+     */
+    public void addFollower(String hostname, int port) {
+        addFollower(hostname, port, 0);
+    }
+
+    /**
+     * Start shipping applied PUTs to a follower already holding every PUT up to from. A
+     * follower already shipped to resumes after from.
+     *
+     * @param hostname follower hostname
+     * @param port     follower port
+     * @param from     sequence number of the last PUT the follower holds
+     */
+    public synchronized void addFollower(String hostname, int port, long from) {
+        for (ReplicationShipper shipper : shippers)
+            if (shipper.getHostname().equals(hostname) && shipper.getPort() == port &&
+                shipper.isRunning()) {
+                shipper.resumeFrom(from);
+                return;
+            }
+        ReplicationShipper shipper = new ReplicationShipper(log, hostname, port, retryDelay,
+                from, this.port, this::removeFollower);
+        shippers.add(shipper);
+        shipperPool.execute(shipper);
+    }
+
+    private synchronized void removeFollower(ReplicationShipper shipper) {
+        shippers.remove(shipper);
+    }
+
+    public List<ReplicationShipper> getFollowers() {
+        return shippers;
+    }
+
+    /**
+     * Record a PUT applied by this server as leader. Nothing is kept while there is no
+     * follower to ship to.
+     *
+     * @param source  IP of the ContentServer that sent the request
+     * @param request applied request
+     */
+    public void record(String source, HTTPRequest request) {
+        if (!shippers.isEmpty())
+            log.append(source, request);
+    }
+
+    public ReplicationLog getLog() {
+        return log;
+    }
+
+    /**
+     * Get sequence number of the last replicated PUT applied by this server as follower
+     */
+    public synchronized long getApplied() {
+        return applied;
+    }
+
+    /**
+     * Get epoch of the leader this server follows
+     *
+     * @return epoch, null if no replicated PUT of a known epoch was applied
+     */
+    public synchronized String getLeaderEpoch() {
+        return leaderEpoch;
+    }
+
+    /**
+     * Record the last replicated PUT applied by this server as follower
+     *
+     * @param epoch    epoch of the log of the leader
+     * @param sequence sequence number of the PUT in that log
+     */
+    public synchronized void follow(String epoch, long sequence) {
+        leaderEpoch = epoch;
+        applied = sequence;
+    }
+
+    /**
+     * Check if replicated PUTs of an epoch can be applied. A server that never applied a
+     * replicated PUT follows the first epoch shipped to it.
+     *
+     * @param epoch epoch of a replicated PUT
+     * @return false while catching up, or if the epoch is not the one of the leader
+     */
+    public synchronized boolean follows(String epoch) {
+        if (isCatchingUp.get())
+            return false;
+        return Objects.equals(leaderEpoch, epoch) || (leaderEpoch == null && applied == 0);
+    }
+
+    /**
+     * Set how the server catches up from a leader
+     *
+     * @param catchUp installs a snapshot of the leader at hostname:port and follows it
+     */
+    public void setCatchUp(Consumer<String> catchUp) {
+        this.catchUp = catchUp;
+    }
+
+    /**
+     * Catch up from a leader in the background, unless already catching up
+     *
+     * @param leader hostname:port of the leader
+     */
+    public void catchUpFrom(String leader) {
+        if (!isCatchingUp.compareAndSet(false, true))
+            return;
+        try {
+            catchUpPool.execute(() -> {
+                try {
+                    catchUp.accept(leader);
+                } finally {
+                    isCatchingUp.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            isCatchingUp.set(false);
+        }
+    }
+
+    /**
+     * Check if a catch-up is running
+     */
+    public boolean isCatchingUp() {
+        return isCatchingUp.get();
+    }
+
+    /**
+     * Status reported at GET /replication
+     *
+     * @return epoch and head of the log, epoch and sequence number of the last applied
+     * replicated PUT and followers in json format
+     */
+    public String toJSON() {
+        StringBuilder followers = new StringBuilder();
+        for (ReplicationShipper shipper : shippers)
+            followers.append(followers.length() == 0 ? "" : ", ").append("\"")
+                    .append(shipper.getHostname()).append(":").append(shipper.getPort())
+                    .append("\"");
+        String epoch;
+        long sequence;
+        synchronized (this) {
+            epoch = leaderEpoch == null ? "" : leaderEpoch;
+            sequence = applied;
+        }
+        return String.format("{\"epoch\": \"%s\", \"head\": %d, \"leaderEpoch\": \"%s\", " +
+                             "\"applied\": %d, \"followers\": [%s]}",
+                log.getEpoch(), log.getHead(), epoch, sequence, followers);
+    }
+
+    /**
+     * Stop every shipper and any catch-up
+     */
+    public void close() {
+        for (ReplicationShipper shipper : shippers)
+            shipper.stop();
+        shipperPool.shutdownNow();
+        catchUpPool.shutdownNow();
+    }
+}
@@ -0,0 +1,128 @@
+package utility.replication;
+
+import utility.http.HTTPRequest;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Bounded in-memory log of the PUT requests applied by a leader, in the order they were
+ * applied. Every entry gets the next sequence number, starting from 1. Only the latest
+ * capacity entries are kept.
+ * <p>
+ * Sequence numbers start over with every log, so each log gets a random epoch: a sequence
+ * number only identifies an entry together with the epoch of its log.
+ */
+public class ReplicationLog {
+    private final int capacity;
+    private final String epoch = UUID.randomUUID().toString();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long head = 0;
+
+    /**
+     * Applied PUT request
+     */
+    public static class Entry {
+        public final String epoch;
+        public final long sequence;
+        // IP of the ContentServer that sent the request
+        public final String source;
+        public final HTTPRequest request;
+
+        Entry(String epoch, long sequence, String source, HTTPRequest request) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.source = source;
+            this.request = request;
+        }
+
+        /**
+         * Create the PUT request sent to followers to replay this entry
+         *
+         * @return copy of the applied request with replication headers
+         */
+        public HTTPRequest toReplicationRequest() {
+            HTTPRequest replicated = new HTTPRequest("PUT", request.uri, request.version,
+                    new LinkedHashMap<>(request.header), request.body);
+            replicated.header.remove("Lamport-Clock");
+            return replicated.setHeader("Replication-Epoch", epoch)
+                    .setHeader("Replication-Sequence", String.valueOf(sequence))
+                    .setHeader("Replication-Source", source);
+        }
+    }
+
+    /**
+     * @param capacity number of entries kept
+     */
+    public ReplicationLog(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    /**
+     * Get the epoch numbering the entries of this log
+     */
+    public String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Append an applied PUT request
+     *
+     * @param source  IP of the ContentServer that sent the request
+     * @param request applied request
+     * @return sequence number of the entry
+     */
+    public synchronized long append(String source, HTTPRequest request) {
+        head += 1;
+        entries.addLast(new Entry(epoch, head, source, request));
+        if (entries.size() > capacity)
+            entries.removeFirst();
+        notifyAll();
+        return head;
+    }
+
+    /**
+     * Get sequence number of the latest entry
+     *
+     * @return sequence number, 0 if nothing was appended
+     */
+    public synchronized long getHead() {
+        return head;
+    }
+
+    /**
+     * Get sequence number of the oldest entry still kept
+     *
+     * @return sequence number, head + 1 if the log is empty
+     */
+    public synchronized long getFirstSequence() {
+        return entries.isEmpty() ? head + 1 : entries.peekFirst().sequence;
+    }
+
+    /**
+     * Get entries after sequence, waiting up to timeout for one to be appended
+     *
+     * @param sequence last sequence number already received
+     * @param timeout  maximum wait in milliseconds
+     * @return entries in sequence order, empty if none was appended in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized List<Entry> awaitAfter(long sequence, long timeout)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (head <= sequence) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return List.of();
+            wait(remaining);
+        }
+        List<Entry> result = new ArrayList<>();
+        for (Entry entry : entries)
+            if (entry.sequence > sequence)
+                result.add(entry);
+        return result;
+    }
+}
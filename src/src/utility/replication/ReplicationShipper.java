@@ -0,0 +1,205 @@
+package utility.replication;
+
+import utility.SocketClient;
+import utility.http.HTTPRequest;
+import utility.http.HTTPResponse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Ship the entries of a ReplicationLog to one follower, in order, over a persistent
+ * connection.
+ * <p>
+ * The follower acknowledges every entry it applied or already holds, and answers 409
+ * Conflict with its applied sequence number when an entry does not directly follow it, so
+ * the shipper can resume from the right entry after a reconnection or a restart. A follower
+ * behind the oldest entry kept, or refusing an entry with any other 4xx code, can no longer
+ * be shipped to and needs a snapshot: the shipper drops it and stops.
+ * <p>
+ * Entries carry the address of the leader in Replication-Leader, so a follower of another
+ * epoch can fetch a snapshot of the leader. It answers 503 until it holds the snapshot, and
+ * the shipper retries the entry like for an unavailable follower.
+ */
+public class ReplicationShipper implements Runnable {
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+    private final ReplicationLog log;
+    private final String hostname;
+    private final int port;
+    private final int retryDelay;
+    private final int leaderPort;
+    private final Consumer<ReplicationShipper> onDropped;
+    private volatile long acknowledged;
+    private volatile boolean isRunning = true;
+    private SocketClient client;
+    // hostname:port the follower reaches the leader at, null if the leader has no port
+    private String leader;
+
+    /**
+     * @param log        log of the leader
+     * @param hostname   follower hostname
+     * @param port       follower port
+     * @param retryDelay wait before reconnecting to an unreachable follower (ms)
+     */
+    public ReplicationShipper(ReplicationLog log, String hostname, int port, int retryDelay) {
+        this(log, hostname, port, retryDelay, 0, -1, shipper -> {});
+    }
+
+    /**
+     * @param log        log of the leader
+     * @param hostname   follower hostname
+     * @param port       follower port
+     * @param retryDelay wait before reconnecting to an unreachable follower (ms)
+     * @param from       sequence number of the last entry the follower already holds
+     * @param leaderPort port the leader serves snapshots on, -1 if it serves none
+     * @param onDropped  called once the follower needs a snapshot and is no longer shipped to
+     */
+    public ReplicationShipper(ReplicationLog log, String hostname, int port, int retryDelay,
+                              long from, int leaderPort,
+                              Consumer<ReplicationShipper> onDropped) {
+        this.log = log;
+        this.hostname = hostname;
+        this.port = port;
+        this.retryDelay = retryDelay;
+        this.acknowledged = from;
+        this.leaderPort = leaderPort;
+        this.onDropped = onDropped;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Get sequence number of the last entry acknowledged by the follower
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Check if the follower is still shipped to
+     */
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Resume shipping after the given entry, once the follower installed a snapshot
+     * holding every entry up to it
+     *
+     * @param sequence sequence number of the last entry the follower holds
+     */
+    public void resumeFrom(long sequence) {
+        acknowledged = sequence;
+    }
+
+    private SocketClient connect() throws IOException {
+        Socket socket = new Socket(hostname, port);
+        leader = leaderPort < 0 ? null :
+                socket.getLocalAddress().getHostAddress() + ":" + leaderPort;
+        return new SocketClient(socket, new PrintWriter(socket.getOutputStream(), true),
+                new BufferedReader(new InputStreamReader(socket.getInputStream())));
+    }
+
+    /**
+     * Stop shipping to a follower that can only catch up from a snapshot
+     */
+    private void drop(String reason) {
+        logger.info("Dropping follower " + hostname + ":" + port + ", it needs a snapshot: " +
+                    reason);
+        isRunning = false;
+        onDropped.accept(this);
+    }
+
+    /**
+     * Send entries to the follower until one is not applied. Unavailable followers are
+     * retried, entries refused for good drop the follower.
+     */
+    private void ship(List<ReplicationLog.Entry> entries) throws IOException {
+        for (ReplicationLog.Entry entry : entries) {
+            HTTPRequest request = entry.toReplicationRequest();
+            if (leader != null)
+                request.setHeader("Replication-Leader", leader);
+            client.send(request);
+            String message = client.receive();
+            client.sentMessages.clear();
+            client.receivedMessages.clear();
+            if (message == null)
+                throw new IOException("Connection closed by follower");
+            HTTPResponse response = HTTPResponse.fromMessage(message);
+            if (response.statusCode.startsWith("2")) {
+                // An entry already applied is acknowledged with the last applied one
+                String applied = response.getHeader("Replication-Applied");
+                acknowledged = applied == null ? entry.sequence : Long.parseLong(applied);
+                if (acknowledged != entry.sequence)
+                    return;
+            } else if (response.statusCode.equals("409") &&
+                       response.getHeader("Replication-Applied") != null) {
+                acknowledged = Long.parseLong(response.getHeader("Replication-Applied"));
+                return;
+            } else if (response.statusCode.startsWith("4")) {
+                drop("entry " + entry.sequence + " refused with " + response.statusCode);
+                return;
+            } else {
+                throw new IOException("Follower rejected entry " + entry.sequence + ": " +
+                                      response.statusCode);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (isRunning) {
+            try {
+                if (client == null)
+                    client = connect();
+                List<ReplicationLog.Entry> entries = log.awaitAfter(acknowledged, 1000);
+                if (!entries.isEmpty() && entries.get(0).sequence > acknowledged + 1) {
+                    drop("behind the replication log at " + acknowledged);
+                    break;
+                }
+                ship(entries);
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                logger.info("Unable to ship to " + hostname + ":" + port + ": " + e);
+                closeClient();
+                try {
+                    Thread.sleep(retryDelay);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+            }
+        }
+        closeClient();
+    }
+
+    private void closeClient() {
+        if (client == null)
+            return;
+        try {
+            client.close();
+        } catch (IOException e) {
+            logger.info("Unable to close connection to follower: " + e);
+        }
+        client = null;
+    }
+
+    /**
+     * Stop shipping, the running thread exits at its next wait
+     */
+    public void stop() {
+        isRunning = false;
+    }
+}
@@ -0,0 +1,137 @@
+package utility.replication;
+
+import utility.http.HTTPRequest;
+import utility.http.HTTPResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Transfer of the state of a leader to a server joining it.
+ * <p>
+ * The joining server sends GET /snapshot with its own address in the Replication-Follower
+ * header. Between two PUTs, the leader registers it as follower and writes its database and
+ * archive to a file, so every PUT missing from the snapshot is shipped by the replication
+ * log. The response head carries the epoch and head of the replication log, which the
+ * joining server follows from. The file follows the response head on the connection, which
+ * is then closed.
+ */
+public class StateTransfer {
+    public static final String URI = "/snapshot";
+
+    /**
+     * Snapshot received from a leader
+     */
+    public static class Snapshot {
+        // Epoch of the log of the leader
+        public final String epoch;
+        // Sequence number of the last PUT held by the snapshot
+        public final long sequence;
+        public final Path file;
+
+        Snapshot(String epoch, long sequence, Path file) {
+            this.epoch = epoch;
+            this.sequence = sequence;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Copy a file to a connection with FileChannel.transferTo
+     *
+     * @param file file to send
+     * @param out  output stream of the connection
+     * @throws IOException if the file cannot be read or the connection fails
+     */
+    public static void stream(Path file, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            long size = channel.size();
+            while (position < size)
+                position += channel.transferTo(position, size - position, target);
+        }
+        out.flush();
+    }
+
+    /**
+     * Read a response head byte by byte, so no byte of the snapshot following it is
+     * buffered away
+     */
+    private static String readHead(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int matched = 0;
+        byte[] end = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        while (matched < end.length) {
+            int next = in.read();
+            if (next < 0)
+                throw new IOException("Connection closed in snapshot head");
+            head.write(next);
+            matched = next == end[matched] ? matched + 1 : (next == end[0] ? 1 : 0);
+        }
+        return head.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fetch a snapshot of a leader and register as its follower
+     *
+     * @param hostname     leader hostname
+     * @param port         leader port
+     * @param followerPort port the leader ships PUTs to
+     * @param timeout      connect and read timeout (ms)
+     * @return snapshot written to a temporary file, to be deleted by the caller
+     * @throws IOException if the leader cannot be reached or does not send a snapshot
+     */
+    public static Snapshot fetch(String hostname, int port, int followerPort, int timeout)
+            throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(hostname, port), timeout);
+            socket.setSoTimeout(timeout);
+            HTTPRequest request = new HTTPRequest("1.1").setMethod("GET").setURI(URI)
+                    .setHeader("Host", hostname + ":" + port)
+                    .setHeader("Replication-Follower",
+                            socket.getLocalAddress().getHostAddress() + ":" + followerPort);
+            OutputStream out = socket.getOutputStream();
+            out.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            HTTPResponse response = HTTPResponse.fromMessage(readHead(in));
+            if (!response.statusCode.equals("200") ||
+                response.getHeader("Replication-Epoch") == null ||
+                response.getHeader("Replication-Sequence") == null ||
+                response.getHeader("Content-Length") == null)
+                throw new IOException("Snapshot refused: " + response.statusCode);
+            long sequence = Long.parseLong(response.getHeader("Replication-Sequence"));
+            long length = Long.parseLong(response.getHeader("Content-Length"));
+            Path file = Files.createTempFile("snapshot", ".ser");
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                ReadableByteChannel source = Channels.newChannel(in);
+                long position = 0;
+                while (position < length) {
+                    long read = channel.transferFrom(source, position, length - position);
+                    if (read <= 0)
+                        throw new IOException("Connection closed in snapshot");
+                    position += read;
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+            return new Snapshot(response.getHeader("Replication-Epoch"), sequence, file);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid snapshot head: " + e);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package utility.routing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Immutable consistent-hash ring mapping keys to nodes.
+ * <p>
+ * Each node is placed at several points of the ring (virtual nodes) and a key belongs to the
+ * first point at or after its hash, wrapping around. Adding or removing a node only moves the
+ * keys of the arcs it gains or loses, about 1 / n of them, and virtual nodes keep the share of
+ * each node close to even.
+ *
+ * @param <T> type of the nodes
+ */
+public final class HashRing<T> {
+    private final List<T> nodes;
+    // Sorted points of the ring and the node owning each of them
+    private final long[] points;
+    private final List<T> owners;
+
+    /**
+     * @param nodes        nodes of the ring
+     * @param virtualNodes number of points per node
+     * @param name         stable name of a node, hashed to place its points
+     */
+    public HashRing(List<T> nodes, int virtualNodes, Function<T, String> name) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        int count = Math.max(virtualNodes, 1);
+        long[][] placed = new long[nodes.size() * count][];
+        for (int i = 0; i < nodes.size(); i++)
+            for (int v = 0; v < count; v++)
+                placed[i * count + v] = new long[]{hash(name.apply(nodes.get(i)) + "#" + v), i};
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[placed.length];
+        owners = new ArrayList<>(placed.length);
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners.add(nodes.get((int) placed[i][1]));
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a followed by the MurmurHash3 finalizer, so similar keys such as
+     * consecutive station ids spread over the whole ring
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Get the node owning a key
+     *
+     * @param key key to look up
+     * @return owner or null if the ring has no node
+     */
+    public T get(String key) {
+        if (points.length == 0)
+            return null;
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0)
+            index = -index - 1;
+        // Keys after the last point belong to the first one
+        return owners.get(index == points.length ? 0 : index);
+    }
+
+    public List<T> getNodes() {
+        return nodes;
+    }
+
+    public boolean isEmpty() {
+        return nodes.isEmpty();
+    }
+}
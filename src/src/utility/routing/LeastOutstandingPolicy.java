@@ -0,0 +1,23 @@
+package utility.routing;
+
+import java.util.List;
+
+/**
+ * Send requests to the server with the fewest requests in flight, breaking ties by
+ * moving average latency
+ */
+public class LeastOutstandingPolicy implements RoutingPolicy {
+    @Override
+    public <T extends Routable> T select(List<T> servers) {
+        T selected = servers.get(0);
+        for (T server : servers) {
+            ServerLoad load = server.getLoad();
+            ServerLoad selectedLoad = selected.getLoad();
+            if (load.getOutstanding() < selectedLoad.getOutstanding() ||
+                (load.getOutstanding() == selectedLoad.getOutstanding() &&
+                 load.getEWMA() < selectedLoad.getEWMA()))
+                selected = server;
+        }
+        return selected;
+    }
+}
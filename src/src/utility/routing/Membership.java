@@ -0,0 +1,103 @@
+package utility.routing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable view of the servers known to the load balancer and of the leader.
+ * <p>
+ * Every change creates a new view with the next version, so readers holding a view see a
+ * consistent set of members and leader without locking, and can tell whether the
+ * membership changed by comparing versions.
+ *
+ * @param <T> type of the servers, identified by equals and hashCode
+ */
+public final class Membership<T> {
+    private final long version;
+    private final List<T> members;
+    private final Map<T, T> index;
+    private final T leader;
+
+    private Membership(long version, List<T> members, T leader) {
+        this.version = version;
+        this.members = Collections.unmodifiableList(members);
+        this.index = new HashMap<>();
+        for (T member : members)
+            index.putIfAbsent(member, member);
+        this.leader = leader;
+    }
+
+    /**
+     * Create the membership without any server, version 0
+     */
+    public static <T> Membership<T> empty() {
+        return new Membership<>(0, new ArrayList<>(), null);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the servers in the order they joined
+     */
+    public List<T> getMembers() {
+        return members;
+    }
+
+    /**
+     * Get the leader, which may not be a member if it failed to join
+     *
+     * @return leader or null if no leader was set
+     */
+    public T getLeader() {
+        return leader;
+    }
+
+    public boolean contains(T server) {
+        return index.containsKey(server);
+    }
+
+    /**
+     * Get the member equal to server
+     *
+     * @return member or null if server is not a member
+     */
+    public T get(T server) {
+        return index.get(server);
+    }
+
+    /**
+     * Create the next view with server added, or this view if it is already a member
+     */
+    public Membership<T> withMember(T server) {
+        if (contains(server))
+            return this;
+        List<T> next = new ArrayList<>(members);
+        next.add(server);
+        return new Membership<>(version + 1, next, leader);
+    }
+
+    /**
+     * Create the next view with server removed, or this view if it is not a member
+     */
+    public Membership<T> withoutMember(T server) {
+        if (!contains(server))
+            return this;
+        List<T> next = new ArrayList<>(members);
+        next.remove(server);
+        return new Membership<>(version + 1, next, leader);
+    }
+
+    /**
+     * Create the next view with server as leader, or this view if it is already the leader
+     */
+    public Membership<T> withLeader(T server) {
+        if (server == leader)
+            return this;
+        return new Membership<>(version + 1, new ArrayList<>(members), server);
+    }
+}
@@ -0,0 +1,14 @@
+package utility.routing;
+
+/**
+ * Notified after a new membership view is published
+ *
+ * @param <T> type of the servers
+ */
+public interface MembershipListener<T> {
+    /**
+     * @param previous view replaced
+     * @param current  view published
+     */
+    void onMembershipChange(Membership<T> previous, Membership<T> current);
+}
@@ -0,0 +1,167 @@
+package utility.routing;
+
+import utility.LamportClock;
+import utility.http.HTTPRequest;
+import utility.http.HTTPResponse;
+import utility.http.RawHTTPMessage;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Persistent connection to a server shared by many senders using HTTP/1.1 pipelining.
+ * <p>
+ * Requests are written without waiting for the previous response. The server answers the
+ * requests of a connection in order, so each response completes the oldest pending request.
+ * A dedicated thread reads the responses. When the connection fails, every pending request
+ * fails with it and the connection is not used again.
+ * <p>
+ * Requests are either HTTPRequests, stamped with the Lamport clock of the connection, or raw
+ * messages relayed as received.
+ */
+public class PipelinedConnection {
+    private final Logger logger = Logger.getLogger(this.getClass().getName());
+    private final String hostname;
+    private final int port;
+    private final Socket socket;
+    private final PrintWriter out;
+    private final BufferedReader in;
+    private final LamportClock clock = new LamportClock();
+    private final Queue<CompletableFuture<RawHTTPMessage>> pending =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Object writeLock = new Object();
+    private volatile boolean isOpen = true;
+
+    /**
+     * Connect to a server and start reading responses
+     *
+     * @param hostname server hostname
+     * @param port     server port
+     * @param timeout  connect timeout (ms)
+     * @throws IOException if the connection cannot be established
+     */
+    public PipelinedConnection(String hostname, int port, int timeout) throws IOException {
+        this.hostname = hostname;
+        this.port = port;
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(hostname, port), timeout);
+            out = new PrintWriter(socket.getOutputStream(), true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        Thread reader = new Thread(this::readResponses, "upstream-" + hostname + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Send a request without waiting for the responses of previous requests
+     *
+     * @param request request to send, its Lamport-Clock header is set by the connection
+     * @return response, completed exceptionally if the connection fails first
+     */
+    public CompletableFuture<HTTPResponse> send(HTTPRequest request) {
+        return write(() -> {
+            request.setHeader("Lamport-Clock",
+                    String.valueOf(clock.advanceAndGetTimeStamp()));
+            out.println(request);
+        }).thenApply(message -> {
+            HTTPResponse response = HTTPResponse.fromMessage(message.toString());
+            String timestamp = response.getHeader("Lamport-Clock");
+            if (timestamp != null)
+                clock.advanceAndSetTimeStamp(Integer.parseInt(timestamp));
+            return response;
+        });
+    }
+
+    /**
+     * Relay a request as received without waiting for the responses of previous requests
+     *
+     * @param request request to relay
+     * @return response as received, completed exceptionally if the connection fails first
+     */
+    public CompletableFuture<RawHTTPMessage> relay(RawHTTPMessage request) {
+        return write(() -> request.writeTo(out));
+    }
+
+    private CompletableFuture<RawHTTPMessage> write(Runnable writer) {
+        CompletableFuture<RawHTTPMessage> response = new CompletableFuture<>();
+        synchronized (writeLock) {
+            if (!isOpen) {
+                response.completeExceptionally(new IOException("Connection to " + hostname +
+                                                               ":" + port + " is closed"));
+                return response;
+            }
+            // Queued before writing so the response always finds its request
+            inFlight.incrementAndGet();
+            pending.add(response);
+            writer.run();
+            if (out.checkError())
+                close(new IOException("Unable to write to " + hostname + ":" + port));
+        }
+        return response;
+    }
+
+    private void readResponses() {
+        try {
+            RawHTTPMessage response;
+            while ((response = RawHTTPMessage.read(in)) != null) {
+                CompletableFuture<RawHTTPMessage> request = pending.poll();
+                if (request == null)
+                    throw new IOException("Response without request from " + hostname + ":" +
+                                          port);
+                inFlight.decrementAndGet();
+                request.complete(response);
+            }
+            close(new IOException("Connection closed by " + hostname + ":" + port));
+        } catch (IOException | RuntimeException e) {
+            close(e);
+        }
+    }
+
+    /**
+     * Close the connection, failing every pending request with cause
+     */
+    public void close(Throwable cause) {
+        synchronized (writeLock) {
+            if (!isOpen)
+                return;
+            isOpen = false;
+        }
+        logger.info("Closing upstream connection to " + hostname + ":" + port + ": " + cause);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.info("Unable to close upstream connection: " + e);
+        }
+        CompletableFuture<RawHTTPMessage> request;
+        while ((request = pending.poll()) != null) {
+            inFlight.decrementAndGet();
+            request.completeExceptionally(cause);
+        }
+    }
+
+    public boolean isOpen() {
+        return isOpen;
+    }
+
+    /**
+     * Get the number of requests waiting for their response
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
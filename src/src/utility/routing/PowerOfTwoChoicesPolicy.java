@@ -0,0 +1,26 @@
+package utility.routing;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Pick two servers at random and send the request to the one with the lower cost, that is
+ * moving average latency scaled by requests in flight. Avoids the herding of always picking
+ * the least loaded server while still moving load away from slow servers.
+ */
+public class PowerOfTwoChoicesPolicy implements RoutingPolicy {
+    @Override
+    public <T extends Routable> T select(List<T> servers) {
+        if (servers.size() == 1)
+            return servers.get(0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(servers.size());
+        int second = random.nextInt(servers.size() - 1);
+        if (second >= first)
+            second += 1;
+        T firstServer = servers.get(first);
+        T secondServer = servers.get(second);
+        return firstServer.getLoad().getCost() <= secondServer.getLoad().getCost() ?
+                firstServer : secondServer;
+    }
+}
@@ -0,0 +1,16 @@
+package utility.routing;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Send requests to each server in turn
+ */
+public class RoundRobinPolicy implements RoutingPolicy {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override
+    public <T extends Routable> T select(List<T> servers) {
+        return servers.get(Math.floorMod(next.getAndIncrement(), servers.size()));
+    }
+}
@@ -0,0 +1,8 @@
+package utility.routing;
+
+/**
+ * Server that requests can be routed to
+ */
+public interface Routable {
+    ServerLoad getLoad();
+}
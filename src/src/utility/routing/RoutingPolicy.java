@@ -0,0 +1,31 @@
+package utility.routing;
+
+import java.util.List;
+
+/**
+ * Select the server a GET request is forwarded to
+ */
+public interface RoutingPolicy {
+    /**
+     * Select a server
+     *
+     * @param servers healthy servers, not empty
+     * @return selected server
+     */
+    <T extends Routable> T select(List<T> servers);
+
+    /**
+     * Create a policy from its name in the config
+     *
+     * @param name round_robin, least_outstanding or p2c_ewma
+     * @return policy
+     */
+    static RoutingPolicy of(String name) {
+        return switch (name) {
+            case "round_robin" -> new RoundRobinPolicy();
+            case "least_outstanding" -> new LeastOutstandingPolicy();
+            case "p2c_ewma" -> new PowerOfTwoChoicesPolicy();
+            default -> throw new IllegalArgumentException("Unknown routing policy: " + name);
+        };
+    }
+}
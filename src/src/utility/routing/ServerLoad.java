@@ -0,0 +1,66 @@
+package utility.routing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load of a server as seen by the load balancer: requests in flight and an exponentially
+ * weighted moving average of response latency. Updates are lock-free.
+ */
+public class ServerLoad {
+    // Weight of the latest sample in the moving average
+    private static final double ALPHA = 0.3;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong EWMABits = new AtomicLong(Double.doubleToLongBits(0));
+
+    /**
+     * Record a request sent to the server
+     */
+    public void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Record a response received from the server
+     *
+     * @param latency time between begin and response in nanoseconds
+     */
+    public void end(long latency) {
+        outstanding.decrementAndGet();
+        EWMABits.updateAndGet(bits -> {
+            double EWMA = Double.longBitsToDouble(bits);
+            double updated = EWMA == 0 ? latency : ALPHA * latency + (1 - ALPHA) * EWMA;
+            return Double.doubleToLongBits(updated);
+        });
+    }
+
+    /**
+     * Record a request that failed without a response
+     */
+    public void cancel() {
+        outstanding.decrementAndGet();
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Get moving average of latency
+     *
+     * @return latency in nanoseconds, 0 if no response was received yet
+     */
+    public double getEWMA() {
+        return Double.longBitsToDouble(EWMABits.get());
+    }
+
+    /**
+     * Get expected latency of one more request: moving average latency scaled by the
+     * number of requests it would queue behind
+     *
+     * @return cost, lower is better
+     */
+    public double getCost() {
+        return getEWMA() * (getOutstanding() + 1);
+    }
+}
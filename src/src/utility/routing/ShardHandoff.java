@@ -0,0 +1,59 @@
+package utility.routing;
+
+import utility.weatherJson.WeatherDataView;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hand-off of stations between shards when the hash ring changes.
+ * <p>
+ * GET /handoff answers every station a server holds, PUT /handoff installs stations on a
+ * server unless it holds a more recent record of them. The load balancer reads the
+ * stations of each server of the previous ring and sends those now owned by another server
+ * to their new owner. A station a server gives away is kept there, so a station handed back
+ * later only replaces it if it was updated in between.
+ */
+public final class ShardHandoff {
+    public static final String URI = "/handoff";
+
+    private ShardHandoff() {
+    }
+
+    /**
+     * Format stations as a message body
+     *
+     * @param stations stations to send
+     * @return body holding the record of each station
+     */
+    public static String toBody(Iterable<WeatherDataView> stations) {
+        List<String> records = new ArrayList<>();
+        for (WeatherDataView station : stations)
+            records.add(station.getRecord());
+        return "{\n" + String.join(",\n", records) + "\n}";
+    }
+
+    /**
+     * Group the stations of a server that are owned by another server on a ring
+     *
+     * @param stations stations held by the server, indexed from its GET /handoff body
+     * @param server   server holding the stations
+     * @param ring     ring the stations move to
+     * @return body of the PUT /handoff sent to each new owner
+     */
+    public static <T> Map<T, String> split(Map<String, WeatherDataView> stations, T server,
+                                           HashRing<T> ring) {
+        Map<T, List<WeatherDataView>> moved = new LinkedHashMap<>();
+        for (WeatherDataView station : stations.values()) {
+            T owner = ring.get(station.getID());
+            if (owner != null && !owner.equals(server))
+                moved.computeIfAbsent(owner, key -> new ArrayList<>()).add(station);
+        }
+        Map<T, String> bodies = new LinkedHashMap<>();
+        for (Map.Entry<T, List<WeatherDataView>> entry : moved.entrySet())
+            bodies.put(entry.getKey(), toBody(entry.getValue()));
+        return bodies;
+    }
+}
@@ -0,0 +1,172 @@
+package utility.routing;
+
+import utility.http.HTTPRequest;
+import utility.http.HTTPResponse;
+import utility.http.RawHTTPMessage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounded set of pipelined connections to one server shared by every client session of the
+ * load balancer.
+ * <p>
+ * A request goes to the open connection with the fewest requests in flight. A new
+ * connection is only opened when every connection is busy and the pool is not full, so the
+ * number of connections to the server stays bounded however many clients are connected.
+ */
+public class UpstreamPool {
+    private final String hostname;
+    private final int port;
+    private final int maxConnections;
+    private final int timeout;
+    private final List<PipelinedConnection> connections = new CopyOnWriteArrayList<>();
+    private volatile boolean isClosed;
+
+    /**
+     * @param hostname       server hostname
+     * @param port           server port
+     * @param maxConnections maximum number of connections to the server
+     * @param timeout        time to connect and to receive a response (ms)
+     */
+    public UpstreamPool(String hostname, int port, int maxConnections, int timeout) {
+        this.hostname = hostname;
+        this.port = port;
+        this.maxConnections = maxConnections;
+        this.timeout = timeout;
+    }
+
+    private PipelinedConnection leastBusy() {
+        PipelinedConnection best = null;
+        for (PipelinedConnection connection : connections)
+            if (connection.isOpen() &&
+                (best == null || connection.getInFlight() < best.getInFlight()))
+                best = connection;
+        return best;
+    }
+
+    private PipelinedConnection acquire() throws IOException {
+        connections.removeIf(connection -> !connection.isOpen());
+        PipelinedConnection connection = leastBusy();
+        if (connection != null && (connection.getInFlight() == 0 ||
+                                   connections.size() >= maxConnections))
+            return connection;
+        synchronized (this) {
+            if (isClosed)
+                throw new IOException("Upstream pool to " + hostname + ":" + port +
+                                      " is closed");
+            if (connections.size() >= maxConnections) {
+                connection = leastBusy();
+                if (connection == null)
+                    throw new IOException("No connection to " + hostname + ":" + port);
+                return connection;
+            }
+            connection = new PipelinedConnection(hostname, port, timeout);
+            connections.add(connection);
+            return connection;
+        }
+    }
+
+    /**
+     * Send a request over a pooled connection and wait for its response
+     *
+     * @param request request to send
+     * @return response of the server
+     * @throws IOException if the server cannot be reached or does not respond within
+     *                     timeout
+     */
+    public HTTPResponse send(HTTPRequest request) throws IOException {
+        return submit(request).await();
+    }
+
+    /**
+     * Response of a request sent by submit
+     */
+    public class Pending {
+        private final PipelinedConnection connection;
+        private final Future<HTTPResponse> response;
+
+        private Pending(PipelinedConnection connection, Future<HTTPResponse> response) {
+            this.connection = connection;
+            this.response = response;
+        }
+
+        /**
+         * Wait for the response
+         *
+         * @return response of the server
+         * @throws IOException if the server does not respond within timeout
+         */
+        public HTTPResponse await() throws IOException {
+            return UpstreamPool.this.await(connection, response);
+        }
+    }
+
+    /**
+     * Send a request over a pooled connection without waiting for its response, so several
+     * requests can be in flight from one client
+     *
+     * @param request request to send
+     * @return pending response
+     * @throws IOException if the server cannot be reached
+     */
+    public Pending submit(HTTPRequest request) throws IOException {
+        PipelinedConnection connection = acquire();
+        return new Pending(connection, connection.send(request));
+    }
+
+    /**
+     * Relay a request as received over a pooled connection and wait for its response
+     *
+     * @param request request to relay
+     * @return response of the server as received
+     * @throws IOException if the server cannot be reached or does not respond within
+     *                     timeout
+     */
+    public RawHTTPMessage relay(RawHTTPMessage request) throws IOException {
+        PipelinedConnection connection = acquire();
+        return await(connection, connection.relay(request));
+    }
+
+    private <T> T await(PipelinedConnection connection, Future<T> response)
+            throws IOException {
+        try {
+            return response.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Later responses on this connection would be matched to the wrong request
+            IOException cause = new IOException("No response from " + hostname + ":" + port +
+                                                " after " + timeout + " ms");
+            connection.close(cause);
+            throw cause;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() :
+                    new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + hostname + ":" + port);
+        }
+    }
+
+    /**
+     * Get the number of open connections to the server
+     */
+    public int getConnectionCount() {
+        return (int) connections.stream().filter(PipelinedConnection::isOpen).count();
+    }
+
+    /**
+     * Close every connection, pending requests fail
+     */
+    public synchronized void close() {
+        isClosed = true;
+        for (PipelinedConnection connection : connections)
+            connection.close(new IOException("Upstream pool to " + hostname + ":" + port +
+                                             " is closed"));
+        connections.clear();
+    }
+}
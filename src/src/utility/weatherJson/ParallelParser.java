@@ -0,0 +1,117 @@
+package utility.weatherJson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join version of Parser.index for large multi-station messages.
+ * <p>
+ * A message longer than chunkSize is split in two at the start of an "id" line close to
+ * its middle, each half is indexed on the ForkJoinPool, and the results are merged with
+ * the latest local_date_time_full wins rule used by Parser. A split before an "id" line
+ * is only a real record boundary if the record before it already has an id, which is
+ * always the case for bodies generated by Parser.toString. If any split turns out not to
+ * be a boundary, the message is indexed again sequentially so the result never differs
+ * from Parser.index.
+ */
+public class ParallelParser {
+    private static final String RECORD_START = "\n\"id\"";
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    /**
+     * Construct a parallel parser
+     *
+     * @param pool      pool to index chunks on
+     * @param chunkSize messages up to this many characters are indexed sequentially
+     */
+    public ParallelParser(ForkJoinPool pool, int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = Math.max(chunkSize, 1);
+    }
+
+    /**
+     * Index JSON from HTTP message body without decoding it.
+     *
+     * @param message body of Content-Type application/json
+     * @return Map of stationID and lazy view over message, latest timestamp wins
+     */
+    public Map<String, WeatherDataView> index(String message) {
+        if (message.length() <= chunkSize)
+            return Parser.index(message);
+        Chunk result = pool.invoke(new IndexTask(message, 0, message.length()));
+        if (!result.isExact)
+            return Parser.index(message);
+        return result.views;
+    }
+
+    /**
+     * Indexing result of a message range
+     */
+    private static class Chunk {
+        final Map<String, WeatherDataView> views;
+        // Whether the last record of the range can be closed at the range end
+        final boolean isClosed;
+        // Whether every split inside the range is a record boundary
+        final boolean isExact;
+
+        Chunk(Map<String, WeatherDataView> views, boolean isClosed, boolean isExact) {
+            this.views = views;
+            this.isClosed = isClosed;
+            this.isExact = isExact;
+        }
+    }
+
+    private class IndexTask extends RecursiveTask<Chunk> {
+        private static final long serialVersionUID = 1L;
+        private final String message;
+        private final int from;
+        private final int to;
+
+        IndexTask(String message, int from, int to) {
+            this.message = message;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Find the start of an "id" line at or after the middle of the range, falling
+         * back to before the middle
+         *
+         * @return index of the first character of the line or -1 if none
+         */
+        private int findSplit() {
+            int middle = from + (to - from) / 2;
+            int split = message.indexOf(RECORD_START, middle);
+            if (split == -1 || split + 1 >= to)
+                split = message.lastIndexOf(RECORD_START, middle);
+            // Both halves must be non-empty
+            if (split < from || split + 1 >= to)
+                return -1;
+            return split + 1;
+        }
+
+        @Override
+        protected Chunk compute() {
+            int split = to - from > chunkSize ? findSplit() : -1;
+            if (split <= from) {
+                Map<String, WeatherDataView> views = new LinkedHashMap<>();
+                boolean isClosed = Parser.indexRange(message, from, to, views);
+                return new Chunk(views, isClosed, true);
+            }
+            // Not an id entry, this split can never be a record boundary
+            if (!Parser.isIDLine(message, split))
+                return new Chunk(new LinkedHashMap<>(), false, false);
+            IndexTask left = new IndexTask(message, from, split);
+            IndexTask right = new IndexTask(message, split, to);
+            right.fork();
+            Chunk leftChunk = left.compute();
+            Chunk rightChunk = right.join();
+            Parser.merge(leftChunk.views, rightChunk.views);
+            return new Chunk(leftChunk.views, rightChunk.isClosed,
+                    leftChunk.isExact && rightChunk.isExact && leftChunk.isClosed);
+        }
+    }
+}
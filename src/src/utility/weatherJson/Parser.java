@@ -1,6 +1,9 @@
 package utility.weatherJson;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
@@ -8,6 +11,12 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Parser {
+    private static final Pattern FILE_PATTERN = Pattern.compile(
+            "(\\w+): ?([^\n]+) ?$"
+    );
+    private static final Pattern MESSAGE_PATTERN = Pattern.compile(
+            "\"(\\w+)\": ?(\"[^\"]*\"|[^,\\n}]+),?$"
+    );
 
     /**
      * Get underlying container object
@@ -20,6 +29,9 @@ public class Parser {
 
     private final Map<String, WeatherData> container;
     private WeatherData data;
+    // Records are written here as they are parsed instead of kept in container
+    private Writer stream;
+    private boolean isFirstStreamed;
 
     /**
      * JSON Parser.
@@ -66,11 +78,38 @@ public class Parser {
      * @throws IOException if file does not exist
      */
     public void parseFile(Path filePath) throws IOException {
-        Pattern pattern = Pattern.compile(
-                "(\\w+): ?([^\n]+) ?$"
-        );
         List<String> splitMessage = Files.readAllLines(filePath);
-        parseString(splitMessage, pattern);
+        parseString(splitMessage, FILE_PATTERN);
+    }
+
+    /**
+     * Extract JSON from file, writing each record as soon as it is parsed, in the format of
+     * toString.
+     * <p>
+     * Records are not kept, so the file is never held in memory. A station recorded several
+     * times is written each time; receivers keep its latest record, as parseMessage does.
+     *
+     * @param filePath path to json file (txt format)
+     * @param out      writer of the JSON message
+     * @throws IOException if file does not exist or out fails
+     */
+    public void streamFile(Path filePath, Writer out) throws IOException {
+        clear();
+        stream = out;
+        isFirstStreamed = true;
+        try (BufferedReader reader = Files.newBufferedReader(filePath)) {
+            out.write("{\n");
+            String line;
+            while ((line = reader.readLine()) != null)
+                parseLine(line, FILE_PATTERN);
+            putIfPermitted();
+            out.write("\n}");
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            stream = null;
+            data = new WeatherData();
+        }
     }
 
     /**
@@ -79,12 +118,195 @@ public class Parser {
      * @param message body of Content-Type application/json
      */
     public void parseMessage(String message) {
-        Pattern pattern = Pattern.compile(
-                "\"(\\w+)\": ?(\"[^\"]*\"|[^,\\n}]+),?$"
-        );
         List<String> splitMessage = new ArrayList<>(Arrays.asList(message.split("\n")));
 
-        parseString(splitMessage, pattern);
+        parseString(splitMessage, MESSAGE_PATTERN);
+    }
+
+    /**
+     * Index JSON from HTTP message body without decoding it.
+     * <p>
+     * Records are delimited with the same rule as parseMessage (a repeated key starts a
+     * new record), but only the record boundaries and the raw id and
+     * local_date_time_full values are kept. Field decoding and formatting are deferred
+     * to the first WeatherDataView.toString() call.
+     *
+     * @param message body of Content-Type application/json
+     * @return Map of stationID and lazy view over message, latest timestamp wins
+     */
+    public static Map<String, WeatherDataView> index(String message) {
+        Map<String, WeatherDataView> views = new LinkedHashMap<>();
+        indexRange(message, 0, message.length(), views);
+        return views;
+    }
+
+    /**
+     * Index records of message[from, to) into views.
+     * <p>
+     * The range is assumed to start a new record. Used directly by index and on each
+     * chunk by ParallelParser.
+     *
+     * @param message body of Content-Type application/json
+     * @param from    index of the first character of the range, must start a line
+     * @param to      index after the last character of the range
+     * @param views   Map of stationID and lazy view to add records to
+     * @return true if the last record of the range has an id or no key at all, meaning
+     * the next line can safely start a new record
+     */
+    static boolean indexRange(String message, int from, int to,
+                              Map<String, WeatherDataView> views) {
+        Set<String> keys = new HashSet<>();
+        Matcher matcher = MESSAGE_PATTERN.matcher(message);
+        // Record spans from the start of its first key line to the end of its last one
+        int recordStart = from;
+        int recordEnd = from;
+        String id = null;
+        String TS = null;
+        int lineStart = from;
+        while (lineStart <= to) {
+            int lineEnd = message.indexOf('\n', lineStart);
+            if (lineEnd == -1 || lineEnd > to)
+                lineEnd = to;
+            matcher.region(lineStart, lineEnd);
+            while (matcher.find()) {
+                String key = matcher.group(1);
+                // Repeated key - close current record
+                if (keys.contains(key)) {
+                    indexIfPermitted(views, message, recordStart, recordEnd, id, TS);
+                    keys.clear();
+                    id = null;
+                    TS = null;
+                }
+                if (keys.isEmpty())
+                    recordStart = lineStart;
+                recordEnd = lineEnd;
+                keys.add(key);
+                if (key.equals("id"))
+                    id = unquote(matcher.group(2));
+                else if (key.equals("local_date_time_full"))
+                    TS = unquote(matcher.group(2));
+            }
+            lineStart = lineEnd + 1;
+        }
+        // Index the last record if valid
+        indexIfPermitted(views, message, recordStart, recordEnd, id, TS);
+        return id != null || keys.isEmpty();
+    }
+
+    /**
+     * Merge the stations of a delta message into a base message without decoding them.
+     * <p>
+     * Stations in delta replace the stations with the same id in base, in place, and new
+     * stations are appended. Records are copied as received.
+     *
+     * @param base  body of Content-Type application/json
+     * @param delta body of Content-Type application/json
+     * @return merged body in the format of toString
+     */
+    public static String mergeMessage(String base, String delta) {
+        Map<String, WeatherDataView> records = index(base);
+        records.putAll(index(delta));
+        StringBuilder builder = new StringBuilder("{\n");
+        Iterator<WeatherDataView> iterator = records.values().iterator();
+        while (iterator.hasNext()) {
+            builder.append(iterator.next().getRecord());
+            if (iterator.hasNext())
+                builder.append(",\n");
+        }
+        builder.append("\n}");
+        return builder.toString();
+    }
+
+    /**
+     * Check whether the line starting at lineStart holds an id key
+     *
+     * @param message   body of Content-Type application/json
+     * @param lineStart index of the first character of the line
+     * @return true if the line is parsed as an id entry
+     */
+    static boolean isIDLine(String message, int lineStart) {
+        int lineEnd = message.indexOf('\n', lineStart);
+        Matcher matcher = MESSAGE_PATTERN.matcher(message);
+        matcher.region(lineStart, lineEnd == -1 ? message.length() : lineEnd);
+        return matcher.find() && matcher.group(1).equals("id");
+    }
+
+    /**
+     * Merge views indexed from a later part of a message into views indexed from an
+     * earlier part, using the same latest timestamp wins rule
+     *
+     * @param into  views of the earlier part, updated in place
+     * @param later views of the later part
+     */
+    static void merge(Map<String, WeatherDataView> into,
+                      Map<String, WeatherDataView> later) {
+        for (WeatherDataView view : later.values()) {
+            WeatherDataView oldView = into.get(view.getID());
+            if (oldView == null || supersedes(oldView.getRawTS(), view.getRawTS()))
+                into.put(view.getID(), view);
+        }
+    }
+
+    /**
+     * Find the raw value of a key in message[from, to) without decoding the other entries
+     *
+     * @param message body of Content-Type application/json
+     * @param from    index of the first character of the range
+     * @param to      index after the last character of the range
+     * @param key     key looked for
+     * @return value without quotes or null if the key is absent
+     */
+    static String findValue(String message, int from, int to, String key) {
+        Matcher matcher = MESSAGE_PATTERN.matcher(message);
+        int lineStart = from;
+        while (lineStart < to) {
+            int lineEnd = message.indexOf('\n', lineStart);
+            if (lineEnd == -1 || lineEnd > to)
+                lineEnd = to;
+            matcher.region(lineStart, lineEnd);
+            while (matcher.find())
+                if (matcher.group(1).equals(key))
+                    return unquote(matcher.group(2).trim());
+            lineStart = lineEnd + 1;
+        }
+        return null;
+    }
+
+    private static String unquote(String value) {
+        if (value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"')
+            return value.substring(1, value.length() - 1);
+        return value;
+    }
+
+    /**
+     * Index counterpart of putIfPermitted, applied to raw timestamps
+     */
+    private static void indexIfPermitted(Map<String, WeatherDataView> views,
+                                         String message, int start, int end,
+                                         String id, String TS) {
+        if (id == null)
+            return;
+        WeatherDataView oldView = views.get(id);
+        if (oldView == null || supersedes(oldView.getRawTS(), TS))
+            views.put(id, new WeatherDataView(message, start, end, id, TS));
+    }
+
+    /**
+     * Whether new data under an id replaces old data under the same id.
+     * <p>
+     * True if old data has no valid TS and new data has, or both are valid and new
+     * TS is of higher value (more recent)
+     *
+     * @param oldTS raw local_date_time_full of old data, can be null
+     * @param newTS raw local_date_time_full of new data, can be null
+     * @return true if new data should replace old data
+     */
+    public static boolean supersedes(String oldTS, String newTS) {
+        boolean oldValid = WeatherData.isValidTS(oldTS);
+        boolean newValid = WeatherData.isValidTS(newTS);
+        if (!oldValid)
+            return newValid;
+        return newValid && Long.parseUnsignedLong(newTS) > Long.parseUnsignedLong(oldTS);
     }
 
     /**
@@ -152,25 +374,18 @@ public class Parser {
      * is of higher value (more recent)
      */
     private void putIfPermitted() {
+        if (stream != null) {
+            writeStreamed();
+            return;
+        }
         // Only consider putting new data if ID field is present
         if (data.containsKey("id")) {
             String id = data.getID();
             // Compare TS field between old and new if an old entry is present
             if (container.containsKey(id)) {
                 WeatherData oldData = container.get(id);
-                // If old data has no TS and new data has, use new data
-                if (!oldData.hasValidTS() & data.hasValidTS()) {
+                if (supersedes(oldData.getRawTS(), data.getRawTS()))
                     container.put(id, data);
-                    return;
-                }
-                // If both old and new has DT, choose the one with higher timestamp
-                if (oldData.hasValidTS() && data.hasValidTS()) {
-                    long oldTS = oldData.getTS();
-                    long newTS = data.getTS();
-                    if (newTS > oldTS) {
-                        container.put(id, data);
-                    }
-                }
             } else { // Old entry not present, just put new one
                 container.put(id, data);
             }
@@ -178,6 +393,22 @@ public class Parser {
     }
 
 
+    /**
+     * Write the current data to stream if its ID field is present
+     */
+    private void writeStreamed() {
+        if (!data.containsKey("id"))
+            return;
+        try {
+            if (!isFirstStreamed)
+                stream.write(",\n");
+            stream.write(data.toString());
+            isFirstStreamed = false;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * Generate JSON format message based on parser's current state
      *
@@ -197,4 +428,25 @@ public class Parser {
         return builder.toString();
     }
 
+    /**
+     * Generate JSON format message containing only some stations
+     *
+     * @param ids station ids to include, ids not in container are ignored
+     * @return String output in the same format as toString
+     */
+    public String toString(Collection<String> ids) {
+        StringBuilder builder = new StringBuilder("{\n");
+        boolean isFirst = true;
+        for (Map.Entry<String, WeatherData> entry : container.entrySet()) {
+            if (!ids.contains(entry.getKey()))
+                continue;
+            if (!isFirst)
+                builder.append(",\n");
+            builder.append(entry.getValue().toString());
+            isFirst = false;
+        }
+        builder.append("\n}");
+        return builder.toString();
+    }
+
 }
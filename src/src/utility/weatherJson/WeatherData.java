@@ -68,7 +68,18 @@ public class WeatherData {
      * @return true if the value can be converted to long
      */
     public boolean hasValidTS() {
-        String TS = String.valueOf(fields.get("local_date_time_full"));
+        return isValidTS(getRawTS());
+    }
+
+    /**
+     * Check whether a raw local_date_time_full value is valid
+     *
+     * @param TS raw value, can be null
+     * @return true if the value can be converted to long
+     */
+    public static boolean isValidTS(String TS) {
+        if (TS == null)
+            return false;
         try {
             Long.parseUnsignedLong(TS);
             return true;
@@ -77,6 +88,16 @@ public class WeatherData {
         }
     }
 
+    /**
+     * Get value of local_date_time_full without conversion
+     *
+     * @return raw value or null if absent
+     */
+    public String getRawTS() {
+        Object TS = fields.get("local_date_time_full");
+        return TS == null ? null : String.valueOf(TS);
+    }
+
     /**
      * Get value of local_date_time_full
      *
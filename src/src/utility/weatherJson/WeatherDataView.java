@@ -0,0 +1,162 @@
+package utility.weatherJson;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Lazy view of a single station record inside a received PUT body.
+ * <p>
+ * The view only stores the record boundaries in the shared body together with the raw
+ * id and local_date_time_full values found by Parser.index. The record is decoded and
+ * formatted the first time toString is called and the result is memoized, so stations
+ * that are overwritten before being read are never decoded. A view keeps the whole body
+ * it was indexed from alive, so views are detached from it before being stored.
+ */
+public class WeatherDataView implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String source;
+    private final int start;
+    private final int end;
+    private final String id;
+    private final String TS;
+    private transient volatile String decoded;
+    private transient volatile String ETag;
+
+    /**
+     * Create a view over source[start, end)
+     *
+     * @param source PUT body shared by all views created from the same message
+     * @param start  index of the first character of the record
+     * @param end    index after the last character of the record
+     * @param id     station id
+     * @param TS     raw local_date_time_full value, can be null
+     */
+    public WeatherDataView(String source, int start, int end, String id, String TS) {
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.id = id;
+        this.TS = TS;
+    }
+
+    /**
+     * Get a view over a copy of its own record only, so storing it does not keep the rest
+     * of the body alive, nor serialize it with the view. The decoded record is kept.
+     *
+     * @return view holding only its record, or this view if it already does
+     */
+    public WeatherDataView detach() {
+        if (start == 0 && end == source.length())
+            return this;
+        WeatherDataView view = new WeatherDataView(source.substring(start, end), 0,
+                end - start, id, TS);
+        view.decoded = decoded;
+        return view;
+    }
+
+    /**
+     * Get stationID
+     *
+     * @return stationID in String
+     */
+    public String getID() {
+        return id;
+    }
+
+    /**
+     * Get value of local_date_time_full without conversion
+     *
+     * @return raw value or null if absent
+     */
+    public String getRawTS() {
+        return TS;
+    }
+
+    /**
+     * Get the raw value of an entry of the record, found without decoding the record
+     *
+     * @param key key of the entry
+     * @return value without quotes or null if absent
+     */
+    public String getValue(String key) {
+        return Parser.findValue(source, start, end, key);
+    }
+
+    /**
+     * Get the entity tag of the record, sent as ETag. It is the start of a SHA-256 hash of
+     * the record, so every server holding the same record gives the same tag, whatever the
+     * Lamport timestamp it stored it at. Like toString, it is computed on first call.
+     *
+     * @return quoted entity tag
+     */
+    public String getETag() {
+        String result = ETag;
+        if (result == null) {
+            try {
+                byte[] hash = MessageDigest.getInstance("SHA-256")
+                        .digest(getRecord().getBytes(StandardCharsets.UTF_8));
+                result = "\"" + HexFormat.of().formatHex(hash, 0, 8) + "\"";
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform provides SHA-256
+                throw new IllegalStateException(e);
+            }
+            ETag = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the record exactly as received, without the separator after its last entry
+     *
+     * @return raw key value lines of the record
+     */
+    public String getRecord() {
+        String record = source.substring(start, end);
+        if (record.endsWith(","))
+            return record.substring(0, record.length() - 1);
+        return record;
+    }
+
+    /**
+     * Check whether the record has been decoded
+     *
+     * @return true if toString has already been computed
+     */
+    public boolean isDecoded() {
+        return decoded != null;
+    }
+
+    /**
+     * Decode the record and format it as WeatherData.toString does. The result is
+     * computed once and reused by later calls.
+     *
+     * @return string output with each entry in json format.
+     */
+    public String toString() {
+        String result = decoded;
+        if (result == null) {
+            Parser parser = new Parser();
+            parser.parseMessage(source.substring(start, end));
+            result = parser.get(id).toString();
+            decoded = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        return toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
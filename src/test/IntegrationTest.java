@@ -1,18 +1,33 @@
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import utility.ServerSnapshot;
+import utility.http.ContentCoding;
 import utility.http.HTTPRequest;
 import utility.http.HTTPResponse;
+import utility.replication.Replication;
+import utility.routing.PipelinedConnection;
+import utility.routing.UpstreamPool;
 import utility.weatherJson.Parser;
+import utility.weatherJson.WeatherDataView;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.assertThrows;
 import static org.junit.jupiter.api.Assertions.*;
@@ -117,9 +132,13 @@ class HTTPErrorMessageHandlingTest extends IntegrationTest {
                      "Accept: application/json\r\n" +
                      "Lamport-Clock: 1\r\n" +
                      "\r\n", client.sentMessages.get(0));
+        String ETag = HTTPResponse.fromMessage(client.receivedMessages.get(0))
+                .getHeader("ETag");
+        assertTrue(ETag.matches("\"[0-9a-f]{16}\""));
         assertEquals("HTTP/1.1 200 OK\r\n" +
                      "Content-Type: application/json\r\n" +
                      "Content-Length: 62\r\n" +
+                     "ETag: " + ETag + "\r\n" +
                      "Lamport-Clock: 9\r\n" +
                      "\r\n" +
                      "{\n" +
@@ -519,3 +538,864 @@ class MultiplePUTWithCompositeDataTest extends IntegrationTest {
         deleteFiles();
     }
 }
+
+class DeltaPUTTest extends IntegrationTest {
+    Path watchDir = Paths.get("src/resources/FileSystem/delta_watch_test");
+    String compositeFile = "src/resources/WeatherData/Composite/Adelaide_2023-07-15_16-30" +
+                           "-00.txt";
+    Path changedFile = watchDir.resolve("Adelaide.txt");
+    ContentServer contentServer;
+    Future<?> watchTask;
+
+    @BeforeEach
+    void startWatching() throws IOException {
+        Files.createDirectories(watchDir);
+        Files.copy(Paths.get(compositeFile), changedFile);
+        contentServer = ContentServer.from_args(("127.0.0.1:4567 " + watchDir + " --watch")
+                .split(" "));
+        contentServer.setDELTA_UPLOAD(true);
+        contentServer.setWATCH_WINDOW(50);
+        watchTask = threadPool.submit(() -> {
+            contentServer.watch();
+            return null;
+        });
+    }
+
+    @AfterEach
+    void stopWatching() throws Exception {
+        contentServer.stopWatching();
+        watchTask.get(5, TimeUnit.SECONDS);
+        if (Files.exists(watchDir))
+            try (Stream<Path> paths = Files.walk(watchDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile)
+                        .forEach(File::delete);
+            }
+    }
+
+    String getFullBody(String fileName) throws IOException {
+        Parser parser = new Parser();
+        parser.parseFile(Paths.get(fileName));
+        return parser.toString();
+    }
+
+    String getArchivedValue() {
+        Map<String, ConcurrentMap<String, String>> files =
+                server.getArchive().get("/127.0.0.1");
+        Map<String, String> entry = files == null ? null : files.get(changedFile.toString());
+        return entry == null ? null : entry.get("Value");
+    }
+
+    void awaitArchivedValue(String value) throws InterruptedException {
+        for (int i = 0; i < 100 && !value.equals(getArchivedValue()); i++)
+            Thread.sleep(50);
+        assertEquals(value, getArchivedValue());
+    }
+
+    List<HTTPRequest> getSentPUTs() {
+        List<HTTPRequest> requests = new ArrayList<>();
+        for (String message : new ArrayList<>(contentServer.sentMessages))
+            if (message.startsWith("PUT"))
+                requests.add(HTTPRequest.fromMessage(message));
+        return requests;
+    }
+
+    void changeTemperature() throws IOException {
+        Files.writeString(changedFile, Files.readString(changedFile).replace("air_temp:14.3",
+                "air_temp:20.1"));
+    }
+
+    @Test
+    void testFirstDeltaUploadSendsFullFile() throws Exception {
+        awaitArchivedValue(getFullBody(compositeFile));
+        HTTPRequest request = getSentPUTs().get(0);
+        assertNotNull(request.getHeader("State-Digest"));
+        assertNull(request.getHeader("Delta-Base"));
+        assertEquals(getFullBody(compositeFile), request.body);
+    }
+
+    @Test
+    void testChangedStationIsMergedIntoArchive() throws Exception {
+        awaitArchivedValue(getFullBody(compositeFile));
+        changeTemperature();
+        awaitArchivedValue(getFullBody(changedFile.toString()));
+        HTTPRequest request = getSentPUTs().get(1);
+        assertNotNull(request.getHeader("Delta-Base"));
+        assertEquals(1, Parser.index(request.body).size());
+        assertTrue(request.body.contains("\"air_temp\": 20.1"));
+        assertTrue(getResponse("5000").body.contains("\"air_temp\": 20.1"));
+    }
+
+    @Test
+    void testUnchangedFileIsNotSent() throws Exception {
+        awaitArchivedValue(getFullBody(compositeFile));
+        // Modified on disk with the same content
+        Files.writeString(changedFile, Files.readString(changedFile));
+        Files.copy(Paths.get(fileNames.get(2)), watchDir.resolve("Glenelg.txt"));
+        for (int i = 0; i < 100 && getSentPUTs().size() < 2; i++)
+            Thread.sleep(50);
+        Thread.sleep(200);
+        List<HTTPRequest> requests = getSentPUTs();
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(1).uri.endsWith("Glenelg.txt"));
+    }
+
+    @Test
+    void testDeltaWithoutBaseFallsBackToFullUpload() throws Exception {
+        awaitArchivedValue(getFullBody(compositeFile));
+        server.getArchive().get("/127.0.0.1").remove(changedFile.toString());
+        changeTemperature();
+        awaitArchivedValue(getFullBody(changedFile.toString()));
+        List<HTTPRequest> requests = getSentPUTs();
+        assertEquals(3, requests.size());
+        assertNotNull(requests.get(1).getHeader("Delta-Base"));
+        assertNull(requests.get(2).getHeader("Delta-Base"));
+    }
+
+    @Test
+    void testOneShotUploadIsNeverADelta() throws Exception {
+        awaitArchivedValue(getFullBody(compositeFile));
+        // A one-shot upload may come after its archive entry expired
+        ContentServer oneShot = ContentServer.from_args(("127.0.0.1:4567 " + changedFile)
+                .split(" "));
+        oneShot.setDELTA_UPLOAD(true);
+        oneShot.run();
+        HTTPRequest request = HTTPRequest.fromMessage(oneShot.sentMessages.get(1));
+        assertNull(request.getHeader("Delta-Base"));
+        assertEquals(getFullBody(compositeFile), request.body);
+    }
+}
+
+class WatchPUTTest extends IntegrationTest {
+    Path watchDir = Paths.get("src/resources/FileSystem/watch_test");
+    String singleEntryDir = "src/resources/WeatherData/SingleEntry/";
+    ContentServer contentServer;
+    Future<?> watchTask;
+
+    @BeforeEach
+    void startWatching() throws IOException {
+        Files.createDirectories(watchDir);
+        Files.copy(Paths.get(singleEntryDir + "Adelaide_2023-07-15_16-00-00.txt"),
+                watchDir.resolve("Adelaide.txt"));
+        contentServer = ContentServer.from_args(("127.0.0.1:4567 " + watchDir + " --watch")
+                .split(" "));
+        contentServer.setWATCH_WINDOW(50);
+        watchTask = threadPool.submit(() -> {
+            contentServer.watch();
+            return null;
+        });
+    }
+
+    @AfterEach
+    void stopWatching() throws Exception {
+        contentServer.stopWatching();
+        watchTask.get(5, TimeUnit.SECONDS);
+        try (Stream<Path> paths = Files.walk(watchDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    void awaitStation(String stationID, String TS) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            WeatherDataView view = server.getDatabase().get(stationID);
+            if (view != null && TS.equals(view.getRawTS()))
+                return;
+            Thread.sleep(100);
+        }
+        fail("Station " + stationID + " was not updated to " + TS);
+    }
+
+    @Test
+    void testExistingFileIsUploaded() throws InterruptedException {
+        awaitStation("5000", "20230715160000");
+        // Watch mode skips the initial GET
+        assertTrue(contentServer.sentMessages.get(0).startsWith("PUT"));
+    }
+
+    @Test
+    void testCreatedAndModifiedFilesAreUploaded() throws Exception {
+        awaitStation("5000", "20230715160000");
+        Files.copy(Paths.get(singleEntryDir + "Glenelg_2023-07-15_16-00-00.txt"),
+                watchDir.resolve("Glenelg.txt"));
+        awaitStation("5045", "20230715160000");
+        Files.copy(Paths.get(singleEntryDir + "Adelaide_2023-07-15_16-30-00.txt"),
+                watchDir.resolve("Adelaide.txt"), StandardCopyOption.REPLACE_EXISTING);
+        awaitStation("5000", "20230715163000");
+        // Every upload used the same connection
+        assertEquals(1, server.getArchive().size());
+        assertEquals(2, server.getArchive().get("/127.0.0.1").size());
+    }
+
+    @Test
+    void testFileWrittenWithoutPauseIsStillUploaded() throws Exception {
+        awaitStation("5000", "20230715160000");
+        List<byte[]> versions = List.of(
+                Files.readAllBytes(Paths.get(singleEntryDir + "Adelaide_2023-07-15_16-30-00.txt")),
+                Files.readAllBytes(Paths.get(singleEntryDir + "Adelaide_2023-07-15_16-00-00.txt")));
+        long end = System.currentTimeMillis() + 1000;
+        for (int i = 0; System.currentTimeMillis() < end; i++) {
+            Files.write(watchDir.resolve("Adelaide.txt"), versions.get(i % 2));
+            Thread.sleep(10);
+        }
+        // Uploaded while the writes went on, every 50 ms window
+        assertTrue(server.getMetrics().counter("aggregation_requests_total", "method", "PUT",
+                "code", "200").sum() >= 2);
+    }
+}
+
+class LoadGeneratorTest extends IntegrationTest {
+    LoadGenerator loadGenerator;
+
+    @BeforeEach
+    void setUpLoadGenerator() {
+        loadGenerator = new LoadGenerator(hostname, port);
+        loadGenerator.setCONTENT_SERVERS(2);
+        loadGenerator.setGET_CLIENTS(2);
+        loadGenerator.setPAYLOAD_STATIONS(3);
+        loadGenerator.setDURATION(1000);
+        loadGenerator.setWARMUP(300);
+    }
+
+    @Test
+    void testClosedLoopRecordsEveryRequest() throws Exception {
+        loadGenerator.setMODE("closed");
+        List<LoadGenerator.Result> results = loadGenerator.run();
+        for (LoadGenerator.Result result : results) {
+            assertTrue(result.histogram.getCount() > 0);
+            assertEquals(0, result.errors.get());
+            assertTrue(result.histogram.getValueAtPercentile(50) <=
+                       result.histogram.getValueAtPercentile(99.9));
+        }
+        assertNotNull(server.getDatabase().get("900002"));
+        assertNotNull(server.getDatabase().get("901002"));
+    }
+
+    @Test
+    void testOpenLoopSendsAtConfiguredRate() throws Exception {
+        loadGenerator.setMODE("open");
+        loadGenerator.setPUT_RATE(20);
+        loadGenerator.setGET_RATE(50);
+        List<LoadGenerator.Result> results = loadGenerator.run();
+        // 2 clients for 700 ms after warmup
+        assertEquals(28, results.get(0).histogram.getCount(), 2);
+        assertEquals(70, results.get(1).histogram.getCount(), 2);
+    }
+}
+
+class MetricsEndpointTest extends IntegrationTest {
+
+    @Test
+    void testMetricsAreServedInPrometheusFormat() throws Exception {
+        threadPool.invokeAll(List.of(putRequest(0)));
+        getResponse("5000");
+        HTTPResponse response = getResponse("metrics");
+        assertEquals("200", response.statusCode);
+        assertEquals("text/plain; version=0.0.4", response.getHeader("Content-Type"));
+        assertTrue(response.body.contains("# TYPE aggregation_requests_total counter"));
+        assertTrue(response.body.contains("aggregation_requests_total{method=\"GET\",code=\"200\"} 1"));
+        assertTrue(response.body.contains("aggregation_request_handler_duration_seconds_count{method=\"PUT\"} 1"));
+        assertTrue(response.body.contains("aggregation_request_queue_wait_seconds_count 3"));
+        assertTrue(response.body.contains("aggregation_database_stations 1"));
+        assertTrue(response.body.contains("aggregation_request_queue_depth 0"));
+    }
+
+    @Test
+    void testMetricsRequestIsNotAStationLookup() throws IOException {
+        getResponse("metrics");
+        getResponse("metrics");
+        assertFalse(server.getMetrics().toPrometheus().contains("aggregation_requests_total"));
+    }
+}
+
+class ReplicationTest extends IntegrationTest {
+    AggregationServer follower;
+
+    @BeforeEach
+    void startFollower() throws IOException, ClassNotFoundException {
+        follower = new AggregationServer(4570);
+        threadPool.submit(new StartServer(follower));
+        server.addFollower("127.0.0.1", 4570);
+    }
+
+    @AfterEach
+    void stopFollower() {
+        follower.close();
+    }
+
+    void awaitApplied(long sequence) throws InterruptedException {
+        for (int i = 0; i < 100 && follower.getReplication().getApplied() < sequence; i++)
+            Thread.sleep(50);
+        assertEquals(sequence, follower.getReplication().getApplied());
+    }
+
+    HTTPResponse sendReplicated(String sequence) throws IOException {
+        return sendReplicated(sequence, null);
+    }
+
+    HTTPResponse sendReplicated(String sequence, String epoch) throws IOException {
+        ContentServer contentServer = ContentServer.from_args(("127.0.0.1:4570 " +
+                                                               fileNames.get(2)).split(" "));
+        HTTPRequest request = contentServer.formatPUTMessage()
+                .setHeader("Replication-Sequence", sequence)
+                .setHeader("Replication-Source", "/10.0.0.1");
+        if (epoch != null)
+            request.setHeader("Replication-Epoch", epoch);
+        contentServer.send(request);
+        HTTPResponse response = HTTPResponse.fromMessage(contentServer.receive());
+        contentServer.close();
+        return response;
+    }
+
+    @Test
+    void testPUTIsShippedToFollowerInOrder() throws Exception {
+        putRequest(0).call();
+        putRequest(2).call();
+        awaitApplied(2);
+        assertEquals(2, server.getReplication().getLog().getHead());
+        assertEquals(server.getDatabase().keySet(), follower.getDatabase().keySet());
+        for (String id : server.getDatabase().keySet()) {
+            assertEquals(server.getDatabase().get(id).toString(),
+                    follower.getDatabase().get(id).toString());
+            assertEquals(server.getDatabase().get(id).getETag(),
+                    follower.getDatabase().get(id).getETag());
+        }
+        assertEquals(server.getArchive().get("/127.0.0.1").keySet(),
+                follower.getArchive().get("/127.0.0.1").keySet());
+    }
+
+    @Test
+    void testReplicatedPUTUsesSourceOfLeader() throws Exception {
+        HTTPResponse response = sendReplicated("1");
+        assertEquals("201", response.statusCode);
+        assertTrue(follower.getArchive().containsKey("/10.0.0.1"));
+        assertEquals(1, follower.getReplication().getApplied());
+        // Already applied entry is acknowledged again without being reapplied
+        assertEquals("200", sendReplicated("1").statusCode);
+        assertEquals(1, follower.getReplication().getApplied());
+    }
+
+    @Test
+    void testReplicatedEntryExpiresOnFollower() throws Exception {
+        follower.setWAIT_TIME(1);
+        assertEquals("201", sendReplicated("1").statusCode);
+        for (int i = 0; i < 100 && !follower.getArchive().get("/10.0.0.1").isEmpty(); i++)
+            Thread.sleep(50);
+        assertTrue(follower.getArchive().get("/10.0.0.1").isEmpty());
+    }
+
+    @Test
+    void testReplicatedPUTAfterGapIsRefused() throws Exception {
+        HTTPResponse response = sendReplicated("5");
+        assertEquals("409", response.statusCode);
+        assertEquals("0", response.getHeader("Replication-Applied"));
+        assertTrue(follower.getDatabase().isEmpty());
+    }
+
+    @Test
+    void testReplicatedPUTOfUnknownEpochIsRefused() throws Exception {
+        assertEquals("201", sendReplicated("1").statusCode);
+        // Without a leader to catch up from, the PUT cannot be applied
+        HTTPResponse response = sendReplicated("2", "other");
+        assertEquals("409", response.statusCode);
+        assertNull(response.getHeader("Replication-Applied"));
+        assertEquals(1, follower.getReplication().getApplied());
+    }
+
+    @Test
+    void testFollowerCatchesUpFromLeaderOfAnotherEpoch() throws Exception {
+        putRequest(0).call();
+        awaitApplied(1);
+        // A restarted leader numbers its PUTs from 1 again
+        AggregationServer restarted = new AggregationServer(4571);
+        threadPool.submit(new StartServer(restarted));
+        try {
+            restarted.addFollower("127.0.0.1", 4570);
+            for (int i = 2; i < 4; i++) {
+                ContentServer contentServer = ContentServer.from_args(("127.0.0.1:4571 " +
+                                                                       fileNames.get(i)).split(" "));
+                contentServer.send(contentServer.formatPUTMessage());
+                assertTrue(HTTPResponse.fromMessage(contentServer.receive()).statusCode
+                        .startsWith("2"));
+                contentServer.close();
+                if (i == 2)
+                    for (int j = 0; j < 100 && !restarted.getReplication().getLog().getEpoch()
+                            .equals(follower.getReplication().getLeaderEpoch()); j++)
+                        Thread.sleep(50);
+            }
+            awaitApplied(2);
+            assertEquals(restarted.getReplication().getLog().getEpoch(),
+                    follower.getReplication().getLeaderEpoch());
+            assertEquals(restarted.getDatabase().keySet(), follower.getDatabase().keySet());
+        } finally {
+            restarted.close();
+        }
+    }
+
+    @Test
+    void testDeltaPUTIsShippedAsMergedFile() throws Exception {
+        ContentServer contentServer = ContentServer.from_args(("127.0.0.1:4567 " +
+                                                               fileNames.get(0)).split(" "));
+        contentServer.send(contentServer.formatPUTMessage().setHeader("State-Digest", "1"));
+        contentServer.receive();
+        HTTPRequest delta = contentServer.formatPUTMessage(fileNames.get(1))
+                .setURI("/" + fileNames.get(0))
+                .setHeader("Delta-Base", "1")
+                .setHeader("State-Digest", "2");
+        contentServer.send(delta);
+        assertEquals("200", HTTPResponse.fromMessage(contentServer.receive()).statusCode);
+        contentServer.close();
+        awaitApplied(2);
+        Map<String, String> leaderEntry = server.getArchive().get("/127.0.0.1")
+                .get(fileNames.get(0));
+        Map<String, String> followerEntry = follower.getArchive().get("/127.0.0.1")
+                .get(fileNames.get(0));
+        assertEquals(leaderEntry.get("Value"), followerEntry.get("Value"));
+        assertEquals("2", followerEntry.get("State-Digest"));
+        assertEquals(server.getDatabase().get("5000").toString(),
+                follower.getDatabase().get("5000").toString());
+    }
+
+    void awaitDropped(Replication leader) throws InterruptedException {
+        for (int i = 0; i < 100 && !leader.getFollowers().isEmpty(); i++)
+            Thread.sleep(50);
+        assertTrue(leader.getFollowers().isEmpty());
+    }
+
+    @Test
+    void testFollowerBehindTheLogIsDropped() throws Exception {
+        Replication leader = new Replication(1, 10);
+        ContentServer contentServer = ContentServer.from_args(("127.0.0.1:4570 " +
+                                                               fileNames.get(2)).split(" "));
+        leader.getLog().append("/10.0.0.1", contentServer.formatPUTMessage());
+        leader.getLog().append("/10.0.0.1", contentServer.formatPUTMessage());
+        leader.addFollower("127.0.0.1", 4570, 0);
+        awaitDropped(leader);
+        assertEquals(0, follower.getReplication().getApplied());
+        leader.close();
+    }
+
+    @Test
+    void testFollowerRefusingAnEntryIsDropped() throws Exception {
+        Replication leader = new Replication(10, 10);
+        ContentServer contentServer = ContentServer.from_args(("127.0.0.1:4570 " +
+                                                               fileNames.get(2)).split(" "));
+        // The follower does not hold the base of the delta
+        leader.getLog().append("/10.0.0.1", contentServer.formatPUTMessage()
+                .setHeader("Delta-Base", "1"));
+        leader.addFollower("127.0.0.1", 4570, 0);
+        awaitDropped(leader);
+        assertEquals(0, follower.getReplication().getApplied());
+        leader.close();
+    }
+
+    @Test
+    void testReplicationStatusIsServed() throws Exception {
+        putRequest(0).call();
+        awaitApplied(1);
+        HTTPResponse response = getResponse("replication");
+        assertEquals("{\"epoch\": \"" + server.getReplication().getLog().getEpoch() +
+                     "\", \"head\": 1, \"leaderEpoch\": \"\", \"applied\": 0, " +
+                     "\"followers\": [\"127.0.0.1:4570\"]}", response.body);
+    }
+}
+
+class StateTransferTest extends IntegrationTest {
+    AggregationServer joiner;
+
+    @BeforeEach
+    void keepArchive() {
+        // Uploads must not expire between the snapshot and the assertions
+        server.setWAIT_TIME(30000);
+    }
+
+    @AfterEach
+    void stopJoiner() {
+        if (joiner != null)
+            joiner.close();
+    }
+
+    @Test
+    void testJoiningServerCopiesLeaderBeforeAccepting() throws Exception {
+        putRequest(0).call();
+        joiner = new AggregationServer(4570, "127.0.0.1:4567");
+        assertEquals(server.getDatabase().keySet(), joiner.getDatabase().keySet());
+        assertEquals(server.getArchive().get("/127.0.0.1").keySet(),
+                joiner.getArchive().get("/127.0.0.1").keySet());
+        assertEquals(1, server.getReplication().getFollowers().size());
+        // Installed uploads are tracked for FRESH_COUNT eviction like on the leader
+        assertTrue(joiner.getMetrics().toPrometheus().contains("aggregation_update_queue_size 1\n"));
+    }
+
+    @Test
+    void testPUTAfterSnapshotIsShippedToJoiningServer() throws Exception {
+        putRequest(0).call();
+        joiner = new AggregationServer(4570, "127.0.0.1:4567");
+        threadPool.submit(new StartServer(joiner));
+        putRequest(2).call();
+        for (int i = 0; i < 100 && joiner.getReplication().getApplied() < 1; i++)
+            Thread.sleep(50);
+        assertEquals(1, joiner.getReplication().getApplied());
+        assertEquals(server.getDatabase().keySet(), joiner.getDatabase().keySet());
+    }
+
+    @Test
+    void testUnreachableLeaderKeepsRestoredState() throws Exception {
+        joiner = new AggregationServer(4570, "127.0.0.1:4599");
+        assertFalse(joiner.catchUp("127.0.0.1", 4599));
+        assertEquals(0, joiner.getReplication().getApplied());
+    }
+}
+
+class GETCoalescingTest extends IntegrationTest {
+    @Test
+    void testConcurrentGETsGetTheirOwnResponse() throws Exception {
+        putRequest(0).call();
+        List<Callable<HTTPResponse>> tasks = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            tasks.add(() -> getResponse("5000"));
+        String body = getResponse("5000").body;
+        for (Future<HTTPResponse> future : threadPool.invokeAll(tasks)) {
+            assertEquals("200", future.get().statusCode);
+            assertEquals(body, future.get().body);
+        }
+        assertEquals(51, server.getMetrics().counter("aggregation_requests_total", "method",
+                "GET", "code", "200").sum());
+    }
+
+    @Test
+    void testGETAfterPUTSeesIt() throws Exception {
+        putRequest(0).call();
+        String before = getResponse("5000").body;
+        putRequest(1).call();
+        assertNotEquals(before, getResponse("5000").body);
+    }
+}
+
+class AdmissionControlTest extends IntegrationTest {
+    @Test
+    void testConnectionOverLimitIsRefusedWith503() throws Exception {
+        server.setMAX_CONNECTIONS(1);
+        GETClient open = GETClient.from_args("127.0.0.1:4567 5000".split(" "));
+        open.send(open.formatGETMessage());
+        open.receive();
+        HTTPResponse response = getResponse("5000");
+        assertEquals("503", response.statusCode);
+        assertEquals("1", response.getHeader("Retry-After"));
+        assertEquals(1, server.getMetrics().counter("aggregation_shed_connections_total")
+                .sum());
+        assertTrue(server.getMetrics().toPrometheus()
+                .contains("aggregation_active_connections 1\n"));
+        open.close();
+    }
+}
+
+class ContentEncodingTest extends IntegrationTest {
+    @Test
+    void testGETClientReceivesDecodedBody() throws Exception {
+        putRequest(0).call();
+        String plain = getResponse("5000").body;
+        server.setCOMPRESSION_THRESHOLD(0);
+        HTTPResponse response = getResponse("5000");
+        assertEquals("200", response.statusCode);
+        assertEquals(plain, response.body);
+        assertNull(response.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    void testResponseIsCompressedOnTheWire() throws Exception {
+        putRequest(0).call();
+        server.setCOMPRESSION_THRESHOLD(0);
+        try (Socket socket = new Socket("127.0.0.1", 4567);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream()))) {
+            socket.getOutputStream().write(("GET /5000 HTTP/1.1\r\nHost: 127.0.0.1:4567\r\n" +
+                    "Accept-Encoding: x-gzip-base64\r\n\r\n").getBytes());
+            List<String> head = new ArrayList<>();
+            for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine())
+                head.add(line);
+            assertTrue(head.contains("Content-Encoding: x-gzip-base64"));
+            assertTrue(head.contains("Vary: Accept-Encoding"));
+        }
+    }
+
+    @Test
+    void testStandardGzipClientGetsPlainBody() throws Exception {
+        putRequest(0).call();
+        server.setCOMPRESSION_THRESHOLD(0);
+        try (Socket socket = new Socket("127.0.0.1", 4567);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream()))) {
+            socket.getOutputStream().write(("GET /5000 HTTP/1.1\r\nHost: 127.0.0.1:4567\r\n" +
+                    "Accept-Encoding: gzip, deflate\r\n\r\n").getBytes());
+            List<String> head = new ArrayList<>();
+            for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine())
+                head.add(line);
+            assertTrue(head.stream().noneMatch(line -> line.startsWith("Content-Encoding")));
+            assertEquals("{", in.readLine());
+        }
+    }
+
+    @Test
+    void testOversizedDecodedBodyIsRefused() throws Exception {
+        server.setMAX_BODY(1024);
+        HTTPRequest request = new HTTPRequest("1.1").setMethod("PUT").setURI("/bomb.txt")
+                .setHeader("Host", "127.0.0.1:4567")
+                .setHeader("Content-Type", "application/json");
+        ContentCoding.setEncodedBody(request, ContentCoding.encode(" ".repeat(1 << 20),
+                ContentCoding.GZIP), ContentCoding.GZIP);
+        try (Socket socket = new Socket("127.0.0.1", 4567);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream()))) {
+            socket.getOutputStream().write((request + "\r\n").getBytes());
+            assertEquals("HTTP/1.1 413 Payload Too Large", in.readLine());
+            // The connection is still usable
+            socket.getOutputStream().write(("GET /5000 HTTP/1.1\r\nHost: 127.0.0.1:4567" +
+                                            "\r\n\r\n").getBytes());
+            String line = in.readLine();
+            while (line != null && !line.startsWith("HTTP/1.1"))
+                line = in.readLine();
+            assertEquals("HTTP/1.1 404 Not Found", line);
+        }
+        assertTrue(server.getArchive().isEmpty());
+    }
+}
+
+class ChunkedTransferTest extends IntegrationTest {
+    @Test
+    void testStreamedPUTIsStored() throws Exception {
+        ContentServer contentServer = ContentServer.from_args(("127.0.0.1:4567 " +
+                "src/test/utility/weatherJson/resources/twoID.txt").split(" "));
+        contentServer.setSTREAM_UPLOAD(true);
+        contentServer.run();
+        assertTrue(contentServer.sentMessages.get(1).contains("Transfer-Encoding: chunked"));
+        assertEquals("201", HTTPResponse.fromMessage(contentServer.receivedMessages.get(1))
+                .statusCode);
+        assertTrue(getResponse("A0").body.contains("\"A0\""));
+        assertTrue(getResponse("A1").body.contains("\"A1\""));
+    }
+
+    @Test
+    void testMetricsAreStreamedInChunks() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", 4567);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream()))) {
+            socket.getOutputStream().write("GET /metrics HTTP/1.1\r\n\r\n".getBytes());
+            List<String> head = new ArrayList<>();
+            for (String line = in.readLine(); line != null && !line.isEmpty(); line = in.readLine())
+                head.add(line);
+            assertTrue(head.contains("Transfer-Encoding: chunked"));
+        }
+        assertTrue(getResponse("metrics").body.contains("aggregation_connections_total"));
+    }
+}
+
+class ConditionalGETTest extends IntegrationTest {
+    @Test
+    void testUnchangedStationIsNotModified() throws Exception {
+        putRequest(0).call();
+        GETClient client = GETClient.from_args("127.0.0.1:4567 5000".split(" "));
+        HTTPResponse first = client.get();
+        assertEquals("200", first.statusCode);
+        assertNotNull(first.getHeader("ETag"));
+        assertSame(first, client.get());
+        assertTrue(client.sentMessages.get(1).contains("If-None-Match: " +
+                                                       first.getHeader("ETag")));
+        assertEquals("304", HTTPResponse.fromMessage(client.receivedMessages.get(1))
+                .statusCode);
+        putRequest(1).call();
+        HTTPResponse changed = client.get();
+        assertEquals("200", changed.statusCode);
+        assertNotEquals(first.getHeader("ETag"), changed.getHeader("ETag"));
+        assertNotEquals(first.body, changed.body);
+        client.close();
+        assertEquals(1, server.getMetrics().counter("aggregation_requests_total", "method",
+                "GET", "code", "304").sum());
+    }
+}
+
+class LongPollTest extends IntegrationTest {
+    GETClient subscriber(String stationID, int wait) throws IOException {
+        GETClient client = GETClient.from_args(("127.0.0.1:4567 " + stationID).split(" "));
+        client.setWait(wait);
+        client.setSO_TIMEOUT(5000 + wait * 1000);
+        return client;
+    }
+
+    @Test
+    void testWaitingGETIsAnsweredByPUT() throws Exception {
+        putRequest(0).call();
+        GETClient client = subscriber("5000", 10);
+        HTTPResponse first = client.get();
+        assertEquals("200", first.statusCode);
+        Future<?> put = threadPool.submit(() -> {
+            Thread.sleep(300);
+            return putRequest(1).call();
+        });
+        long start = System.nanoTime();
+        HTTPResponse changed = client.get();
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        put.get();
+        assertEquals("200", changed.statusCode);
+        assertNotEquals(first.body, changed.body);
+        assertTrue(client.sentMessages.get(1).startsWith("GET /5000?wait=10s HTTP/1.1"));
+        client.close();
+        assertEquals(2, server.getMetrics().counter("aggregation_long_polls_total").sum());
+    }
+
+    @Test
+    void testUnchangedStationIsNotModifiedAfterWait() throws Exception {
+        putRequest(0).call();
+        GETClient client = subscriber("5000", 1);
+        HTTPResponse first = client.get();
+        long start = System.nanoTime();
+        assertSame(first, client.get());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals("304", HTTPResponse.fromMessage(client.receivedMessages.get(1))
+                .statusCode);
+        client.close();
+    }
+
+    @Test
+    void testWaitingGETIsAnsweredWhenStationAppears() throws Exception {
+        GETClient client = subscriber("5000", 10);
+        Future<?> put = threadPool.submit(() -> {
+            Thread.sleep(300);
+            return putRequest(0).call();
+        });
+        HTTPResponse response = client.get();
+        put.get();
+        assertEquals("200", response.statusCode);
+        assertTrue(response.body.contains("\"5000\""));
+        client.close();
+    }
+
+    @Test
+    void testWaitIsOnlyTakenFromGET() throws Exception {
+        GETClient client = GETClient.from_args("127.0.0.1:4567".split(" "));
+        String body = "{\n\"id\": \"A0\",\n\"lat\": 10\n}";
+        client.send(new HTTPRequest("1.1").setMethod("PUT").setURI("/weather.json?wait=5s")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body));
+        assertEquals("201", HTTPResponse.fromMessage(client.receive()).statusCode);
+        assertTrue(server.getArchive().get("/127.0.0.1").containsKey("weather.json?wait=5s"));
+        client.close();
+    }
+}
+
+class SubscriptionTest extends IntegrationTest {
+    GETClient subscriber(String topic) throws IOException {
+        GETClient client = GETClient.from_args("127.0.0.1:4567".split(" "));
+        HTTPResponse response = client.subscribe(topic);
+        assertEquals("200", response.statusCode);
+        assertEquals("chunked", response.getHeader("Transfer-Encoding"));
+        return client;
+    }
+
+    @Test
+    void testUpdatesAreStreamedToTopics() throws Exception {
+        GETClient ofStation = subscriber("stations/5000");
+        GETClient ofState = subscriber("states/SA");
+        GETClient ofAll = subscriber("stations");
+        assertEquals(3, server.getMetrics().counter("aggregation_subscriptions_total").sum());
+        // Adelaide and Glenelg in SA, then Melbourne in Vic
+        putRequest(0).call();
+        putRequest(2).call();
+        putRequest(8).call();
+        String adelaide = ofStation.nextUpdate();
+        assertEquals(getResponse("5000").body, adelaide);
+        assertEquals(adelaide, ofState.nextUpdate());
+        assertTrue(ofState.nextUpdate().contains("\"5045\""));
+        assertEquals(adelaide, ofAll.nextUpdate());
+        assertTrue(ofAll.nextUpdate().contains("\"5045\""));
+        assertTrue(ofAll.nextUpdate().contains("\"3000\""));
+        ofStation.close();
+        ofState.close();
+        ofAll.close();
+    }
+
+    @Test
+    void testUnknownTopicIsNotFound() throws IOException {
+        GETClient client = GETClient.from_args("127.0.0.1:4567".split(" "));
+        HTTPResponse response = client.subscribe("weather/5000");
+        assertEquals("404", response.statusCode);
+        assertNull(client.nextUpdate());
+        // The connection is still usable
+        assertEquals("200", client.subscribe("stations").statusCode);
+        client.close();
+    }
+
+    @Test
+    void testSubscriptionEndsWhenServerCloses() throws Exception {
+        GETClient client = subscriber("stations");
+        server.close();
+        try {
+            assertNull(client.nextUpdate());
+        } catch (IOException ignored) {
+            // The connection may close before the last chunk is sent
+        }
+        client.close();
+    }
+}
+
+class HealthEndpointTest extends IntegrationTest {
+    @Test
+    void testHealthyServerAnswers200() throws IOException {
+        HTTPResponse response = getResponse("health");
+        assertEquals("200", response.statusCode);
+        assertEquals("{\"status\": \"up\"}", response.body);
+    }
+}
+
+class UpstreamPoolTest extends IntegrationTest {
+    HTTPRequest newGET(String uri) {
+        return new HTTPRequest("1.1").setMethod("GET").setURI(uri)
+                .setHeader("Host", "127.0.0.1:4567");
+    }
+
+    long getConnectionCount() {
+        return server.getMetrics().counter("aggregation_connections_total").sum();
+    }
+
+    @Test
+    void testPipelinedResponsesMatchRequests() throws Exception {
+        ContentServer.main(("127.0.0.1:4567 src/test/utility/weatherJson/resources" +
+                            "/twoID.txt").split(" "));
+        PipelinedConnection connection = new PipelinedConnection("127.0.0.1", 4567, 1000);
+        List<String> uris = List.of("/A0", "/A1", "/health", "/B0", "/A0");
+        List<CompletableFuture<HTTPResponse>> responses = new ArrayList<>();
+        for (String uri : uris)
+            responses.add(connection.send(newGET(uri)));
+        assertTrue(responses.get(0).get(5, TimeUnit.SECONDS).body.contains("\"A0\""));
+        assertTrue(responses.get(1).get(5, TimeUnit.SECONDS).body.contains("\"A1\""));
+        assertEquals("{\"status\": \"up\"}", responses.get(2).get(5, TimeUnit.SECONDS).body);
+        assertEquals("404", responses.get(3).get(5, TimeUnit.SECONDS).statusCode);
+        assertTrue(responses.get(4).get(5, TimeUnit.SECONDS).body.contains("\"A0\""));
+        assertEquals(0, connection.getInFlight());
+        connection.close(new IOException("Test is over"));
+    }
+
+    @Test
+    void testPendingRequestsFailWhenServerCloses() throws Exception {
+        PipelinedConnection connection = new PipelinedConnection("127.0.0.1", 4567, 1000);
+        assertEquals("200", connection.send(newGET("/health")).get(5, TimeUnit.SECONDS)
+                .statusCode);
+        server.close();
+        CompletableFuture<HTTPResponse> response = connection.send(newGET("/A0"));
+        assertThrows(ExecutionException.class, () -> response.get(5, TimeUnit.SECONDS));
+        assertFalse(connection.isOpen());
+    }
+
+    @Test
+    void testPoolConnectionsAreBounded() throws Exception {
+        UpstreamPool pool = new UpstreamPool("127.0.0.1", 4567, 2, 5000);
+        long before = getConnectionCount();
+        List<Callable<String>> tasks = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            tasks.add(() -> pool.send(newGET("/health")).statusCode);
+        for (Future<String> future : threadPool.invokeAll(tasks))
+            assertEquals("200", future.get());
+        assertTrue(pool.getConnectionCount() <= 2);
+        assertTrue(getConnectionCount() - before <= 2);
+        pool.close();
+    }
+}
@@ -1,11 +1,16 @@
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import utility.http.HTTPRequest;
 import utility.http.HTTPResponse;
 import utility.weatherJson.Parser;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -204,4 +209,469 @@ class LoadBalancerUsePreSetFailOverServerTest extends LoadBalancerWithFixtureTes
         super.shutdown();
         aggServer.close();
     }
-}
\ No newline at end of file
+}
+class LoadBalancerReadRoutingTest extends LoadBalancerWithFixtureTest {
+
+    private AggregationServer aggServer;
+
+    void setupHook() throws IOException, ClassNotFoundException {
+        aggServer = new AggregationServer(4568);
+        new Thread(() -> aggServer.start()).start();
+        super.setupHook();
+        loadBalancer.addServer("127.0.0.1", 4568);
+        loadBalancer.setLeader("127.0.0.1", 4568);
+        loadBalancer.setROUTING_POLICY("round_robin");
+    }
+
+    long getGETCount(AggregationServer server) {
+        return server.getMetrics().counter("aggregation_requests_total", "method", "GET",
+                "code", "404").sum();
+    }
+
+    @Test
+    void testGETIsSpreadOverRegistry() throws IOException {
+        assertTrue(loadBalancer.contains("127.0.0.1", 4568));
+        assertTrue(loadBalancer.contains("127.0.0.1", 4569));
+        for (int i = 0; i < 4; i++)
+            assertEquals("404", getClientReceivedResponse("5000").statusCode);
+        assertEquals(2, getGETCount(aggServer));
+        assertEquals(2, getGETCount(loadBalancer.getBuiltinServer()));
+    }
+
+    @Test
+    void testPUTGoesToLeader() throws IOException {
+        runContentServer("127.0.0.1", 4567, 0);
+        assertEquals(4568, loadBalancer.getLeader().getPort());
+        assertTrue(aggServer.getDatabase().containsKey("5000"));
+        assertFalse(loadBalancer.getBuiltinServer().getDatabase().containsKey("5000"));
+    }
+
+    @Test
+    void testFailedServerIsSkipped() throws IOException {
+        loadBalancer.getBuiltinServer().close();
+        for (int i = 0; i < 4; i++)
+            assertEquals("404", getClientReceivedResponse("5000").statusCode);
+        assertEquals(4, getGETCount(aggServer));
+    }
+
+    @AfterEach
+    void shutdown() {
+        super.shutdown();
+        aggServer.close();
+    }
+}
+
+class LoadBalancerReplicaReadTest extends LoadBalancerWithFixtureTest {
+
+    private AggregationServer aggServer;
+
+    void setupHook() throws IOException, ClassNotFoundException {
+        aggServer = new AggregationServer(4568);
+        new Thread(() -> aggServer.start()).start();
+        super.setupHook();
+        loadBalancer.addServer("127.0.0.1", 4568);
+        loadBalancer.setLeader("127.0.0.1", 4568);
+        loadBalancer.setROUTING_POLICY("round_robin");
+        loadBalancer.setMAX_REPLICATION_LAG(0);
+    }
+
+    long getGETCount(AggregationServer server) {
+        return server.getMetrics().counter("aggregation_requests_total", "method", "GET",
+                "code", "200").sum();
+    }
+
+    @Test
+    void testServerNotFollowingLeaderReceivesNoGET() throws IOException {
+        runContentServer("127.0.0.1", 4567, 0);
+        loadBalancer.probeReplication();
+        for (int i = 0; i < 4; i++)
+            assertEquals("200", getClientReceivedResponse("5000").statusCode);
+        assertEquals(4, getGETCount(aggServer));
+    }
+
+    @Test
+    void testUpToDateFollowerReceivesGET() throws IOException, InterruptedException {
+        aggServer.addFollower("127.0.0.1", 4569);
+        runContentServer("127.0.0.1", 4567, 0);
+        AggregationServer follower = loadBalancer.getBuiltinServer();
+        for (int i = 0; i < 100 && follower.getReplication().getApplied() < 1; i++)
+            Thread.sleep(50);
+        loadBalancer.probeReplication();
+        for (int i = 0; i < 4; i++)
+            assertEquals("200", getClientReceivedResponse("5000").statusCode);
+        assertEquals(2, getGETCount(aggServer));
+        assertEquals(2, getGETCount(follower));
+    }
+
+    @AfterEach
+    void shutdown() {
+        super.shutdown();
+        aggServer.close();
+    }
+}
+
+class LoadBalancerHealthCheckTest extends LoadBalancerWithFixtureTest {
+
+    private AggregationServer aggServer;
+
+    void setupHook() throws IOException, ClassNotFoundException {
+        aggServer = new AggregationServer(4568);
+        new Thread(() -> aggServer.start()).start();
+        super.setupHook();
+        loadBalancer.addServer("127.0.0.1", 4568);
+        loadBalancer.setLeader("127.0.0.1", 4568);
+    }
+
+    @Test
+    void testDeadLeaderIsReplacedWithinASecond() throws InterruptedException {
+        assertEquals(4568, loadBalancer.getLeader().getPort());
+        aggServer.close();
+        long start = System.nanoTime();
+        while (loadBalancer.getLeader().getPort() == 4568 &&
+               System.nanoTime() - start < 1_000_000_000L)
+            Thread.sleep(10);
+        assertEquals(4569, loadBalancer.getLeader().getPort());
+    }
+
+    @Test
+    void testClosedServerFailsHealthProbe() {
+        assertTrue(loadBalancer.isAlive("127.0.0.1", 4568));
+        aggServer.close();
+        assertFalse(loadBalancer.isAlive("127.0.0.1", 4568));
+    }
+
+    @AfterEach
+    void shutdown() {
+        super.shutdown();
+        aggServer.close();
+    }
+}
+
+class LoadBalancerMembershipTest extends LoadBalancerWithFixtureTest {
+
+    private AggregationServer aggServer;
+
+    void setupHook() throws IOException, ClassNotFoundException {
+        aggServer = new AggregationServer(4568);
+        new Thread(() -> aggServer.start()).start();
+        super.setupHook();
+    }
+
+    @Test
+    void testMembershipChangesArePublishedInOrder() {
+        List<Long> versions = new ArrayList<>();
+        loadBalancer.addMembershipListener((previous, current) -> {
+            assertEquals(previous.getVersion() + 1, current.getVersion());
+            versions.add(current.getVersion());
+        });
+        long version = loadBalancer.getMembership().getVersion();
+        loadBalancer.addServer("127.0.0.1", 4568);
+        loadBalancer.setLeader("127.0.0.1", 4568);
+        loadBalancer.removeServer("127.0.0.1", 4569);
+        assertEquals(List.of(version + 1, version + 2, version + 3), versions);
+        assertFalse(loadBalancer.contains("127.0.0.1", 4569));
+        assertEquals(4568, loadBalancer.getLeader().getPort());
+    }
+
+    @Test
+    void testReadersKeepTheirView() {
+        var view = loadBalancer.getMembership();
+        loadBalancer.addServer("127.0.0.1", 4568);
+        assertFalse(view.contains(new LoadBalancer.ServerInfo("127.0.0.1", 4568)));
+        assertTrue(loadBalancer.contains("127.0.0.1", 4568));
+    }
+
+    @Test
+    void testServerAddedTwiceIsRegisteredOnce() {
+        loadBalancer.addServer("127.0.0.1", 4568);
+        loadBalancer.addServer("127.0.0.1", 4568);
+        assertEquals(2, loadBalancer.getMembership().getMembers().size());
+    }
+
+    @AfterEach
+    void shutdown() {
+        super.shutdown();
+        aggServer.close();
+    }
+}
+
+class LoadBalancerLongPollTest extends LoadBalancerWithFixtureTest {
+    @Test
+    void testLongPollIsForwardedWithItsVersion() throws Exception {
+        runContentServer("127.0.0.1", 4567, 0);
+        GETClient client = GETClient.from_args("127.0.0.1:4567 5000".split(" "));
+        client.setWait(10);
+        client.setSO_TIMEOUT(15000);
+        HTTPResponse first = client.get();
+        assertEquals(fixtureMap.get(fileNames.get(0)), first.body);
+        Thread put = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+                runContentServer("127.0.0.1", 4567, 1);
+            } catch (IOException | InterruptedException ignored) {
+            }
+        });
+        put.start();
+        HTTPResponse changed = client.get();
+        put.join();
+        assertEquals(fixtureMap.get(fileNames.get(1)), changed.body);
+        client.close();
+    }
+}
+
+class LoadBalancerSubscribeTest extends LoadBalancerWithFixtureTest {
+    String subscribe() throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", 4567);
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream()))) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET /subscribe/5000 HTTP/1.1\r\n" +
+                                            "Host: 127.0.0.1:4567\r\n\r\n").getBytes());
+            return in.readLine();
+        }
+    }
+
+    @Test
+    void testSubscriptionIsRefused() throws IOException {
+        runContentServer("127.0.0.1", 4567, 0);
+        assertEquals("HTTP/1.1 501 Not Implemented", subscribe());
+        // The shared upstream connections are still free
+        assertEquals(fixtureMap.get(fileNames.get(0)), getClientReceivedResponse("5000").body);
+    }
+
+    @Test
+    void testRelayedSubscriptionIsRefused() throws IOException {
+        loadBalancer.setFORWARDING("relay");
+        assertEquals("HTTP/1.1 501 Not Implemented", subscribe());
+    }
+}
+
+class LoadBalancerUpstreamPoolTest extends LoadBalancerWithFixtureTest {
+
+    long getConnectionCount() {
+        return loadBalancer.getBuiltinServer().getMetrics()
+                .counter("aggregation_connections_total").sum();
+    }
+
+    @Test
+    void testGETClientsShareUpstreamConnections() throws IOException {
+        // The GET sent by the ContentServer opens the pooled connection
+        runContentServer("127.0.0.1", 4567, 0);
+        long before = getConnectionCount();
+        for (int i = 0; i < 10; i++)
+            assertEquals(fixtureMap.get(fileNames.get(0)),
+                    getClientReceivedResponse("5000").body);
+        assertEquals(0, getConnectionCount() - before);
+    }
+
+    @Test
+    void testPUTStillExpiresWithContentServerConnection() throws IOException,
+            InterruptedException {
+        runContentServer("127.0.0.1", 4567, 0);
+        AggregationServer server = loadBalancer.getBuiltinServer();
+        assertFalse(server.getArchive().isEmpty());
+        for (int i = 0; i < 50 && server.getArchive().values().stream()
+                .anyMatch(files -> !files.isEmpty()); i++)
+            Thread.sleep(20);
+        assertTrue(server.getArchive().values().stream().allMatch(Map::isEmpty));
+    }
+}
+
+class LoadBalancerRelayTest extends LoadBalancerWithFixtureTest {
+    @BeforeEach
+    void useRelay() {
+        loadBalancer.setFORWARDING("relay");
+    }
+
+    @Test
+    void testOneGETOnePUTGivesSameResult() throws IOException {
+        runContentServer("127.0.0.1", 4567, 0);
+        HTTPResponse response = getClientReceivedResponse("5000");
+        assertEquals("200", response.statusCode);
+        assertEquals(fixtureMap.get(fileNames.get(0)), response.body);
+    }
+
+    @Test
+    void testResponseIsRelayedUnchanged() throws IOException {
+        runContentServer("127.0.0.1", 4567, 0);
+        GETClient direct = GETClient.from_args("127.0.0.1:4568 5000".split(" "));
+        direct.run();
+        HTTPResponse expected = HTTPResponse.fromMessage(direct.receivedMessages.get(0));
+        HTTPResponse response = getClientReceivedResponse("5000");
+        assertEquals(expected.statusCode, response.statusCode);
+        assertEquals(expected.getHeader("Content-Length"), response.getHeader("Content-Length"));
+        assertEquals(expected.body, response.body);
+        // The server clock is relayed, not replaced by the clock of the load balancer
+        assertTrue(Integer.parseInt(response.getHeader("Lamport-Clock")) >
+                   Integer.parseInt(expected.getHeader("Lamport-Clock")));
+    }
+
+    @Test
+    void testUnknownIDGives404() throws IOException {
+        assertEquals("404", getClientReceivedResponse("A0").statusCode);
+    }
+}
+
+class LoadBalancerElectionTest extends LoadBalancerWithFixtureTest {
+
+    private AggregationServer aggServer;
+
+    void setupHook() throws IOException, ClassNotFoundException {
+        aggServer = new AggregationServer(4568);
+        new Thread(() -> aggServer.start()).start();
+        super.setupHook();
+        loadBalancer.addServer("127.0.0.1", 4568);
+    }
+
+    @Test
+    void testMostUpToDateServerIsElected() throws IOException {
+        aggServer.getReplication().follow("epoch", 5);
+        loadBalancer.electLeader();
+        assertEquals(4568, loadBalancer.getLeader().getPort());
+    }
+
+    @Test
+    void testPositionsOfAnotherEpochAreNotCompared() throws Exception {
+        AggregationServer follower = new AggregationServer(4570);
+        new Thread(() -> follower.start()).start();
+        try {
+            loadBalancer.addServer("127.0.0.1", 4570);
+            // The built in server numbered more PUTs in a log no other server follows
+            AggregationServer builtin = loadBalancer.getBuiltinServer();
+            for (int i = 0; i < 10; i++)
+                builtin.getReplication().getLog().append("/10.0.0.1",
+                        new HTTPRequest("1.1").setMethod("PUT").setURI("/file.txt"));
+            aggServer.getReplication().follow("epoch", 5);
+            follower.getReplication().follow("epoch", 3);
+            loadBalancer.electLeader();
+            assertEquals(4568, loadBalancer.getLeader().getPort());
+            // The other servers follow the elected leader from a snapshot of it
+            String epoch = aggServer.getReplication().getLog().getEpoch();
+            for (int i = 0; i < 100 && !(epoch.equals(follower.getReplication().getLeaderEpoch()) &&
+                                         epoch.equals(builtin.getReplication().getLeaderEpoch())); i++)
+                Thread.sleep(50);
+            assertEquals(epoch, follower.getReplication().getLeaderEpoch());
+            assertEquals(epoch, builtin.getReplication().getLeaderEpoch());
+            assertEquals(2, aggServer.getReplication().getFollowers().size());
+        } finally {
+            follower.close();
+        }
+    }
+
+    @Test
+    void testFirstServerIsElectedOnTie() throws IOException {
+        loadBalancer.electLeader();
+        assertEquals(4569, loadBalancer.getLeader().getPort());
+    }
+
+    @AfterEach
+    void shutdown() {
+        super.shutdown();
+        aggServer.close();
+    }
+}
+
+class LoadBalancerShardingTest extends LoadBalancerWithFixtureTest {
+
+    private AggregationServer aggServer;
+    private File payload;
+    private final List<String> stationIDs = new ArrayList<>();
+
+    void setupHook() throws IOException, ClassNotFoundException {
+        aggServer = new AggregationServer(4568);
+        new Thread(() -> aggServer.start()).start();
+        super.setupHook();
+        loadBalancer.addServer("127.0.0.1", 4568);
+        loadBalancer.setSHARDING(true);
+        String template = Files.readString(Paths.get("src/resources/WeatherData/SingleEntry" +
+                                                     "/Adelaide_2023-07-15_16-00-00.txt"));
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            stationIDs.add(String.valueOf(910000 + i));
+            builder.append(template.replaceFirst("id: \\d+", "id: " + (910000 + i)))
+                    .append("\n");
+        }
+        payload = File.createTempFile("shards", ".txt");
+        Files.writeString(payload.toPath(), builder);
+    }
+
+    AggregationServer getServer(LoadBalancer.ServerInfo shard) {
+        return shard.getPort() == 4568 ? aggServer : loadBalancer.getBuiltinServer();
+    }
+
+    @Test
+    void testPUTIsSplitAcrossShards() throws IOException {
+        ContentServer.main(("127.0.0.1:4567 " + payload).split(" "));
+        for (String stationID : stationIDs) {
+            AggregationServer owner = getServer(loadBalancer.getShard(stationID));
+            AggregationServer other = owner == aggServer ? loadBalancer.getBuiltinServer() :
+                    aggServer;
+            assertTrue(owner.getDatabase().containsKey(stationID));
+            assertFalse(other.getDatabase().containsKey(stationID));
+            assertEquals("200", getClientReceivedResponse(stationID).statusCode);
+        }
+    }
+
+    @Test
+    void testMultiStationGETIsGathered() throws IOException {
+        ContentServer.main(("127.0.0.1:4567 " + payload).split(" "));
+        HTTPResponse response = getClientReceivedResponse(String.join(",", stationIDs));
+        assertEquals("200", response.statusCode);
+        assertEquals(20, Parser.index(response.body).size());
+    }
+
+    void awaitHandoff() throws InterruptedException {
+        for (int i = 0; i < 250 && loadBalancer.isHandoffPending(); i++)
+            Thread.sleep(20);
+        assertFalse(loadBalancer.isHandoffPending());
+    }
+
+    @Test
+    void testStationsAreHandedOffWhenTheRingChanges() throws Exception {
+        ContentServer.main(("127.0.0.1:4567 " + payload).split(" "));
+        loadBalancer.removeServer("127.0.0.1", 4568);
+        // Found on their previous owner until handed off
+        for (String stationID : stationIDs)
+            assertEquals("200", getClientReceivedResponse(stationID).statusCode);
+        awaitHandoff();
+        for (String stationID : stationIDs)
+            assertTrue(loadBalancer.getBuiltinServer().getDatabase().containsKey(stationID));
+
+        // Updated while the removed server is out of the ring
+        File newer = File.createTempFile("shards", ".txt");
+        Files.writeString(newer.toPath(), Files.readString(payload.toPath())
+                .replace("local_date_time_full:20230715160000",
+                        "local_date_time_full:20230715163000"));
+        ContentServer.main(("127.0.0.1:4567 " + newer).split(" "));
+        newer.delete();
+        loadBalancer.addServer("127.0.0.1", 4568);
+        awaitHandoff();
+        // The stations it gets back replace the records it kept
+        for (String stationID : stationIDs) {
+            HTTPResponse response = getClientReceivedResponse(stationID);
+            assertEquals("20230715163000",
+                    Parser.index(response.body).get(stationID).getRawTS());
+        }
+    }
+
+    @Test
+    void testDeadShardLeavesTheRing() throws Exception {
+        ContentServer.main(("127.0.0.1:4567 " + payload).split(" "));
+        aggServer.close();
+        for (int i = 0; i < 250 && stationIDs.stream()
+                .anyMatch(id -> getServer(loadBalancer.getShard(id)) == aggServer); i++)
+            Thread.sleep(20);
+        for (String stationID : stationIDs)
+            assertNotEquals("500", getClientReceivedResponse(stationID).statusCode);
+        ContentServer.main(("127.0.0.1:4567 " + payload).split(" "));
+        for (String stationID : stationIDs)
+            assertEquals("200", getClientReceivedResponse(stationID).statusCode);
+    }
+
+    @AfterEach
+    void shutdown() {
+        super.shutdown();
+        aggServer.close();
+        payload.delete();
+    }
+}
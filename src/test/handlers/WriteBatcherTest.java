@@ -0,0 +1,162 @@
+package handlers;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utility.FileMetadata;
+import utility.LaneQueue;
+import utility.MetricsRegistry;
+import utility.UpdateNotifier;
+import utility.http.HTTPRequest;
+import utility.http.HTTPResponse;
+import utility.replication.Replication;
+import utility.weatherJson.ParallelParser;
+import utility.weatherJson.Parser;
+import utility.weatherJson.WeatherDataView;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteBatcherTest {
+    static final String DIR = "src/resources/WeatherData/SingleEntry/";
+    ConcurrentMap<String, WeatherDataView> database;
+    ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, String>>> archive;
+    LinkedBlockingQueue<FileMetadata> updateQueue;
+    ForkJoinPool parsePool;
+    ParallelParser parser;
+    MetricsRegistry metrics;
+    Replication replication;
+    UpdateNotifier notifier;
+    LaneQueue<Runnable> queue;
+    WriteBatcher batcher;
+
+    @BeforeEach
+    void setUp() {
+        database = new ConcurrentHashMap<>();
+        archive = new ConcurrentHashMap<>();
+        updateQueue = new LinkedBlockingQueue<>();
+        parsePool = new ForkJoinPool();
+        parser = new ParallelParser(parsePool, 65536);
+        metrics = new MetricsRegistry();
+        replication = new Replication(1000, 1000);
+        notifier = new UpdateNotifier();
+        queue = new LaneQueue<Runnable>(task -> ((PriorityRunnableFuture<?>) task).getLane())
+                .addLane(1, new PriorityRunnableFutureComparator())
+                .addLane(1, Comparator.comparingLong(
+                        (Runnable task) -> ((PriorityRunnableFuture<?>) task).getDeadline())
+                        .thenComparingLong(task -> ((PriorityRunnableFuture<?>) task).getSequence()));
+        batcher = new WriteBatcher(queue, 64, 0, metrics);
+    }
+
+    @AfterEach
+    void tearDown() {
+        replication.close();
+        parsePool.shutdown();
+    }
+
+    static String body(String file) throws IOException {
+        Parser parser = new Parser();
+        parser.parseFile(Paths.get(DIR + file));
+        return parser.toString();
+    }
+
+    PriorityRunnableFuture<HTTPResponse> task(String method, String uri, String body,
+                                              String remoteIP, int timestamp) {
+        HTTPRequest request = new HTTPRequest("1.1").setMethod(method).setURI(uri)
+                .setHeader("Host", "127.0.0.1:4567");
+        if (body != null)
+            request.setHeader("Content-Type", "application/json")
+                    .setHeader("Content-Length", String.valueOf(body.length()))
+                    .setBody(body);
+        RequestHandler handler = new RequestHandler(request, remoteIP, timestamp,
+                updateQueue, database, 20, archive, parser, metrics, replication, notifier);
+        return new PriorityRunnableFuture<>(new FutureTask<>(handler), handler);
+    }
+
+    @Test
+    void testQueuedPUTsAreAppliedAsOneBatch() throws Exception {
+        String older = body("Glenelg_2023-07-15_16-00-00.txt");
+        String newer = body("Glenelg_2023-07-15_16-30-00.txt");
+        String other = body("Adelaide_2023-07-15_16-30-00.txt");
+        PriorityRunnableFuture<HTTPResponse> first = task("PUT", "/glenelg.txt", older,
+                "/127.0.0.1", 1);
+        PriorityRunnableFuture<HTTPResponse> second = task("PUT", "/glenelg.txt", newer,
+                "/127.0.0.1", 3);
+        PriorityRunnableFuture<HTTPResponse> third = task("PUT", "/adelaide.txt", other,
+                "/127.0.0.2", 2);
+        queue.offer(second);
+        queue.offer(third);
+
+        batcher.collect(first);
+        // The PUTs taken out of the queue complete before the first one runs
+        assertTrue(queue.isEmpty());
+        assertTrue(second.isDone() && third.isDone());
+        assertFalse(first.isDone());
+        first.run();
+
+        assertEquals("201", first.get().statusCode);
+        assertEquals("201", third.get().statusCode);
+        assertEquals("200", second.get().statusCode);
+        // The station updated twice holds the value of the latest PUT
+        assertEquals(Parser.index(newer).get("5045").toString(),
+                database.get("5045").toString());
+        assertEquals(2, database.size());
+        assertEquals("3", archive.get("/127.0.0.1").get("glenelg.txt").get("Timestamp"));
+        assertEquals(1, metrics.counter("aggregation_write_batches_total").sum());
+        assertEquals(3, metrics.counter("aggregation_batched_puts_total").sum());
+    }
+
+    @Test
+    void testBatchStopsBeforeOtherWrites() throws Exception {
+        PriorityRunnableFuture<HTTPResponse> first = task("PUT", "/glenelg.txt",
+                body("Glenelg_2023-07-15_16-00-00.txt"), "/127.0.0.1", 1);
+        PriorityRunnableFuture<HTTPResponse> snapshot = task("GET", "/snapshot", null,
+                "/127.0.0.1", 2);
+        PriorityRunnableFuture<HTTPResponse> later = task("PUT", "/glenelg.txt",
+                body("Glenelg_2023-07-15_16-30-00.txt"), "/127.0.0.1", 3);
+        PriorityRunnableFuture<HTTPResponse> read = task("GET", "/5045", null,
+                "/127.0.0.1", 4);
+        queue.offer(snapshot);
+        queue.offer(later);
+        queue.offer(read);
+
+        batcher.collect(first);
+        assertEquals(3, queue.size());
+        first.run();
+        assertEquals("201", first.get().statusCode);
+        assertEquals(0, metrics.counter("aggregation_write_batches_total").sum());
+    }
+
+    @Test
+    void testNonPUTIsNotBatched() {
+        PriorityRunnableFuture<HTTPResponse> read = task("GET", "/5045", null,
+                "/127.0.0.1", 1);
+        queue.offer(task("PUT", "/glenelg.txt", "{}", "/127.0.0.1", 2));
+        batcher.collect(read);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    void testReadsWithoutDeadlineKeepSubmissionOrder() {
+        PriorityRunnableFuture<HTTPResponse> first = task("GET", "/5045", null,
+                "/127.0.0.1", 3);
+        PriorityRunnableFuture<HTTPResponse> second = task("GET", "/5000", null,
+                "/127.0.0.1", 2);
+        PriorityRunnableFuture<HTTPResponse> third = task("GET", "/5045", null,
+                "/127.0.0.1", 1);
+        queue.offer(first);
+        queue.offer(second);
+        queue.offer(third);
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+        assertSame(third, queue.poll());
+    }
+}
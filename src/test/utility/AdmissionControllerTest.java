@@ -0,0 +1,69 @@
+package utility;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControllerTest {
+    static final long MS = 1_000_000L;
+    AdmissionController admission;
+    long now;
+
+    @BeforeEach
+    void setUp() {
+        admission = new AdmissionController(100, 4, 5, 100, 1);
+        now = System.nanoTime();
+    }
+
+    /**
+     * Record one wait at the end of each of several intervals
+     */
+    void recordIntervals(long wait, int intervals) {
+        for (int i = 0; i < intervals; i++) {
+            now += 100 * MS;
+            admission.update(wait, now);
+        }
+    }
+
+    @Test
+    void testRequestsAreBoundedByHardLimit() {
+        for (int i = 0; i < 100; i++)
+            assertTrue(admission.tryAcquire(true));
+        assertFalse(admission.tryAcquire(true));
+        assertFalse(admission.tryAcquire(false));
+        admission.release(-1);
+        assertTrue(admission.tryAcquire(true));
+    }
+
+    @Test
+    void testStandingQueueLowersLimit() {
+        recordIntervals(50 * MS, 3);
+        assertTrue(admission.getLimit() < 50, String.valueOf(admission.getLimit()));
+        recordIntervals(50 * MS, 20);
+        assertEquals(4, admission.getLimit());
+    }
+
+    @Test
+    void testGETsAreShedBeforePUTs() {
+        recordIntervals(50 * MS, 20);
+        for (int i = 0; i < 4; i++)
+            assertTrue(admission.tryAcquire(false));
+        assertFalse(admission.tryAcquire(false));
+        assertTrue(admission.tryAcquire(true));
+    }
+
+    @Test
+    void testLimitRecoversOnceQueueDrains() {
+        recordIntervals(50 * MS, 20);
+        recordIntervals(MS, 30);
+        assertEquals(100, admission.getLimit());
+    }
+
+    @Test
+    void testBurstWithinIntervalKeepsLimit() {
+        admission.update(50 * MS, now + 10 * MS);
+        admission.update(MS, now + 100 * MS);
+        assertEquals(100, admission.getLimit());
+    }
+}
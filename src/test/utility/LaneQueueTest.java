@@ -0,0 +1,126 @@
+package utility;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LaneQueueTest {
+    // Elements are timestamps, negative ones belong to the read lane
+    LaneQueue<Integer> queue;
+
+    @BeforeEach
+    void setUp() {
+        queue = new LaneQueue<Integer>(e -> e < 0 ? 1 : 0)
+                .addLane(1, Comparator.naturalOrder())
+                .addLane(3, Comparator.reverseOrder());
+    }
+
+    @Test
+    void testEachLaneKeepsItsOrder() {
+        for (int e : new int[]{3, -2, 1, -1, 2, -3})
+            queue.offer(e);
+        List<Integer> writes = new ArrayList<>();
+        List<Integer> reads = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            int e = queue.poll();
+            (e < 0 ? reads : writes).add(e);
+        }
+        assertEquals(List.of(1, 2, 3), writes);
+        assertEquals(List.of(-1, -2, -3), reads);
+    }
+
+    @Test
+    void testLanesAreDequeuedByWeight() {
+        for (int i = 1; i <= 100; i++) {
+            queue.offer(i);
+            queue.offer(-i);
+        }
+        int reads = 0;
+        for (int i = 0; i < 40; i++)
+            if (queue.poll() < 0)
+                reads++;
+        assertEquals(30, reads);
+        assertEquals(160, queue.size());
+        assertEquals(90, queue.size(0));
+    }
+
+    @Test
+    void testBacklogDoesNotStarveOtherLane() {
+        for (int i = 1; i <= 1000; i++)
+            queue.offer(i);
+        queue.offer(-1);
+        // The read lane is richer as soon as it holds an element
+        assertEquals(-1, queue.poll());
+        assertEquals(1, queue.poll());
+    }
+
+    @Test
+    void testEmptyLaneDoesNotSaveCredit() {
+        for (int i = 1; i <= 10; i++)
+            queue.offer(i);
+        for (int i = 0; i < 5; i++)
+            queue.poll();
+        for (int i = 1; i <= 10; i++)
+            queue.offer(-i);
+        int writes = 0;
+        for (int i = 0; i < 4; i++)
+            if (queue.poll() > 0)
+                writes++;
+        assertEquals(1, writes);
+    }
+
+    @Test
+    void testPeekMatchesPoll() {
+        for (int i = 1; i <= 5; i++) {
+            queue.offer(i);
+            queue.offer(-i);
+        }
+        while (!queue.isEmpty())
+            assertEquals(queue.peek(), queue.poll());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    void testDrainAndRemove() {
+        for (int i = 1; i <= 4; i++) {
+            queue.offer(i);
+            queue.offer(-i);
+        }
+        assertTrue(queue.remove(2));
+        assertFalse(queue.remove(5));
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(7, queue.drainTo(drained));
+        assertEquals(7, drained.size());
+        assertFalse(drained.contains(2));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void testTakeWaitsForElement() throws InterruptedException {
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        Thread producer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            queue.offer(-1);
+        });
+        producer.start();
+        assertEquals(-1, queue.take());
+        producer.join();
+    }
+
+    @Test
+    void testUnknownLaneIsRejected() {
+        LaneQueue<Integer> single = new LaneQueue<Integer>(e -> e)
+                .addLane(1, Comparator.naturalOrder());
+        assertThrows(IllegalArgumentException.class, () -> single.offer(1));
+        assertThrows(NullPointerException.class, () -> single.offer(null));
+    }
+}
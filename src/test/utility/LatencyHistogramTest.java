@@ -0,0 +1,62 @@
+package utility;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+    LatencyHistogram histogram;
+
+    @BeforeEach
+    void setUp() {
+        histogram = new LatencyHistogram();
+    }
+
+    @ParameterizedTest
+    @ValueSource(longs = {0, 1, 127, 128, 255, 256, 1000, 123456789, Long.MAX_VALUE})
+    void testBucketContainsValue(long value) {
+        int bucket = LatencyHistogram.bucketOf(value);
+        assertTrue(LatencyHistogram.highestValueOf(bucket) >= value);
+        if (bucket > 0)
+            assertTrue(LatencyHistogram.highestValueOf(bucket - 1) < value);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "50, 500000",
+            "99, 990000",
+            "99.9, 999000",
+            "100, 1000000",
+    })
+    void testPercentileWithinPrecision(double percentile, long expected) {
+        for (long i = 1; i <= 1000; i++)
+            histogram.record(i * 1000);
+        long value = histogram.getValueAtPercentile(percentile);
+        assertTrue(value >= expected, value + " < " + expected);
+        assertTrue(value <= expected * 1.016, value + " > " + expected);
+    }
+
+    @Test
+    void testEmptyHistogram() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+        assertEquals(0, histogram.getMean());
+    }
+
+    @Test
+    void testAddMergesRecordedValues() {
+        LatencyHistogram other = new LatencyHistogram();
+        histogram.record(100);
+        other.record(300);
+        other.record(5000);
+        histogram.add(other);
+        assertEquals(3, histogram.getCount());
+        assertEquals(5000, histogram.getMax());
+        assertEquals(1800, histogram.getMean());
+        assertEquals(100, histogram.getValueAtPercentile(0));
+    }
+}
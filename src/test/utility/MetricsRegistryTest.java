@@ -0,0 +1,58 @@
+package utility;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsRegistryTest {
+    MetricsRegistry metrics;
+
+    @BeforeEach
+    void setUp() {
+        metrics = new MetricsRegistry();
+    }
+
+    @Test
+    void testCounterWithLabels() {
+        metrics.describe("requests_total", "Requests");
+        metrics.counter("requests_total", "method", "GET", "code", "200").increment();
+        metrics.counter("requests_total", "method", "GET", "code", "200").increment();
+        metrics.counter("requests_total", "method", "PUT", "code", "201").increment();
+        String output = metrics.toPrometheus();
+        assertTrue(output.contains("# HELP requests_total Requests\n"));
+        assertTrue(output.contains("# TYPE requests_total counter\n"));
+        assertTrue(output.contains("requests_total{method=\"GET\",code=\"200\"} 2\n"));
+        assertTrue(output.contains("requests_total{method=\"PUT\",code=\"201\"} 1\n"));
+    }
+
+    @Test
+    void testGaugeIsReadOnExport() {
+        int[] value = {1};
+        metrics.gauge("queue_depth", () -> value[0]);
+        assertTrue(metrics.toPrometheus().contains("queue_depth 1\n"));
+        value[0] = 5;
+        assertTrue(metrics.toPrometheus().contains("queue_depth 5\n"));
+    }
+
+    @Test
+    void testSummaryIsExportedInSeconds() {
+        metrics.summary("duration_seconds", "method", "GET").record(2_000_000_000L);
+        String output = metrics.toPrometheus();
+        assertTrue(output.contains("# TYPE duration_seconds summary\n"));
+        assertTrue(output.contains("duration_seconds{method=\"GET\",quantile=\"0.5\"} 2.0"));
+        assertTrue(output.contains("duration_seconds_sum{method=\"GET\"} 2.0\n"));
+        assertTrue(output.contains("duration_seconds_count{method=\"GET\"} 1\n"));
+    }
+
+    @Test
+    void testLabelValueIsEscaped() {
+        metrics.counter("errors_total", "message", "a \"b\"").increment();
+        assertTrue(metrics.toPrometheus().contains("errors_total{message=\"a \\\"b\\\"\"} 1"));
+    }
+
+    @Test
+    void testOddLabelsThrowsException() {
+        assertThrows(IllegalArgumentException.class, () -> metrics.counter("a_total", "method"));
+    }
+}
@@ -0,0 +1,88 @@
+package utility;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+    SingleFlight<String, String> flights;
+    AtomicInteger executions;
+    ExecutorService threadPool;
+
+    @BeforeEach
+    void setUp() {
+        flights = new SingleFlight<>();
+        executions = new AtomicInteger();
+        threadPool = Executors.newCachedThreadPool();
+    }
+
+    Future<String> executeBlocked(String key, CountDownLatch started, CountDownLatch release) {
+        return threadPool.submit(() -> flights.execute(key, () -> {
+            executions.incrementAndGet();
+            started.countDown();
+            release.await();
+            return "result-" + executions.get();
+        }));
+    }
+
+    @Test
+    void testConcurrentCallsShareOneExecution() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executeBlocked("5000", started, release);
+        started.await();
+        Future<String> second = executeBlocked("5000", new CountDownLatch(1), release);
+        while (flights.getShared() == 0)
+            Thread.sleep(1);
+        release.countDown();
+        assertEquals("result-1", first.get(5, TimeUnit.SECONDS));
+        assertEquals("result-1", second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, executions.get());
+    }
+
+    @Test
+    void testDifferentKeysRunSeparately() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executeBlocked("5000", started, release);
+        Future<String> second = executeBlocked("5045", started, release);
+        started.await();
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        assertEquals(2, executions.get());
+        assertEquals(0, flights.getShared());
+    }
+
+    @Test
+    void testFinishedCallIsNotReused() throws Exception {
+        assertEquals("a", flights.execute("5000", () -> "a"));
+        assertEquals("b", flights.execute("5000", () -> "b"));
+    }
+
+    @Test
+    void testForgottenCallIsNotJoined() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> first = executeBlocked("5000", started, release);
+        started.await();
+        flights.forget();
+        assertEquals("after", flights.execute("5000", () -> "after"));
+        release.countDown();
+        assertEquals("result-1", first.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testFailureIsSharedAsCause() {
+        ExecutionException e = assertThrows(ExecutionException.class, () ->
+                flights.execute("5000", () -> {
+                    throw new IOException("down");
+                }));
+        assertInstanceOf(IOException.class, e.getCause());
+    }
+}
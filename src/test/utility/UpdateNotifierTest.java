@@ -0,0 +1,77 @@
+package utility;
+
+import org.junit.jupiter.api.Test;
+import utility.pubsub.PubSubBroker;
+import utility.pubsub.Subscriber;
+import utility.weatherJson.Parser;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UpdateNotifierTest {
+    @Test
+    void testWaitersOfAStationShareOneUpdate() {
+        UpdateNotifier notifier = new UpdateNotifier();
+        CompletableFuture<Void> first = notifier.watch("5000");
+        assertSame(first, notifier.watch("5000"));
+        CompletableFuture<Void> other = notifier.watch("5045");
+        notifier.publish(List.of("5000", "9999"));
+        assertTrue(first.isDone());
+        assertFalse(other.isDone());
+        // Waiters watching after the update wait for the next one
+        assertNotSame(first, notifier.watch("5000"));
+    }
+
+    @Test
+    void testAwaitReturnsOnUpdateOrTimeout() throws Exception {
+        UpdateNotifier notifier = new UpdateNotifier();
+        assertFalse(notifier.await(notifier.watch("5000"), 10, TimeUnit.MILLISECONDS));
+        CompletableFuture<Void> update = notifier.watch("5000");
+        Thread waiter = new Thread(() -> {
+            try {
+                assertTrue(notifier.await(update, 10, TimeUnit.SECONDS));
+            } catch (InterruptedException ignored) {
+            }
+        });
+        waiter.start();
+        while (notifier.getWaiting() == 0)
+            Thread.sleep(1);
+        notifier.publish(List.of("5000"));
+        waiter.join(5000);
+        assertFalse(waiter.isAlive());
+        assertEquals(0, notifier.getWaiting());
+    }
+
+    @Test
+    void testStationIsForgottenOnceNoOneWatchesIt() throws Exception {
+        UpdateNotifier notifier = new UpdateNotifier();
+        CompletableFuture<Void> first = notifier.watch("9999");
+        CompletableFuture<Void> second = notifier.watch("9999");
+        assertFalse(notifier.await(first, 1, TimeUnit.MILLISECONDS));
+        notifier.unwatch("9999", first);
+        assertEquals(1, notifier.getWatched());
+        notifier.unwatch("9999", second);
+        assertEquals(0, notifier.getWatched());
+        // Unwatching a published update leaves the waiters of the next one
+        CompletableFuture<Void> published = notifier.watch("5000");
+        notifier.publish(List.of("5000"));
+        CompletableFuture<Void> next = notifier.watch("5000");
+        notifier.unwatch("5000", published);
+        assertSame(next, notifier.watch("5000"));
+    }
+
+    @Test
+    void testStoredStationsArePublishedToSubscribers() throws Exception {
+        PubSubBroker broker = new PubSubBroker(4);
+        UpdateNotifier notifier = new UpdateNotifier(broker);
+        Subscriber subscriber = broker.subscribe(PubSubBroker.stationTopic("A0"));
+        CompletableFuture<Void> update = notifier.watch("A0");
+        notifier.publish(Parser.index("{\n\"id\": \"A0\",\n\"lat\": 10\n}"));
+        assertTrue(update.isDone());
+        assertEquals("A0", subscriber.take(5, TimeUnit.SECONDS).get(0).getStationID());
+        broker.close();
+    }
+}
@@ -26,6 +26,19 @@ class ContentServerParserTest {
         assertEquals("localhost", info.hostname);
         assertEquals(8080, info.port);
         assertEquals("file.json", info.fileName);
+        assertFalse(info.watch);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "localhost:8080 dir --watch",
+            "http://localhost:8080 dir --watch",})
+    void testWatch(String args) {
+        String[] argv = args.split(" ");
+        ContentServerInformation info = parser.parse(argv);
+        assertEquals("localhost", info.hostname);
+        assertEquals("dir", info.fileName);
+        assertTrue(info.watch);
     }
 
     @ParameterizedTest
@@ -41,6 +54,7 @@ class ContentServerParserTest {
             "http//localhost:asd asda 553 3434",
             "http://localhost.domain:234 asd 234",
             "http://localhost:domain1.domain2:8080 1234",
+            "localhost:8080 dir --wait",
     })
     void testRuntimeException(String args) {
         String[] argv = args.split(" ");
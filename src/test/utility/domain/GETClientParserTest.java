@@ -6,6 +6,7 @@ import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
 class GETClientParserTest {
@@ -43,6 +44,43 @@ class GETClientParserTest {
         assertEquals("1234", info.stationID);
     }
 
+    @Test
+    void testWithPoll() {
+        String[] argv = "localhost:8080 1234 --poll 500".split(" ");
+        GETServerInformation info = parser.parse(argv);
+        assertEquals("1234", info.stationID);
+        assertEquals(500, info.pollInterval);
+        assertEquals(0, parser.parse("localhost:8080 1234".split(" ")).pollInterval);
+    }
+
+    @Test
+    void testWithSubscribe() {
+        GETServerInformation info = parser.parse("localhost:8080 --subscribe states/SA".split(" "));
+        assertEquals("states/SA", info.topic);
+        assertNull(info.stationID);
+    }
+
+    @Test
+    void testWithWait() {
+        GETServerInformation info = parser.parse("localhost:8080 1234 --wait 30".split(" "));
+        assertEquals("1234", info.stationID);
+        assertEquals(30, info.wait);
+        assertEquals(0, info.pollInterval);
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "localhost:8080 1234 --wait 0",
+            "localhost:8080 1234 --wait 30s",
+            "localhost:8080 1234 --poll 0",
+            "localhost:8080 1234 --poll soon",
+            "localhost:8080 1234 --watch 500",
+    })
+    void testInvalidPoll(String args) {
+        String[] argv = args.split(" ");
+        assertThrows(RuntimeException.class, () -> parser.parse(argv));
+    }
+
     @ParameterizedTest
     @CsvSource({
             "localhost",
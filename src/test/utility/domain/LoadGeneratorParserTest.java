@@ -0,0 +1,36 @@
+package utility.domain;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoadGeneratorParserTest {
+    LoadGeneratorParser parser;
+
+    @BeforeEach
+    void setUpParser() {
+        parser = new LoadGeneratorParser();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "localhost:8080",
+            "http://localhost:8080",
+            "http://localhost.domain:8080",})
+    void testURL(String args) {
+        ServerInformation info = parser.parse(args.split(" "));
+        assertEquals("localhost", info.hostname);
+        assertEquals(8080, info.port);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "localhost:8080 5000",})
+    void testInvalidArgsThrowsException(String args) {
+        assertThrows(RuntimeException.class, () -> parser.parse(args.isEmpty() ?
+                new String[0] : args.split(" ")));
+    }
+}
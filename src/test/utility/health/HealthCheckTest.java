@@ -0,0 +1,52 @@
+package utility.health;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HealthCheckTest {
+    static final int TIMEOUT = 200;
+    // Accepts connections and never answers
+    ServerSocket hungServer;
+    Socket accepted;
+    HealthCheck healthCheck;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        hungServer = new ServerSocket(0);
+        new Thread(() -> {
+            try {
+                accepted = hungServer.accept();
+            } catch (IOException ignored) {
+            }
+        }).start();
+        healthCheck = new HealthCheck("127.0.0.1", hungServer.getLocalPort(), 100, TIMEOUT);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        healthCheck.close();
+        if (accepted != null)
+            accepted.close();
+        hungServer.close();
+    }
+
+    @Test
+    void testReplicationStatusOfHungServerIsNotRetried() {
+        long start = System.nanoTime();
+        assertNull(healthCheck.getReplicationStatus());
+        // One receive deadline, a retry would wait for a second one
+        assertTrue(System.nanoTime() - start < 2L * TIMEOUT * 1_000_000L);
+    }
+
+    @Test
+    void testProbeOfHungServerFails() {
+        assertFalse(healthCheck.probe());
+    }
+}
@@ -0,0 +1,54 @@
+package utility.health;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PhiAccrualDetectorTest {
+    static final long INTERVAL = 100_000_000L;
+    PhiAccrualDetector detector;
+    long now;
+
+    @BeforeEach
+    void setUp() {
+        now = 0;
+        detector = new PhiAccrualDetector(100, INTERVAL, INTERVAL / 4, now);
+        for (int i = 0; i < 10; i++) {
+            now += INTERVAL;
+            detector.heartbeat(now);
+        }
+    }
+
+    @Test
+    void testServerOnTimeIsAvailable() {
+        assertTrue(detector.phi(now + INTERVAL / 2) < 1);
+        assertTrue(detector.isAvailable(now + INTERVAL, 8));
+    }
+
+    @Test
+    void testPhiGrowsWithSilence() {
+        double previous = detector.phi(now);
+        for (int i = 1; i <= 4; i++) {
+            double phi = detector.phi(now + i * INTERVAL);
+            assertTrue(phi > previous, phi + " <= " + previous);
+            previous = phi;
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {3, 5, 10})
+    void testSilentServerIsSuspected(int missedIntervals) {
+        assertFalse(detector.isAvailable(now + missedIntervals * INTERVAL, 8));
+    }
+
+    @Test
+    void testHeartbeatClearsSuspicion() {
+        now += 5 * INTERVAL;
+        assertFalse(detector.isAvailable(now, 8));
+        detector.heartbeat(now);
+        assertTrue(detector.isAvailable(now, 8));
+    }
+}
@@ -0,0 +1,38 @@
+package utility.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedReaderTest {
+    @Test
+    void testChunksAreReadAsWritten() throws IOException {
+        StringWriter buffer = new StringWriter();
+        ChunkedWriter writer = new ChunkedWriter(buffer);
+        writer.write("{\n\"id\": \"A0\"\n}");
+        writer.flush();
+        writer.write("\u00e9\r\n");
+        writer.close();
+        ChunkedReader reader = new ChunkedReader(
+                new BufferedReader(new StringReader(buffer.toString())));
+        assertEquals("{\n\"id\": \"A0\"\n}", reader.readChunk());
+        assertEquals("\u00e9\r\n", reader.readChunk());
+        assertNull(reader.readChunk());
+        assertNull(reader.readChunk());
+    }
+
+    @Test
+    void testTruncatedBodyFails() {
+        ChunkedReader reader = new ChunkedReader(
+                new BufferedReader(new StringReader("a\r\nshort")));
+        assertThrows(IOException.class, reader::readChunk);
+        ChunkedReader invalid = new ChunkedReader(
+                new BufferedReader(new StringReader("zz\r\n")));
+        assertThrows(IOException.class, invalid::readChunk);
+    }
+}
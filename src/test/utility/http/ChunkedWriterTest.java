@@ -0,0 +1,104 @@
+package utility.http;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Objects;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChunkedWriterTest {
+    static final String[] BODIES = {"", "{}", "{\n\"id\": \"A0\",\n\"lat\": 10\n}",
+            "ab\n\ncd\n", "\nstarts and ends with a line break\n"};
+
+    /**
+     * Write a PUT with a body in chunks of chunkSize characters
+     */
+    static String chunked(String body, int chunkSize) throws IOException {
+        HTTPRequest head = new HTTPRequest("1.1").setMethod("PUT").setURI("/weather.json")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Transfer-Encoding", "chunked");
+        StringWriter buffer = new StringWriter();
+        buffer.write(head.toString());
+        try (ChunkedWriter writer = new ChunkedWriter(buffer, chunkSize)) {
+            writer.write(body);
+        }
+        return buffer.toString();
+    }
+
+    static HTTPRequest parseLines(BufferedReader in) throws IOException {
+        HTTPSocketParser parser = new HTTPSocketParser();
+        String line;
+        while ((line = in.readLine()) != null) {
+            parser.parseLine(line);
+            if (parser.isComplete())
+                return HTTPRequest.fromMessage(parser.toString());
+        }
+        return null;
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 8192})
+    void testSocketParserJoinsChunks(int chunkSize) throws IOException {
+        for (String body : BODIES) {
+            HTTPRequest request = parseLines(new BufferedReader(new StringReader(
+                    chunked(body, chunkSize))));
+            assertNotNull(request);
+            // An empty body is parsed as none, as with Content-Length: 0
+            assertEquals(body, Objects.requireNonNullElse(request.body, ""));
+            assertEquals(String.valueOf(body.length()), request.getHeader("Content-Length"));
+            assertNull(request.getHeader("Transfer-Encoding"));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 8192})
+    void testRawMessageJoinsChunks(int chunkSize) throws IOException {
+        for (String body : BODIES) {
+            RawHTTPMessage message = RawHTTPMessage.read(new BufferedReader(new StringReader(
+                    chunked(body, chunkSize))));
+            assertEquals(body, message.body);
+            assertEquals(String.valueOf(body.length()), message.getHeader("Content-Length"));
+            assertNull(message.getHeader("Transfer-Encoding"));
+        }
+    }
+
+    @Test
+    void testMessageAfterChunkedMessageIsRead() throws IOException {
+        String next = new HTTPRequest("1.1").setMethod("GET").setURI("/A0") +
+                      System.lineSeparator();
+        String text = chunked("{\n}", 2) + next;
+        BufferedReader in = new BufferedReader(new StringReader(text));
+        assertEquals("{\n}", parseLines(in).body);
+        assertEquals("/A0", parseLines(in).uri);
+        in = new BufferedReader(new StringReader(text));
+        assertEquals("{\n}", RawHTTPMessage.read(in).body);
+        assertEquals("GET", RawHTTPMessage.read(in).getMethod());
+    }
+
+    @Test
+    void testFullChunksAreSentBeforeClose() throws IOException {
+        StringWriter buffer = new StringWriter();
+        ChunkedWriter writer = new ChunkedWriter(buffer, 4);
+        writer.write("abcdef");
+        assertEquals("4\r\nabcd\r\n", buffer.toString());
+        writer.flush();
+        assertEquals("4\r\nabcd\r\n2\r\nef\r\n", buffer.toString());
+        writer.close();
+        assertEquals("4\r\nabcd\r\n2\r\nef\r\n0\r\n\r\n" + System.lineSeparator(),
+                buffer.toString());
+        assertThrows(IOException.class, () -> writer.write("g"));
+    }
+
+    @Test
+    void testInvalidChunkSizeFailsRawRead() {
+        String text = "PUT / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\nab\r\n";
+        assertThrows(IOException.class, () -> RawHTTPMessage.read(
+                new BufferedReader(new StringReader(text))));
+    }
+}
@@ -0,0 +1,58 @@
+package utility.http;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConditionalRequestTest {
+    static final String ETAG = "\"12-5f3a\"";
+
+    static HTTPRequest get(String ifNoneMatch) {
+        HTTPRequest request = new HTTPRequest("1.1").setMethod("GET").setURI("/5000");
+        if (ifNoneMatch != null)
+            request.setHeader("If-None-Match", ifNoneMatch);
+        return request;
+    }
+
+    static HTTPResponse ok(String ETag) {
+        String body = "{\n\"id\": \"5000\"\n}";
+        HTTPResponse response = new HTTPResponse("1.1").setStatusCode("200")
+                .setReasonPhrase("OK").setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length())).setBody(body);
+        if (ETag != null)
+            response.setHeader("ETag", ETag);
+        return response;
+    }
+
+    @Test
+    void testMatches() {
+        assertTrue(ConditionalRequest.matches(ETAG, ETAG));
+        assertTrue(ConditionalRequest.matches("\"1-0\", " + ETAG, ETAG));
+        assertTrue(ConditionalRequest.matches("W/" + ETAG, ETAG));
+        assertTrue(ConditionalRequest.matches("*", ETAG));
+        assertFalse(ConditionalRequest.matches("\"13-5f3a\"", ETAG));
+        assertFalse(ConditionalRequest.matches(null, ETAG));
+        assertFalse(ConditionalRequest.matches(ETAG, null));
+    }
+
+    @Test
+    void testMatchingGETIsNotModified() {
+        HTTPResponse response = ConditionalRequest.apply(get(ETAG), ok(ETAG));
+        assertEquals("304", response.statusCode);
+        assertEquals(ETAG, response.getHeader("ETag"));
+        assertNull(response.body);
+        assertNull(response.getHeader("Content-Length"));
+    }
+
+    @Test
+    void testOtherRequestsGetTheResponse() {
+        HTTPResponse response = ok(ETAG);
+        assertSame(response, ConditionalRequest.apply(get(null), response));
+        assertSame(response, ConditionalRequest.apply(get("\"1-0\""), response));
+        HTTPResponse untagged = ok(null);
+        assertSame(untagged, ConditionalRequest.apply(get(ETAG), untagged));
+        HTTPRequest put = new HTTPRequest("1.1").setMethod("PUT").setURI("/5000")
+                .setHeader("If-None-Match", ETAG);
+        assertSame(response, ConditionalRequest.apply(put, response));
+    }
+}
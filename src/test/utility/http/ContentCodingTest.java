@@ -0,0 +1,94 @@
+package utility.http;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentCodingTest {
+    static final String BODY = "{\n\"id\": \"5000\",\n\"name\": \"Adelaide\",\n".repeat(50) + "}";
+    static final int MAX_BODY = 1 << 20;
+
+    @Test
+    void testNegotiatePrefersGzip() {
+        assertEquals(ContentCoding.GZIP, ContentCoding.negotiate(ContentCoding.ACCEPTED));
+        assertEquals(ContentCoding.GZIP, ContentCoding.negotiate("x-deflate-base64, " +
+                                                                 "x-gzip-base64;q=0.5"));
+        assertEquals(ContentCoding.DEFLATE, ContentCoding.negotiate("x-deflate-base64, br"));
+        assertNull(ContentCoding.negotiate("br, identity"));
+        assertNull(ContentCoding.negotiate(null));
+    }
+
+    @Test
+    void testStandardCodingsAreNotNegotiated() {
+        // Clients accepting these expect binary bodies, not base64
+        assertNull(ContentCoding.negotiate("gzip, deflate"));
+        assertNull(ContentCoding.negotiate("x-gzip"));
+        assertNull(ContentCoding.negotiate("*"));
+        assertFalse(ContentCoding.isSupported("gzip"));
+    }
+
+    @Test
+    void testNegotiateSkipsRefusedCodings() {
+        assertEquals(ContentCoding.DEFLATE, ContentCoding.negotiate("x-gzip-base64;q=0, " +
+                                                                    "x-deflate-base64"));
+        assertNull(ContentCoding.negotiate("x-gzip-base64;q=0.0, x-deflate-base64; q=0"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {ContentCoding.GZIP, ContentCoding.DEFLATE})
+    void testRoundTrip(String coding) throws IOException {
+        String encoded = ContentCoding.encode(BODY, coding);
+        assertTrue(encoded.length() < BODY.length() / 4);
+        assertFalse(encoded.contains("\n"));
+        assertEquals(BODY, ContentCoding.decode(encoded, coding, BODY.length()));
+    }
+
+    @Test
+    void testReceivedMessageIsDecodedInPlace() throws IOException {
+        HTTPResponse response = new HTTPResponse("1.1").setStatusCode("200")
+                .setReasonPhrase("OK").setHeader("Content-Type", "application/json");
+        ContentCoding.setEncodedBody(response, ContentCoding.encode(BODY, ContentCoding.GZIP),
+                ContentCoding.GZIP);
+        HTTPResponse received = HTTPResponse.fromMessage(response.toString());
+        ContentCoding.decode(received, MAX_BODY);
+        assertEquals(BODY, received.body);
+        assertEquals(String.valueOf(BODY.length()), received.getHeader("Content-Length"));
+        assertNull(received.getHeader("Content-Encoding"));
+        assertNull(received.getHeader("Content-Transfer-Encoding"));
+    }
+
+    @Test
+    void testUnknownCodingIsLeftAsIs() throws IOException {
+        HTTPRequest request = new HTTPRequest("1.1").setMethod("PUT").setURI("/")
+                .setHeader("Content-Encoding", "br").setBody("abc");
+        ContentCoding.decode(request, MAX_BODY);
+        assertEquals("abc", request.body);
+        assertEquals("br", request.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    void testInvalidBodyThrows() {
+        assertThrows(IOException.class, () -> ContentCoding.decode("not base64!",
+                ContentCoding.GZIP, MAX_BODY));
+        assertThrows(IOException.class, () -> ContentCoding.decode("YWJj", ContentCoding.GZIP,
+                MAX_BODY));
+        assertThrows(IOException.class, () -> ContentCoding.decode("YWJj",
+                ContentCoding.DEFLATE, MAX_BODY));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {ContentCoding.GZIP, ContentCoding.DEFLATE})
+    void testOversizedBodyThrows(String coding) {
+        // Compresses to a few kilobytes
+        String bomb = ContentCoding.encode("0".repeat(10 * MAX_BODY), coding);
+        assertThrows(BodyTooLargeException.class, () -> ContentCoding.decode(bomb, coding,
+                MAX_BODY));
+        String encoded = ContentCoding.encode(BODY, coding);
+        assertThrows(BodyTooLargeException.class, () -> ContentCoding.decode(encoded, coding,
+                BODY.length() - 1));
+    }
+}
@@ -0,0 +1,125 @@
+package utility.http;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageWriterTest {
+    static final String LINE_BREAK = System.lineSeparator();
+
+    /**
+     * Stream counting the writes reaching it
+     */
+    static class CountingStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+    }
+
+    CountingStream out;
+    MessageWriter writer;
+
+    @BeforeEach
+    void setUp() {
+        out = new CountingStream();
+        writer = new MessageWriter(out, null);
+    }
+
+    static HTTPResponse response(String body) {
+        return new HTTPResponse("1.1").setStatusCode("200").setReasonPhrase("OK")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    @Test
+    void testMessageIsWrittenLikePrintln() throws IOException {
+        HTTPResponse response = response("{\"id\":\"5000\"}");
+        writer.write(response);
+        assertEquals(0, out.size());
+        assertFalse(writer.isEmpty());
+        writer.flush();
+        assertEquals(response + LINE_BREAK, out.toString(StandardCharsets.UTF_8));
+        assertTrue(writer.isEmpty());
+    }
+
+    @Test
+    void testPipelinedMessagesShareOneWrite() throws IOException {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            HTTPResponse response = response("{\"id\":\"" + i + "\"}");
+            writer.write(response);
+            expected.append(response).append(LINE_BREAK);
+        }
+        writer.flush();
+        assertEquals(1, out.writes);
+        assertEquals(expected.toString(), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testLargeBodySpansBuffers() throws IOException {
+        String body = "\u00e9".repeat(MessageWriter.BUFFER_SIZE) + "end";
+        HTTPResponse response = response(body);
+        writer.write(response);
+        writer.flush();
+        assertEquals(response + LINE_BREAK, out.toString(StandardCharsets.UTF_8));
+        assertTrue(out.writes > 1);
+    }
+
+    @Test
+    void testRawMessageAndNullHeader() throws IOException {
+        writer.write("GET /5000 HTTP/1.1\r\n\r\n", "");
+        writer.write(new HTTPResponse("1.1").setStatusCode("400").setReasonPhrase("Bad Request")
+                .setHeader("Content-Length", null));
+        writer.flush();
+        assertEquals("GET /5000 HTTP/1.1\r\n\r\n" + LINE_BREAK +
+                     "HTTP/1.1 400 Bad Request\r\nContent-Length: null\r\n\r\n" + LINE_BREAK,
+                out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testSharedBufferIsWrittenUnchanged() throws IOException {
+        ByteBuffer shared = ByteBuffer.wrap("7\r\n{\"a\":1}\r\n".getBytes(StandardCharsets.UTF_8))
+                .asReadOnlyBuffer();
+        writer.write("HTTP/1.1 200 OK\r\n\r\n", "");
+        writer.write(shared);
+        writer.write(shared);
+        writer.flush();
+        assertEquals("HTTP/1.1 200 OK\r\n\r\n" + LINE_BREAK + "7\r\n{\"a\":1}\r\n".repeat(2),
+                out.toString(StandardCharsets.UTF_8));
+        assertEquals(0, shared.position());
+    }
+
+    @Test
+    void testChannelIsWrittenByGathering() throws Exception {
+        Pipe pipe = Pipe.open();
+        MessageWriter channelWriter = new MessageWriter(null, pipe.sink());
+        String body = "x".repeat(MessageWriter.BUFFER_SIZE);
+        HTTPResponse response = response(body);
+        channelWriter.write(response);
+        String expected = response + LINE_BREAK;
+        Thread flusher = new Thread(() -> {
+            try {
+                channelWriter.flush();
+            } catch (IOException ignored) {
+            }
+        });
+        flusher.start();
+        ByteBuffer received = ByteBuffer.allocate(expected.length());
+        while (received.hasRemaining())
+            pipe.source().read(received);
+        flusher.join();
+        assertEquals(expected, new String(received.array(), StandardCharsets.UTF_8));
+    }
+}
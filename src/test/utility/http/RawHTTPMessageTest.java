@@ -0,0 +1,69 @@
+package utility.http;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RawHTTPMessageTest {
+    BufferedReader reader(String text) {
+        return new BufferedReader(new StringReader(text));
+    }
+
+    HTTPRequest newPUT(String body) {
+        return new HTTPRequest("1.1").setMethod("PUT").setURI("/weather.json")
+                .setHeader("Content-Type", "application/json")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setBody(body);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "{}", "{\n\"id\": \"A0\",\n\"lat\": 10\n}", "a\r\nb\n\n"})
+    void testMessageIsKeptAsSent(String body) throws IOException {
+        HTTPRequest request = newPUT(body);
+        RawHTTPMessage message = RawHTTPMessage.read(reader(request.toString()));
+        assertEquals(request.toString(), message.toString());
+        assertEquals("PUT", message.getMethod());
+        assertEquals(body, message.body);
+    }
+
+    @Test
+    void testConsecutiveMessagesAreSeparated() throws IOException {
+        StringWriter buffer = new StringWriter();
+        PrintWriter out = new PrintWriter(buffer);
+        out.println(newPUT("{\n}"));
+        out.println(new HTTPRequest("1.1").setMethod("GET").setURI("/A0"));
+        BufferedReader in = reader(buffer.toString());
+        assertEquals("PUT /weather.json HTTP/1.1", RawHTTPMessage.read(in).startLine);
+        RawHTTPMessage message = RawHTTPMessage.read(in);
+        assertEquals("GET", message.getMethod());
+        assertEquals("", message.body);
+        assertNull(RawHTTPMessage.read(in));
+    }
+
+    @Test
+    void testWrittenMessageIsParsedLikeSentMessage() throws IOException {
+        HTTPRequest request = newPUT("{\n\"id\": \"A0\"\n}");
+        StringWriter buffer = new StringWriter();
+        RawHTTPMessage.read(reader(request.toString())).writeTo(new PrintWriter(buffer));
+        HTTPSocketParser parser = new HTTPSocketParser();
+        for (String line : buffer.toString().split("\n"))
+            parser.parseLine(line);
+        assertTrue(parser.isComplete());
+        assertEquals(request.body, HTTPRequest.fromMessage(parser.toString()).body);
+    }
+
+    @Test
+    void testTruncatedBodyThrows() {
+        String message = newPUT("{\"id\": \"A0\"}").toString();
+        assertThrows(IOException.class, () -> RawHTTPMessage.read(reader(
+                message.substring(0, message.length() - 3))));
+    }
+}
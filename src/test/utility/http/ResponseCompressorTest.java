@@ -0,0 +1,84 @@
+package utility.http;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCompressorTest {
+    static final String BODY = "{\n\"id\": \"5000\",\n\"name\": \"Adelaide\",\n".repeat(50) + "}";
+    ResponseCompressor compressor;
+
+    @BeforeEach
+    void setUp() {
+        compressor = new ResponseCompressor(1024, 2);
+    }
+
+    static HTTPRequest get(String uri, String acceptEncoding) {
+        HTTPRequest request = new HTTPRequest("1.1").setMethod("GET").setURI(uri);
+        if (acceptEncoding != null)
+            request.setHeader("Accept-Encoding", acceptEncoding);
+        return request;
+    }
+
+    static HTTPResponse ok(String body) {
+        return new HTTPResponse("1.1").setStatusCode("200").setReasonPhrase("OK")
+                .setHeader("Content-Length", String.valueOf(body.length())).setBody(body);
+    }
+
+    @Test
+    void testAcceptedCodingIsUsed() throws IOException {
+        HTTPResponse response = ok(BODY);
+        HTTPResponse compressed = compressor.compress(get("/5000", ContentCoding.DEFLATE), response);
+        assertEquals(ContentCoding.DEFLATE, compressed.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", compressed.getHeader("Vary"));
+        assertEquals(String.valueOf(compressed.body.length()),
+                compressed.getHeader("Content-Length"));
+        assertEquals(BODY, ContentCoding.decode(compressed.body, ContentCoding.DEFLATE,
+                BODY.length()));
+        // The shared response is left unchanged
+        assertEquals(BODY, response.body);
+        assertNull(response.getHeader("Content-Encoding"));
+    }
+
+    @Test
+    void testSmallOrRefusedBodiesAreSentAsIs() {
+        HTTPResponse small = ok("{}");
+        assertSame(small, compressor.compress(get("/5000", ContentCoding.GZIP), small));
+        HTTPResponse large = ok(BODY);
+        assertSame(large, compressor.compress(get("/5000", null), large));
+        assertSame(large, compressor.compress(get("/5000", "br"), large));
+        assertSame(large, compressor.compress(get("/5000", "gzip, deflate"), large));
+        assertSame(large, new ResponseCompressor(-1, 2).compress(get("/5000", ContentCoding.GZIP), large));
+    }
+
+    @Test
+    void testGETBodiesAreCachedUntilChanged() {
+        String first = compressor.compress(get("/5000", ContentCoding.GZIP), ok(BODY)).body;
+        assertSame(first, compressor.compress(get("/5000", ContentCoding.GZIP), ok(BODY)).body);
+        assertEquals(1, compressor.getHits());
+        assertEquals(1, compressor.getMisses());
+        String changed = compressor.compress(get("/5000", ContentCoding.GZIP), ok(BODY + " ")).body;
+        assertNotEquals(first, changed);
+        assertEquals(2, compressor.getMisses());
+    }
+
+    @Test
+    void testCacheIsBounded() {
+        for (String uri : new String[]{"/1", "/2", "/3", "/1"})
+            compressor.compress(get(uri, ContentCoding.GZIP), ok(BODY));
+        assertEquals(0, compressor.getHits());
+        assertEquals(4, compressor.getMisses());
+    }
+
+    @Test
+    void testPUTResponsesAreNotCached() {
+        HTTPRequest put = new HTTPRequest("1.1").setMethod("PUT").setURI("/file")
+                .setHeader("Accept-Encoding", ContentCoding.GZIP);
+        compressor.compress(put, ok(BODY));
+        compressor.compress(put, ok(BODY));
+        assertEquals(0, compressor.getHits() + compressor.getMisses());
+    }
+}
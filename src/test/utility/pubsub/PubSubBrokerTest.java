@@ -0,0 +1,118 @@
+package utility.pubsub;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import utility.weatherJson.Parser;
+import utility.weatherJson.WeatherDataView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PubSubBrokerTest {
+    PubSubBroker broker;
+
+    @BeforeEach
+    void setUp() {
+        broker = new PubSubBroker(16);
+    }
+
+    @AfterEach
+    void tearDown() {
+        broker.close();
+    }
+
+    static WeatherDataView station(String stationID, String state) {
+        return Parser.index("{\n\"id\": \"" + stationID + "\",\n\"state\": \"" + state +
+                            "\"\n}").get(stationID);
+    }
+
+    static List<String> receive(Subscriber subscriber, int count) throws InterruptedException {
+        List<String> stationIDs = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (stationIDs.size() < count && System.nanoTime() < deadline)
+            for (Update update : subscriber.take(100, TimeUnit.MILLISECONDS))
+                stationIDs.add(update.getStationID());
+        return stationIDs;
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "stations, true",
+            "stations/5000, true",
+            "states/SA, true",
+            "stations/, false",
+            "states/SA/5000, false",
+            "weather, false",
+    })
+    void testTopics(String topic, boolean isTopic) {
+        assertEquals(isTopic, PubSubBroker.isTopic(topic));
+    }
+
+    @Test
+    void testUpdateReachesEveryMatchingTopic() throws InterruptedException {
+        Subscriber ofStation = broker.subscribe(PubSubBroker.stationTopic("5000"));
+        Subscriber ofState = broker.subscribe(PubSubBroker.stateTopic("SA"));
+        Subscriber ofOtherState = broker.subscribe(PubSubBroker.stateTopic("VIC"));
+        Subscriber ofAll = broker.subscribe(PubSubBroker.ALL);
+        assertEquals(4, broker.getSubscribers());
+        broker.publish(List.of(station("5000", "SA"), station("5045", "SA")));
+        assertEquals(List.of("5000", "5045"), receive(ofAll, 2));
+        assertEquals(List.of("5000", "5045"), receive(ofState, 2));
+        assertEquals(List.of("5000"), receive(ofStation, 1));
+        assertEquals(List.of(), ofOtherState.take(50, TimeUnit.MILLISECONDS));
+        assertEquals(5, broker.getDelivered());
+    }
+
+    @Test
+    void testSubscribersShareOneSerializedUpdate() throws InterruptedException {
+        List<Subscriber> subscribers = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            subscribers.add(broker.subscribe(PubSubBroker.ALL));
+        broker.publish(List.of(station("5000", "SA")));
+        Update first = null;
+        for (Subscriber subscriber : subscribers) {
+            List<Update> updates = subscriber.take(5, TimeUnit.SECONDS);
+            assertEquals(1, updates.size());
+            if (first == null)
+                first = updates.get(0);
+            assertSame(first, updates.get(0));
+        }
+    }
+
+    @Test
+    void testSlowSubscriberOnlyGetsLatestUpdate() throws InterruptedException {
+        Subscriber slow = broker.subscribe(PubSubBroker.stationTopic("5000"));
+        Subscriber other = broker.subscribe(PubSubBroker.ALL);
+        for (int i = 0; i < 10; i++)
+            broker.publish(Parser.index("{\n\"id\": \"5000\",\n\"air_temp\": " + i +
+                                        "\n}").values());
+        // The last update reaches both once every publish has been dispatched
+        broker.publish(List.of(station("5045", "SA")));
+        List<String> received = new ArrayList<>();
+        while (!received.contains("5045"))
+            for (Update update : other.take(5, TimeUnit.SECONDS))
+                received.add(update.getStationID());
+        List<Update> updates = slow.take(0, TimeUnit.MILLISECONDS);
+        assertEquals(1, updates.size());
+        assertTrue(SubscriberTest.chunk(updates.get(0)).contains("\"air_temp\": 9"));
+    }
+
+    @Test
+    void testUnsubscribedAndClosedReceiveNothing() throws InterruptedException {
+        Subscriber subscriber = broker.subscribe(PubSubBroker.ALL);
+        broker.unsubscribe(subscriber);
+        assertEquals(0, broker.getSubscribers());
+        broker.publish(List.of(station("5000", "SA")));
+        assertNull(subscriber.take(50, TimeUnit.MILLISECONDS));
+        Subscriber open = broker.subscribe(PubSubBroker.ALL);
+        broker.close();
+        assertNull(open.take(5, TimeUnit.SECONDS));
+        assertEquals(0, broker.getSubscribers());
+    }
+}
@@ -0,0 +1,80 @@
+package utility.pubsub;
+
+import org.junit.jupiter.api.Test;
+import utility.weatherJson.Parser;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubscriberTest {
+    static Update update(String stationID, int airTemp) {
+        return Update.of(Parser.index("{\n\"id\": \"" + stationID + "\",\n\"air_temp\": " +
+                                      airTemp + "\n}").get(stationID));
+    }
+
+    static String chunk(Update update) {
+        byte[] bytes = new byte[update.getChunk().remaining()];
+        update.getChunk().get(bytes);
+        return new String(bytes);
+    }
+
+    @Test
+    void testUpdatesAreTakenInOrder() throws InterruptedException {
+        Subscriber subscriber = new Subscriber(PubSubBroker.ALL, 4);
+        assertEquals(Subscriber.Offer.QUEUED, subscriber.offer(update("A0", 1)));
+        assertEquals(Subscriber.Offer.QUEUED, subscriber.offer(update("A1", 2)));
+        List<Update> updates = subscriber.take(0, TimeUnit.MILLISECONDS);
+        assertEquals(List.of("A0", "A1"), updates.stream().map(Update::getStationID).toList());
+        assertEquals(List.of(), subscriber.take(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void testStationUpdatedAgainIsConflatedInPlace() throws InterruptedException {
+        Subscriber subscriber = new Subscriber(PubSubBroker.ALL, 4);
+        subscriber.offer(update("A0", 1));
+        subscriber.offer(update("A1", 2));
+        assertEquals(Subscriber.Offer.CONFLATED, subscriber.offer(update("A0", 3)));
+        List<Update> updates = subscriber.take(0, TimeUnit.MILLISECONDS);
+        assertEquals(2, updates.size());
+        assertEquals("A0", updates.get(0).getStationID());
+        assertTrue(chunk(updates.get(0)).contains("\"air_temp\": 3"));
+    }
+
+    @Test
+    void testOldestUpdateIsDroppedWhenFull() throws InterruptedException {
+        Subscriber subscriber = new Subscriber(PubSubBroker.ALL, 2);
+        subscriber.offer(update("A0", 1));
+        subscriber.offer(update("A1", 2));
+        assertEquals(Subscriber.Offer.DROPPED, subscriber.offer(update("A2", 3)));
+        assertEquals(List.of("A1", "A2"), subscriber.take(0, TimeUnit.MILLISECONDS).stream()
+                .map(Update::getStationID).toList());
+    }
+
+    @Test
+    void testCloseWakesUpTake() throws InterruptedException {
+        Subscriber subscriber = new Subscriber(PubSubBroker.ALL, 2);
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            subscriber.close();
+        });
+        closer.start();
+        assertNull(subscriber.take(10, TimeUnit.SECONDS));
+        closer.join();
+        assertEquals(Subscriber.Offer.CLOSED, subscriber.offer(update("A0", 1)));
+    }
+
+    @Test
+    void testChunkIsSharedAndFramed() {
+        Update update = update("A0", 1);
+        String body = "{\n\"id\": \"A0\",\n\"air_temp\": 1\n}";
+        assertEquals(Integer.toHexString(body.length()) + "\r\n" + body + "\r\n", chunk(update));
+        assertTrue(update.getChunk().isReadOnly());
+        // Each reader gets its own position over the same bytes
+        assertEquals(chunk(update), chunk(update));
+    }
+}
@@ -0,0 +1,77 @@
+package utility.replication;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utility.http.HTTPRequest;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReplicationLogTest {
+    ReplicationLog log;
+
+    HTTPRequest newPUT(String body) {
+        return new HTTPRequest("1.1").setMethod("PUT").setURI("/file.txt")
+                .setHeader("Content-Length", String.valueOf(body.length()))
+                .setHeader("Lamport-Clock", "3")
+                .setBody(body);
+    }
+
+    @BeforeEach
+    void setUp() {
+        log = new ReplicationLog(3);
+    }
+
+    @Test
+    void testAppendAssignsSequence() throws InterruptedException {
+        assertEquals(0, log.getHead());
+        assertEquals(1, log.append("/127.0.0.1", newPUT("a")));
+        assertEquals(2, log.append("/127.0.0.1", newPUT("b")));
+        List<ReplicationLog.Entry> entries = log.awaitAfter(0, 0);
+        assertEquals(2, entries.size());
+        assertEquals("b", log.awaitAfter(1, 0).get(0).request.body);
+    }
+
+    @Test
+    void testOnlyLatestEntriesAreKept() throws InterruptedException {
+        for (int i = 0; i < 5; i++)
+            log.append("/127.0.0.1", newPUT(String.valueOf(i)));
+        assertEquals(5, log.getHead());
+        assertEquals(3, log.getFirstSequence());
+        assertEquals(3, log.awaitAfter(0, 0).get(0).sequence);
+    }
+
+    @Test
+    void testAwaitReturnsWhenEntryIsAppended() throws InterruptedException {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        executor.schedule(() -> log.append("/127.0.0.1", newPUT("a")), 50,
+                TimeUnit.MILLISECONDS);
+        assertEquals(1, log.awaitAfter(0, 5000).size());
+        assertTrue(log.awaitAfter(1, 10).isEmpty());
+        executor.shutdownNow();
+    }
+
+    @Test
+    void testReplicationRequestCarriesSequenceAndSource() {
+        log.append("/10.0.0.1", newPUT("a"));
+        log.append("/10.0.0.2", newPUT("b"));
+        HTTPRequest request = assertDoesNotThrow(() -> log.awaitAfter(1, 0).get(0))
+                .toReplicationRequest();
+        assertEquals("PUT", request.method);
+        assertEquals("/file.txt", request.uri);
+        assertEquals(log.getEpoch(), request.getHeader("Replication-Epoch"));
+        assertEquals("2", request.getHeader("Replication-Sequence"));
+        assertEquals("/10.0.0.2", request.getHeader("Replication-Source"));
+        assertNull(request.getHeader("Lamport-Clock"));
+        assertEquals("b", request.body);
+    }
+
+    @Test
+    void testEveryLogHasItsOwnEpoch() {
+        assertNotEquals(log.getEpoch(), new ReplicationLog(3).getEpoch());
+    }
+}
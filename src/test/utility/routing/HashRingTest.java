@@ -0,0 +1,57 @@
+package utility.routing;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashRingTest {
+    static final int KEYS = 10000;
+
+    HashRing<String> newRing(List<String> nodes) {
+        return new HashRing<>(nodes, 128, Function.identity());
+    }
+
+    @Test
+    void testEmptyRingHasNoOwner() {
+        assertNull(newRing(List.of()).get("5000"));
+    }
+
+    @Test
+    void testOwnerDoesNotDependOnNodeOrder() {
+        HashRing<String> ring = newRing(List.of("a:1", "b:2", "c:3"));
+        HashRing<String> reordered = newRing(List.of("c:3", "a:1", "b:2"));
+        for (int key = 0; key < KEYS; key++)
+            assertEquals(ring.get(String.valueOf(key)), reordered.get(String.valueOf(key)));
+    }
+
+    @Test
+    void testKeysAreSpreadEvenly() {
+        HashRing<String> ring = newRing(List.of("a:1", "b:2", "c:3", "d:4"));
+        Map<String, Integer> counts = new HashMap<>();
+        for (int key = 0; key < KEYS; key++)
+            counts.merge(ring.get(String.valueOf(5000 + key)), 1, Integer::sum);
+        for (int count : counts.values())
+            assertTrue(Math.abs(count - KEYS / 4) < KEYS / 4 * 0.3, counts.toString());
+    }
+
+    @Test
+    void testAddedNodeOnlyTakesKeys() {
+        HashRing<String> ring = newRing(List.of("a:1", "b:2", "c:3", "d:4"));
+        HashRing<String> grown = newRing(List.of("a:1", "b:2", "c:3", "d:4", "e:5"));
+        int moved = 0;
+        for (int key = 0; key < KEYS; key++) {
+            String before = ring.get(String.valueOf(key));
+            String after = grown.get(String.valueOf(key));
+            if (!before.equals(after)) {
+                assertEquals("e:5", after);
+                moved++;
+            }
+        }
+        assertTrue(Math.abs(moved - KEYS / 5) < KEYS / 5 * 0.3, String.valueOf(moved));
+    }
+}
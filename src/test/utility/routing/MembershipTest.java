@@ -0,0 +1,53 @@
+package utility.routing;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MembershipTest {
+    Membership<String> membership;
+
+    @BeforeEach
+    void setUp() {
+        membership = Membership.<String>empty().withMember("a:1").withMember("b:2");
+    }
+
+    @Test
+    void testEveryChangeCreatesNextVersion() {
+        assertEquals(2, membership.getVersion());
+        Membership<String> next = membership.withLeader("a:1");
+        assertEquals(3, next.getVersion());
+        assertEquals("a:1", next.getLeader());
+        assertNull(membership.getLeader());
+        assertEquals(4, next.withoutMember("a:1").getVersion());
+    }
+
+    @Test
+    void testUnchangedViewIsReturnedAsIs() {
+        assertSame(membership, membership.withMember("a:1"));
+        assertSame(membership, membership.withoutMember("c:3"));
+        Membership<String> next = membership.withLeader("b:2");
+        assertSame(next, next.withLeader("b:2"));
+    }
+
+    @Test
+    void testPreviousViewIsNotModified() {
+        Membership<String> next = membership.withMember("c:3").withoutMember("a:1");
+        assertEquals(List.of("a:1", "b:2"), membership.getMembers());
+        assertEquals(List.of("b:2", "c:3"), next.getMembers());
+        assertTrue(membership.contains("a:1"));
+        assertFalse(next.contains("a:1"));
+        assertThrows(UnsupportedOperationException.class,
+                () -> next.getMembers().add("d:4"));
+    }
+
+    @Test
+    void testGetReturnsMember() {
+        String member = new String("b:2");
+        assertSame(membership.getMembers().get(1), membership.get(member));
+        assertNull(membership.get("c:3"));
+    }
+}
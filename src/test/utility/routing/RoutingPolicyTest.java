@@ -0,0 +1,98 @@
+package utility.routing;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoutingPolicyTest {
+    static class Server implements Routable {
+        final ServerLoad load = new ServerLoad();
+
+        @Override
+        public ServerLoad getLoad() {
+            return load;
+        }
+    }
+
+    List<Server> servers;
+
+    @BeforeEach
+    void setUp() {
+        servers = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            servers.add(new Server());
+    }
+
+    @Test
+    void testRoundRobinVisitsEachServerInTurn() {
+        RoutingPolicy policy = RoutingPolicy.of("round_robin");
+        for (int i = 0; i < 6; i++)
+            assertSame(servers.get(i % 3), policy.select(servers));
+    }
+
+    @Test
+    void testLeastOutstandingAvoidsBusyServers() {
+        RoutingPolicy policy = RoutingPolicy.of("least_outstanding");
+        servers.get(0).load.begin();
+        servers.get(2).load.begin();
+        assertSame(servers.get(1), policy.select(servers));
+        servers.get(1).load.begin();
+        servers.get(1).load.begin();
+        servers.get(0).load.end(1000);
+        assertSame(servers.get(0), policy.select(servers));
+    }
+
+    @Test
+    void testLeastOutstandingBreaksTiesByLatency() {
+        RoutingPolicy policy = RoutingPolicy.of("least_outstanding");
+        for (int i = 0; i < 3; i++) {
+            servers.get(i).load.begin();
+            servers.get(i).load.end(new long[]{3000, 1000, 2000}[i]);
+        }
+        assertSame(servers.get(1), policy.select(servers));
+    }
+
+    @Test
+    void testPowerOfTwoChoicesPrefersFastServer() {
+        RoutingPolicy policy = RoutingPolicy.of("p2c_ewma");
+        for (int i = 0; i < 3; i++) {
+            servers.get(i).load.begin();
+            servers.get(i).load.end(i == 0 ? 1_000 : 1_000_000);
+        }
+        Map<Server, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 3000; i++)
+            counts.merge(policy.select(servers), 1, Integer::sum);
+        // The fast server wins whenever it is one of the two choices, 2 out of 3 times
+        assertEquals(2000, counts.get(servers.get(0)), 150);
+        assertTrue(counts.get(servers.get(1)) > 0);
+    }
+
+    @Test
+    void testEWMAFollowsLatency() {
+        ServerLoad load = new ServerLoad();
+        load.begin();
+        load.end(1000);
+        assertEquals(1000, load.getEWMA());
+        load.begin();
+        load.end(2000);
+        assertEquals(1300, load.getEWMA(), 1e-6);
+        load.begin();
+        assertEquals(2600, load.getCost(), 1e-6);
+        load.cancel();
+        assertEquals(0, load.getOutstanding());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "leader", "random"})
+    void testUnknownPolicyThrowsException(String name) {
+        assertThrows(IllegalArgumentException.class, () -> RoutingPolicy.of(name));
+    }
+}
@@ -0,0 +1,37 @@
+package utility.routing;
+
+import org.junit.jupiter.api.Test;
+import utility.weatherJson.Parser;
+import utility.weatherJson.WeatherDataView;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardHandoffTest {
+    @Test
+    void testOnlyStationsOwnedElsewhereAreSplit() {
+        StringBuilder body = new StringBuilder();
+        for (int id = 0; id < 50; id++)
+            body.append(id == 0 ? "{\n" : ",\n{\n").append("\"id\": \"").append(id)
+                    .append("\",\n\"lat\": 10\n}");
+        Map<String, WeatherDataView> stations = Parser.index(body.toString());
+        assertEquals(50, stations.size());
+        HashRing<String> ring = new HashRing<>(List.of("a:1", "b:2", "c:3"), 128,
+                Function.identity());
+
+        Map<String, String> moved = ShardHandoff.split(stations, "a:1", ring);
+        assertFalse(moved.containsKey("a:1"));
+        int count = 0;
+        for (Map.Entry<String, String> entry : moved.entrySet())
+            for (WeatherDataView station : Parser.index(entry.getValue()).values()) {
+                assertEquals(entry.getKey(), ring.get(station.getID()));
+                assertEquals(stations.get(station.getID()).toString(), station.toString());
+                count++;
+            }
+        assertEquals(stations.values().stream()
+                .filter(station -> !ring.get(station.getID()).equals("a:1")).count(), count);
+    }
+}
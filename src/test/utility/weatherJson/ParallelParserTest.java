@@ -0,0 +1,78 @@
+package utility.weatherJson;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ParallelParserTest {
+    ForkJoinPool pool;
+
+    @BeforeEach
+    void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterEach
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    String generateMessage(int records, int stations, long seed) {
+        Random random = new Random(seed);
+        StringBuilder builder = new StringBuilder("{\n");
+        for (int i = 0; i < records; i++) {
+            builder.append(String.format("\"id\": \"%d\",\n", random.nextInt(stations)));
+            builder.append(String.format("\"air_temp\": %.1f,\n", random.nextFloat() * 40));
+            builder.append(String.format("\"local_date_time_full\": \"%d\"",
+                    20230715000000L + random.nextInt(240000)));
+            builder.append(i < records - 1 ? ",\n" : "\n");
+        }
+        return builder.append("}").toString();
+    }
+
+    void assertSameIndex(Map<String, WeatherDataView> expected,
+                         Map<String, WeatherDataView> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String id : expected.keySet()) {
+            assertEquals(expected.get(id).getRawTS(), actual.get(id).getRawTS());
+            assertEquals(expected.get(id).toString(), actual.get(id).toString());
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {1, 64, 512, 4096, 1 << 20})
+    void testParallelIndexMatchesSequential(int chunkSize) {
+        String message = generateMessage(2000, 50, chunkSize);
+        ParallelParser parser = new ParallelParser(pool, chunkSize);
+        assertSameIndex(Parser.index(message), parser.index(message));
+    }
+
+    @Test
+    void testCompositeFileMatchesSequential() throws IOException {
+        Parser fileParser = new Parser();
+        fileParser.parseFile(Paths.get("src/resources/WeatherData/Composite/Adelaide_2023-07" +
+                                       "-15_16-30-00.txt"));
+        String message = fileParser.toString();
+        ParallelParser parser = new ParallelParser(pool, 100);
+        assertSameIndex(Parser.index(message), parser.index(message));
+    }
+
+    @Test
+    void testSplitInsideRecordFallsBackToSequential() {
+        // The second id line continues the record started by lat, it is not a boundary
+        String message = "{\n\"lat\": -35.9,\n\"lon\": 10,\n\"id\": \"A0\",\n\"lat\": -34.9," +
+                         "\n\"id\": \"A1\",\n\"lon\": 12\n}";
+        ParallelParser parser = new ParallelParser(pool, 1);
+        assertSameIndex(Parser.index(message), parser.index(message));
+    }
+}
@@ -2,9 +2,11 @@ package utility.weatherJson;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -78,6 +80,37 @@ class ParserTest {
                 parser.toString());
     }
 
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "oneID.txt",
+            "twoID.txt",
+            "twoIDNotInOrder.txt",
+            "secondNoID.txt",
+            "firstMissingID.txt"
+    })
+    void testStreamFile(String fileName) throws IOException {
+        StringWriter out = new StringWriter();
+        parser.streamFile(workDir.resolve(fileName), out);
+        Path expFilePath = workDir.resolve("exp" + fileName);
+        assertEquals(String.join("\n", Files.readAllLines(expFilePath)), out.toString());
+        assertEquals(0, parser.size());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "sameID_old_F_new_T.txt",
+            "sameID_old_T_new_F.txt",
+            "sameID_old_T_new_T_old_gt_new.txt",
+            "sameID_old_T_new_T_old_lt_new.txt"
+    })
+    void testStreamFileSameIDIsIndexedLikeParseFile(String fileName) throws IOException {
+        StringWriter out = new StringWriter();
+        parser.streamFile(workDir.resolve(fileName), out);
+        parser.parseFile(workDir.resolve(fileName));
+        assertEquals(Parser.index(parser.toString()).toString(),
+                Parser.index(out.toString()).toString());
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {
             "sameID_old_F_new_T.txt",
@@ -95,6 +128,17 @@ class ParserTest {
                 parser.toString());
     }
 
+    @ParameterizedTest
+    @CsvSource({
+            "'{\n\"id\": \"A0\",\n\"lat\": 10\n}', '{\n\n}', '{\n\"id\": \"A0\",\n\"lat\": 10\n}'",
+            "'{\n\"id\": \"A0\",\n\"lat\": 10\n}', '{\n\"id\": \"A0\",\n\"lat\": 11\n}', '{\n\"id\": \"A0\",\n\"lat\": 11\n}'",
+            "'{\n\"id\": \"A0\",\n\"id\": \"A1\"\n}', '{\n\"id\": \"A0\",\n\"lat\": 11\n}', '{\n\"id\": \"A0\",\n\"lat\": 11,\n\"id\": \"A1\"\n}'",
+            "'{\n\"id\": \"A0\"\n}', '{\n\"id\": \"A1\"\n}', '{\n\"id\": \"A0\",\n\"id\": \"A1\"\n}'",
+    })
+    void testMergeMessage(String base, String delta, String expected) {
+        assertEquals(expected, Parser.mergeMessage(base, delta));
+    }
+
     @ParameterizedTest
     @ValueSource(strings = {
             "{\n\"id\": \"A0\",\n\"lat\": -34.9,\n\"wind_spd_kt\": 8\n}",
@@ -0,0 +1,119 @@
+package utility.weatherJson;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WeatherDataViewTest {
+    Parser parser;
+
+    @BeforeEach
+    void setUp() {
+        parser = new Parser();
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "{\n\"id\": \"A0\",\n\"lat\": -34.9,\n\"wind_spd_kt\": 8\n}",
+            "{\n\"id\": \"A0\",\n\"message\": \"And he said to me: \"Don't go\"\"\n}",
+            "{\n\"id\": \"A0\",\n\"lat\": -34.9,\n\"id\": \"A1\",\n\"lat\": -34.9\n}",
+            "{\n\"id\": \"A0\",\n\"id\": \"A1\",\n\"id\": \"A2\",\n\"lat\": -34.9\n}",
+            "{\n\"lat\": -35.9,\n\"lon\": 10,\n\"id\": \"A0\",\n\"lat\": -34.9\n}",
+    })
+    void testIndexMatchesParseMessage(String input) {
+        parser.parseMessage(input);
+        Map<String, WeatherDataView> views = Parser.index(input);
+        assertEquals(parser.getContainer().keySet(), views.keySet());
+        for (String id : views.keySet())
+            assertEquals(parser.get(id).toString(), views.get(id).toString());
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "20230715160000, 20230715163000, 20230715163000",
+            "20230715163000, 20230715160000, 20230715163000",
+            "20230715160000, 20230715160000, 20230715160000",
+            "invalid, 20230715160000, 20230715160000",
+            "20230715160000, invalid, 20230715160000",
+    })
+    void testIndexUsesLatestTimestamp(String firstTS, String secondTS, String expected) {
+        String input = "{\n\"id\": \"A0\",\n\"local_date_time_full\": \"" + firstTS + "\",\n" +
+                       "\"id\": \"A0\",\n\"local_date_time_full\": \"" + secondTS + "\"\n}";
+        parser.parseMessage(input);
+        WeatherDataView view = Parser.index(input).get("A0");
+        assertEquals(expected, view.getRawTS());
+        assertEquals(parser.get("A0").toString(), view.toString());
+    }
+
+    @Test
+    void testViewIsDecodedOnlyOnRead() {
+        Map<String, WeatherDataView> views = Parser.index(
+                "{\n\"id\": \"A0\",\n\"local_date_time_full\": \"20230715160000\"\n}");
+        WeatherDataView view = views.get("A0");
+        assertFalse(view.isDecoded());
+        assertEquals("20230715160000", view.getRawTS());
+        assertEquals("\"id\": \"A0\",\n\"local_date_time_full\": \"20230715160000\"",
+                view.toString());
+        assertTrue(view.isDecoded());
+    }
+
+    @Test
+    void testViewsEqualWhenContentEqual() {
+        WeatherDataView first = Parser.index("{\n\"id\": \"A0\",\n\"lat\": 10\n}").get("A0");
+        WeatherDataView second =
+                Parser.index("{\n\"id\": \"A0\",\n\"lat\": 10.5\n}").get("A0");
+        assertNotEquals(first, second);
+        assertEquals(first, Parser.index("{\n\"id\": \"A0\",\n\"lat\": 10\n}").get("A0"));
+    }
+
+    @Test
+    void testETagOnlyFollowsRecord() {
+        WeatherDataView first = Parser.index("{\n\"id\": \"A0\",\n\"lat\": 10\n}").get("A0");
+        WeatherDataView second =
+                Parser.index("{\n\"id\": \"A0\",\n\"lat\": 10.5\n}").get("A0");
+        WeatherDataView replica = Parser.index("{\n\"id\": \"A0\",\n\"lat\": 10\n}," +
+                                               "\n{\n\"id\": \"A1\"\n}").get("A0");
+        // The replica is indexed from another body, as on another server
+        assertTrue(first.getETag().matches("\"[0-9a-f]{16}\""));
+        assertNotEquals(first.getETag(), second.getETag());
+        assertEquals(first.getETag(), replica.getETag());
+        assertFalse(first.isDecoded());
+    }
+
+    @Test
+    void testValueIsFoundWithoutDecoding() {
+        Map<String, WeatherDataView> views = Parser.index(
+                "{\n\"id\": \"A0\",\n\"state\": \"SA\",\n\"lat\": -34.9\n}," +
+                "\n{\n\"id\": \"A1\",\n\"state\": \"VIC\"\n}");
+        assertEquals("SA", views.get("A0").getValue("state"));
+        assertEquals("-34.9", views.get("A0").getValue("lat"));
+        assertEquals("VIC", views.get("A1").getValue("state"));
+        assertNull(views.get("A1").getValue("lat"));
+        assertFalse(views.get("A0").isDecoded());
+    }
+
+    @Test
+    void testDetachedViewOnlyHoldsItsRecord() throws Exception {
+        String body = "{\n\"id\": \"A0\",\n\"lat\": 10\n},\n{\n\"id\": \"A1\",\n\"lat\": 11\n}";
+        WeatherDataView view = Parser.index(body).get("A1");
+        WeatherDataView detached = view.detach();
+        assertEquals(view.toString(), detached.toString());
+        assertEquals(view.getRecord(), detached.getRecord());
+        assertEquals(view.getETag(), detached.getETag());
+        assertSame(detached, detached.detach());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(detached);
+        }
+        assertFalse(bytes.toString(StandardCharsets.ISO_8859_1).contains("\"A0\""));
+    }
+}